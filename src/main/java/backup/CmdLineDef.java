@@ -1,7 +1,11 @@
 package backup;
 
 import backup.config.Batch;
+import backup.config.TargetFormat;
+import backup.helpers.DirNaming;
+import backup.helpers.FilterRuleSeq;
 import backup.helpers.ProcessingResult;
+import backup.probe.MetadataSupport;
 import org.jetbrains.annotations.NotNull;
 
 import picocli.CommandLine.Command;
@@ -10,6 +14,7 @@ import picocli.CommandLine.Parameters;
 
 import java.io.File;
 import java.io.PrintWriter;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 
@@ -33,11 +38,44 @@ public class CmdLineDef {
     private final static String CLASS = CmdLineDef.class.getName();
 
     public final static String DRYRUN = "--dryrun";
+    public final static String PLAN = "--plan";
     public final static String VERBOSE = "--verbose";
     public final static String WITH = "--with";
+    public final static String SKIP_PRESCAN = "--skip-prescan";
+    public final static String KEEP_CACHES = "--keep-caches";
+    public final static String BATCH_FILE_DIR = "--batch-file-dir";
+    public final static String DELTA_ABOVE = "--delta-above";
+    public final static String CACHE_NEUTRAL = "--cache-neutral";
+    public final static String ENCRYPT_WITH = "--encrypt-with";
+    public final static String ARCHIVE = "--archive";
+    public final static String SKIP_PROBE = "--skip-probe";
+    public final static String RESTORE = "--restore";
+    public final static String RESTORE_TO = "--restore-to";
+    public final static String RESTORE_FILTER = "--restore-filter";
+    public final static String LATEST = "latest";
+    public final static String DIFF = "--diff";
+    public final static String CHUNK_FILES = "--chunk-files";
+    public final static String CHUNK_MIB = "--chunk-mib";
+    public final static String SOURCE_ROOT = "--source-root";
+    public final static String MERKLE_CONTENT = "--merkle-content";
+    public final static String DEDUP = "--dedup";
+    public final static String SCRUB = "--scrub";
+    public final static String PARITY_PERCENT = "--parity-percent";
+    public final static String REPAIR = "--repair";
+    public final static String SCRUB_MINUTES = "--scrub-minutes";
+    public final static String SCRUB_MIBPS = "--scrub-mibps";
+    public final static String ANALYSE = "--analyse";
+    public final static String EXPORT = "--export";
+    public final static String EXPORT_TO = "--export-to";
+    public final static String EXPORT_INDEX = "--export-index";
+    public final static String FAST_PATH = "--fast-path";
+    public final static String FULL_WALK_DAYS = "--full-walk-days";
+    public final static String SKIP_PREFETCH = "--skip-prefetch";
 
-    @Parameters(index = "0", description = "Destination directory under which the backup target directory will be created.", paramLabel = "DESTDIR")
-    private String destDirAsStr;
+    @Parameters(arity = "1..*", description = "Destination directory under which the backup target directory will be created. " +
+            "If several are given, the sources are read only once: rsync writes to the first one and records a batch file, " +
+            "which is then replayed onto the others.", paramLabel = "DESTDIR")
+    private List<String> destDirsAsStr;
 
     @Option(names = {VERBOSE}, description = "Switch on 'rsync' verbosity.")
     private boolean verbose;
@@ -45,6 +83,134 @@ public class CmdLineDef {
     @Option(names = {DRYRUN, "--dry-run"}, description = "Just perform a rsync 'dryrun', do not really copy anything.")
     private boolean dryrun;
 
+    @Option(names = {PLAN}, description = "Perform a rsync 'dryrun' and report how many files and bytes each batch would transfer.")
+    private boolean plan;
+
+    @Option(names = {SKIP_PRESCAN}, description = "Do not walk the sources in Java before running rsync. Saves time, but then '--hard-links' is never used.")
+    private boolean skipPrescan;
+
+    @Option(names = {KEEP_CACHES}, description = "Back up cache directories, too. By default, the pre-scan leaves out directories tagged " +
+            "with a 'CACHEDIR.TAG' and those of well-known tools (npm, cargo, pip, Maven, Gradle, browsers, IDEs).")
+    private boolean keepCaches;
+
+    @Option(names = {BATCH_FILE_DIR}, description = "Directory in which the rsync batch file is recorded when there are several DESTDIR. " +
+            "The batch file holds all the data transferred, so put it on a fast disk with space. Defaults to the first target directory.", paramLabel = "DIR")
+    private String batchFileDirAsStr;
+
+    @Option(names = {DELTA_ABOVE}, description = "Store files of at least this many MiB as block-level deltas against the previous backup " +
+            "instead of having rsync copy them. Meant for VM images. Needs the pre-scan.", paramLabel = "MIB")
+    private long deltaAboveMiB;
+
+    @Option(names = {CACHE_NEUTRAL}, description = "Keep the data of bulk batches ('large_but_stable') out of the page cache, " +
+            "so that the working set of the machine survives the backup. Uses nocache(1) if installed.")
+    private boolean cacheNeutral;
+
+    @Option(names = {ENCRYPT_WITH}, description = "Write the batches encrypted (AES-256-GCM, file names included) instead of having rsync copy them. " +
+            "The passphrase is the first line of FILE. Keep a copy of it elsewhere, there is no way to restore without it.", paramLabel = "FILE")
+    private String passphraseFileAsStr;
+
+    @Option(names = {ARCHIVE}, description = "Store this batch (same values as '" + WITH + "') packed into large append-only segments " +
+            "shared by all backups on the DESTDIR, with an index per backup, instead of as a tree of files. Much faster for many small files.", paramLabel = "BATCH")
+    private String[] archiveBatches;
+
+    @Option(names = {SKIP_PROBE}, description = "Do not measure the speed of the DESTDIR devices before starting. " +
+            "Without the measurements, batches are not switched to archive format automatically.")
+    private boolean skipProbe;
+
+    @Option(names = {SOURCE_ROOT}, description = "Back up the batches from below DIR instead of from '/', e.g. '/home/aloy' from 'DIR/home/aloy'. " +
+            "Meant for tests and benchmarks on generated trees. Not possible for 'system'.", paramLabel = "DIR")
+    private String sourceRootAsStr;
+
+    @Option(names = {CHUNK_FILES}, description = "Bound the memory used by rsync: walk the batches first and have rsync copy them in chunks " +
+            "of at most N files and directories, one after the other. Hard links are only kept within a chunk. " +
+            "No Merkle tree is recorded for such batches (see '" + MERKLE_CONTENT + "'), as it would need all of the batch in memory.", paramLabel = "N")
+    private long chunkFiles;
+
+    @Option(names = {CHUNK_MIB}, description = "With '" + CHUNK_FILES + "', also end a chunk once it holds this many MiB.", paramLabel = "MIB")
+    private long chunkMiB;
+
+    @Option(names = {RESTORE}, description = "Restore instead of backing up. SNAPSHOT is the name of a backup target directory " +
+            "in the (single) DESTDIR, or '" + LATEST + "'. Restores the batches given with '" + WITH + "', all of them by default. " +
+            "Encrypted batches need '" + ENCRYPT_WITH + "'.", paramLabel = "SNAPSHOT")
+    private String restoreSnapshotAsStr;
+
+    @Option(names = {RESTORE_TO}, description = "Root under which to restore, the files are put at their original path below it. " +
+            "Use '/' to put them back where they were.", paramLabel = "DIR")
+    private String restoreToAsStr;
+
+    @Option(names = {RESTORE_FILTER}, description = "Filter rule applied to the paths as seen by rsync (i.e. '/attic/x' for '/home/attic/x'), " +
+            "'+' or '-' followed by an rsync pattern, e.g. '+/attic/docs/***'. The first matching rule is acted on. " +
+            "Can be given several times.", paramLabel = "RULE")
+    private String[] restoreFilterRules;
+
+    @Option(names = {DIFF}, arity = "2", description = "Compare two backups instead of backing up, listing the files added, removed and modified. " +
+            "SNAPSHOT is as for '" + RESTORE + "'. Uses the Merkle trees recorded with the backups, only directories that differ are looked at.",
+            paramLabel = "SNAPSHOT")
+    private String[] diffSnapshotsAsStr;
+
+    @Option(names = {MERKLE_CONTENT}, description = "Also hash the data of the files for the Merkle tree recorded with the backup, " +
+            "not only their metadata. This reads back everything written.")
+    private boolean merkleContent;
+
+    @Option(names = {DEDUP}, description = "Instead of backing up, replace identical files in the batches (given with '" + WITH + "', " +
+            "all of them by default) of a backup by hard links to one of them. SNAPSHOT is as for '" + RESTORE + "'. " +
+            "Only files that also agree in mtime, permissions, ownership, extended attributes and ACLs are linked. With '" + DRYRUN + "', just report what would be saved.",
+            paramLabel = "SNAPSHOT")
+    private String dedupSnapshotAsStr;
+
+    @Option(names = {SCRUB}, description = "Instead of backing up, read back the backups of this host in the (single) DESTDIR, oldest first, " +
+            "and check them against the Merkle trees recorded with them, reporting corrupted files. A session continues where the last one stopped. " +
+            "Only backups made with '" + MERKLE_CONTENT + "' can be checked for changed data, the others only for unreadable files.")
+    private boolean scrub;
+
+    @Option(names = {SCRUB_MINUTES}, description = "With '" + SCRUB + "', stop after this many minutes (default: ${DEFAULT-VALUE}).", paramLabel = "MIN",
+            defaultValue = "60")
+    private long scrubMinutes;
+
+    @Option(names = {SCRUB_MIBPS}, description = "With '" + SCRUB + "', read at most this many MiB per second, 0 for no limit (default: ${DEFAULT-VALUE}).",
+            paramLabel = "MIB", defaultValue = "50")
+    private long scrubMiBps;
+
+    @Option(names = {PARITY_PERCENT}, description = "Write Reed-Solomon recovery data for the files of at least 1 MiB of batches stored as a tree, " +
+            "enough to rebuild this percentage of each file (in stripes of 2 MiB). Costs as much space. See '" + REPAIR + "'.", paramLabel = "PERCENT")
+    private int parityPercent;
+
+    @Option(names = {REPAIR}, description = "Instead of backing up, check the files of a backup that have recovery data (see '" + PARITY_PERCENT + "') " +
+            "and rebuild their damaged parts in place. SNAPSHOT is as for '" + RESTORE + "'.", paramLabel = "SNAPSHOT")
+    private String repairSnapshotAsStr;
+
+    @Option(names = {ANALYSE}, description = "Instead of backing up, walk the sources of the batches (given with '" + WITH + "', all of them by default) " +
+            "together with their filter rules and list what more than one batch would copy and what none would, with the bytes concerned. " +
+            "Nothing is written to the DESTDIR.")
+    private boolean analyse;
+
+    @Option(names = {EXPORT}, description = "Instead of backing up, write the batches (given with '" + WITH + "', all of them by default) " +
+            "of a backup as a POSIX tar stream, with extended attributes and ACLs, one top-level directory per batch. " +
+            "SNAPSHOT is as for '" + RESTORE + "'. Encrypted batches need '" + ENCRYPT_WITH + "'.", paramLabel = "SNAPSHOT")
+    private String exportSnapshotAsStr;
+
+    @Option(names = {EXPORT_TO}, description = "With '" + EXPORT + "', the file to write the tar stream to, '-' for STDOUT (default: ${DEFAULT-VALUE}). " +
+            "The log then goes to STDERR.", paramLabel = "FILE", defaultValue = "-")
+    private String exportToAsStr;
+
+    @Option(names = {EXPORT_INDEX}, description = "With '" + EXPORT + "', also write an index of the tar stream to FILE: per entry, " +
+            "where its header and its data start, in 512-byte records.", paramLabel = "FILE")
+    private String exportIndexAsStr;
+
+    @Option(names = {FAST_PATH}, description = "Compare the fingerprints of the source directories (their mtimes, ctimes and entry counts) with those " +
+            "of the last backup where the batch succeeded, and take what did not change from there instead of having rsync look at every file. " +
+            "A batch that did not change at all is not copied, the backup refers to the earlier one. Files changed in place go unnoticed " +
+            "until the next full walk (see '" + FULL_WALK_DAYS + "').")
+    private boolean fastPath;
+
+    @Option(names = {FULL_WALK_DAYS}, description = "With '" + FAST_PATH + "', walk a batch in full anyway if that was last done this many days ago " +
+            "(default: ${DEFAULT-VALUE}).", paramLabel = "DAYS", defaultValue = "7")
+    private int fullWalkDays;
+
+    @Option(names = {SKIP_PREFETCH}, description = "Do not walk the sources of the next batch while rsync copies the current one. " +
+            "By default a slow background walk brings their directories and inodes into memory, so that rsync builds its file list faster.")
+    private boolean skipPrefetch;
+
     // --
     // This description has to be sadly updated manually whenever the backup
     // options are rearranged. There must be a better way
@@ -63,7 +229,20 @@ public class CmdLineDef {
     // ---
 
     private File destDir;
+    private List<File> destDirs;
+    private File batchFileDir;
+    private File passphraseFile;
+    private File sourceRoot;
     private SortedSet<Batch> batchSet;
+    private SortedSet<Batch> archiveBatchSet;
+    private File restoreSnapshotDir;
+    private File restoreTo;
+    private FilterRuleSeq restoreFilter;
+    private List<File> diffSnapshotDirs;
+    private File dedupSnapshotDir;
+    private File repairSnapshotDir;
+    private File exportSnapshotDir;
+    private MetadataSupport destMetadata = MetadataSupport.FULL;
     private final Instant when = Instant.now();
 
     // ---
@@ -72,19 +251,280 @@ public class CmdLineDef {
     // ---
 
     private void argPostprocessing_TargetDir(List<String> problems) {
-        assert destDirAsStr != null;
-        this.destDir = new File(destDirAsStr);
-        if (!destDir.exists()) {
-            problems.add("The target directory '" + destDirAsStr + "' does not exist!");
+        assert destDirsAsStr != null && !destDirsAsStr.isEmpty();
+        List<File> tmpDestDirs = new ArrayList<>();
+        for (String destDirAsStr : destDirsAsStr) {
+            File dir = new File(destDirAsStr);
+            checkWritableDir(dir, "target directory", problems);
+            if (tmpDestDirs.contains(dir)) {
+                problems.add("The target directory '" + destDirAsStr + "' has been given more than once!");
+            }
+            tmpDestDirs.add(dir);
+        }
+        this.destDirs = Collections.unmodifiableList(tmpDestDirs);
+        this.destDir = tmpDestDirs.get(0);
+        if (batchFileDirAsStr != null) {
+            this.batchFileDir = new File(batchFileDirAsStr);
+            checkWritableDir(batchFileDir, "batch file directory", problems);
         }
-        else if (!destDir.isDirectory()) {
-            problems.add("The target directory '" + destDirAsStr + "' exists but is not a directory!");
+    }
+
+    private static void checkWritableDir(File dir, String what, List<String> problems) {
+        if (!dir.exists()) {
+            problems.add("The " + what + " '" + dir + "' does not exist!");
         }
-        else if (!destDir.canWrite() || !destDir.canRead() || !destDir.canExecute()) {
-            problems.add("The target directory '" + destDirAsStr + "' exists, is a directory, but cannot be read, written or listed!");
+        else if (!dir.isDirectory()) {
+            problems.add("The " + what + " '" + dir + "' exists but is not a directory!");
+        }
+        else if (!dir.canWrite() || !dir.canRead() || !dir.canExecute()) {
+            problems.add("The " + what + " '" + dir + "' exists, is a directory, but cannot be read, written or listed!");
+        }
+    }
+
+    private void argPostprocessing_Delta(List<String> problems) {
+        if (deltaAboveMiB < 0) {
+            problems.add("The '" + DELTA_ABOVE + "' value must not be negative!");
+        }
+        else if (deltaAboveMiB > 0 && skipPrescan) {
+            problems.add("The '" + DELTA_ABOVE + "' option needs the pre-scan, which has been switched off with '" + SKIP_PRESCAN + "'!");
+        }
+    }
+
+    private void argPostprocessing_SourceRoot(List<String> problems) {
+        if (sourceRootAsStr == null) {
+            return;
+        }
+        this.sourceRoot = new File(sourceRootAsStr).getAbsoluteFile();
+        if (!sourceRoot.isDirectory()) {
+            problems.add("The source root '" + sourceRootAsStr + "' is not a directory!");
+        }
+        for (Batch batch : batchSet) {
+            if (batch.isRootedAtSlash()) {
+                problems.add("The batch '" + batch + "' backs up '/' and cannot be moved under '" + SOURCE_ROOT + "'!");
+            }
+        }
+    }
+
+    private void argPostprocessing_Chunks(List<String> problems) {
+        if (chunkFiles < 0 || chunkMiB < 0) {
+            problems.add("The '" + CHUNK_FILES + "' and '" + CHUNK_MIB + "' values must not be negative!");
+        }
+        else if (chunkMiB > 0 && chunkFiles == 0) {
+            problems.add("The '" + CHUNK_MIB + "' option needs '" + CHUNK_FILES + "'!");
+        }
+        else if (chunkFiles > 0 && destDirs.size() > 1) {
+            // there would be one rsync batch file per chunk to replay
+            problems.add("The '" + CHUNK_FILES + "' option cannot be used with several DESTDIR!");
+        }
+        else if (chunkFiles > 0 && merkleContent) {
+            problems.add("The '" + MERKLE_CONTENT + "' option cannot be used with '" + CHUNK_FILES + "', no Merkle tree is recorded for chunked batches!");
         }
     }
 
+    private void argPostprocessing_Encryption(List<String> problems) {
+        if (passphraseFileAsStr == null) {
+            return;
+        }
+        this.passphraseFile = new File(passphraseFileAsStr);
+        if (!passphraseFile.isFile() || !passphraseFile.canRead()) {
+            problems.add("The passphrase file '" + passphraseFile + "' does not exist or cannot be read!");
+        }
+        if (isSnapshotMode()) {
+            // the passphrase is only used to decrypt
+            return;
+        }
+        // the Java-side copy engine does not do dry runs, and the large files must be encrypted, too
+        if (dryrun || plan) {
+            problems.add("The '" + ENCRYPT_WITH + "' option cannot be combined with '" + DRYRUN + "' or '" + PLAN + "'!");
+        }
+        if (deltaAboveMiB > 0) {
+            problems.add("The '" + ENCRYPT_WITH + "' option cannot be combined with '" + DELTA_ABOVE + "'!");
+        }
+    }
+
+    private void argPostprocessing_Archive(List<String> problems) {
+        SortedSet<Batch> tmpBatchSet = new TreeSet<>();
+        if (archiveBatches != null) {
+            for (String batchAsStr : archiveBatches) {
+                try {
+                    tmpBatchSet.addAll(Batch.myValueOf(batchAsStr));
+                } catch (IllegalArgumentException ex) {
+                    problems.add("Bad '" + ARCHIVE + "' value: " + ex.getMessage());
+                }
+            }
+        }
+        if (!tmpBatchSet.isEmpty()) {
+            if (passphraseFileAsStr != null) {
+                problems.add("The '" + ARCHIVE + "' option cannot be combined with '" + ENCRYPT_WITH + "'!");
+            }
+            if (dryrun || plan) {
+                problems.add("The '" + ARCHIVE + "' option cannot be combined with '" + DRYRUN + "' or '" + PLAN + "'!");
+            }
+        }
+        // only the batches actually backed up are of interest
+        tmpBatchSet.retainAll(batchSet);
+        this.archiveBatchSet = Collections.unmodifiableSortedSet(tmpBatchSet);
+    }
+
+    private void argPostprocessing_Restore(List<String> problems) {
+        if (!isRestore()) {
+            if (restoreToAsStr != null || restoreFilterRules != null) {
+                problems.add("The '" + RESTORE_TO + "' and '" + RESTORE_FILTER + "' options need '" + RESTORE + "'!");
+            }
+            return;
+        }
+        if (destDirs.size() != 1) {
+            problems.add("The '" + RESTORE + "' option needs exactly one DESTDIR!");
+            return;
+        }
+        if (archiveBatches != null || plan) {
+            problems.add("The '" + RESTORE + "' option cannot be combined with '" + ARCHIVE + "' or '" + PLAN + "'!");
+        }
+        this.restoreSnapshotDir = resolveSnapshot(restoreSnapshotAsStr, problems);
+        if (restoreToAsStr == null) {
+            problems.add("The '" + RESTORE + "' option needs '" + RESTORE_TO + "'!");
+        }
+        else {
+            this.restoreTo = new File(restoreToAsStr);
+            checkWritableDir(restoreTo, "restore directory", problems);
+        }
+        String[] rules = (restoreFilterRules == null) ? new String[0] : restoreFilterRules;
+        for (String rule : rules) {
+            if (!rule.startsWith("+") && !rule.startsWith("-")) {
+                problems.add("The '" + RESTORE_FILTER + "' value '" + rule + "' does not start with '+' or '-'!");
+            }
+        }
+        this.restoreFilter = new FilterRuleSeq(rules);
+    }
+
+    private void argPostprocessing_Diff(List<String> problems) {
+        if (!isDiff()) {
+            return;
+        }
+        if (destDirs.size() != 1) {
+            problems.add("The '" + DIFF + "' option needs exactly one DESTDIR!");
+            return;
+        }
+        if (isRestore() || archiveBatches != null || dryrun || plan) {
+            problems.add("The '" + DIFF + "' option cannot be combined with '" + RESTORE + "', '" + ARCHIVE + "', '" + DRYRUN + "' or '" + PLAN + "'!");
+        }
+        List<File> tmpDirs = new ArrayList<>();
+        for (String snapshotAsStr : diffSnapshotsAsStr) {
+            tmpDirs.add(resolveSnapshot(snapshotAsStr, problems));
+        }
+        this.diffSnapshotDirs = Collections.unmodifiableList(tmpDirs);
+    }
+
+    private void argPostprocessing_Dedup(List<String> problems) {
+        if (!isDedup()) {
+            return;
+        }
+        if (destDirs.size() != 1) {
+            problems.add("The '" + DEDUP + "' option needs exactly one DESTDIR!");
+            return;
+        }
+        if (isRestore() || isDiff() || archiveBatches != null || plan) {
+            problems.add("The '" + DEDUP + "' option cannot be combined with '" + RESTORE + "', '" + DIFF + "', '" + ARCHIVE + "' or '" + PLAN + "'!");
+        }
+        this.dedupSnapshotDir = resolveSnapshot(dedupSnapshotAsStr, problems);
+    }
+
+    private void argPostprocessing_Scrub(List<String> problems) {
+        if (!isScrub()) {
+            return;
+        }
+        if (destDirs.size() != 1) {
+            problems.add("The '" + SCRUB + "' option needs exactly one DESTDIR!");
+            return;
+        }
+        if (isRestore() || isDiff() || isDedup() || archiveBatches != null || dryrun || plan) {
+            problems.add("The '" + SCRUB + "' option cannot be combined with '" + RESTORE + "', '" + DIFF + "', '" + DEDUP + "', '" + ARCHIVE + "', '"
+                    + DRYRUN + "' or '" + PLAN + "'!");
+        }
+        if (scrubMinutes <= 0 || scrubMiBps < 0) {
+            problems.add("The '" + SCRUB_MINUTES + "' value must be positive and the '" + SCRUB_MIBPS + "' value must not be negative!");
+        }
+    }
+
+    private void argPostprocessing_Parity(List<String> problems) {
+        if (parityPercent < 0 || parityPercent > 100) {
+            problems.add("The '" + PARITY_PERCENT + "' value must be between 0 and 100!");
+        }
+        if (!isRepair()) {
+            return;
+        }
+        if (destDirs.size() != 1) {
+            problems.add("The '" + REPAIR + "' option needs exactly one DESTDIR!");
+            return;
+        }
+        if (isRestore() || isDiff() || isDedup() || isScrub() || archiveBatches != null || dryrun || plan) {
+            problems.add("The '" + REPAIR + "' option cannot be combined with '" + RESTORE + "', '" + DIFF + "', '" + DEDUP + "', '" + SCRUB + "', '"
+                    + ARCHIVE + "', '" + DRYRUN + "' or '" + PLAN + "'!");
+        }
+        this.repairSnapshotDir = resolveSnapshot(repairSnapshotAsStr, problems);
+    }
+
+    private void argPostprocessing_Analyse(List<String> problems) {
+        if (!analyse) {
+            return;
+        }
+        if (isSnapshotMode() || archiveBatches != null || dryrun || plan) {
+            problems.add("The '" + ANALYSE + "' option cannot be combined with '" + RESTORE + "', '" + DIFF + "', '" + DEDUP + "', '" + SCRUB + "', '"
+                    + REPAIR + "', '" + EXPORT + "', '" + ARCHIVE + "', '" + DRYRUN + "' or '" + PLAN + "'!");
+        }
+    }
+
+    private void argPostprocessing_FastPath(List<String> problems) {
+        if (!fastPath) {
+            return;
+        }
+        if (isSnapshotMode() || analyse || isEncrypted() || isDryrun()) {
+            problems.add("The '" + FAST_PATH + "' option cannot be combined with '" + RESTORE + "', '" + DIFF + "', '" + DEDUP + "', '" + SCRUB + "', '"
+                    + REPAIR + "', '" + EXPORT + "', '" + ANALYSE + "', '" + ENCRYPT_WITH + "', '" + DRYRUN + "' or '" + PLAN + "'!");
+        }
+        if (fullWalkDays <= 0) {
+            problems.add("The '" + FULL_WALK_DAYS + "' value must be positive!");
+        }
+    }
+
+    private void argPostprocessing_Export(List<String> problems) {
+        if (!isExport()) {
+            if (exportIndexAsStr != null) {
+                problems.add("The '" + EXPORT_INDEX + "' option needs '" + EXPORT + "'!");
+            }
+            return;
+        }
+        if (destDirs.size() != 1) {
+            problems.add("The '" + EXPORT + "' option needs exactly one DESTDIR!");
+            return;
+        }
+        if (isRestore() || isDiff() || isDedup() || isScrub() || isRepair() || archiveBatches != null || dryrun || plan) {
+            problems.add("The '" + EXPORT + "' option cannot be combined with '" + RESTORE + "', '" + DIFF + "', '" + DEDUP + "', '" + SCRUB + "', '"
+                    + REPAIR + "', '" + ARCHIVE + "', '" + DRYRUN + "' or '" + PLAN + "'!");
+        }
+        this.exportSnapshotDir = resolveSnapshot(exportSnapshotAsStr, problems);
+    }
+
+    // ---
+    // A snapshot is given by the name of a TargetDir in the DestDir, or as "latest"
+    // ---
+
+    private File resolveSnapshot(@NotNull String snapshotAsStr, List<String> problems) {
+        if (snapshotAsStr.equals(LATEST)) {
+            List<File> targetDirs = DirNaming.listTargetDirsOfThisHost(destDir);
+            if (targetDirs.isEmpty()) {
+                problems.add("There is no backup of this host in '" + destDir + "'!");
+                return null;
+            }
+            return targetDirs.get(targetDirs.size() - 1);
+        }
+        File dir = new File(destDir, snapshotAsStr);
+        if (snapshotAsStr.contains("/") || !dir.isDirectory()) {
+            problems.add("There is no backup named '" + snapshotAsStr + "' in '" + destDir + "'!");
+        }
+        return dir;
+    }
+
     private void argPostprocessing_Batches(List<String> problems) {
         SortedSet<Batch> tmpBatchSet = new TreeSet<>();
         if (batches != null) {
@@ -97,6 +537,9 @@ public class CmdLineDef {
                 }
             }
         }
+        if (batches == null && (isSnapshotMode() || analyse)) {
+            tmpBatchSet.addAll(Arrays.asList(Batch.values()));
+        }
         if (tmpBatchSet.isEmpty()) {
             // Actually this can't happen as already checked by PicoCli
             problems.add("No batch to include. Add at least one of the '--with <batch>' arguments!");
@@ -113,6 +556,19 @@ public class CmdLineDef {
         List<String> problems = new LinkedList<>();
         argPostprocessing_TargetDir(problems);
         argPostprocessing_Batches(problems);
+        argPostprocessing_SourceRoot(problems);
+        argPostprocessing_Delta(problems);
+        argPostprocessing_Chunks(problems);
+        argPostprocessing_Encryption(problems);
+        argPostprocessing_Archive(problems);
+        argPostprocessing_Restore(problems);
+        argPostprocessing_Diff(problems);
+        argPostprocessing_Dedup(problems);
+        argPostprocessing_Scrub(problems);
+        argPostprocessing_Parity(problems);
+        argPostprocessing_Analyse(problems);
+        argPostprocessing_Export(problems);
+        argPostprocessing_FastPath(problems);
         if (!problems.isEmpty()) {
             printListOfProblemsFound(problems,stderr);
             // Consider the problem to be "with" or "fall under the purview of" USAGE
@@ -135,14 +591,109 @@ public class CmdLineDef {
     // Getter
     // ---
 
+    // A plan is obtained through a dry run
+
     public boolean isDryrun() {
-        return dryrun;
+        return dryrun || plan;
+    }
+
+    public boolean isPlan() {
+        return plan;
     }
 
     public boolean isVerbose() {
         return verbose;
     }
 
+    public boolean isCacheNeutral() {
+        return cacheNeutral;
+    }
+
+    public boolean isSkipPrescan() {
+        return skipPrescan;
+    }
+
+    public boolean isSkipPrefetch() {
+        return skipPrefetch;
+    }
+
+    public boolean isKeepCaches() {
+        return keepCaches;
+    }
+
+    public boolean isSkipProbe() {
+        return skipProbe;
+    }
+
+    // ---
+    // The target format can be chosen automatically (based on the destination probe) only if the
+    // user did not choose any, and only the Java-side stores cannot do dry runs
+    // ---
+
+    public boolean isTargetFormatChoosable() {
+        return archiveBatches == null && !isEncrypted() && !isDryrun();
+    }
+
+    void switchToArchive(@NotNull Batch batch) {
+        assert isTargetFormatChoosable() && batchSet.contains(batch);
+        SortedSet<Batch> tmpBatchSet = new TreeSet<>(archiveBatchSet);
+        tmpBatchSet.add(batch);
+        this.archiveBatchSet = Collections.unmodifiableSortedSet(tmpBatchSet);
+    }
+
+    // ---
+    // What the file systems of all destinations keep of the POSIX metadata (see MetadataSupport);
+    // assumed to be everything until detected
+    // ---
+
+    public @NotNull MetadataSupport getDestMetadata() {
+        return destMetadata;
+    }
+
+    void setDestMetadata(@NotNull MetadataSupport destMetadata) {
+        this.destMetadata = destMetadata;
+    }
+
+    // ---
+    // Where the sources of "batch" are, taking "--source-root" into account (see Batch.sourcesUnder());
+    // valid only after argPostprocessing()
+    // ---
+
+    public SortedSet<File> getSources(@NotNull Batch batch) {
+        return batch.sourcesUnder(sourceRoot);
+    }
+
+    // null unless "--source-root" was given
+
+    public File getSourceRoot() {
+        return sourceRoot;
+    }
+
+    // ---
+    // In chunked mode, rsync is run on chunks of at most getChunkFiles() entries and getChunkBytes()
+    // bytes (0 meaning "no limit") of the batches stored as a plain tree
+    // ---
+
+    public boolean isChunked() {
+        return chunkFiles > 0;
+    }
+
+    public long getChunkFiles() {
+        return chunkFiles;
+    }
+
+    public long getChunkBytes() {
+        return chunkMiB * 1024 * 1024;
+    }
+
+    // ---
+    // Files of at least this many bytes are stored as block-level deltas; 0 if switched off
+    // ---
+
+    public long getDeltaThreshold() {
+        return deltaAboveMiB * 1024 * 1024;
+    }
+
     // ---
     // Get the unmodifiable "sorted set" containing the "batches", which is set in
     // argPostprocessing() and thus not null only after that call.
@@ -161,6 +712,170 @@ public class CmdLineDef {
         return destDir;
     }
 
+    // ---
+    // Get all the destination directories, the first one being the one returned by getDestDir().
+    // Set in argPostprocessing() and thus not null only after that call.
+    // ---
+
+    public List<File> getDestDirs() {
+        return destDirs;
+    }
+
+    // ---
+    // Get the directory in which to record rsync batch files, null if not given
+    // ---
+
+    public File getBatchFileDir() {
+        return batchFileDir;
+    }
+
+    // ---
+    // Get the file holding the passphrase of the encrypted mode, null if not encrypting
+    // ---
+
+    public File getPassphraseFile() {
+        return passphraseFile;
+    }
+
+    public boolean isEncrypted() {
+        return passphraseFile != null;
+    }
+
+    // ---
+    // Restoring instead of backing up? Then getRestoreSnapshotDir(), getRestoreTo() and getRestoreFilter()
+    // are set by argPostprocessing()
+    // ---
+
+    public boolean isRestore() {
+        return restoreSnapshotAsStr != null;
+    }
+
+    public File getRestoreSnapshotDir() {
+        return restoreSnapshotDir;
+    }
+
+    public File getRestoreTo() {
+        return restoreTo;
+    }
+
+    public FilterRuleSeq getRestoreFilter() {
+        return restoreFilter;
+    }
+
+    // ---
+    // Comparing two snapshots instead of backing up? Then getDiffSnapshotDirs() yields
+    // the older and the newer one, as given
+    // ---
+
+    public boolean isDiff() {
+        return diffSnapshotsAsStr != null;
+    }
+
+    public List<File> getDiffSnapshotDirs() {
+        return diffSnapshotDirs;
+    }
+
+    // ---
+    // Deduplicating a snapshot instead of backing up? Then getDedupSnapshotDir() is set by argPostprocessing()
+    // ---
+
+    public boolean isDedup() {
+        return dedupSnapshotAsStr != null;
+    }
+
+    public File getDedupSnapshotDir() {
+        return dedupSnapshotDir;
+    }
+
+    public boolean isScrub() {
+        return scrub;
+    }
+
+    public Duration getScrubDuration() {
+        return Duration.ofMinutes(scrubMinutes);
+    }
+
+    public long getScrubBytesPerSec() {
+        return scrubMiBps * 1024 * 1024;
+    }
+
+    // ---
+    // 0 if no recovery data is to be written
+    // ---
+
+    public int getParityPercent() {
+        return parityPercent;
+    }
+
+    public boolean isRepair() {
+        return repairSnapshotAsStr != null;
+    }
+
+    public File getRepairSnapshotDir() {
+        return repairSnapshotDir;
+    }
+
+    // ---
+    // Exporting a snapshot instead of backing up? Then getExportSnapshotDir() is set by argPostprocessing().
+    // getExportTo() is null for STDOUT, getExportIndex() is null if no index is to be written.
+    // ---
+
+    public boolean isExport() {
+        return exportSnapshotAsStr != null;
+    }
+
+    public File getExportSnapshotDir() {
+        return exportSnapshotDir;
+    }
+
+    public File getExportTo() {
+        return exportToAsStr.equals("-") ? null : new File(exportToAsStr);
+    }
+
+    public File getExportIndex() {
+        return (exportIndexAsStr == null) ? null : new File(exportIndexAsStr);
+    }
+
+    public boolean isAnalyse() {
+        return analyse;
+    }
+
+    public boolean isFastPath() {
+        return fastPath;
+    }
+
+    public @NotNull Duration getFullWalkInterval() {
+        return Duration.ofDays(fullWalkDays);
+    }
+
+    // ---
+    // Working on existing backups instead of making one?
+    // ---
+
+    public boolean isSnapshotMode() {
+        return isRestore() || isDiff() || isDedup() || isScrub() || isRepair() || isExport();
+    }
+
+    public boolean isMerkleContent() {
+        return merkleContent;
+    }
+
+    // ---
+    // How "batch" is to be stored; valid only after argPostprocessing()
+    // ---
+
+    public TargetFormat getTargetFormat(@NotNull Batch batch) {
+        if (isEncrypted()) {
+            return TargetFormat.Encrypted;
+        }
+        else if (archiveBatchSet.contains(batch)) {
+            return TargetFormat.Archive;
+        }
+        else {
+            return TargetFormat.PlainTree;
+        }
+    }
+
     // ---
     // Get the non-null "now" time
     // ---
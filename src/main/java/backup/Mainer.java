@@ -1,18 +1,62 @@
 package backup;
 
 import backup.config.Batch;
+import backup.config.TargetFormat;
 import backup.helpers.*;
+import backup.events.*;
+import backup.maintenance.Deduplicator;
+import backup.maintenance.ParityDir;
+import backup.maintenance.ScrubCursor;
+import backup.maintenance.Scrubber;
+import backup.merkle.MerkleDiff;
+import backup.merkle.MerkleTree;
+import backup.probe.DestinationProbe;
+import backup.probe.DeviceProfile;
+import backup.probe.MetadataSupport;
+import backup.restore.AclRestorer;
+import backup.restore.RestoreItem;
+import backup.restore.Restorer;
+import backup.restore.SnapshotReader;
+import backup.restore.TarExporter;
+import backup.scan.BatchWalker;
+import backup.scan.ChunkWriter;
+import backup.scan.CoverageAnalyser;
+import backup.scan.FastPath;
+import backup.scan.LargeFileCollector;
+import backup.scan.PreScan;
+import backup.scan.PreScanResult;
+import backup.scan.Prefetcher;
+import backup.store.ArchiveStore;
+import backup.store.CryptoKeys;
+import backup.store.DeltaStore;
+import backup.store.EncryptedStore;
+import backup.store.MetadataSidecar;
+import backup.store.TabSeparated;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.*;
 
 // ---
 // Extremely simple "main" which just calls picocli.CommandLine with a
@@ -43,8 +87,18 @@ public abstract class Mainer {
 
     public enum SkipBizLogic {True, False};
 
-    private static ProcessingResult.ExitValue runRsyncCmd(@NotNull RsyncCmd cmd, @NotNull Batch batch, @NotNull CmdLineDef cdf, @NotNull File targetDirName) {
+    // Whether rsync's STDOUT and STDERR files are started afresh or appended to (when a batch is run in chunks)
+
+    private enum OutputFiles {Fresh, Appended};
+
+    // How often the memory use of rsync is sampled
+
+    private final static long RSS_SAMPLING_MS = 250;
+
+    private static BatchResult runRsyncCmd(@NotNull RsyncCmd cmd, @NotNull Batch batch, @NotNull CmdLineDef cdf, @NotNull File targetDirName, @NotNull OutputFiles outputFiles,
+                                           @NotNull EventBus events) {
         Logger logger = LoggerFactory.getLogger(CLASS + ".runRsyncCmd");
+        BatchResult br = new BatchResult(batch, targetDirName);
         ProcessBuilder pb = new ProcessBuilder(cmd.pull());
         // The process will have the "target directory" as current directory
         pb.directory(targetDirName);
@@ -52,51 +106,574 @@ public abstract class Mainer {
         // in the current process's working directory (well, maybe that's expected). We thus have to qualify
         // these files fully.
         // Should we delete them afterwards?
-        pb.redirectError(new File(targetDirName,DirNaming.buildAtomicErrorFileName(batch)));
-        pb.redirectOutput(new File(targetDirName,DirNaming.buildAtomicOutputFileName(batch)));
+        File errorFile = new File(targetDirName,DirNaming.buildAtomicErrorFileName(batch));
+        File outputFile = new File(targetDirName,DirNaming.buildAtomicOutputFileName(batch));
+        if (outputFiles == OutputFiles.Appended) {
+            pb.redirectError(ProcessBuilder.Redirect.appendTo(errorFile));
+            pb.redirectOutput(ProcessBuilder.Redirect.appendTo(outputFile));
+        }
+        else {
+            pb.redirectError(errorFile);
+            pb.redirectOutput(outputFile);
+        }
+        PageCacheDropper dropper = null;
+        Thread dropperThread = null;
         try {
+            MemInfo memInfoBefore = MemInfo.read();
+            PeakRss peakRss = new PeakRss();
             Instant startInstant = Instant.now();
             // https://docs.oracle.com/en/java/javase/16/docs/api/java.base/java/lang/Process.html
             Process p = pb.start();
-            logger.info("Rsync process " + p.pid() + " handling batch '" + batch + "' has started");
-            logger.info(cmd.toMultilineString(0));
-            while (p.isAlive()) {
-                try {
-                    p.waitFor();
-                } catch (InterruptedException ex2) {
-                    // may have been woken up early!
+            logger.info("Rsync process {} handling batch '{}' has started", p.pid(), batch);
+            if (logger.isDebugEnabled()) {
+                logger.debug(cmd.toMultilineString(0));
+            }
+            if (cmd.isListingTransfers()) {
+                dropper = new PageCacheDropper(batch, cdf.getSources(batch), outputFile, new File(targetDirName, DirNaming.buildAtomicDumpDirName(batch)));
+                dropperThread = new Thread(dropper, "cache-dropper-" + batch.toString().toLowerCase());
+                dropperThread.start();
+            }
+            ProgressReporter reporter = new ProgressReporter(events, batch, ProgressReporter.DEFAULT_INTERVAL_SECS, () -> rsyncProgress(outputFile, targetDirName));
+            try {
+                while (p.isAlive()) {
+                    // the high-water mark is only there while the processes are alive
+                    peakRss.sample(p.toHandle());
+                    try {
+                        p.waitFor(RSS_SAMPLING_MS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ex2) {
+                        // may have been woken up early!
+                    }
                 }
+            } finally {
+                reporter.close();
             }
             Instant stopInstant = Instant.now();
+            br.setPeakRssKiB(peakRss.getPeakKiB());
+            if (dropper != null) {
+                dropper.stop();
+                joinUninterruptibly(dropperThread);
+                logger.info("Dropped {} files of batch '{}' from the page cache", dropper.getDroppedFiles(), batch);
+            }
+            MemInfo memInfoAfter = MemInfo.read();
+            br.setMemInfo(memInfoBefore, memInfoAfter);
+            logger.info("Page cache         : {}", MemInfo.stringifyChange(memInfoBefore, memInfoAfter));
             RsyncRetVal rrv = RsyncRetVal.byId(p.exitValue());
             String rrvDesc = (rrv == null) ? "unknown id" : rrv.getDesc();
             RsyncVerdict verdict = (rrv == null) ? RsyncVerdict.FAILURE : rrv.getRsyncVerdict();
-            logger.info("Rsync process for batch '" + batch + "' ended");
-            logger.info("Exit value         : " + p.exitValue() + " " + rrvDesc + " -> " + verdict);
-            logger.info("CPU duration       : " + LoggingHelper.stringifyCpuDuration(p)); // this seems to not yield any good info
-            logger.info("Wallclock duration : " + DurationPrinter.formatDuration(Duration.between(startInstant,stopInstant)));
+            logger.info("Rsync process for batch '{}' ended", batch);
+            logger.info("Exit value         : {} {} -> {}", p.exitValue(), rrvDesc, verdict);
+            logger.info("CPU duration       : {}", LoggingHelper.stringifyCpuDuration(p)); // this seems to not yield any good info
+            logger.info("Wallclock duration : {}", DurationPrinter.formatDuration(Duration.between(startInstant,stopInstant)));
+            logger.info("Peak RSS           : {}", LoggingHelper.stringifyKiB(br.getPeakRssKiB()));
+            br.setWallclock(Duration.between(startInstant,stopInstant));
+            br.setRsyncStats(readRsyncStats(outputFile));
+            if (br.getRsyncStats() != null) {
+                logger.info("Statistics of batch '{}':\n{}", batch, br.getRsyncStats().toMultilineString(4));
+            }
             switch (verdict) {
-                case SUCCESS -> { return ProcessingResult.ExitValue.RSYNC_SUCCEEDED; }
-                case FAILURE -> { return ProcessingResult.ExitValue.RSYNC_FAILED; }
-                case PARTIAL_SUCCESS -> { return ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED; }
-                default -> { throw new IllegalStateException("Unknown verdict " + verdict); }
+                case SUCCESS -> br.setExitValue(ProcessingResult.ExitValue.RSYNC_SUCCEEDED);
+                case FAILURE -> br.setExitValue(ProcessingResult.ExitValue.RSYNC_FAILED);
+                case PARTIAL_SUCCESS -> br.setExitValue(ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED);
+                default -> throw new IllegalStateException("Unknown verdict " + verdict);
             }
         }
         catch (IOException ex) {
-            logger.error("Processing of batch '" + batch + "' ended with an exception", ex);
-            return ProcessingResult.ExitValue.STARTING_RSYNC_THREW_EXCEPTION;
+            logger.error("Processing of batch '{}' ended with an exception", batch, ex);
+            br.setExitValue(ProcessingResult.ExitValue.STARTING_RSYNC_THREW_EXCEPTION);
         }
+        return br;
         // TODO: Update the "data directory" listing the disk contents
     }
 
     // ---
-    // Create the target directory inside the destination directory.
+    // In chunked mode, the batch is listed by a BatchWalker into "--files-from" chunks (see ChunkWriter),
+    // which rsync then copies one after the other. The BatchResult adds up those of the chunks.
+    // A failing chunk does not stop the others, the batch then only succeeds partially.
+    // ---
+
+    private static BatchResult runChunkedRsync(@NotNull Batch batch, @NotNull CmdLineDef cdf, @NotNull File targetDirName, PreScanResult preScan, @NotNull EventBus events) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".runChunkedRsync");
+        BatchResult br = new BatchResult(batch, targetDirName);
+        File chunkDir = new File(targetDirName, DirNaming.buildAtomicChunkDirName(batch));
+        Set<String> deltaPaths = new HashSet<>();
+        if (preScan != null) {
+            preScan.deltaFiles.forEach(lf -> deltaPaths.add(lf.transferPath));
+        }
+        Instant startInstant = Instant.now();
+        ChunkWriter writer = new ChunkWriter(chunkDir, cdf.getChunkFiles(), cdf.getChunkBytes(), deltaPaths);
+        try (writer) {
+            if (!chunkDir.mkdir()) {
+                throw new IOException("Could not create directory '" + chunkDir + "'");
+            }
+            // a single thread keeps the sources, and thus the transfer roots, apart
+            new BatchWalker(batch, cdf.getSources(batch), PreScanResult.seqOf(batch, preScan), 1).walk(writer);
+        }
+        catch (IOException ex) {
+            logger.error("Listing batch '{}' into chunks failed", batch, ex);
+            br.setExitValue(ProcessingResult.ExitValue.STARTING_RSYNC_THREW_EXCEPTION);
+            return br;
+        }
+        List<ChunkWriter.Chunk> chunks = writer.getChunks();
+        logger.info("Listed batch '{}' into {} chunks in {}", batch, chunks.size(), DurationPrinter.formatDuration(Duration.between(startInstant, Instant.now())));
+        List<RsyncStats> stats = new ArrayList<>();
+        int succeeded = 0;
+        int failed = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            ChunkWriter.Chunk chunk = chunks.get(i);
+            RsyncCmd cmd = RsyncCmdBuilder.buildChunkRsyncCmd(RsyncCmd.RSYNC_EXE_NAME, batch, cdf, targetDirName, preScan, chunk);
+            BatchResult part = runRsyncCmd(cmd, batch, cdf, targetDirName, (i == 0) ? OutputFiles.Fresh : OutputFiles.Appended, events);
+            events.publish(Event.of(Event.Type.Metric, batch).with("metric", "chunk").with("chunk", i + 1).with("chunks", chunks.size())
+                    .with("entries", chunk.entries).with("bytes", chunk.bytes).with("exitValue", part.getExitValue()).with("peakRssKiB", part.getPeakRssKiB()).build());
+            br.setMemInfo((i == 0) ? part.getMemInfoBefore() : br.getMemInfoBefore(), part.getMemInfoAfter());
+            br.setPeakRssKiB(Math.max(br.getPeakRssKiB(), part.getPeakRssKiB()));
+            if (part.getRsyncStats() != null) {
+                stats.add(part.getRsyncStats());
+            }
+            if (ProcessingResult.ExitValue.STARTING_RSYNC_THREW_EXCEPTION == part.getExitValue()) {
+                br.setExitValue(part.getExitValue());
+                return br;
+            }
+            if (ProcessingResult.ExitValue.RSYNC_SUCCEEDED == part.getExitValue()) {
+                succeeded++;
+            }
+            else {
+                failed++;
+            }
+            if (!chunk.listFile.delete()) {
+                logger.warn("Could not delete chunk list '{}'", chunk.listFile);
+            }
+        }
+        if (!chunkDir.delete()) {
+            logger.warn("Could not delete chunk directory '{}'", chunkDir);
+        }
+        br.setWallclock(Duration.between(startInstant, Instant.now()));
+        br.setRsyncStats(RsyncStats.sum(stats));
+        if (failed == 0) {
+            br.setExitValue(ProcessingResult.ExitValue.RSYNC_SUCCEEDED);
+        }
+        else if (succeeded == 0) {
+            br.setExitValue(ProcessingResult.ExitValue.RSYNC_FAILED);
+        }
+        else {
+            br.setExitValue(ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED);
+        }
+        logger.info("Chunked rsync of batch '{}' ended: {} of {} chunks succeeded, peak RSS {}", batch, succeeded, chunks.size(), LoggingHelper.stringifyKiB(br.getPeakRssKiB()));
+        return br;
+    }
+
+    // ---
+    // In encrypted mode, the batch is copied by the Java-side EncryptedStore instead of rsync,
+    // to all the target directories at once. The BatchResult is the one of the first target directory,
+    // the other ones share the outcome.
+    // ---
+
+    private static BatchResult runEncryptedCopy(@NotNull Batch batch, @NotNull SortedSet<File> sources, @NotNull List<File> targetDirs, PreScanResult preScan,
+                                                @NotNull CryptoKeys keys, int parallelism, @NotNull EventBus events) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".runEncryptedCopy");
+        BatchResult br = new BatchResult(batch, targetDirs.get(0));
+        MemInfo memInfoBefore = MemInfo.read();
+        Instant startInstant = Instant.now();
+        logger.info("Encrypting batch '{}' into {} target directories using {} threads", batch, targetDirs.size(), parallelism);
+        try {
+            // a single walker thread, so that files are read one after the other; the encryption is parallel
+            BatchWalker walker = new BatchWalker(batch, sources, PreScanResult.seqOf(batch, preScan), 1);
+            // the counts are read once the store is closed, i.e. once everything has been written
+            EncryptedStore store = new EncryptedStore(batch, targetDirs, keys, parallelism);
+            try (store) {
+                ProgressReporter reporter = new ProgressReporter(events, batch, ProgressReporter.DEFAULT_INTERVAL_SECS,
+                        () -> Map.of("files", store.getFiles(), "bytes", store.getBytes()));
+                try {
+                    walker.walk(store);
+                } finally {
+                    reporter.close();
+                }
+            }
+            Duration duration = Duration.between(startInstant, Instant.now());
+            br.setWallclock(duration);
+            br.setMemInfo(memInfoBefore, MemInfo.read());
+            long millis = Math.max(1, duration.toMillis());
+            logger.info("Encrypted batch '{}': {} files, {} bytes in {} ({} MiB/s), {} failed, {} special files skipped, {} unreadable",
+                    batch, store.getFiles(), store.getBytes(), DurationPrinter.formatDuration(duration),
+                    store.getBytes() / 1024 / 1024 * 1000 / millis, store.getFailures(), store.getSkipped(), walker.getErrorCount());
+            if (store.getFailures() > 0 || walker.getErrorCount() > 0) {
+                br.setExitValue(ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED);
+            }
+            else {
+                br.setExitValue(ProcessingResult.ExitValue.RSYNC_SUCCEEDED);
+            }
+        }
+        catch (IOException | UncheckedIOException ex) {
+            logger.error("Encryption of batch '{}' ended with an exception", batch, ex);
+            br.setExitValue(ProcessingResult.ExitValue.RSYNC_FAILED);
+        }
+        return br;
+    }
+
+    // ---
+    // In archive format, the batch is packed into segments by the Java-side ArchiveStore instead of
+    // being copied by rsync, to all the target directories at once. The files stored as block-level
+    // deltas are left out. The BatchResult is the one of the first target directory.
+    // ---
+
+    private static BatchResult runArchiveCopy(@NotNull Batch batch, @NotNull SortedSet<File> sources, @NotNull List<File> targetDirs, PreScanResult preScan, @NotNull EventBus events) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".runArchiveCopy");
+        BatchResult br = new BatchResult(batch, targetDirs.get(0));
+        Set<String> deltaPaths = new HashSet<>();
+        if (preScan != null) {
+            preScan.deltaFiles.forEach(lf -> deltaPaths.add(lf.transferPath));
+        }
+        MemInfo memInfoBefore = MemInfo.read();
+        Instant startInstant = Instant.now();
+        logger.info("Archiving batch '{}' into {} destinations", batch, targetDirs.size());
+        try {
+            // a single walker thread, as the segments are written sequentially anyway
+            BatchWalker walker = new BatchWalker(batch, sources, PreScanResult.seqOf(batch, preScan), 1);
+            // the counts are read once the store is closed, i.e. once the last segment has been written
+            ArchiveStore store = new ArchiveStore(batch, targetDirs, ArchiveStore.DEFAULT_SEGMENT_SIZE, deltaPaths);
+            try (store) {
+                ProgressReporter reporter = new ProgressReporter(events, batch, ProgressReporter.DEFAULT_INTERVAL_SECS,
+                        () -> Map.of("files", store.getFiles(), "bytes", store.getBytes()));
+                try {
+                    walker.walk(store);
+                } finally {
+                    reporter.close();
+                }
+            }
+            Duration duration = Duration.between(startInstant, Instant.now());
+            br.setWallclock(duration);
+            br.setMemInfo(memInfoBefore, MemInfo.read());
+            long millis = Math.max(1, duration.toMillis());
+            logger.info("Archived batch '{}': {} files ({} files/s), {} bytes in {}, {} failed, {} special files skipped, {} unreadable",
+                    batch, store.getFiles(), store.getFiles() * 1000 / millis, store.getBytes(), DurationPrinter.formatDuration(duration),
+                    store.getFailures(), store.getSkipped(), walker.getErrorCount());
+            if (store.getFailures() > 0 || walker.getErrorCount() > 0) {
+                br.setExitValue(ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED);
+            }
+            else {
+                br.setExitValue(ProcessingResult.ExitValue.RSYNC_SUCCEEDED);
+            }
+        }
+        catch (IOException | UncheckedIOException ex) {
+            logger.error("Archiving of batch '{}' ended with an exception", batch, ex);
+            br.setExitValue(ProcessingResult.ExitValue.RSYNC_FAILED);
+        }
+        return br;
+    }
+
+    // ---
+    // Derive the keys of the encrypted mode and leave the key info (not the key) in every target directory
+    // ---
+
+    private static CryptoKeys createKeys(@NotNull CmdLineDef cdf, @NotNull List<File> targetDirs) throws IOException, GeneralSecurityException {
+        char[] passphrase = CryptoKeys.readPassphrase(cdf.getPassphraseFile());
+        CryptoKeys keys = CryptoKeys.create(passphrase);
+        Arrays.fill(passphrase, '\0');
+        for (File targetDir : targetDirs) {
+            keys.writeKeyInfo(new File(targetDir, DirNaming.buildAtomicKeyInfoFileName()));
+        }
+        return keys;
+    }
+
+    // ---
+    // The durability barrier: the batch only counts as done once the file systems of the
+    // target directories have been flushed. A failed flush means that data may be lost,
+    // so the batch is then considered failed. Nothing to do for a dry run or a failed batch.
+    // ---
+
+    private static BatchResult makeDurable(@NotNull BatchResult br, @NotNull List<File> targetDirs, @NotNull CmdLineDef cdf) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".makeDurable");
+        ProcessingResult.ExitValue res = br.getExitValue();
+        if (cdf.isDryrun() || (ProcessingResult.ExitValue.RSYNC_SUCCEEDED != res && ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED != res)) {
+            return br;
+        }
+        Duration total = Duration.ZERO;
+        for (File targetDir : targetDirs) {
+            try {
+                Duration flush = DurabilityBarrier.syncFileSystemOf(targetDir);
+                total = total.plus(flush);
+                logger.info("Batch '{}' flushed to the disk of '{}' in {}", br.getBatch(), targetDir, DurationPrinter.formatDuration(flush));
+            } catch (IOException ex) {
+                logger.error("Batch '{}' could not be flushed to the disk of '{}', data may be lost", br.getBatch(), targetDir, ex);
+                br.setExitValue(ProcessingResult.ExitValue.RSYNC_FAILED);
+                return br;
+            }
+        }
+        br.setFlushDuration(total);
+        return br;
+    }
+
+    // ---
+    // Probe the devices of all destinations, warning about those that got much slower than they
+    // used to be. Returns the worst of each metric over the destinations probed (they are all written,
+    // see DeviceProfile.worstOf()), or null if probing has been switched off or failed everywhere.
+    // Probing writes, so there is none in a dry run.
+    // ---
+
+    private static DeviceProfile probeDestinations(@NotNull CmdLineDef cdf, @NotNull EventBus events) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".probeDestinations");
+        if (cdf.isSkipProbe() || cdf.isDryrun()) {
+            logger.info("Destination probe has been skipped");
+            return null;
+        }
+        List<DeviceProfile> profiles = new ArrayList<>();
+        for (File destDir : cdf.getDestDirs()) {
+            try {
+                List<DeviceProfile> history = DeviceProfile.readHistory(destDir);
+                DeviceProfile profile = DestinationProbe.probe(destDir);
+                logger.info("Destination '{}': {}", destDir, profile);
+                events.publish(Event.of(Event.Type.Metric, null).with("metric", "deviceProfile").with("destDir", destDir)
+                        .with("sequentialWriteMiBps", profile.sequentialWriteMiBps).with("fileCreationsPerSec", profile.fileCreationsPerSec)
+                        .with("fsyncLatencyMs", profile.fsyncLatencyMs).build());
+                for (String warning : profile.compareWithHistory(history)) {
+                    logger.warn("Destination '{}' is much slower than it used to be: {}. Is the disk failing or on a slower port?", destDir, warning);
+                }
+                profile.appendToHistory(destDir);
+                profiles.add(profile);
+            } catch (IOException ex) {
+                // the others still tell something
+                logger.warn("Could not probe destination '{}', it is left out of the device profile", destDir, ex);
+            }
+        }
+        DeviceProfile res = DeviceProfile.worstOf(profiles);
+        if (res != null && profiles.size() > 1) {
+            logger.info("Device profile of all destinations: {}", res);
+        }
+        return res;
+    }
+
+    // ---
+    // Switch batches made of many small files to archive format if the destination is slow at creating files
+    // ---
+
+    private static void chooseTargetFormats(@NotNull CmdLineDef cdf, DeviceProfile profile, @NotNull Map<Batch, PreScanResult> preScans,
+                                            @NotNull Map<Batch, FastPath> fastPaths) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".chooseTargetFormats");
+        if (profile == null || !cdf.isTargetFormatChoosable()) {
+            return;
+        }
+        for (Batch batch : cdf.getBatchSet()) {
+            if (fastPaths.containsKey(batch) && fastPaths.get(batch).decision != FastPath.Decision.FullWalk) {
+                // partly or wholly taken from a plain tree already
+                continue;
+            }
+            PreScanResult preScan = preScans.get(batch);
+            if (preScan != null && profile.prefersArchiveFor(preScan.files, preScan.bytes)) {
+                cdf.switchToArchive(batch);
+                logger.info("Batch '{}' ({} files, {} bytes) will be stored in archive format, as the destination only creates {} files per second",
+                        batch, preScan.files, preScan.bytes, Math.round(profile.fileCreationsPerSec));
+            }
+        }
+    }
+
+    // ---
+    // What a running rsync has done so far: it only prints its statistics at the end, so the
+    // best we have is the growth of its output and the amount of data waiting to be written
+    // ---
+
+    private static Map<String, Object> rsyncProgress(@NotNull File outputFile, @NotNull File targetDir) {
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("targetDir", targetDir);
+        res.put("outputBytes", outputFile.length());
+        MemInfo memInfo = MemInfo.read();
+        if (memInfo != null) {
+            res.put("dirtyBytes", memInfo.dirty);
+        }
+        return res;
+    }
+
+    private static void publishBatchEnded(@NotNull EventBus events, @NotNull BatchResult br) {
+        Event.Builder b = Event.of(Event.Type.BatchEnded, br.getBatch()).with("targetDir", br.getTargetDir()).with("exitValue", br.getExitValue());
+        if (br.getWallclock() != null) {
+            b.with("wallclockMs", br.getWallclock().toMillis());
+        }
+        if (br.getFlushDuration() != null) {
+            b.with("flushMs", br.getFlushDuration().toMillis());
+        }
+        if (br.getRsyncStats() != null) {
+            b.with("files", br.getRsyncStats().files).with("transferredBytes", br.getRsyncStats().totalTransferredFileSize);
+            if (br.getRsyncStats().fileListGenerationSecs >= 0) {
+                // what the prefetch of the batch (see Prefetcher) is meant to bring down
+                b.with("fileListMs", Math.round(br.getRsyncStats().fileListGenerationSecs * 1000));
+            }
+        }
+        if (br.getPeakRssKiB() >= 0) {
+            b.with("peakRssKiB", br.getPeakRssKiB());
+        }
+        events.publish(b.build());
+    }
+
+    // ---
+    // A partially successful rsync run names the files it could not copy in the ".err" file (see RsyncErrors).
+    // Only those that vanished or changed during the copy are tried again (see RsyncErrors.Failures.retryable),
+    // with "--files-from", up to RETRY_ATTEMPTS times with growing pauses in between; the others (e.g. "Permission
+    // denied") are reported right away. Files that are gone from the source by then have vanished for good and are
+    // not an error. If all files could be copied in the end, the batch has succeeded after all; the files that
+    // still fail are reported.
+    // Returns the "--files-from" lists of the files copied by the retries, for the other destinations.
+    // ---
+
+    private final static int RETRY_ATTEMPTS = 3;
+    private final static long RETRY_FIRST_PAUSE_MS = 2000;
+
+    private static List<ChunkWriter.Chunk> retryFailedFiles(@NotNull Batch batch, @NotNull CmdLineDef cdf, @NotNull File targetDirName, PreScanResult preScan,
+                                                            @NotNull BatchResult br, @NotNull EventBus events) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".retryFailedFiles");
+        File errorFile = new File(targetDirName, DirNaming.buildAtomicErrorFileName(batch));
+        File dumpDir = new File(targetDirName, DirNaming.buildAtomicDumpDirName(batch));
+        File retryDir = new File(targetDirName, DirNaming.buildAtomicRetryDirName(batch));
+        SortedSet<File> sources = cdf.getSources(batch);
+        SortedMap<Path, SortedSet<String>> retried = new TreeMap<>();
+        try {
+            RsyncErrors.Failures failures = RsyncErrors.parse(errorFile, 0);
+            int unattributed = failures.unattributed;
+            SortedMap<Path, SortedSet<String>> pending = RsyncErrors.byTransferRoot(failures.retryable, sources, dumpDir);
+            SortedMap<Path, SortedSet<String>> notRetried = RsyncErrors.byTransferRoot(failures.notRetryable(), sources, dumpDir);
+            reportNotRetried(batch, notRetried);
+            long vanished = dropVanished(pending);
+            long pauseMs = RETRY_FIRST_PAUSE_MS;
+            int attempt = 0;
+            while (!pending.isEmpty() && attempt < RETRY_ATTEMPTS) {
+                attempt++;
+                logger.info("Retrying {} files of batch '{}' in {} ms (attempt {} of {})", countOf(pending), batch, pauseMs, attempt, RETRY_ATTEMPTS);
+                sleepUninterruptibly(pauseMs);
+                pauseMs *= 4;
+                SortedMap<Path, SortedSet<String>> stillFailing = new TreeMap<>();
+                for (ChunkWriter.Chunk chunk : RsyncErrors.writeFilesFrom(retryDir, "attempt_" + attempt, pending)) {
+                    SortedSet<String> files = pending.get(chunk.transferRoot);
+                    long offset = errorFile.length();
+                    RsyncCmd cmd = RsyncCmdBuilder.buildChunkRsyncCmd(RsyncCmd.RSYNC_EXE_NAME, batch, cdf, targetDirName, preScan, chunk);
+                    ProcessingResult.ExitValue res = runRsyncCmd(cmd, batch, cdf, targetDirName, OutputFiles.Appended, events).getExitValue();
+                    if (!chunk.listFile.delete()) {
+                        logger.warn("Could not delete retry list '{}'", chunk.listFile);
+                    }
+                    if (ProcessingResult.ExitValue.RSYNC_SUCCEEDED == res) {
+                        retried.computeIfAbsent(chunk.transferRoot, x -> new TreeSet<>()).addAll(files);
+                        continue;
+                    }
+                    RsyncErrors.Failures again = RsyncErrors.parse(errorFile, offset);
+                    if (ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED != res || again.unattributed > 0) {
+                        // no telling which of the files have been copied
+                        stillFailing.put(chunk.transferRoot, files);
+                        continue;
+                    }
+                    SortedSet<String> failed = RsyncErrors.byTransferRoot(again.retryable, sources, dumpDir).getOrDefault(chunk.transferRoot, new TreeSet<>());
+                    SortedMap<Path, SortedSet<String>> givenUp = RsyncErrors.byTransferRoot(again.notRetryable(), sources, dumpDir);
+                    SortedSet<String> notRetryable = givenUp.getOrDefault(chunk.transferRoot, new TreeSet<>());
+                    reportNotRetried(batch, givenUp);
+                    for (String file : files) {
+                        SortedMap<Path, SortedSet<String>> to = notRetryable.contains(file) ? notRetried : failed.contains(file) ? stillFailing : retried;
+                        to.computeIfAbsent(chunk.transferRoot, x -> new TreeSet<>()).add(file);
+                    }
+                }
+                vanished += dropVanished(stillFailing);
+                pending = stillFailing;
+            }
+            for (Map.Entry<Path, SortedSet<String>> e : pending.entrySet()) {
+                for (String file : e.getValue()) {
+                    logger.warn("'{}' of batch '{}' could not be copied after {} retries", e.getKey().resolve(file), batch, attempt);
+                }
+            }
+            if (unattributed > 0) {
+                logger.warn("Batch '{}' had {} errors not about a particular file, see '{}'", batch, unattributed, errorFile);
+            }
+            events.publish(Event.of(Event.Type.Metric, batch).with("metric", "retry").with("attempts", attempt).with("retried", countOf(retried))
+                    .with("vanished", vanished).with("failed", countOf(pending)).with("notRetried", countOf(notRetried)).with("unattributed", unattributed).build());
+            if (pending.isEmpty() && notRetried.isEmpty() && unattributed == 0) {
+                logger.info("All files of batch '{}' have been copied after {} retries ({} had vanished)", batch, attempt, vanished);
+                br.setExitValue(ProcessingResult.ExitValue.RSYNC_SUCCEEDED);
+            }
+            return RsyncErrors.writeFilesFrom(retryDir, "retried", retried);
+        }
+        catch (IOException ex) {
+            logger.error("Retrying the failed files of batch '{}' ended with an exception", batch, ex);
+            return List.of();
+        }
+    }
+
+    private static void reportNotRetried(@NotNull Batch batch, @NotNull SortedMap<Path, SortedSet<String>> byRoot) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".reportNotRetried");
+        for (Map.Entry<Path, SortedSet<String>> e : byRoot.entrySet()) {
+            for (String file : e.getValue()) {
+                logger.warn("'{}' of batch '{}' could not be copied, which a retry would not change", e.getKey().resolve(file), batch);
+            }
+        }
+    }
+
+    // ---
+    // Drop the files no longer in the source, which rsync reports as "vanished" or cannot open
+    // ---
+
+    private static long dropVanished(@NotNull SortedMap<Path, SortedSet<String>> byRoot) {
+        long res = 0;
+        for (Map.Entry<Path, SortedSet<String>> e : byRoot.entrySet()) {
+            int before = e.getValue().size();
+            e.getValue().removeIf(file -> Files.notExists(e.getKey().resolve(file), LinkOption.NOFOLLOW_LINKS));
+            res += before - e.getValue().size();
+        }
+        byRoot.values().removeIf(Set::isEmpty);
+        return res;
+    }
+
+    private static long countOf(@NotNull Map<Path, SortedSet<String>> byRoot) {
+        return byRoot.values().stream().mapToLong(Set::size).sum();
+    }
+
+    private static void deleteRetryLists(@NotNull List<ChunkWriter.Chunk> lists, @NotNull File retryDir) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".deleteRetryLists");
+        lists.forEach(chunk -> {
+            if (!chunk.listFile.delete()) {
+                logger.warn("Could not delete retry list '{}'", chunk.listFile);
+            }
+        });
+        if (retryDir.exists() && !retryDir.delete()) {
+            logger.warn("Could not delete retry directory '{}'", retryDir);
+        }
+    }
+
+    private static void sleepUninterruptibly(long ms) {
+        Instant until = Instant.now().plusMillis(ms);
+        while (Instant.now().isBefore(until)) {
+            try {
+                Thread.sleep(Math.max(1, Duration.between(Instant.now(), until).toMillis()));
+            } catch (InterruptedException ex) {
+                // may have been woken up early!
+            }
+        }
+    }
+
+    private static void joinUninterruptibly(@NotNull Thread thread) {
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                // may have been woken up early!
+            }
+        }
+    }
+
+    private static RsyncStats readRsyncStats(@NotNull File outputFile) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".readRsyncStats");
+        try {
+            RsyncStats stats = RsyncStats.parseTailOf(outputFile);
+            if (stats == null) {
+                logger.warn("No rsync statistics found at the end of '{}'", outputFile);
+            }
+            return stats;
+        }
+        catch (IOException ex) {
+            logger.warn("Could not read rsync statistics from '{}'", outputFile, ex);
+            return null;
+        }
+    }
+
+    // ---
+    // Create the target directory inside a destination directory.
     // The target directory is target for the file trees created by rsync.
     // ---
 
-    private static File createTargetDir(@NotNull CmdLineDef cdf) {
+    private static File createTargetDir(@NotNull File destDir, @NotNull Instant when) {
         Logger logger = LoggerFactory.getLogger(CLASS + ".createTargetDir");
-        File qualTargetDirName = new File(cdf.getDestDir(), DirNaming.buildAtomicTargetDirRawName(cdf.getWhen()));
+        File qualTargetDirName = new File(destDir, DirNaming.buildAtomicTargetDirRawName(when));
         // The old-school "mkdir" does not allow to set permissions and does not say what went wrong
         // Use Files.createDirectory() for that.
         boolean created = qualTargetDirName.mkdir();
@@ -109,20 +686,331 @@ public abstract class Mainer {
         if (!qualTargetDirName.isDirectory()) {
             throw new IllegalStateException("The target directory '" + qualTargetDirName + "' exists but is not a directory");
         }
-        logger.info("The target directory '" + qualTargetDirName + "' has been created successfully");
+        logger.info("The target directory '{}' has been created successfully", qualTargetDirName);
         return qualTargetDirName;
     }
 
-    private static ProcessingResult.ExitValue doBizProcessing(@NotNull CmdLineDef cdf) {
+    // ---
+    // Replay the batch file recorded while copying "batch" to the first destination onto all the
+    // other destinations. Each destination has its own single-threaded executor, so that batches
+    // are replayed in order per destination but all destinations are written at the same time.
+    // The batch file is deleted once all replays are done.
+    // The files that only a retry copied to the first destination (see retryFailedFiles()) are not in
+    // the batch file; they are copied from the "retried" lists after the replay, which are deleted then too.
+    // Returns the replays of this batch, which are in "replayResults" as well.
+    // ---
+
+    private static @NotNull List<CompletableFuture<BatchResult>> replayOntoOtherDestinations(@NotNull Batch batch, @NotNull CmdLineDef cdf, @NotNull File batchFile, PreScanResult preScan,
+                                                    @NotNull List<ChunkWriter.Chunk> retried, @NotNull File retryDir,
+                                                    @NotNull Map<File, ExecutorService> replayers, @NotNull List<Future<BatchResult>> replayResults,
+                                                    @NotNull EventBus events) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".replayOntoOtherDestinations");
+        List<CompletableFuture<BatchResult>> futures = new ArrayList<>();
+        for (File secondaryTargetDir : replayers.keySet()) {
+            RsyncCmd replayCmd = RsyncCmdBuilder.buildReplayRsyncCmd(RsyncCmd.RSYNC_EXE_NAME, batch, cdf, secondaryTargetDir, preScan, batchFile);
+            CompletableFuture<BatchResult> future = CompletableFuture.supplyAsync(() -> {
+                BatchResult replayed = runRsyncCmd(replayCmd, batch, cdf, secondaryTargetDir, OutputFiles.Fresh, events);
+                for (ChunkWriter.Chunk chunk : retried) {
+                    RsyncCmd cmd = RsyncCmdBuilder.buildChunkRsyncCmd(RsyncCmd.RSYNC_EXE_NAME, batch, cdf, secondaryTargetDir, preScan, chunk);
+                    ProcessingResult.ExitValue res = runRsyncCmd(cmd, batch, cdf, secondaryTargetDir, OutputFiles.Appended, events).getExitValue();
+                    if (ProcessingResult.ExitValue.RSYNC_SUCCEEDED != res && ProcessingResult.ExitValue.RSYNC_SUCCEEDED == replayed.getExitValue()) {
+                        replayed.setExitValue(ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED);
+                    }
+                }
+                BatchResult br = makeDurable(replayed, List.of(secondaryTargetDir), cdf);
+                publishBatchEnded(events, br);
+                return br;
+            }, replayers.get(secondaryTargetDir));
+            futures.add(future);
+            replayResults.add(future);
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((x, ex) -> {
+            // rsync also writes a shell script next to the batch file
+            File script = new File(batchFile.getPath() + ".sh");
+            if (!batchFile.delete() || !script.delete()) {
+                logger.warn("Could not delete batch file '{}' or its script", batchFile);
+            }
+            else {
+                logger.info("Batch file '{}' has been replayed onto all destinations and deleted", batchFile);
+            }
+            deleteRetryLists(retried, retryDir);
+        });
+        return futures;
+    }
+
+    // ---
+    // Store the large files found by the pre-scan as block-level deltas into all "targetDirs" (each directly in
+    // its DestDir). Every file is read once for all of them. Returns false if any of them could not be stored.
+    // ---
+
+    private static boolean storeDeltas(@NotNull PreScanResult preScan, @NotNull List<File> targetDirs) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".storeDeltas");
+        List<DeltaStore> stores = new ArrayList<>();
+        for (File targetDir : targetDirs) {
+            stores.add(new DeltaStore(targetDir.getParentFile(), DeltaStore.DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors()));
+        }
+        boolean allOk = true;
+        long totalLength = 0;
+        long totalStored = 0;
+        Instant startInstant = Instant.now();
+        for (LargeFileCollector.LargeFile lf : preScan.deltaFiles) {
+            try {
+                List<DeltaStore.Result> results = DeltaStore.storeAll(stores, targetDirs, lf.path, lf.meta, preScan.batch, lf.transferPath);
+                totalLength += results.get(0).fileLength;
+                for (int i = 0; i < results.size(); i++) {
+                    DeltaStore.Result dr = results.get(i);
+                    totalStored += dr.storedBytes;
+                    logger.info("Stored '{}' into '{}': {} of {} blocks changed, {} bytes written{}",
+                            lf.path, targetDirs.get(i), dr.storedBlocks, dr.blockCount, dr.storedBytes,
+                            (dr.chainDepth == 0 ? " (new base)" : " (chain depth " + dr.chainDepth + ")"));
+                }
+            } catch (IOException ex) {
+                logger.error("Could not store '{}' as block-level delta", lf.path, ex);
+                allOk = false;
+            }
+        }
+        logger.info("Block-level deltas of batch '{}' in {}: {} bytes written for {} bytes of files in {}",
+                preScan.batch, targetDirs, totalStored, totalLength, DurationPrinter.formatDuration(Duration.between(startInstant, Instant.now())));
+        return allOk;
+    }
+
+    private static ProcessingResult.ExitValue awaitReplay(@NotNull Future<BatchResult> future) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".awaitReplay");
+        while (true) {
+            try {
+                return future.get().getExitValue();
+            } catch (InterruptedException ex) {
+                // may have been woken up early!
+            } catch (ExecutionException ex) {
+                logger.error("Replay of a batch file ended with an exception", ex.getCause());
+                return ProcessingResult.ExitValue.STARTING_RSYNC_THREW_EXCEPTION;
+            }
+        }
+    }
+
+    // ---
+    // The results of the batches on the first destination are put into "batchResults".
+    // The events of the run go to the console and to a JSON-lines file in the first target directory.
+    // ---
+
+    private static ProcessingResult.ExitValue doBizProcessing(@NotNull CmdLineDef cdf, @NotNull SortedMap<Batch, BatchResult> batchResults) throws IOException, GeneralSecurityException {
         Logger logger = LoggerFactory.getLogger(CLASS + ".doBizProcessing");
-        File qualTargetDirName = createTargetDir(cdf);
-        SortedMap<Batch, RsyncCmd> cmds = RsyncCmdBuilder.buildAllRsyncCmds(RsyncCmd.RSYNC_EXE_NAME,cdf,qualTargetDirName);
-        if (logger.isInfoEnabled()) {
-            logger.info(LoggingHelper.stringifyRsyncCmds(cmds));
+        File qualTargetDirName = createTargetDir(cdf.getDestDir(), cdf.getWhen());
+        // the other destinations get the same target directory name
+        Map<File, ExecutorService> replayers = new LinkedHashMap<>();
+        for (File secondaryDestDir : cdf.getDestDirs().subList(1, cdf.getDestDirs().size())) {
+            replayers.put(createTargetDir(secondaryDestDir, cdf.getWhen()), Executors.newSingleThreadExecutor());
+        }
+        List<File> allTargetDirs = new ArrayList<>();
+        allTargetDirs.add(qualTargetDirName);
+        allTargetDirs.addAll(replayers.keySet());
+        ProcessingResult.ExitValue exitValue;
+        try (EventBus events = new EventBus(EventBus.DEFAULT_CAPACITY)) {
+            events.addSink(new ConsoleSink());
+            events.addSink(new JsonLinesSink(new File(qualTargetDirName, DirNaming.buildAtomicEventsFileName())));
+            events.publish(Event.of(Event.Type.RunStarted, null).with("targetDirs", allTargetDirs).with("batches", cdf.getBatchSet())
+                    .with("dryrun", cdf.isDryrun()).build());
+            exitValue = processBatches(cdf, batchResults, qualTargetDirName, replayers, allTargetDirs, events);
+            events.publish(Event.of(Event.Type.RunEnded, null).with("exitValue", exitValue).with("droppedEvents", events.getDroppedCount()).build());
+        }
+        if (!cdf.isDryrun()) {
+            // a last flush, covering the log files and the events as well; the JSON-lines file
+            // is closed by now, so the final event only goes to the console
+            boolean flushed = true;
+            for (File targetDir : allTargetDirs) {
+                try {
+                    DurabilityBarrier.syncFileSystemOf(targetDir);
+                } catch (IOException ex) {
+                    logger.error("Final flush of '{}' failed", targetDir, ex);
+                    flushed = false;
+                }
+            }
+            if (flushed) {
+                new ConsoleSink().accept(Event.of(Event.Type.SafeToUnplug, null).with("destDirs", cdf.getDestDirs()).build());
+                logger.info("All data has been flushed to {}: it is safe to unplug the disk(s)", cdf.getDestDirs());
+            }
+            else {
+                logger.error("Not all data could be flushed to {}: do NOT trust this backup", cdf.getDestDirs());
+            }
+        }
+        return exitValue;
+    }
+
+    private static ProcessingResult.ExitValue processBatches(@NotNull CmdLineDef cdf, @NotNull SortedMap<Batch, BatchResult> batchResults, @NotNull File qualTargetDirName,
+                                                             @NotNull Map<File, ExecutorService> replayers, @NotNull List<File> allTargetDirs, @NotNull EventBus events)
+            throws IOException, GeneralSecurityException {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".processBatches");
+        DeviceProfile profile = probeDestinations(cdf, events);
+        int cores = Runtime.getRuntime().availableProcessors();
+        int parallelism = (profile == null) ? cores : profile.recommendedParallelism(cores);
+        SortedMap<Batch, FastPath> fastPaths = planFastPaths(cdf, allTargetDirs, cores, events);
+        SortedMap<Batch, PreScanResult> preScans = new TreeMap<>();
+        if (cdf.isSkipPrescan()) {
+            logger.info("Pre-scan has been skipped, so cache directories are not left out");
+        }
+        else {
+            // what the fast path takes from an earlier snapshot is not walked
+            SortedMap<Batch, FilterRuleSeq> seqs = new TreeMap<>();
+            for (Batch batch : cdf.getBatchSet()) {
+                FastPath fastPath = fastPaths.get(batch);
+                if (fastPath == null || fastPath.decision != FastPath.Decision.SkipBatch) {
+                    seqs.put(batch, (fastPath == null) ? batch.seq : fastPath.seqOf(batch.seq));
+                }
+            }
+            preScans = PreScan.preScanAll(seqs, cdf.getSourceRoot(), PreScan.DEFAULT_PARALLELISM, cdf.getDeltaThreshold(),
+                    cdf.isKeepCaches() ? PreScan.Caches.Keep : PreScan.Caches.Exclude);
+        }
+        for (PreScanResult preScan : preScans.values()) {
+            events.publish(Event.of(Event.Type.Metric, preScan.batch).with("metric", "preScan").with("files", preScan.files)
+                    .with("directories", preScan.directories).with("bytes", preScan.bytes).with("durationMs", preScan.duration.toMillis())
+                    .with("cacheDirs", preScan.cacheDirs.size()).with("cacheBytes", preScan.getCacheBytes()).build());
+        }
+        chooseTargetFormats(cdf, profile, preScans, fastPaths);
+        detectDestMetadata(cdf);
+        CryptoKeys keys = null;
+        char[] passphrase = null;
+        SortedMap<Batch, RsyncCmd> cmds = new TreeMap<>();
+        if (cdf.isEncrypted()) {
+            keys = createKeys(cdf, allTargetDirs);
+            passphrase = CryptoKeys.readPassphrase(cdf.getPassphraseFile());
+        }
+        else if (!cdf.isChunked()) {
+            cmds = RsyncCmdBuilder.buildAllRsyncCmds(RsyncCmd.RSYNC_EXE_NAME, cdf, qualTargetDirName, preScans);
+            if (logger.isInfoEnabled()) {
+                logger.info(LoggingHelper.stringifyRsyncCmds(cmds));
+            }
+        }
+        List<ProcessingResult.ExitValue> results = new ArrayList<>();
+        List<Future<BatchResult>> replayResults = new ArrayList<>();
+        Map<FastPath, List<CompletableFuture<BatchResult>>> fingerprintsAfterReplay = new LinkedHashMap<>();
+        List<Batch> batches = new ArrayList<>(cdf.getBatchSet());
+        Prefetcher prefetcher = null;
+        try {
+            for (int i = 0; i < batches.size(); i++) {
+                Batch batch = batches.get(i);
+                PreScanResult preScan = preScans.get(batch);
+                TargetFormat format = cdf.getTargetFormat(batch);
+                FastPath fastPath = fastPaths.get(batch);
+                if (prefetcher != null) {
+                    // rsync walks the tree itself from here on
+                    publishPrefetch(events, prefetcher.cancel());
+                    prefetcher = null;
+                }
+                events.publish(Event.of(Event.Type.BatchStarted, batch).with("format", format).with("targetDir", qualTargetDirName).build());
+                if (fastPath != null && fastPath.decision == FastPath.Decision.SkipBatch) {
+                    // nothing to copy, the TargetDirs refer to the holder
+                    BatchResult br = new BatchResult(batch, qualTargetDirName);
+                    br.setExitValue(ProcessingResult.ExitValue.RSYNC_SUCCEEDED);
+                    br.setWallclock(Duration.ZERO);
+                    batchResults.put(batch, br);
+                    recordFingerprints(fastPath, qualTargetDirName);
+                    publishBatchEnded(events, br);
+                    allTargetDirs.forEach(x -> results.add(ProcessingResult.ExitValue.RSYNC_SUCCEEDED));
+                    continue;
+                }
+                if (!cdf.isSkipPrefetch()) {
+                    prefetcher = startPrefetch(cdf, batches, i, fastPaths, preScans);
+                }
+                BatchResult br = switch (format) {
+                    case Encrypted -> runEncryptedCopy(batch, cdf.getSources(batch), allTargetDirs, preScan, keys, parallelism, events);
+                    case Archive -> runArchiveCopy(batch, cdf.getSources(batch), allTargetDirs, preScan, events);
+                    case PlainTree -> cdf.isChunked() ? runChunkedRsync(batch, cdf, qualTargetDirName, preScan, events)
+                            : runRsyncCmd(cmds.get(batch), batch, cdf, qualTargetDirName, OutputFiles.Fresh, events);
+                };
+                batchResults.put(batch, br);
+                List<ChunkWriter.Chunk> retried = List.of();
+                if (format == TargetFormat.PlainTree && ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED == br.getExitValue() && !cdf.isDryrun() && !cdf.isPlan()) {
+                    retried = retryFailedFiles(batch, cdf, qualTargetDirName, preScan, br, events);
+                }
+                ProcessingResult.ExitValue res = br.getExitValue();
+                br.setPreScan(preScan);
+                if (preScan != null && !preScan.deltaFiles.isEmpty() && !cdf.isDryrun()) {
+                    // the large files excluded from rsync go to every destination
+                    boolean deltasOk = storeDeltas(preScan, allTargetDirs);
+                    if (!deltasOk && ProcessingResult.ExitValue.RSYNC_SUCCEEDED == res) {
+                        res = ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED;
+                        br.setExitValue(res);
+                    }
+                }
+                if (!cdf.isDryrun() && ProcessingResult.ExitValue.RSYNC_FAILED != res && ProcessingResult.ExitValue.STARTING_RSYNC_THREW_EXCEPTION != res) {
+                    if (format == TargetFormat.PlainTree && !cdf.getDestMetadata().isFull()
+                            && !recordMetadataSidecar(batch, cdf, preScan, fastPath, allTargetDirs, cores) && ProcessingResult.ExitValue.RSYNC_SUCCEEDED == res) {
+                        res = ProcessingResult.ExitValue.RSYNC_PARTIALLY_SUCCEEDED;
+                        br.setExitValue(res);
+                    }
+                    if (format == TargetFormat.PlainTree && cdf.isChunked()) {
+                        // the tree needs the whole listing in memory, which chunking is there to avoid
+                        logger.info("No Merkle tree is recorded for batch '{}' as it was copied in chunks", batch);
+                    }
+                    else {
+                        recordMerkleTree(batch, allTargetDirs, passphrase, (format == TargetFormat.Encrypted) ? keys : null, cdf.isMerkleContent());
+                    }
+                    if (cdf.getParityPercent() > 0 && format == TargetFormat.PlainTree) {
+                        recordParity(batch, allTargetDirs, cdf.getParityPercent(), cores);
+                    }
+                }
+                // rsync wrote to the first destination only (the replays flush on their own),
+                // the Java-side stores have written to all destinations at once
+                makeDurable(br, (format == TargetFormat.PlainTree) ? List.of(qualTargetDirName) : allTargetDirs, cdf);
+                res = br.getExitValue();
+                // the fingerprints say that every TargetDir holds the batch, so they wait for the replays
+                boolean fingerprintsDue = fastPath != null && format == TargetFormat.PlainTree && ProcessingResult.ExitValue.RSYNC_SUCCEEDED == res;
+                publishBatchEnded(events, br);
+                if (format != TargetFormat.PlainTree) {
+                    allTargetDirs.forEach(x -> results.add(br.getExitValue()));
+                    continue;
+                }
+                results.add(res);
+                File batchFile = RsyncCmdBuilder.buildBatchFile(batch, cdf, qualTargetDirName);
+                File retryDir = new File(qualTargetDirName, DirNaming.buildAtomicRetryDirName(batch));
+                if (replayers.isEmpty() || batchFile == null) {
+                    if (fingerprintsDue) {
+                        recordFingerprints(fastPath, qualTargetDirName);
+                    }
+                    deleteRetryLists(retried, retryDir);
+                    continue;
+                }
+                if (batchFile.exists() && ProcessingResult.ExitValue.RSYNC_FAILED != res && ProcessingResult.ExitValue.STARTING_RSYNC_THREW_EXCEPTION != res) {
+                    List<CompletableFuture<BatchResult>> replays = replayOntoOtherDestinations(batch, cdf, batchFile, preScan, retried, retryDir, replayers, replayResults, events);
+                    if (fingerprintsDue) {
+                        fingerprintsAfterReplay.put(fastPath, replays);
+                    }
+                }
+                else {
+                    logger.error("Batch '{}' cannot be replayed onto the other destinations as it failed on the first one", batch);
+                    replayers.keySet().forEach(x -> results.add(ProcessingResult.ExitValue.RSYNC_FAILED));
+                    if (batchFile.exists() && !batchFile.delete()) {
+                        logger.warn("Could not delete batch file '{}'", batchFile);
+                    }
+                    deleteRetryLists(retried, retryDir);
+                }
+            }
+            for (Future<BatchResult> future : replayResults) {
+                results.add(awaitReplay(future));
+            }
+            fingerprintsAfterReplay.forEach((fastPath, replays) -> {
+                if (replays.stream().allMatch(f -> !f.isCompletedExceptionally() && ProcessingResult.ExitValue.RSYNC_SUCCEEDED == f.join().getExitValue())) {
+                    recordFingerprints(fastPath, qualTargetDirName);
+                }
+                else {
+                    logger.info("No fingerprints are recorded for batch '{}' as it was not replayed onto all destinations", fastPath.batch);
+                }
+            });
+        }
+        finally {
+            if (prefetcher != null) {
+                prefetcher.cancel();
+            }
+            replayers.values().forEach(ExecutorService::shutdown);
+            if (passphrase != null) {
+                Arrays.fill(passphrase, '\0');
+            }
+        }
+        if (cdf.isPlan()) {
+            logger.info(LoggingHelper.stringifyPlan(batchResults));
         }
         float successCount = 0;
-        for (Batch batch : cmds.keySet()) {
-            ProcessingResult.ExitValue res = runRsyncCmd(cmds.get(batch), batch, cdf, qualTargetDirName);
+        for (ProcessingResult.ExitValue res : results) {
             if (ProcessingResult.ExitValue.RSYNC_SUCCEEDED == res) {
                 successCount += 1.0;
             }
@@ -130,7 +1018,7 @@ public abstract class Mainer {
                 successCount += 0.5;
             }
         }
-        if (successCount == cmds.size()) {
+        if (successCount == results.size()) {
             return ProcessingResult.ExitValue.ALL_RSYNC_SUCCEEDED;
         }
         else if (successCount == 0) {
@@ -141,18 +1029,596 @@ public abstract class Mainer {
         }
     }
 
+    // ---
+    // Start warming the caches for the first batch after "batches[i]" that is copied at all (see Prefetcher),
+    // with the filter rules it is going to be copied with. Returns null if there is none.
+    // ---
+
+    private static Prefetcher startPrefetch(@NotNull CmdLineDef cdf, @NotNull List<Batch> batches, int i, @NotNull SortedMap<Batch, FastPath> fastPaths,
+                                            @NotNull SortedMap<Batch, PreScanResult> preScans) {
+        for (Batch next : batches.subList(i + 1, batches.size())) {
+            FastPath fastPath = fastPaths.get(next);
+            if (fastPath != null && fastPath.decision == FastPath.Decision.SkipBatch) {
+                continue;
+            }
+            PreScanResult preScan = preScans.get(next);
+            FilterRuleSeq seq = (preScan != null) ? preScan.seq : (fastPath != null) ? fastPath.seqOf(next.seq) : next.seq;
+            return new Prefetcher(next, cdf.getSources(next), seq, Prefetcher.DEFAULT_PARALLELISM, Prefetcher.DEFAULT_MAX_ENTRIES_PER_SEC).start();
+        }
+        return null;
+    }
+
+    private static void publishPrefetch(@NotNull EventBus events, @NotNull Prefetcher prefetcher) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".publishPrefetch");
+        logger.info("Prefetched {} entries of batch '{}' in {}: {}", prefetcher.getEntries(), prefetcher.batch,
+                DurationPrinter.formatDuration(prefetcher.getDuration()), prefetcher.getOutcome());
+        events.publish(Event.of(Event.Type.Metric, prefetcher.batch).with("metric", "prefetch").with("entries", prefetcher.getEntries())
+                .with("durationMs", prefetcher.getDuration().toMillis()).with("outcome", prefetcher.getOutcome()).build());
+    }
+
+    // ---
+    // Decide per batch stored as a plain tree what the fast path can take from an earlier snapshot (see FastPath).
+    // Empty without "--fast-path". Without a pre-scan, only whole batches can be skipped: the subtrees left
+    // out of rsync are part of the filter rules that the pre-scan hands on.
+    // ---
+
+    private static SortedMap<Batch, FastPath> planFastPaths(@NotNull CmdLineDef cdf, @NotNull List<File> targetDirs, int parallelism, @NotNull EventBus events) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".planFastPaths");
+        SortedMap<Batch, FastPath> res = new TreeMap<>();
+        if (!cdf.isFastPath()) {
+            return res;
+        }
+        for (Batch batch : cdf.getBatchSet()) {
+            if (cdf.getTargetFormat(batch) != TargetFormat.PlainTree) {
+                continue;
+            }
+            Instant start = Instant.now();
+            FastPath fastPath = FastPath.plan(batch, cdf.getSources(batch), batch.seq, targetDirs, cdf.getWhen(), cdf.getFullWalkInterval(),
+                    cdf.isSkipPrescan() ? 0 : FastPath.MAX_SKIPPED_SUBTREES, parallelism);
+            Duration duration = Duration.between(start, Instant.now());
+            logger.info("Batch '{}': {} as {} ({} entries linked), decided in {}", batch, fastPath.decision, fastPath.reason, fastPath.linked,
+                    DurationPrinter.formatDuration(duration));
+            events.publish(Event.of(Event.Type.Metric, batch).with("metric", "fastPath").with("decision", fastPath.decision)
+                    .with("directories", fastPath.fingerprints.size()).with("skippedSubtrees", fastPath.skipped.size()).with("linked", fastPath.linked)
+                    .with("durationMs", duration.toMillis()).build());
+            res.put(batch, fastPath);
+        }
+        return res;
+    }
+
+    // ---
+    // Only the TargetDir in the first DestDir is looked at for the last good snapshot; failing to record
+    // the fingerprints just means a full walk next time
+    // ---
+
+    private static void recordFingerprints(@NotNull FastPath fastPath, @NotNull File targetDir) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".recordFingerprints");
+        try {
+            fastPath.fingerprints.write(new File(targetDir, DirNaming.buildAtomicFingerprintFileName(fastPath.batch)));
+        } catch (IOException ex) {
+            logger.warn("Could not record the fingerprints of batch '{}'", fastPath.batch, ex);
+        }
+    }
+
+    // ---
+    // Find out what the destinations keep of the POSIX metadata (see MetadataSupport): rsync is only asked
+    // for what all of them keep, the rest goes to a sidecar. Detecting writes, so there is none in a dry run.
+    // ---
+
+    private static void detectDestMetadata(@NotNull CmdLineDef cdf) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".detectDestMetadata");
+        if (cdf.isDryrun()) {
+            return;
+        }
+        MetadataSupport kept = MetadataSupport.FULL;
+        for (File destDir : cdf.getDestDirs()) {
+            try {
+                MetadataSupport support = MetadataSupport.detect(destDir);
+                if (!support.isFull()) {
+                    logger.info("Destination '{}': {}; what is lost is kept in a metadata sidecar per batch", destDir, support);
+                }
+                kept = kept.and(support);
+            } catch (IOException ex) {
+                logger.warn("Could not find out what metadata destination '{}' keeps, assuming everything", destDir, ex);
+            }
+        }
+        cdf.setDestMetadata(kept);
+    }
+
+    // ---
+    // Capture the metadata of the sources of "batch" that the destinations lose (see MetadataSidecar) into
+    // the first target directory; the others get a copy. Without it, a restore cannot give the files their
+    // owners and permissions back, so failing makes the batch a partial success.
+    // The subtrees that the fast path linked from the holder are not walked: their entries come from its sidecar.
+    // ---
+
+    private static boolean recordMetadataSidecar(@NotNull Batch batch, @NotNull CmdLineDef cdf, PreScanResult preScan, FastPath fastPath,
+                                                 @NotNull List<File> targetDirs, int parallelism) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".recordMetadataSidecar");
+        Instant start = Instant.now();
+        File sidecarFile = new File(targetDirs.get(0), DirNaming.buildAtomicMetadataFileName(batch));
+        try {
+            List<MetadataSidecar.Entry> carried = List.of();
+            if (fastPath != null && fastPath.holder != null && !fastPath.skipped.isEmpty()) {
+                carried = MetadataSidecar.entriesUnder(new File(fastPath.holder, DirNaming.buildAtomicMetadataFileName(batch)), fastPath.skipped, cdf.getDestMetadata());
+            }
+            long entries = MetadataSidecar.write(sidecarFile, batch, cdf.getSources(batch), PreScanResult.seqOf(batch, preScan), cdf.getDestMetadata(), parallelism, carried);
+            for (File targetDir : targetDirs.subList(1, targetDirs.size())) {
+                Files.copy(sidecarFile.toPath(), new File(targetDir, sidecarFile.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            logger.info("Recorded the metadata of {} files of batch '{}' in {}", entries, batch, DurationPrinter.formatDuration(Duration.between(start, Instant.now())));
+            return true;
+        } catch (IOException ex) {
+            logger.error("Could not record the metadata of batch '{}'", batch, ex);
+            return false;
+        }
+    }
+
+    // ---
+    // Record the Merkle tree of what the first target directory now holds for "batch" (see MerkleTree).
+    // The other target directories get a copy, as they will hold the same once replayed.
+    // The tree only speeds up later comparisons, so failing to record it does not fail the batch.
+    // This costs the listing of the whole batch in memory (one RestoreItem per entry) and, with
+    // "withContent", reading back every byte written, so it is not done for chunked batches.
+    // With "keys" (an encrypted batch), the tree is only written to the destinations encrypted; the
+    // clear one is built in a temporary file on the local machine.
+    // ---
+
+    private static void recordMerkleTree(@NotNull Batch batch, @NotNull List<File> targetDirs, char[] passphrase, CryptoKeys keys, boolean withContent) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".recordMerkleTree");
+        Instant start = Instant.now();
+        File treeFile = new File(targetDirs.get(0), DirNaming.buildAtomicMerkleFileName(batch));
+        File tmpFile = null;
+        try {
+            if (keys != null) {
+                tmpFile = File.createTempFile("merkle_of_" + batch.toString().toLowerCase(), ".tree");
+                MerkleTree.write(SnapshotReader.listBatch(targetDirs.get(0), batch, passphrase), tmpFile, withContent);
+                List<File> treeFiles = new ArrayList<>();
+                targetDirs.forEach(targetDir -> treeFiles.add(new File(targetDir, treeFile.getName())));
+                MerkleTree.encrypt(tmpFile, treeFiles, keys);
+            }
+            else {
+                MerkleTree.write(SnapshotReader.listBatch(targetDirs.get(0), batch, passphrase), treeFile, withContent);
+                for (File targetDir : targetDirs.subList(1, targetDirs.size())) {
+                    Files.copy(treeFile.toPath(), new File(targetDir, treeFile.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            logger.info("Recorded the Merkle tree of batch '{}' in {}", batch, DurationPrinter.formatDuration(Duration.between(start, Instant.now())));
+        } catch (IOException | GeneralSecurityException ex) {
+            logger.warn("Could not record the Merkle tree of batch '{}'", batch, ex);
+        } finally {
+            if (tmpFile != null && !tmpFile.delete()) {
+                logger.warn("Could not delete '{}'", tmpFile);
+            }
+        }
+    }
+
+    // ---
+    // Write the recovery data of the large files the first target directory now holds for "batch" (see ParityDir).
+    // As with the Merkle tree, the other target directories get a copy, and failing does not fail the batch.
+    // ---
+
+    private static void recordParity(@NotNull Batch batch, @NotNull List<File> targetDirs, int percent, int parallelism) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".recordParity");
+        Instant start = Instant.now();
+        try {
+            ParityDir.Result pr = ParityDir.write(targetDirs.get(0), batch, percent, parallelism);
+            Path parityDir = new File(targetDirs.get(0), DirNaming.buildAtomicParityDirName(batch)).toPath();
+            for (File targetDir : targetDirs.subList(1, targetDirs.size())) {
+                copyTree(parityDir, new File(targetDir, DirNaming.buildAtomicParityDirName(batch)).toPath());
+            }
+            logger.info("Recorded {}% parity for {} files ({} bytes) of batch '{}' in {}: {} bytes, {} failed",
+                    percent, pr.files, pr.bytes, batch, DurationPrinter.formatDuration(Duration.between(start, Instant.now())), pr.parityBytes, pr.failures);
+        } catch (IOException ex) {
+            logger.warn("Could not record the parity of batch '{}'", batch, ex);
+        }
+    }
+
+    private static void copyTree(@NotNull Path from, @NotNull Path to) throws IOException {
+        if (!Files.isDirectory(from)) {
+            return;
+        }
+        try (var stream = Files.walk(from)) {
+            for (Path p : (Iterable<Path>) stream::iterator) {
+                Path dest = to.resolve(from.relativize(p).toString());
+                if (Files.isDirectory(p)) {
+                    Files.createDirectories(dest);
+                }
+                else {
+                    Files.copy(p, dest, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    // ---
+    // Write the selected batches of a snapshot as a tar stream (see TarExporter) to a file or to STDOUT.
+    // As the log goes to STDOUT (see logback.xml), it is sent to STDERR when the stream is written there, and
+    // it stays there for the rest of the run: the asynchronous appender may still hold lines logged during the
+    // export, which would otherwise end up behind the tar stream.
+    // ---
+
+    private static ProcessingResult.ExitValue doExportProcessing(@NotNull CmdLineDef cdf) throws IOException, GeneralSecurityException {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".doExportProcessing");
+        File snapshotDir = cdf.getExportSnapshotDir();
+        char[] passphrase = cdf.isEncrypted() ? CryptoKeys.readPassphrase(cdf.getPassphraseFile()) : null;
+        File exportTo = cdf.getExportTo();
+        if (exportTo == null) {
+            System.setOut(System.err);
+        }
+        Instant start = Instant.now();
+        try (FileChannel out = (exportTo == null) ? new FileOutputStream(FileDescriptor.out).getChannel()
+                : FileChannel.open(exportTo.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             Writer index = (cdf.getExportIndex() == null) ? null : Files.newBufferedWriter(cdf.getExportIndex().toPath(), StandardCharsets.UTF_8)) {
+            TarExporter exporter = new TarExporter(out, index);
+            for (Batch batch : cdf.getBatchSet()) {
+                File holder = SnapshotReader.holderOf(snapshotDir, batch);
+                if (SnapshotReader.formatOf(holder, batch) == null) {
+                    logger.info("Batch '{}' is not in '{}'", batch, snapshotDir);
+                    continue;
+                }
+                exporter.exportBatch(holder, batch, passphrase);
+                logger.info("Exported batch '{}' of '{}', {} entries so far", batch, snapshotDir.getName(), exporter.getEntries());
+            }
+            exporter.finish();
+            Duration duration = Duration.between(start, Instant.now());
+            logger.info("Exported {} entries with {} bytes of data ({} bytes of tar) in {}, {} MiB/s", exporter.getEntries(), exporter.getBytes(),
+                    exporter.getPosition(), DurationPrinter.formatDuration(duration), exporter.getPosition() / 1024 / 1024 * 1000 / Math.max(1, duration.toMillis()));
+            return (exporter.getFailures() == 0) ? ProcessingResult.ExitValue.EXPORT_SUCCEEDED : ProcessingResult.ExitValue.EXPORT_PARTIALLY_SUCCEEDED;
+        }
+    }
+
+    // ---
+    // Walk the sources of the selected batches together (see CoverageAnalyser), printing to STDOUT what
+    // more than one batch copies, what no batch copies and the pseudo file systems a batch would copy,
+    // one tab-separated line each: kind, batches, bytes, files, path.
+    // ---
+
+    private static ProcessingResult.ExitValue doAnalyseProcessing(@NotNull CmdLineDef cdf) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".doAnalyseProcessing");
+        SortedMap<Batch, SortedSet<File>> sourcesByBatch = new TreeMap<>();
+        cdf.getBatchSet().forEach(batch -> sourcesByBatch.put(batch, cdf.getSources(batch)));
+        Instant start = Instant.now();
+        CoverageAnalyser analyser = new CoverageAnalyser(sourcesByBatch, PreScan.DEFAULT_PARALLELISM);
+        analyser.run();
+        PrintStream out = System.out;
+        long duplicatedBytes = 0;
+        for (CoverageAnalyser.Region r : analyser.getOverlaps()) {
+            out.println("overlap\t" + namesOf(r.batches) + "\t" + r.getBytes() + "\t" + r.getFiles() + "\t" + TabSeparated.escape(r.path.toString()));
+            duplicatedBytes += r.getDuplicatedBytes();
+        }
+        long uncoveredBytes = 0;
+        for (CoverageAnalyser.Region r : analyser.getUncovered()) {
+            out.println("uncovered\t-\t" + r.getBytes() + "\t" + r.getFiles() + "\t" + TabSeparated.escape(r.path.toString()));
+            uncoveredBytes += r.getBytes();
+        }
+        for (CoverageAnalyser.Region r : analyser.getRegions()) {
+            if (r.pseudo && !r.batches.isEmpty()) {
+                out.println("pseudo\t" + namesOf(r.batches) + "\t-\t-\t" + TabSeparated.escape(r.path.toString()));
+            }
+        }
+        out.flush();
+        logger.info("Analysed batches {} in {}: {} bytes copied more than once, {} bytes copied by no batch, {} files or directories unreadable",
+                cdf.getBatchSet(), DurationPrinter.formatDuration(Duration.between(start, Instant.now())), duplicatedBytes, uncoveredBytes, analyser.getErrorCount());
+        return analyser.getOverlaps().isEmpty() ? ProcessingResult.ExitValue.ANALYSIS_FOUND_NO_OVERLAP : ProcessingResult.ExitValue.ANALYSIS_FOUND_OVERLAP;
+    }
+
+    private static String namesOf(@NotNull Set<Batch> batches) {
+        StringJoiner res = new StringJoiner(",");
+        batches.forEach(batch -> res.add(batch.toString().toLowerCase()));
+        return res.toString();
+    }
+
+    // ---
+    // Check the files of the selected batches of a snapshot that have recovery data, repairing them in place
+    // ---
+
+    private static ProcessingResult.ExitValue doRepairProcessing(@NotNull CmdLineDef cdf) throws IOException {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".doRepairProcessing");
+        File snapshotDir = cdf.getRepairSnapshotDir();
+        long unrepaired = 0;
+        for (Batch batch : cdf.getBatchSet()) {
+            if (!new File(snapshotDir, DirNaming.buildAtomicParityDirName(batch)).isDirectory()) {
+                logger.info("Batch '{}' has no recovery data in '{}'", batch, snapshotDir);
+                continue;
+            }
+            Instant start = Instant.now();
+            ParityDir.Result pr = ParityDir.repair(snapshotDir, batch);
+            logger.info("Checked {} files ({} bytes) of batch '{}' in {}: {} repaired, {} beyond repair, {} failed",
+                    pr.files, pr.bytes, batch, DurationPrinter.formatDuration(Duration.between(start, Instant.now())), pr.repaired, pr.unrepairable, pr.failures);
+            unrepaired += pr.unrepairable + pr.failures;
+        }
+        return (unrepaired == 0) ? ProcessingResult.ExitValue.REPAIR_SUCCEEDED : ProcessingResult.ExitValue.REPAIR_FAILED;
+    }
+
+    // ---
+    // Compare two snapshots batch by batch, printing the changes to STDOUT. Snapshots made before
+    // Merkle trees were recorded get one built on the fly, which means walking them completely.
+    // ---
+
+    private static ProcessingResult.ExitValue doDiffProcessing(@NotNull CmdLineDef cdf) throws IOException, GeneralSecurityException {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".doDiffProcessing");
+        File olderDir = cdf.getDiffSnapshotDirs().get(0);
+        File newerDir = cdf.getDiffSnapshotDirs().get(1);
+        char[] passphrase = cdf.isEncrypted() ? CryptoKeys.readPassphrase(cdf.getPassphraseFile()) : null;
+        PrintStream out = System.out;
+        for (Batch batch : cdf.getBatchSet()) {
+            List<File> tmpFiles = new ArrayList<>();
+            try (MerkleTree.Reader older = new MerkleTree.Reader(merkleTreeOf(olderDir, batch, passphrase, tmpFiles));
+                 MerkleTree.Reader newer = new MerkleTree.Reader(merkleTreeOf(newerDir, batch, passphrase, tmpFiles))) {
+                if (older.isWithContent() != newer.isWithContent()) {
+                    logger.warn("Only one of the Merkle trees of batch '{}' has content hashes, all files will appear modified", batch);
+                }
+                MerkleDiff diff = new MerkleDiff(older, newer, (change, transferPath, type) -> {
+                    String suffix = (type == RestoreItem.Type.Directory) ? "/" : "";
+                    switch (change) {
+                        case Added -> out.println("+ " + batch.toString().toLowerCase() + " " + transferPath + suffix);
+                        case Removed -> out.println("- " + batch.toString().toLowerCase() + " " + transferPath + suffix);
+                        case Modified -> out.println("M " + batch.toString().toLowerCase() + " " + transferPath + suffix);
+                    }
+                });
+                diff.run();
+                logger.info("Batch '{}': {} added, {} removed, {} modified, {} directory records read",
+                        batch, diff.getAdded(), diff.getRemoved(), diff.getModified(), diff.getDirectoriesRead());
+            } finally {
+                tmpFiles.forEach(File::delete);
+            }
+        }
+        out.flush();
+        return ProcessingResult.ExitValue.DIFF_SUCCEEDED;
+    }
+
+    private static File merkleTreeOf(@NotNull File snapshotDir, @NotNull Batch batch, char[] passphrase, @NotNull List<File> tmpFiles) throws IOException, GeneralSecurityException {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".merkleTreeOf");
+        snapshotDir = SnapshotReader.holderOf(snapshotDir, batch);
+        File treeFile = new File(snapshotDir, DirNaming.buildAtomicMerkleFileName(batch));
+        if (treeFile.isFile() && SnapshotReader.formatOf(snapshotDir, batch) == TargetFormat.Encrypted) {
+            if (passphrase == null) {
+                throw new IOException("Batch '" + batch + "' is encrypted in '" + snapshotDir + "', a passphrase file is needed");
+            }
+            File tmpFile = File.createTempFile("merkle_of_" + batch.toString().toLowerCase(), ".tree");
+            tmpFiles.add(tmpFile);
+            MerkleTree.decrypt(treeFile, tmpFile, CryptoKeys.load(new File(snapshotDir, DirNaming.buildAtomicKeyInfoFileName()), passphrase));
+            return tmpFile;
+        }
+        if (treeFile.isFile()) {
+            return treeFile;
+        }
+        if (SnapshotReader.formatOf(snapshotDir, batch) != null) {
+            logger.info("There is no Merkle tree of batch '{}' in '{}', building one", batch, snapshotDir);
+        }
+        File tmpFile = File.createTempFile("merkle_of_" + batch.toString().toLowerCase(), ".tree");
+        tmpFiles.add(tmpFile);
+        MerkleTree.write(SnapshotReader.listBatch(snapshotDir, batch, passphrase), tmpFile, false);
+        return tmpFile;
+    }
+
+    // ---
+    // Hard-link identical files across the selected batches of a snapshot (see Deduplicator).
+    // Only the batches stored as a plain tree hold files that can be linked. As the linked files
+    // agree in their metadata, the Merkle trees recorded with the snapshot stay valid.
+    // ---
+
+    private static ProcessingResult.ExitValue doDedupProcessing(@NotNull CmdLineDef cdf) throws IOException {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".doDedupProcessing");
+        File snapshotDir = cdf.getDedupSnapshotDir();
+        List<Path> trees = new ArrayList<>();
+        for (Batch batch : cdf.getBatchSet()) {
+            TargetFormat format = SnapshotReader.formatOf(snapshotDir, batch);
+            if (format == TargetFormat.PlainTree) {
+                trees.add(new File(snapshotDir, DirNaming.buildAtomicDumpDirName(batch)).toPath());
+            }
+            else if (format != null) {
+                logger.info("Batch '{}' is stored in {} format in '{}', skipping it", batch, format, snapshotDir);
+            }
+        }
+        // the copies can only carry ACLs if the DestDir keeps them
+        Deduplicator.Acls acls = MetadataSupport.detect(snapshotDir.getParentFile()).acls ? Deduplicator.Acls.Compare : Deduplicator.Acls.None;
+        Instant start = Instant.now();
+        Deduplicator dedup = new Deduplicator(Runtime.getRuntime().availableProcessors(), Deduplicator.DEFAULT_MIN_SIZE, cdf.isDryrun(), acls);
+        dedup.run(trees);
+        logger.info("Deduplicated '{}' in {}: {} files looked at, {} bytes hashed, {} files {}linked, {} bytes {}saved, {} failures",
+                snapshotDir, DurationPrinter.formatDuration(Duration.between(start, Instant.now())), dedup.getFiles(), dedup.getBytesHashed(),
+                dedup.getLinked(), (cdf.isDryrun() ? "would be " : ""), dedup.getSavedBytes(), (cdf.isDryrun() ? "would be " : ""), dedup.getFailures());
+        return (dedup.getFailures() == 0) ? ProcessingResult.ExitValue.DEDUP_SUCCEEDED : ProcessingResult.ExitValue.DEDUP_PARTIALLY_SUCCEEDED;
+    }
+
+    // ---
+    // Check the selected batches of all the snapshots of this host, oldest first, against their Merkle trees
+    // (see Scrubber). The session starts at the ScrubCursor and saves it when it runs out of time; once all
+    // snapshots have been checked, the cursor is removed so that the next session starts a new pass.
+    // The corrupted files are appended to the scrub report in the MetaDir.
+    // ---
+
+    private static ProcessingResult.ExitValue doScrubProcessing(@NotNull CmdLineDef cdf) throws IOException, GeneralSecurityException {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".doScrubProcessing");
+        File destDir = cdf.getDestDir();
+        char[] passphrase = cdf.isEncrypted() ? CryptoKeys.readPassphrase(cdf.getPassphraseFile()) : null;
+        ScrubCursor cursor = ScrubCursor.read(destDir);
+        if (cursor != null) {
+            logger.info("Continuing the scrub after '{}' of batch '{}' in '{}'", cursor.transferPath, cursor.batch, cursor.snapshot);
+        }
+        Scrubber scrubber = new Scrubber(cdf.getScrubBytesPerSec(), Instant.now().plus(cdf.getScrubDuration()));
+        File reportFile = new File(new File(destDir, DirNaming.buildAtomicMetaDirName()), DirNaming.buildAtomicScrubReportFileName());
+        long corrupted = 0;
+        for (File snapshotDir : DirNaming.listTargetDirsOfThisHost(destDir)) {
+            // the names sort chronologically
+            if (cursor != null && snapshotDir.getName().compareTo(cursor.snapshot) < 0) {
+                continue;
+            }
+            for (Batch batch : cdf.getBatchSet()) {
+                boolean atCursor = cursor != null && snapshotDir.getName().equals(cursor.snapshot);
+                if (atCursor && batch.compareTo(cursor.batch) < 0) {
+                    continue;
+                }
+                TargetFormat format = SnapshotReader.formatOf(snapshotDir, batch);
+                if (format == null) {
+                    continue;
+                }
+                if (!new File(snapshotDir, DirNaming.buildAtomicMerkleFileName(batch)).isFile()) {
+                    logger.info("There is no Merkle tree of batch '{}' in '{}', nothing to check against", batch, snapshotDir);
+                    continue;
+                }
+                if (format == TargetFormat.Encrypted && passphrase == null) {
+                    logger.warn("Batch '{}' in '{}' is encrypted, it can only be checked with '{}'", batch, snapshotDir, CmdLineDef.ENCRYPT_WITH);
+                    continue;
+                }
+                Instant start = Instant.now();
+                String resumeAfter = (atCursor && batch == cursor.batch) ? cursor.transferPath : null;
+                Scrubber.BatchReport report = scrubber.scrub(snapshotDir, batch, passphrase, resumeAfter, transferPath -> {
+                    try {
+                        new ScrubCursor(snapshotDir.getName(), batch, transferPath).save(destDir);
+                    } catch (IOException ex) {
+                        logger.warn("Could not save the scrub cursor", ex);
+                    }
+                });
+                logger.info("Scrubbed batch '{}' in '{}': {} files, {} bytes in {}, {} corrupted",
+                        batch, snapshotDir.getName(), report.files, report.bytes, DurationPrinter.formatDuration(Duration.between(start, Instant.now())),
+                        report.corruptions.size());
+                appendToScrubReport(reportFile, snapshotDir, batch, report.corruptions);
+                corrupted += report.corruptions.size();
+                if (!report.finished) {
+                    String lastChecked = (report.lastChecked != null) ? report.lastChecked : (resumeAfter != null) ? resumeAfter : "";
+                    new ScrubCursor(snapshotDir.getName(), batch, lastChecked).save(destDir);
+                    logger.info("The scrub time is up, the next session continues with batch '{}' in '{}'", batch, snapshotDir.getName());
+                    return (corrupted == 0) ? ProcessingResult.ExitValue.SCRUB_SUCCEEDED : ProcessingResult.ExitValue.SCRUB_FOUND_CORRUPTION;
+                }
+            }
+            cursor = null;
+        }
+        ScrubCursor.delete(destDir);
+        logger.info("All backups in '{}' have been scrubbed, the next session starts over", destDir);
+        return (corrupted == 0) ? ProcessingResult.ExitValue.SCRUB_SUCCEEDED : ProcessingResult.ExitValue.SCRUB_FOUND_CORRUPTION;
+    }
+
+    private static void appendToScrubReport(@NotNull File reportFile, @NotNull File snapshotDir, @NotNull Batch batch, @NotNull List<Scrubber.Corruption> corruptions) throws IOException {
+        if (corruptions.isEmpty()) {
+            return;
+        }
+        StringBuilder buf = new StringBuilder();
+        if (!reportFile.exists()) {
+            buf.append("# when\tsnapshot\tbatch\ttransfer path\tproblem\n");
+        }
+        for (Scrubber.Corruption c : corruptions) {
+            buf.append(Instant.now()).append('\t').append(snapshotDir.getName()).append('\t').append(batch.name()).append('\t')
+                    .append(TabSeparated.escape(c.transferPath)).append('\t').append(TabSeparated.escape(c.reason)).append('\n');
+        }
+        Files.createDirectories(reportFile.getParentFile().toPath());
+        Files.writeString(reportFile.toPath(), buf, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // ---
+    // Restore the selected batches of a snapshot; the batches are restored one after the other,
+    // the files of a batch in parallel (see Restorer)
+    // ---
+
+    private static ProcessingResult.ExitValue doRestoreProcessing(@NotNull CmdLineDef cdf) throws IOException, GeneralSecurityException {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".doRestoreProcessing");
+        File snapshotDir = cdf.getRestoreSnapshotDir();
+        char[] passphrase = cdf.isEncrypted() ? CryptoKeys.readPassphrase(cdf.getPassphraseFile()) : null;
+        int parallelism = 2 * Runtime.getRuntime().availableProcessors();
+        long restored = 0;
+        long failed = 0;
+        try (EventBus events = new EventBus(EventBus.DEFAULT_CAPACITY)) {
+            events.addSink(new ConsoleSink());
+            events.publish(Event.of(Event.Type.RunStarted, null).with("restoreFrom", snapshotDir).with("restoreTo", cdf.getRestoreTo())
+                    .with("batches", cdf.getBatchSet()).with("dryrun", cdf.isDryrun()).build());
+            for (Batch batch : cdf.getBatchSet()) {
+                File holder = SnapshotReader.holderOf(snapshotDir, batch);
+                TargetFormat format = SnapshotReader.formatOf(holder, batch);
+                if (format == null) {
+                    logger.info("Batch '{}' is not in '{}'", batch, snapshotDir);
+                    continue;
+                }
+                events.publish(Event.of(Event.Type.BatchStarted, batch).with("format", format).with("restoreFrom", holder).build());
+                Instant start = Instant.now();
+                List<RestoreItem> items = SnapshotReader.listBatch(holder, batch, passphrase);
+                Restorer restorer = new Restorer(cdf.getRestoreTo(), cdf.getRestoreFilter(), parallelism, cdf.isDryrun());
+                Map<RestoreItem, Path> targets;
+                ProgressReporter reporter = new ProgressReporter(events, batch, ProgressReporter.DEFAULT_INTERVAL_SECS,
+                        () -> Map.of("files", restorer.getFiles(), "bytes", restorer.getBytes()));
+                try {
+                    targets = restorer.restore(batch, items);
+                } finally {
+                    reporter.close();
+                }
+                int acls = 0;
+                if (format == TargetFormat.PlainTree && !cdf.isDryrun()) {
+                    Map<String, Path> byTransferPath = new HashMap<>();
+                    targets.forEach((item, target) -> byTransferPath.put(item.transferPath, target));
+                    try {
+                        MetadataSidecar.Content sidecar = MetadataSidecar.read(new File(holder, DirNaming.buildAtomicMetadataFileName(batch)));
+                        if (sidecar != null && !sidecar.kept.acls) {
+                            acls = AclRestorer.apply(sidecar.acls(), byTransferPath);
+                        }
+                        else {
+                            acls = AclRestorer.restore(new File(holder, DirNaming.buildAtomicDumpDirName(batch)), byTransferPath);
+                        }
+                    } catch (IOException ex) {
+                        logger.warn("Could not restore the ACLs of batch '{}'", batch, ex);
+                    }
+                }
+                if (restorer.getOwnershipFailures() > 0) {
+                    logger.warn("The ownership of {} files of batch '{}' could not be restored (only root can do that)", restorer.getOwnershipFailures(), batch);
+                }
+                if (restorer.getXattrFailures() > 0) {
+                    logger.warn("The extended attributes of {} files of batch '{}' could not be restored", restorer.getXattrFailures(), batch);
+                }
+                events.publish(Event.of(Event.Type.BatchEnded, batch).with("files", restorer.getFiles()).with("directories", restorer.getDirectories())
+                        .with("bytes", restorer.getBytes()).with("acls", acls).with("failures", restorer.getFailures())
+                        .with("wallclock", DurationPrinter.formatDuration(Duration.between(start, Instant.now()))).build());
+                restored += restorer.getFiles() + restorer.getDirectories();
+                failed += restorer.getFailures();
+            }
+            events.publish(Event.of(Event.Type.RunEnded, null).with("restored", restored).with("failures", failed).build());
+        }
+        if (failed == 0) {
+            return ProcessingResult.ExitValue.RESTORE_SUCCEEDED;
+        }
+        else if (restored > 0) {
+            return ProcessingResult.ExitValue.RESTORE_PARTIALLY_SUCCEEDED;
+        }
+        else {
+            return ProcessingResult.ExitValue.RESTORE_FAILED;
+        }
+    }
+
     // ---
     // Do "command line postprocessing", verifying additional conditions,
     // and then invoke the biz logic
     // ---
 
-    private static @NotNull ProcessingResult.ExitValue doArgPostprocessingAndBizProcessing(@NotNull CmdLineDef cld, @NotNull SkipBizLogic skip, @NotNull PrintWriter stderr) {
+    private static @NotNull ProcessingResult.ExitValue doArgPostprocessingAndBizProcessing(@NotNull CmdLineDef cld, @NotNull SkipBizLogic skip, @NotNull PrintWriter stderr,
+                                                                                          @NotNull SortedMap<Batch, BatchResult> batchResults) {
         Logger logger = LoggerFactory.getLogger(CLASS + ".doArgPostprocessingAndBizProcessing");
         ProcessingResult.ExitValue res = cld.argPostprocessing(stderr);
         if (ProcessingResult.ExitValue.ARG_POSTPROCESSING_OK.equals(res)) {
             if (SkipBizLogic.False == skip) {
                 try {
-                    res = doBizProcessing(cld);
+                    if (cld.isRestore()) {
+                        res = doRestoreProcessing(cld);
+                    }
+                    else if (cld.isDiff()) {
+                        res = doDiffProcessing(cld);
+                    }
+                    else if (cld.isDedup()) {
+                        res = doDedupProcessing(cld);
+                    }
+                    else if (cld.isScrub()) {
+                        res = doScrubProcessing(cld);
+                    }
+                    else if (cld.isRepair()) {
+                        res = doRepairProcessing(cld);
+                    }
+                    else if (cld.isExport()) {
+                        res = doExportProcessing(cld);
+                    }
+                    else if (cld.isAnalyse()) {
+                        res = doAnalyseProcessing(cld);
+                    }
+                    else {
+                        res = doBizProcessing(cld, batchResults);
+                    }
                 }
                 catch (Exception ex) {
                     logger.error("Business logic threw exception", ex);
@@ -191,6 +1657,7 @@ public abstract class Mainer {
         PrintWriter stderr = (stderrReplacement == null ? cmdLine.getErr() : stderrReplacement);
         assert stderr != null;
         ProcessingResult.ExitValue exitValue = null;
+        SortedMap<Batch, BatchResult> batchResults = new TreeMap<>();
         try {
             // parseArgs() deposits the results of parse into the at-construction-time-passed "cld"
             // parseArgs() returns a "CommandLine.ParseResult" but we don't need that as
@@ -206,7 +1673,7 @@ public abstract class Mainer {
                 exitValue = ProcessingResult.ExitValue.VERSION_REQUESTED;
             } else {
                 // ---->
-                exitValue = doArgPostprocessingAndBizProcessing(cld, skip, stderr);
+                exitValue = doArgPostprocessingAndBizProcessing(cld, skip, stderr, batchResults);
                 // <----
             }
         } catch (CommandLine.ParameterException ex) {
@@ -220,7 +1687,7 @@ public abstract class Mainer {
             exitValue = ProcessingResult.ExitValue.EXCEPTION_THROWN_BY_PICOCLI;
         }
         assert exitValue != null;
-        return new ProcessingResult(cld,exitValue);
+        return new ProcessingResult(cld,exitValue,batchResults);
     }
 
     // ---
@@ -230,9 +1697,9 @@ public abstract class Mainer {
     public static void main(String[] args) {
         Logger logger = LoggerFactory.getLogger(CLASS + ".main");
         ProcessingResult pr = doCmdLineAndBizProcessing(args, SkipBizLogic.False);
-        logger.info("At the end of processing. Obtained the exit value: " + pr.exitValue);
+        logger.info("At the end of processing. Obtained the exit value: {}", pr.exitValue);
         if (pr.exitValue.exitValue < 0) {
-            logger.error("The exit value " + pr.exitValue + " is not expected to be seen here");
+            logger.error("The exit value {} is not expected to be seen here", pr.exitValue);
             System.exit(1);
         }
         else {
@@ -29,8 +29,11 @@ import java.util.*;
 
 public enum Batch {
 
+    // Its data is read once per backup and should not push the working set out of the page cache
+
     LARGE_BUT_STABLE(
-            new String[]{"/home/attic/nsfw/","/home/attic/audiofiles/","/home/backups/","/home/osimages"}
+            new String[]{"/home/attic/nsfw/","/home/attic/audiofiles/","/home/backups/","/home/osimages"},
+            CacheUse.Bulk
     ),
 
     FAST_CHANGERS(
@@ -55,6 +58,14 @@ public enum Batch {
             new FilterRuleSeq("-/home/*", "-/attic/*", "-/var/vaults/*", "-/run/*", "-/tmp/*", "-/dev/*", "-/sys/*", "-/proc/*", "-/root/*")
     );
 
+    // ---
+    // How the batch's data relates to the page cache. The data of a "Bulk" batch is
+    // not expected to be reused, so it is kept out of the page cache in "--cache-neutral"
+    // mode (see PageCacheDropper).
+    // ---
+
+    public enum CacheUse { Normal, Bulk }
+
     // ---
     // Constructor
     // ---
@@ -63,7 +74,15 @@ public enum Batch {
         this(sourcesIn, new FilterRuleSeq(){});
     }
 
+    Batch(@NotNull String[] sourcesIn, @NotNull CacheUse cacheUse) {
+        this(sourcesIn, new FilterRuleSeq(){}, cacheUse);
+    }
+
     Batch(@NotNull String[] sourcesIn, @NotNull FilterRuleSeq seq) {
+        this(sourcesIn, seq, CacheUse.Normal);
+    }
+
+    Batch(@NotNull String[] sourcesIn, @NotNull FilterRuleSeq seq, @NotNull CacheUse cacheUse) {
         SortedSet<File> tmpSources = new TreeSet<>();
         for (String src : sourcesIn) {
             tmpSources.add(new File(src));
@@ -73,6 +92,7 @@ public enum Batch {
         }
         this.sources = Collections.unmodifiableSortedSet(tmpSources);
         this.seq = seq;
+        this.cacheUse = cacheUse;
     }
 
     // ---
@@ -85,6 +105,31 @@ public enum Batch {
     @NotNull
     public final FilterRuleSeq seq;
 
+    @NotNull
+    public final CacheUse cacheUse;
+
+    // ---
+    // The sources moved under "sourceRoot" (e.g. "/home/aloy/" becomes "/tmp/tree/home/aloy/"), so that a
+    // batch can be run on a copy of the tree made elsewhere, as the benchmarks do. The relative layout and
+    // thus the transfer paths and filter rules stay the same. A null "sourceRoot" yields the sources as they are.
+    // This makes no sense for a batch whose source is "/", which is its own transfer root.
+    // ---
+
+    public @NotNull SortedSet<File> sourcesUnder(File sourceRoot) {
+        if (sourceRoot == null) {
+            return sources;
+        }
+        SortedSet<File> res = new TreeSet<>();
+        for (File src : sources) {
+            res.add(new File(sourceRoot, src.getPath()));
+        }
+        return Collections.unmodifiableSortedSet(res);
+    }
+
+    public boolean isRootedAtSlash() {
+        return sources.stream().anyMatch(src -> src.toPath().getParent() == null);
+    }
+
     // ---
     // A replacement for valueOf() which works leniently.
     // The "batch" may be a "super-batch", in that case the returned
@@ -0,0 +1,12 @@
+package backup.config;
+
+// ---
+// How a batch is laid out in the TargetDir (see DirNaming)
+//
+// - PlainTree : rsync copies the files into "copy_of_${BATCH}"
+// - Archive   : the files are packed into append-only segments shared by all the
+//               TargetDirs of a DestDir, with an index per TargetDir (see ArchiveStore)
+// - Encrypted : the files are encrypted into "encrypted_of_${BATCH}" (see EncryptedStore)
+// ---
+
+public enum TargetFormat {PlainTree, Archive, Encrypted}
@@ -0,0 +1,19 @@
+package backup.events;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// ---
+// The human-readable side: events go to the (asynchronous) logback console appender
+// ---
+
+public class ConsoleSink implements EventSink {
+
+    private final static Logger logger = LoggerFactory.getLogger(Event.class.getName());
+
+    @Override
+    public void accept(@NotNull Event event) {
+        logger.info("{}", event);
+    }
+}
@@ -0,0 +1,138 @@
+package backup.events;
+
+import backup.config.Batch;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// ---
+// Something that happened during a run, with its data as named fields (numbers, strings, booleans).
+// Events are immutable so that they can be handed to the sinks on another thread.
+// ---
+
+public class Event {
+
+    public enum Type {
+        RunStarted,
+        BatchStarted,
+        BatchProgress,
+        BatchEnded,
+        Metric,
+        SafeToUnplug,
+        RunEnded
+    }
+
+    @NotNull
+    public final Instant when;
+
+    @NotNull
+    public final Type type;
+
+    // null for events that do not concern a single batch
+
+    public final Batch batch;
+
+    @NotNull
+    public final Map<String, Object> fields;
+
+    private Event(@NotNull Type type, Batch batch, @NotNull Map<String, Object> fields) {
+        this.when = Instant.now();
+        this.type = type;
+        this.batch = batch;
+        this.fields = Collections.unmodifiableMap(fields);
+    }
+
+    // ---
+    // Start building an event; add fields with with()
+    // ---
+
+    public static @NotNull Builder of(@NotNull Type type, Batch batch) {
+        return new Builder(type, batch);
+    }
+
+    public static class Builder {
+
+        private final Type type;
+        private final Batch batch;
+        private final Map<String, Object> fields = new LinkedHashMap<>();
+
+        private Builder(Type type, Batch batch) {
+            this.type = type;
+            this.batch = batch;
+        }
+
+        public @NotNull Builder with(@NotNull String name, Object value) {
+            fields.put(name, value);
+            return this;
+        }
+
+        public @NotNull Event build() {
+            return new Event(type, batch, fields);
+        }
+    }
+
+    // ---
+    // A single line of JSON, without line terminator
+    // ---
+
+    public @NotNull String toJson() {
+        StringBuilder buf = new StringBuilder("{\"when\":\"").append(when).append("\",\"type\":\"").append(type).append('"');
+        if (batch != null) {
+            buf.append(",\"batch\":\"").append(batch).append('"');
+        }
+        for (Map.Entry<String, Object> e : fields.entrySet()) {
+            buf.append(',');
+            appendJsonString(buf, e.getKey());
+            buf.append(':');
+            Object v = e.getValue();
+            if ((v instanceof Double d && !Double.isFinite(d)) || (v instanceof Float f && !Float.isFinite(f))) {
+                // JSON has no NaN or Infinity, e.g. for a rate over no time at all
+                buf.append("null");
+            } else if (v == null || v instanceof Number || v instanceof Boolean) {
+                buf.append(v);
+            } else {
+                appendJsonString(buf, v.toString());
+            }
+        }
+        return buf.append('}').toString();
+    }
+
+    private static void appendJsonString(@NotNull StringBuilder buf, @NotNull String str) {
+        buf.append('"');
+        for (char ch : str.toCharArray()) {
+            switch (ch) {
+                case '"' -> buf.append("\\\"");
+                case '\\' -> buf.append("\\\\");
+                case '\n' -> buf.append("\\n");
+                case '\r' -> buf.append("\\r");
+                case '\t' -> buf.append("\\t");
+                default -> {
+                    if (ch < 0x20) {
+                        buf.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        buf.append(ch);
+                    }
+                }
+            }
+        }
+        buf.append('"');
+    }
+
+    // ---
+    // For humans
+    // ---
+
+    public String toString() {
+        StringBuilder buf = new StringBuilder(type.toString());
+        if (batch != null) {
+            buf.append(" '").append(batch).append("'");
+        }
+        for (Map.Entry<String, Object> e : fields.entrySet()) {
+            buf.append(' ').append(e.getKey()).append('=').append(e.getValue());
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package backup.events;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// ---
+// Hands events from the threads doing the work to the sinks, through a bounded queue drained
+// by a single dispatcher thread. Publishing never blocks: if the queue is full (a sink is stuck
+// on a slow disk, say), the event is dropped and counted. Supervision threads (waiting for rsync,
+// copying files) must not be held up by logging.
+// ---
+
+public class EventBus implements Closeable {
+
+    private final static String CLASS = EventBus.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    public final static int DEFAULT_CAPACITY = 4096;
+
+    // how long close() waits for the queued events to be written
+
+    private final static long CLOSE_TIMEOUT_MS = 5000;
+
+    private final BlockingQueue<Event> queue;
+    private final List<EventSink> sinks = new CopyOnWriteArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread dispatcher;
+    private volatile boolean closing;
+
+    public EventBus(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.dispatcher = new Thread(this::dispatch, "event-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    public void addSink(@NotNull EventSink sink) {
+        sinks.add(sink);
+    }
+
+    public void publish(@NotNull Event event) {
+        if (closing || !queue.offer(event)) {
+            dropped.increment();
+        }
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void dispatch() {
+        List<Event> events = new ArrayList<>();
+        while (!closing || !queue.isEmpty()) {
+            try {
+                Event first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                events.add(first);
+            } catch (InterruptedException ex) {
+                // may have been woken up early!
+                continue;
+            }
+            queue.drainTo(events);
+            for (EventSink sink : sinks) {
+                try {
+                    for (Event event : events) {
+                        sink.accept(event);
+                    }
+                    sink.flush();
+                } catch (IOException | RuntimeException ex) {
+                    logger.warn("Event sink {} failed, it is removed", sink, ex);
+                    sinks.remove(sink);
+                }
+            }
+            events.clear();
+        }
+    }
+
+    // ---
+    // Writes out what is queued (waiting a bounded time) and closes the sinks
+    // ---
+
+    @Override
+    public void close() {
+        closing = true;
+        try {
+            dispatcher.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (dispatcher.isAlive()) {
+            logger.warn("Event dispatcher did not finish in time, {} events not written", queue.size());
+        }
+        for (EventSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException ex) {
+                logger.warn("Could not close event sink {}", sink, ex);
+            }
+        }
+        if (getDroppedCount() > 0) {
+            logger.warn("{} events have been dropped because the event queue was full", getDroppedCount());
+        }
+    }
+}
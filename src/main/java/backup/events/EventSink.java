@@ -0,0 +1,22 @@
+package backup.events;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+// ---
+// Receives the events of an EventBus, always on the bus's dispatcher thread
+// ---
+
+public interface EventSink {
+
+    void accept(@NotNull Event event) throws IOException;
+
+    // Called when the bus has no more events queued for the moment
+
+    default void flush() throws IOException {
+    }
+
+    default void close() throws IOException {
+    }
+}
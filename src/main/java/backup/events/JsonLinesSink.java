@@ -0,0 +1,36 @@
+package backup.events;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+// ---
+// The machine-readable side: one JSON object per line, see Event.toJson()
+// ---
+
+public class JsonLinesSink implements EventSink {
+
+    @NotNull
+    private final Writer out;
+
+    public JsonLinesSink(@NotNull File file) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void accept(@NotNull Event event) throws IOException {
+        out.write(event.toJson());
+        out.write('\n');
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,42 @@
+package backup.events;
+
+import backup.config.Batch;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// ---
+// Publishes a BatchProgress event at a fixed interval while a batch runs, with the fields
+// obtained from "progress" (which is called on the reporter's own thread, so must be thread-safe)
+// ---
+
+public class ProgressReporter implements Closeable {
+
+    public final static long DEFAULT_INTERVAL_SECS = 30;
+
+    private final ScheduledExecutorService timer;
+
+    public ProgressReporter(@NotNull EventBus events, @NotNull Batch batch, long intervalSecs, @NotNull Supplier<Map<String, Object>> progress) {
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "progress-" + batch.toString().toLowerCase());
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.nanoTime();
+        timer.scheduleAtFixedRate(() -> {
+            Event.Builder b = Event.of(Event.Type.BatchProgress, batch).with("elapsedMs", (System.nanoTime() - start) / 1_000_000);
+            progress.get().forEach(b::with);
+            events.publish(b.build());
+        }, intervalSecs, intervalSecs, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,116 @@
+package backup.helpers;
+
+import backup.config.Batch;
+import backup.scan.PreScanResult;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.time.Duration;
+
+// ---
+// What happened to a batch on one destination. It is filled in step by step as the
+// batch is processed, and the results of the first destination are handed out in
+// the ProcessingResult.
+// ---
+
+public class BatchResult {
+
+    @NotNull
+    private final Batch batch;
+
+    @NotNull
+    private final File targetDir;
+
+    private ProcessingResult.ExitValue exitValue;
+    private RsyncStats rsyncStats;
+    private Duration wallclock;
+    private PreScanResult preScan;
+    private MemInfo memInfoBefore;
+    private MemInfo memInfoAfter;
+    private Duration flushDuration;
+    private long peakRssKiB = -1;
+
+    public BatchResult(@NotNull Batch batch, @NotNull File targetDir) {
+        this.batch = batch;
+        this.targetDir = targetDir;
+    }
+
+    public @NotNull Batch getBatch() {
+        return batch;
+    }
+
+    public @NotNull File getTargetDir() {
+        return targetDir;
+    }
+
+    public ProcessingResult.ExitValue getExitValue() {
+        return exitValue;
+    }
+
+    public void setExitValue(@NotNull ProcessingResult.ExitValue exitValue) {
+        this.exitValue = exitValue;
+    }
+
+    // null if rsync did not print statistics (it failed early, for example)
+
+    public RsyncStats getRsyncStats() {
+        return rsyncStats;
+    }
+
+    public void setRsyncStats(RsyncStats rsyncStats) {
+        this.rsyncStats = rsyncStats;
+    }
+
+    public Duration getWallclock() {
+        return wallclock;
+    }
+
+    public void setWallclock(@NotNull Duration wallclock) {
+        this.wallclock = wallclock;
+    }
+
+    // null if there was no pre-scan
+
+    public PreScanResult getPreScan() {
+        return preScan;
+    }
+
+    public void setPreScan(PreScanResult preScan) {
+        this.preScan = preScan;
+    }
+
+    // The memory figures before and after rsync ran; null if not available
+
+    public MemInfo getMemInfoBefore() {
+        return memInfoBefore;
+    }
+
+    public MemInfo getMemInfoAfter() {
+        return memInfoAfter;
+    }
+
+    public void setMemInfo(MemInfo before, MemInfo after) {
+        this.memInfoBefore = before;
+        this.memInfoAfter = after;
+    }
+
+    // How long flushing the target's file system took; null if it was not flushed
+
+    public Duration getFlushDuration() {
+        return flushDuration;
+    }
+
+    public void setFlushDuration(Duration flushDuration) {
+        this.flushDuration = flushDuration;
+    }
+
+    // The largest resident set size of the rsync processes, in KiB; -1 if unknown
+
+    public long getPeakRssKiB() {
+        return peakRssKiB;
+    }
+
+    public void setPeakRssKiB(long peakRssKiB) {
+        this.peakRssKiB = peakRssKiB;
+    }
+}
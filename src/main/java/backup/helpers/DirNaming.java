@@ -3,10 +3,15 @@ package backup.helpers;
 import backup.config.Batch;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 // ---
 // Note that files or directories may be:
@@ -22,12 +27,50 @@ import java.time.format.DateTimeFormatter;
 // DestDir (as given on the command line)
 //    |
 //    |
+//    +---- MetaDir (called .backup_to_usb, things that concern the disk rather than a backup)
+//    |         |
+//    |         +---- device_profile.tsv  (history of the destination probes)
+//    |         |
+//    |         +---- scrub_cursor.tsv  (where the last "--scrub" session stopped)
+//    |         |
+//    |         +---- scrub_report.tsv  (the corrupted files found by "--scrub")
+//    |
+//    +---- ArchiveDir (called like archive_of_${BATCH}, only for batches in archive format, shared by all TargetDirs)
+//    |         |
+//    |         +---- segment_000001.seg  (append-only, the contents of many files one after the other)
+//    |         |
+//    |         +---- segment_000002.seg
+//    |
 //    +---- TargetDir (constructed from the current datetime, name liked "backup_${DATETIME}"
 //              |
 //              +---- logfile_${BATCH}.err
 //              |
 //              +---- logfile_${BATCH}.out
 //              |
+//              +---- events.jsonl (what happened during the run, one JSON object per line)
+//              |
+//              +---- ${BATCH}.rsyncbatch (only with several DestDirs, deleted once replayed)
+//              |
+//              +---- index_of_${BATCH}.idx (only for batches in archive format: where each file is in the segments)
+//              |
+//              +---- encryption.keyinfo (only in encrypted mode: salt and check value, not the key)
+//              |
+//              +---- chunks_of_${BATCH} (only in chunked mode, the "--files-from" lists, deleted once run)
+//              |
+//              +---- retries_of_${BATCH} (the "--files-from" lists of the files retried after a partial success, deleted once run)
+//              |
+//              +---- merkle_of_${BATCH}.tree (hashes of the directories, to compare backups quickly)
+//              |
+//              +---- fingerprints_of_${BATCH}.tsv (only with "--fast-path": the directory fingerprints of a batch that fully succeeded)
+//              |
+//              +---- unchanged_${BATCH}.ref (only with "--fast-path": the batch did not change, the TargetDir named in it holds it)
+//              |
+//              +---- metadata_of_${BATCH}.tsv.gz (only if the DestDir cannot keep ownership, modes, ACLs or xattrs: those of the sources)
+//              |
+//              +---- ParityDir (called like parity_of_${BATCH}, only with "--parity-percent")
+//              |        |
+//              |        +---- copy_of_${BATCH}/original1.par  (Reed-Solomon recovery data of a large file)
+//              |
 //              +---- DumpDir (called like copy_of_${BATCH})
 //              |        |
 //              |        +---- original1
@@ -39,6 +82,26 @@ import java.time.format.DateTimeFormatter;
 //              +---- DumpDir (called like copy_of_${BATCH})
 //              |
 //              +---- DumpDir (called like copy_of_${BATCH})
+//              |
+//              +---- DeltaDir (called like delta_of_${BATCH}, only for files stored as block deltas)
+//                       |
+//                       +---- original1.delta   (the changed blocks, referencing the previous TargetDir's .delta)
+//                       |
+//                       +---- original1.blkmap  (the hashes of all blocks)
+//
+// In encrypted mode, there are no DumpDirs, but instead:
+//
+//    TargetDir
+//              |
+//              +---- EncryptedDir (called like encrypted_of_${BATCH})
+//                       |
+//                       +---- manifest  (encrypted list of paths and metadata)
+//                       |
+//                       +---- objects
+//                                |
+//                                +---- 3f
+//                                       |
+//                                       +---- 9a0c...  (encrypted file, named after its path's HMAC)
 
 
 public abstract class DirNaming {
@@ -47,12 +110,32 @@ public abstract class DirNaming {
 
     public static String buildAtomicTargetDirRawName(@NotNull Instant when) {
         ZonedDateTime zonedWhen = ZonedDateTime.ofInstant(when, ZoneId.of("UTC"));
+        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("uuuu_MM_dd_'UTC'_HH_mm");
+        return buildTargetDirRawNamePrefix() + dtf.format(zonedWhen) + ")";
+    }
+
+    private static String buildTargetDirRawNamePrefix() {
         String hostname = GetHostname.getHostname();
         if (hostname == null) {
             hostname = "MYSTERY";
         }
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("uuuu_MM_dd_'UTC'_HH_mm");
-        return "backup_(" + hostname + ")_(" + dtf.format(zonedWhen) + ")";
+        return "backup_(" + hostname + ")_(";
+    }
+
+    // ---
+    // List the target directories of this host found in a DestDir, oldest first
+    // (the names sort chronologically)
+    // ---
+
+    public static List<File> listTargetDirsOfThisHost(@NotNull File destDir) {
+        String prefix = buildTargetDirRawNamePrefix();
+        File[] dirs = destDir.listFiles(f -> f.isDirectory() && f.getName().startsWith(prefix));
+        List<File> res = new ArrayList<>();
+        if (dirs != null) {
+            res.addAll(Arrays.asList(dirs));
+        }
+        res.sort(Comparator.comparing(File::getName));
+        return res;
     }
 
     public static String buildAtomicDumpDirName(@NotNull Batch batch) {
@@ -67,4 +150,95 @@ public abstract class DirNaming {
         return batch.toString().toLowerCase() + ".out";
     }
 
+    public static String buildAtomicEventsFileName() {
+        return "events.jsonl";
+    }
+
+    public static String buildAtomicDeltaDirName(@NotNull Batch batch) {
+        return "delta_of_" + batch.toString().toLowerCase();
+    }
+
+    public static String buildAtomicEncryptedDirName(@NotNull Batch batch) {
+        return "encrypted_of_" + batch.toString().toLowerCase();
+    }
+
+    public static String buildAtomicArchiveDirName(@NotNull Batch batch) {
+        return "archive_of_" + batch.toString().toLowerCase();
+    }
+
+    public static String buildAtomicArchiveIndexFileName(@NotNull Batch batch) {
+        return "index_of_" + batch.toString().toLowerCase() + ".idx";
+    }
+
+    public static String buildAtomicChunkDirName(@NotNull Batch batch) {
+        return "chunks_of_" + batch.toString().toLowerCase();
+    }
+
+    public static String buildAtomicChunkFileName(int chunk) {
+        return String.format("chunk_%06d.list", chunk);
+    }
+
+    public static String buildAtomicRetryDirName(@NotNull Batch batch) {
+        return "retries_of_" + batch.toString().toLowerCase();
+    }
+
+    public static String buildAtomicParityDirName(@NotNull Batch batch) {
+        return "parity_of_" + batch.toString().toLowerCase();
+    }
+
+    public static String buildAtomicMerkleFileName(@NotNull Batch batch) {
+        return "merkle_of_" + batch.toString().toLowerCase() + ".tree";
+    }
+
+    public static String buildAtomicMetadataFileName(@NotNull Batch batch) {
+        return "metadata_of_" + batch.toString().toLowerCase() + ".tsv.gz";
+    }
+
+    public static String buildAtomicFingerprintFileName(@NotNull Batch batch) {
+        return "fingerprints_of_" + batch.toString().toLowerCase() + ".tsv";
+    }
+
+    public static String buildAtomicUnchangedFileName(@NotNull Batch batch) {
+        return "unchanged_" + batch.toString().toLowerCase() + ".ref";
+    }
+
+    public static String buildAtomicSegmentFileName(int segment) {
+        return String.format("segment_%06d.seg", segment);
+    }
+
+    // ---
+    // The number of a segment file, 0 if the name is not one of a segment file
+    // ---
+
+    public static int parseSegmentNumber(@NotNull String atomicName) {
+        if (!atomicName.matches("segment_[0-9]{6,9}\\.seg")) {
+            return 0;
+        }
+        return Integer.parseInt(atomicName.substring("segment_".length(), atomicName.length() - ".seg".length()));
+    }
+
+    public static String buildAtomicMetaDirName() {
+        return ".backup_to_usb";
+    }
+
+    public static String buildAtomicDeviceProfileFileName() {
+        return "device_profile.tsv";
+    }
+
+    public static String buildAtomicScrubCursorFileName() {
+        return "scrub_cursor.tsv";
+    }
+
+    public static String buildAtomicScrubReportFileName() {
+        return "scrub_report.tsv";
+    }
+
+    public static String buildAtomicKeyInfoFileName() {
+        return "encryption.keyinfo";
+    }
+
+    public static String buildAtomicRsyncBatchFileName(@NotNull Batch batch) {
+        return batch.toString().toLowerCase() + ".rsyncbatch";
+    }
+
 }
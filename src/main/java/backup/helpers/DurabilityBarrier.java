@@ -0,0 +1,47 @@
+package backup.helpers;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+
+// ---
+// When rsync (or one of the Java-side stores) is done, most of the data may still be in dirty
+// pages in the page cache. Flushing every file on its own would be very slow, so instead the
+// whole file system holding a directory is flushed at once, using syncfs(2).
+//
+// The JDK only offers fsync(2) of single files (FileChannel.force()), so this calls
+// "sync --file-system" of GNU coreutils, which opens the directory and calls syncfs(2) on it.
+// ---
+
+public abstract class DurabilityBarrier {
+
+    public final static String SYNC_EXE_NAME = "/usr/bin/sync";
+
+    // ---
+    // Returns how long the flush took. Throws if the flush failed, in which case data may have been
+    // lost (syncfs(2) reports write errors that happened since the file system was last synced)
+    // ---
+
+    public static @NotNull Duration syncFileSystemOf(@NotNull File dir) throws IOException {
+        Instant start = Instant.now();
+        ProcessBuilder pb = new ProcessBuilder(SYNC_EXE_NAME, "--file-system", dir.getPath());
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        while (p.isAlive()) {
+            try {
+                p.waitFor();
+            } catch (InterruptedException ex) {
+                // may have been woken up early!
+            }
+        }
+        if (p.exitValue() != 0) {
+            throw new IOException("Flushing the file system of '" + dir + "' failed with exit value " + p.exitValue() + ": " + output);
+        }
+        return Duration.between(start, Instant.now());
+    }
+}
@@ -2,6 +2,8 @@ package backup.helpers;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.util.regex.Pattern;
+
 // ---
 // A class that indicates whether a path should be included or excluded.
 // The path is a string as it may contain wildcards. Consult the manual for
@@ -15,6 +17,16 @@ public class FilterRule {
     @NotNull
     private final String path;
 
+    // ---
+    // The rsync pattern translated into a Java regex, for use by the Java-side
+    // tree walkers which have to select the same files as rsync would.
+    // It is created lazily as rsync itself does not need it.
+    // ---
+
+    private Pattern regex;
+    private boolean dirOnly;
+    private boolean matchBasenameOnly;
+
     public FilterRule(@NotNull String path, boolean include) {
         this.path = path;
         this.include = include;
@@ -34,4 +46,119 @@ public class FilterRule {
         buf.append(path);
         return buf.toString();
     }
+
+    // ---
+    // Does this rule match the "transfer path"?
+    //
+    // The "transfer path" is the path of a file relative to the "root of the transfer",
+    // written with a leading "/". For the source "/home/attic", the root of the transfer
+    // is "/home" and the file "/home/attic/nsfw/x" has the transfer path "/attic/nsfw/x".
+    //
+    // This implements the commonly used subset of rsync's rules:
+    //
+    // - a trailing "/" means "directories only"
+    // - a leading "/" anchors the pattern at the root of the transfer
+    // - a pattern without any "/" is matched against the last path component only
+    // - an unanchored pattern containing "/" is matched against the end of the path
+    // - "*" matches anything but "/", "**" matches anything, "?" matches one non-"/"
+    //   character, "[...]" is a character class
+    // - a trailing "/***" matches the directory itself and everything below it
+    // ---
+
+    public boolean matches(@NotNull String transferPath, boolean isDir) {
+        compileIfNeeded();
+        if (dirOnly && !isDir) {
+            return false;
+        }
+        String subject = transferPath;
+        if (matchBasenameOnly) {
+            int slash = transferPath.lastIndexOf('/');
+            subject = transferPath.substring(slash + 1);
+        }
+        return regex.matcher(subject).matches();
+    }
+
+    private synchronized void compileIfNeeded() {
+        if (regex != null) {
+            return;
+        }
+        String pat = path;
+        boolean tripleStar = false;
+        if (pat.endsWith("/***")) {
+            tripleStar = true;
+            pat = pat.substring(0, pat.length() - 4);
+        }
+        boolean dirOnlyTmp = pat.endsWith("/");
+        if (dirOnlyTmp) {
+            pat = pat.substring(0, pat.length() - 1);
+        }
+        boolean anchored = pat.startsWith("/");
+        if (anchored) {
+            pat = pat.substring(1);
+        }
+        StringBuilder buf = new StringBuilder();
+        if (anchored) {
+            buf.append("/");
+        } else if (pat.contains("/") || pat.contains("**")) {
+            buf.append("(?:.*/)?");
+        }
+        buf.append(globToRegex(pat));
+        if (tripleStar) {
+            buf.append("(?:/.*)?");
+        }
+        this.matchBasenameOnly = !anchored && !pat.contains("/") && !pat.contains("**") && !tripleStar;
+        this.dirOnly = dirOnlyTmp && !tripleStar;
+        this.regex = Pattern.compile(matchBasenameOnly ? buf.toString() : (anchored ? "" : "/?") + buf);
+    }
+
+    // ---
+    // An rsync pattern that matches exactly the given path, i.e. with the wildcard characters escaped
+    // ---
+
+    public static @NotNull String quote(@NotNull String path) {
+        return path.replaceAll("([*?\\[\\]\\\\])", "\\\\$1");
+    }
+
+    private static String globToRegex(@NotNull String glob) {
+        StringBuilder buf = new StringBuilder();
+        int i = 0;
+        while (i < glob.length()) {
+            char ch = glob.charAt(i);
+            switch (ch) {
+                case '*' -> {
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        buf.append(".*");
+                        i++;
+                    } else {
+                        buf.append("[^/]*");
+                    }
+                }
+                case '?' -> buf.append("[^/]");
+                case '[' -> {
+                    int close = glob.indexOf(']', i + 1);
+                    if (close < 0) {
+                        buf.append("\\[");
+                    } else {
+                        String inner = glob.substring(i + 1, close);
+                        if (inner.startsWith("!")) {
+                            inner = "^" + inner.substring(1);
+                        }
+                        buf.append("[").append(inner.replace("\\", "\\\\")).append("]");
+                        i = close;
+                    }
+                }
+                case '\\' -> {
+                    if (i + 1 < glob.length()) {
+                        buf.append(Pattern.quote(String.valueOf(glob.charAt(i + 1))));
+                        i++;
+                    } else {
+                        buf.append("\\\\");
+                    }
+                }
+                default -> buf.append(Pattern.quote(String.valueOf(ch)));
+            }
+            i++;
+        }
+        return buf.toString();
+    }
 }
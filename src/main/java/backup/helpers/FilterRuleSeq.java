@@ -49,10 +49,49 @@ public class FilterRuleSeq {
                 tmpSeq.add(new FilterRule(cleanPath,false));
             }
             else {
-                logger.error("Dropping the argument '" + path + "' because it doesn't start with '+' or '-'");
+                logger.error("Dropping the argument '{}' because it doesn't start with '+' or '-'", path);
             }
         }
         seq = Collections.unmodifiableList(tmpSeq);
     }
 
+    private FilterRuleSeq(@NotNull List<FilterRule> rules) {
+        seq = Collections.unmodifiableList(rules);
+    }
+
+    // ---
+    // A new sequence with the "paths" (as for the constructor) added at the end, so that
+    // they only act on what none of the existing rules matches
+    // ---
+
+    public @NotNull FilterRuleSeq append(String... paths) {
+        List<FilterRule> tmpSeq = new LinkedList<>(seq);
+        tmpSeq.addAll(new FilterRuleSeq(paths).seq);
+        return new FilterRuleSeq(tmpSeq);
+    }
+
+    // ---
+    // A new sequence with the "paths" put in front, so that they win over all existing rules
+    // ---
+
+    public @NotNull FilterRuleSeq prepend(String... paths) {
+        List<FilterRule> tmpSeq = new LinkedList<>(new FilterRuleSeq(paths).seq);
+        tmpSeq.addAll(seq);
+        return new FilterRuleSeq(tmpSeq);
+    }
+
+    // ---
+    // Apply the rules in sequence to the "transfer path" (see FilterRule.matches()),
+    // the first matching rule is acted on. If no rule matches, the path is not excluded.
+    // ---
+
+    public boolean isExcluded(@NotNull String transferPath, boolean isDir) {
+        for (FilterRule fr : seq) {
+            if (fr.matches(transferPath, isDir)) {
+                return !fr.isInclude();
+            }
+        }
+        return false;
+    }
+
 }
@@ -44,4 +44,36 @@ public abstract class LoggingHelper {
         }
     }
 
+    // ---
+    // A memory size given in KiB (as in "/proc"), -1 meaning unknown
+    // ---
+
+    public static String stringifyKiB(long kiB) {
+        if (kiB < 0) {
+            return "[unknown]";
+        }
+        return String.format("%,.1f MiB", kiB / 1024.0);
+    }
+
+    // ---
+    // What a "--plan" run found out, one line per batch
+    // ---
+
+    public static String stringifyPlan(@NotNull SortedMap<Batch, BatchResult> batchResults) {
+        StringBuilder buf = new StringBuilder("Plan:");
+        for (Batch batch : batchResults.keySet()) {
+            RsyncStats stats = batchResults.get(batch).getRsyncStats();
+            buf.append("\n    ");
+            buf.append(String.format("%-18s", batch));
+            if (stats == null) {
+                buf.append(" no statistics, rsync ended with " + batchResults.get(batch).getExitValue());
+            }
+            else {
+                buf.append(String.format(" %,d of %,d files, %,d of %,d bytes to transfer",
+                        stats.regularFilesTransferred, stats.files, stats.totalTransferredFileSize, stats.totalFileSize));
+            }
+        }
+        return buf.toString();
+    }
+
 }
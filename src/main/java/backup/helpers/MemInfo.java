@@ -0,0 +1,76 @@
+package backup.helpers;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// ---
+// A reading of the memory figures of "/proc/meminfo" (Linux only), in bytes.
+// Used to see what a batch did to the page cache.
+// ---
+
+public class MemInfo {
+
+    private final static Path PROC_MEMINFO = Path.of("/proc/meminfo");
+
+    public final long memTotal;
+    public final long memAvailable;
+    public final long cached;       // the page cache
+    public final long activeFile;   // recently used file pages, a.k.a. the working set
+    public final long inactiveFile; // file pages that are candidates for eviction
+    public final long dirty;        // written but not yet on disk
+
+    private MemInfo(@NotNull Map<String, Long> values) {
+        this.memTotal = values.getOrDefault("MemTotal", -1L);
+        this.memAvailable = values.getOrDefault("MemAvailable", -1L);
+        this.cached = values.getOrDefault("Cached", -1L);
+        this.activeFile = values.getOrDefault("Active(file)", -1L);
+        this.inactiveFile = values.getOrDefault("Inactive(file)", -1L);
+        this.dirty = values.getOrDefault("Dirty", -1L);
+    }
+
+    // ---
+    // Returns null if "/proc/meminfo" cannot be read
+    // ---
+
+    public static MemInfo read() {
+        try {
+            List<String> lines = Files.readAllLines(PROC_MEMINFO);
+            Map<String, Long> values = new HashMap<>();
+            for (String line : lines) {
+                // like "Cached:           538992 kB"
+                String[] fields = line.split("[:\\s]+");
+                if (fields.length >= 2) {
+                    long value = Long.parseLong(fields[1]);
+                    values.put(fields[0], (fields.length >= 3 && "kB".equals(fields[2])) ? value * 1024 : value);
+                }
+            }
+            return new MemInfo(values);
+        } catch (IOException | NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    // ---
+    // How the page cache changed between "before" and "after", for logging
+    // ---
+
+    public static String stringifyChange(MemInfo before, MemInfo after) {
+        if (before == null || after == null) {
+            return "[No page cache information]";
+        }
+        return "cached " + mib(before.cached) + " -> " + mib(after.cached)
+                + ", active(file) " + mib(before.activeFile) + " -> " + mib(after.activeFile)
+                + ", inactive(file) " + mib(before.inactiveFile) + " -> " + mib(after.inactiveFile)
+                + ", dirty " + mib(before.dirty) + " -> " + mib(after.dirty);
+    }
+
+    private static String mib(long bytes) {
+        return (bytes / (1024 * 1024)) + " MiB";
+    }
+}
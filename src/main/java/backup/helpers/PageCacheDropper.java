@@ -0,0 +1,195 @@
+package backup.helpers;
+
+import backup.CmdLineDef;
+import backup.config.Batch;
+import backup.scan.BatchWalker;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+
+// ---
+// Keeps a "bulk" batch (see Batch.CacheUse) from flushing the page cache, so that the
+// working set of the machine survives the backup.
+//
+// There are two mechanisms:
+//
+// - If nocache(1) is installed, rsync runs under it. nocache intercepts the file operations
+//   of rsync (via LD_PRELOAD) and calls posix_fadvise(POSIX_FADV_DONTNEED) on the files that
+//   are closed, i.e. both source and destination files are dropped as the copy progresses.
+//
+// - Otherwise, rsync lists every transferred file on STDOUT (see OUT_FORMAT) and a thread
+//   tails the output file. As the format has "%b", rsync logs a file once its transfer is
+//   over rather than before it starts, so the destination file is complete when dropped. For every file listed, it drops the source file from the cache
+//   and flushes and drops the destination file, using GNU dd(1), which can do that with
+//   "iflag=nocache" / "oflag=nocache" and "count=0". This costs two processes per file,
+//   which is acceptable for bulk batches (few, large files).
+// ---
+
+public class PageCacheDropper implements Runnable {
+
+    private final static String CLASS = PageCacheDropper.class.getName();
+
+    public final static String NOCACHE_EXE_NAME = "/usr/bin/nocache";
+    public final static String DD_EXE_NAME = "/usr/bin/dd";
+
+    // ---
+    // The name of the file, a TAB, and the bytes transferred. rsync escapes a TAB in a name
+    // as "\#011", so the last TAB on the line separates the two.
+    // ---
+
+    public final static String OUT_FORMAT = "%n\t%b";
+
+    private final static long POLL_MILLIS = 500;
+    private final static long DD_TIMEOUT_SECS = 60;
+
+    public enum Mechanism { None, NocacheWrapper, DropBehind }
+
+    // ---
+    // What to do for "batch"
+    // ---
+
+    public static @NotNull Mechanism mechanismFor(@NotNull Batch batch, @NotNull CmdLineDef cdf) {
+        if (!cdf.isCacheNeutral() || batch.cacheUse != Batch.CacheUse.Bulk || cdf.isDryrun()) {
+            return Mechanism.None;
+        }
+        else if (new File(NOCACHE_EXE_NAME).canExecute()) {
+            return Mechanism.NocacheWrapper;
+        }
+        else {
+            return Mechanism.DropBehind;
+        }
+    }
+
+    @NotNull
+    private final Batch batch;
+
+    @NotNull
+    private final SortedSet<File> sources;
+
+    @NotNull
+    private final File outputFile;
+
+    @NotNull
+    private final File dumpDir;
+
+    private volatile boolean stopRequested;
+    private long droppedFiles;
+
+    public PageCacheDropper(@NotNull Batch batch, @NotNull SortedSet<File> sources, @NotNull File outputFile, @NotNull File dumpDir) {
+        this.batch = batch;
+        this.sources = sources;
+        this.outputFile = outputFile;
+        this.dumpDir = dumpDir;
+    }
+
+    // ---
+    // Make run() process what is left in the output file, then return
+    // ---
+
+    public void stop() {
+        stopRequested = true;
+    }
+
+    public long getDroppedFiles() {
+        return droppedFiles;
+    }
+
+    @Override
+    public void run() {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".run");
+        long position = 0;
+        StringBuilder partialLine = new StringBuilder();
+        try {
+            while (true) {
+                boolean lastRound = stopRequested;
+                try (RandomAccessFile raf = new RandomAccessFile(outputFile, "r")) {
+                    if (raf.length() > position) {
+                        byte[] buf = new byte[(int) Math.min(raf.length() - position, 1024 * 1024)];
+                        raf.seek(position);
+                        raf.readFully(buf);
+                        position += buf.length;
+                        partialLine.append(new String(buf, StandardCharsets.UTF_8));
+                        int eol;
+                        while ((eol = partialLine.indexOf("\n")) >= 0) {
+                            dropFile(partialLine.substring(0, eol));
+                            partialLine.delete(0, eol + 1);
+                        }
+                        continue; // there may be more
+                    }
+                }
+                if (lastRound) {
+                    break;
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch (IOException ex) {
+            logger.warn("Dropping pages of batch '{}' from the cache stopped: {}", batch, ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---
+    // "line" is written in OUT_FORMAT; the name in it is a path relative to the root of the
+    // transfer, like "attic/audiofiles/x.flac". Directories (ending in "/"), the statistics
+    // and anything else that does not name a regular file on both sides is skipped.
+    // ---
+
+    private void dropFile(@NotNull String line) {
+        int tab = line.lastIndexOf('\t');
+        if (tab < 0) {
+            return;
+        }
+        String name = line.substring(0, tab);
+        if (name.isEmpty() || name.endsWith("/")) {
+            return;
+        }
+        Path dest = dumpDir.toPath().resolve(name);
+        if (!Files.isRegularFile(dest, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        for (File src : sources) {
+            Path source = BatchWalker.transferRootOf(src.toPath()).resolve(name);
+            if (source.startsWith(src.toPath()) && Files.isRegularFile(source, LinkOption.NOFOLLOW_LINKS)) {
+                runDd(List.of(DD_EXE_NAME, "if=" + source, "iflag=nocache", "count=0", "status=none"));
+                break;
+            }
+        }
+        runDd(List.of(DD_EXE_NAME, "of=" + dest, "oflag=nocache", "conv=notrunc,fdatasync", "count=0", "status=none"));
+        droppedFiles++;
+    }
+
+    // ---
+    // A dd hanging on a stuck destination must not keep the dropper (and thus the batch) waiting
+    // ---
+
+    private static void runDd(@NotNull List<String> cmd) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".runDd");
+        Process p = null;
+        try {
+            p = new ProcessBuilder(cmd).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            if (!p.waitFor(DD_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+                logger.warn("Gave up on '{}' after {} s", String.join(" ", cmd), DD_TIMEOUT_SECS);
+            }
+        } catch (IOException ex) {
+            // dd missing or the like; nothing to do about it
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (p != null && p.isAlive()) {
+                p.destroyForcibly();
+            }
+        }
+    }
+}
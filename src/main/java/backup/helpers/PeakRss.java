@@ -0,0 +1,56 @@
+package backup.helpers;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// ---
+// Tracks the peak resident set size of a running process and its descendants (a local rsync
+// forks a receiver and a generator, which hold the file list, too), as read from "VmHWM" in
+// "/proc/<pid>/status" (Linux only). The kernel keeps the high-water mark per process, so sampling
+// now and then is enough, as long as it happens while the processes are alive.
+// ---
+
+public class PeakRss {
+
+    private long peakKiB = -1;
+
+    // ---
+    // Sample "process" and its descendants; the largest of their high-water marks is kept
+    // ---
+
+    public void sample(@NotNull ProcessHandle process) {
+        update(readVmHwmKiB(process.pid()));
+        process.descendants().forEach(ph -> update(readVmHwmKiB(ph.pid())));
+    }
+
+    private synchronized void update(long kiB) {
+        peakKiB = Math.max(peakKiB, kiB);
+    }
+
+    // -1 if never sampled successfully
+
+    public synchronized long getPeakKiB() {
+        return peakKiB;
+    }
+
+    // ---
+    // -1 if the process is gone or "/proc" is not there
+    // ---
+
+    public static long readVmHwmKiB(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                // like "VmHWM:     12345 kB"
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.split("\\s+")[1]);
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            // fall through
+        }
+        return -1;
+    }
+}
@@ -1,8 +1,12 @@
 package backup.helpers;
 
 import backup.CmdLineDef;
+import backup.config.Batch;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Collections;
+import java.util.SortedMap;
+
 // ---
 // This is the result of invoking command line process and business processing.
 // The idea is that we want to propose something for the process' "exit value"
@@ -37,7 +41,21 @@ public class ProcessingResult {
         ALL_RSYNC_SUCCEEDED(0, "All 'rsync' calls succeeded"),
         ALL_RSYNC_FAILED(1, "All 'rsync' calls failed"),
         SOME_RSYNC_FAILED(1, "Some, but not all, of the 'rsync' calls failed"),
-        STARTING_RSYNC_THREW_EXCEPTION(-1, "");
+        STARTING_RSYNC_THREW_EXCEPTION(-1, ""),
+        RESTORE_SUCCEEDED(0, "Everything selected has been restored"),
+        RESTORE_PARTIALLY_SUCCEEDED(1, "Some of the things selected could not be restored"),
+        RESTORE_FAILED(1, "Nothing could be restored"),
+        DIFF_SUCCEEDED(0, "The backups have been compared"),
+        DEDUP_SUCCEEDED(0, "The backup has been deduplicated"),
+        DEDUP_PARTIALLY_SUCCEEDED(1, "Some of the identical files of the backup could not be linked"),
+        SCRUB_SUCCEEDED(0, "No corrupted files have been found"),
+        SCRUB_FOUND_CORRUPTION(1, "Corrupted files have been found"),
+        REPAIR_SUCCEEDED(0, "All damaged files have been repaired, if any"),
+        REPAIR_FAILED(1, "Some damaged files could not be repaired"),
+        EXPORT_SUCCEEDED(0, "The backup has been exported"),
+        EXPORT_PARTIALLY_SUCCEEDED(1, "Some files of the backup could not be read, they are exported as zeros"),
+        ANALYSIS_FOUND_NO_OVERLAP(0, "No batch copies what another one copies"),
+        ANALYSIS_FOUND_OVERLAP(1, "Some paths are copied by more than one batch");
 
         public final int exitValue;
         public final String desc;
@@ -52,8 +70,14 @@ public class ProcessingResult {
     public final CmdLineDef cmdLineDef;
     public final ExitValue exitValue;
 
-    public ProcessingResult(@NotNull CmdLineDef cmdLineDef, @NotNull ExitValue exitValue) {
+    // The per-batch results on the first destination; empty if the business logic did not run
+
+    @NotNull
+    public final SortedMap<Batch, BatchResult> batchResults;
+
+    public ProcessingResult(@NotNull CmdLineDef cmdLineDef, @NotNull ExitValue exitValue, @NotNull SortedMap<Batch, BatchResult> batchResults) {
         this.cmdLineDef = cmdLineDef;
         this.exitValue = exitValue;
+        this.batchResults = Collections.unmodifiableSortedMap(batchResults);
     }
 }
@@ -24,10 +24,27 @@ public class RsyncCmd {
 
     public enum DryRun { Off, On }
 
+    // "hard links" is switched on per batch, depending on what the pre-scan found (see HardLinkCensus)
+
+    public enum HardLinks { Off, On }
+
+    // "sparse" is switched on per batch if the pre-scan found sparse files (see SparseFileCensus)
+
+    public enum Sparse { Off, On }
+
+    // what the file system of the destinations keeps besides contents and times (see MetadataSupport);
+    // rsync is not asked to preserve the rest, it would fail on every single file
+
+    public enum DestMetadata { Full, NoAcls, NoAclsOrXattrs, NoPosixMetadata }
+
     // this list accumulates the substrings of the command
 
     private final List<String> params = new LinkedList<>();
 
+    // whether rsync lists the transferred files on STDOUT (see listTransfers())
+
+    private boolean listingTransfers;
+
     // standard executable
 
     public static final String RSYNC_EXE_NAME = "/usr/bin/rsync";
@@ -36,7 +53,8 @@ public class RsyncCmd {
     // Constructor also takes the executable name
     // ----
 
-    public RsyncCmd(@NotNull String rsyncExeName, @NotNull Batch batch, @NotNull DryRun dryRun, @NotNull Verbosity verbosity) {
+    public RsyncCmd(@NotNull String rsyncExeName, @NotNull Batch batch, @NotNull DryRun dryRun, @NotNull Verbosity verbosity, @NotNull HardLinks hardLinks, @NotNull Sparse sparse,
+                    @NotNull DestMetadata destMetadata) {
         params.add(rsyncExeName);
         if (verbosity == Verbosity.Normal) {
             params.add("--verbose"); // verbosity can be very fine-tuned in rsync, this simply switches on logging of transferred files
@@ -44,11 +62,27 @@ public class RsyncCmd {
         if (dryRun == DryRun.On) {
             params.add("--dry-run"); // perform a trial run with no changes made
         }
+        params.add("--stats"); // print transfer statistics at the end, they are parsed into RsyncStats
         params.add("--archive"); // archive mode is -rlptgoD (no -A (--acls),-X (--xattrs),-U (--atimes),-N (--crtimes),-H (--hard-links))
-        // not sure about any of these (especially the "hard links", how do you even detect them; muts be for Windows?)
-        // params.add("--hard-links"); // preserve hard links
-        params.add("--acls"); // preserve ACLs (implies --perms)
-        params.add("--xattrs");  // preserve extended attributes
+        if (hardLinks == HardLinks.On) {
+            params.add("--hard-links"); // preserve hard links; costs rsync memory for every file with a link count > 1
+        }
+        if (sparse == Sparse.On) {
+            params.add("--sparse"); // turn sequences of nulls into holes instead of writing them out
+        }
+        if (destMetadata == DestMetadata.Full) {
+            params.add("--acls"); // preserve ACLs (implies --perms)
+        }
+        if (destMetadata == DestMetadata.Full || destMetadata == DestMetadata.NoAcls) {
+            params.add("--xattrs");  // preserve extended attributes
+        }
+        if (destMetadata == DestMetadata.NoPosixMetadata) {
+            // FAT and the like: what is lost goes to the metadata sidecar instead (see MetadataSidecar)
+            params.add("--no-perms");
+            params.add("--no-owner");
+            params.add("--no-group");
+            params.add("--modify-window=1"); // FAT keeps the mtime with a granularity of 2 seconds
+        }
         params.add("--backup"); // make backups (see --suffix & --backup-dir): preexisting destination files are renamed as each file is transferred or deleted
         // params.add("--one-file-system"); // it would make sense to make this depend on the batch
         // params.add("--crtimes"); // preserve create times (newness); create time does not exist on Linux
@@ -76,6 +110,28 @@ public class RsyncCmd {
         params.add(x);
     }
 
+    // ---
+    // Run rsync under a wrapper program, like nocache(1)
+    // ---
+
+    public void wrapWith(@NotNull String wrapperExeName) {
+        params.add(0, wrapperExeName);
+    }
+
+    // ---
+    // Make rsync list every file on STDOUT once it has been transferred, in "outFormat"
+    // (see "--out-format" in rsync(1))
+    // ---
+
+    public void listTransfers(@NotNull String outFormat) {
+        params.add("--out-format=" + outFormat);
+        listingTransfers = true;
+    }
+
+    public boolean isListingTransfers() {
+        return listingTransfers;
+    }
+
     // ---
     // Return a deep-copy of the rsync command set up os far
     // ---
@@ -2,18 +2,118 @@ package backup.helpers;
 
 import backup.CmdLineDef;
 import backup.config.Batch;
+import backup.config.TargetFormat;
+import backup.probe.MetadataSupport;
+import backup.scan.ChunkWriter;
+import backup.scan.LargeFileCollector;
+import backup.scan.PreScanResult;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 public abstract class RsyncCmdBuilder {
 
-    private static RsyncCmd buildSingleRsyncCommand(@NotNull String rsyncExeName, @NotNull FilterRuleSeq frSeq, @NotNull Batch batch, @NotNull CmdLineDef cdf, @NotNull File targetDirName) {
+    // ---
+    // The rsync command without filter rules, sources and destination.
+    // Only the copy of a whole batch ("bulkCopy") is followed by the PageCacheDropper: the
+    // chunk, retry and replay runs would spawn dd processes for little cache to save.
+    // ---
+
+    private static RsyncCmd buildRumpRsyncCommand(@NotNull String rsyncExeName, @NotNull Batch batch, @NotNull CmdLineDef cdf, PreScanResult preScan, boolean bulkCopy) {
         RsyncCmd.Verbosity verbosity = (cdf.isVerbose() ? RsyncCmd.Verbosity.Normal : RsyncCmd.Verbosity.Off);
         RsyncCmd.DryRun dryRun = (cdf.isDryrun() ? RsyncCmd.DryRun.On : RsyncCmd.DryRun.Off);
-        RsyncCmd res = new RsyncCmd(rsyncExeName, batch, dryRun, verbosity);
+        // without pre-scan, we don't know whether there are hard links worth preserving or sparse files
+        RsyncCmd.HardLinks hardLinks = (preScan != null && preScan.useHardLinks() ? RsyncCmd.HardLinks.On : RsyncCmd.HardLinks.Off);
+        RsyncCmd.Sparse sparse = (preScan != null && preScan.useSparse() ? RsyncCmd.Sparse.On : RsyncCmd.Sparse.Off);
+        RsyncCmd res = new RsyncCmd(rsyncExeName, batch, dryRun, verbosity, hardLinks, sparse, destMetadataOf(cdf.getDestMetadata()));
+        switch (PageCacheDropper.mechanismFor(batch, cdf)) {
+            case NocacheWrapper -> res.wrapWith(PageCacheDropper.NOCACHE_EXE_NAME);
+            case DropBehind -> {
+                if (bulkCopy) {
+                    res.listTransfers(PageCacheDropper.OUT_FORMAT);
+                }
+            }
+            case None -> { }
+        }
+        return res;
+    }
+
+    // ---
+    // All destinations get the same options (the recorded batch is replayed onto the others),
+    // so this is what all of them keep
+    // ---
+
+    static RsyncCmd.DestMetadata destMetadataOf(@NotNull MetadataSupport kept) {
+        if (!kept.permissions) {
+            return RsyncCmd.DestMetadata.NoPosixMetadata;
+        }
+        else if (!kept.xattrs) {
+            return RsyncCmd.DestMetadata.NoAclsOrXattrs;
+        }
+        else if (!kept.acls) {
+            return RsyncCmd.DestMetadata.NoAcls;
+        }
+        else {
+            return RsyncCmd.DestMetadata.Full;
+        }
+    }
+
+    private static String buildDumpDirParam(@NotNull Batch batch, @NotNull File targetDirName) {
+        File qualifiedDumpDirName = new File(targetDirName, DirNaming.buildAtomicDumpDirName(batch));
+        // Adding a slash at the end of the string representation ensures that the directory will be freshly created
+        return qualifiedDumpDirName + "/";
+    }
+
+    // ---
+    // If "batchFile" is not null, rsync records what it does into it (see "--write-batch" in rsync(1)),
+    // so that it can be replayed onto other destinations later.
+    // ---
+
+    private static RsyncCmd buildSingleRsyncCommand(@NotNull String rsyncExeName, @NotNull FilterRuleSeq frSeq, @NotNull Batch batch, @NotNull CmdLineDef cdf, @NotNull File targetDirName, PreScanResult preScan, File batchFile) {
+        RsyncCmd res = buildRumpRsyncCommand(rsyncExeName, batch, cdf, preScan, true);
+        if (batchFile != null) {
+            res.addParam("--write-batch=" + batchFile);
+        }
+        addFilterRules(res, frSeq, preScan);
+        // all the sources (there is at least one)
+        assert !batch.sources.isEmpty();
+        for (File src : cdf.getSources(batch)) {
+            res.addParam(src.toString());
+        }
+        // the destination
+        res.addParam(buildDumpDirParam(batch, targetDirName));
+        return res;
+    }
+
+    // ---
+    // Build the command that copies one chunk of a batch (see ChunkWriter) into the same
+    // DumpDir as buildSingleRsyncCommand() would. The filter rules have already been applied
+    // when the chunk was listed, but keeping them does no harm.
+    // ---
+
+    public static RsyncCmd buildChunkRsyncCmd(@NotNull String rsyncExeName, @NotNull Batch batch, @NotNull CmdLineDef cdf, @NotNull File targetDirName, PreScanResult preScan,
+                                              @NotNull ChunkWriter.Chunk chunk) {
+        RsyncCmd res = buildRumpRsyncCommand(rsyncExeName, batch, cdf, preScan, false);
+        addFilterRules(res, PreScanResult.seqOf(batch, preScan), preScan);
+        res.addParam("--from0");
+        res.addParam("--files-from=" + chunk.listFile);
+        String root = chunk.transferRoot.toString();
+        res.addParam(root.endsWith("/") ? root : root + "/");
+        res.addParam(buildDumpDirParam(batch, targetDirName));
+        return res;
+    }
+
+    private static void addFilterRules(@NotNull RsyncCmd res, @NotNull FilterRuleSeq frSeq, PreScanResult preScan) {
+        // the files stored as block-level deltas are not copied by rsync; these rules come first
+        if (preScan != null) {
+            for (LargeFileCollector.LargeFile lf : preScan.deltaFiles) {
+                res.addParam("--exclude");
+                res.addParam(FilterRule.quote(lf.transferPath));
+            }
+        }
         // all the filter rules, if any
         for (FilterRule fr : frSeq.seq) {
             if (fr.isInclude()) {
@@ -26,24 +126,45 @@ public abstract class RsyncCmdBuilder {
                 res.addParam(fr.getPath());
             }
         }
-        // all the sources (there is at least one)
-        assert !batch.sources.isEmpty();
-        for (File src : batch.sources) {
-            res.addParam(src.toString());
-        }
-        // the destination
-        File qualifiedDumpDirName = new File(targetDirName, DirNaming.buildAtomicDumpDirName(batch));
-        // Adding a slash at the end of the string representation ensures that the directory will be freshly created
-        res.addParam(qualifiedDumpDirName + "/");
+    }
+
+    // ---
+    // Build the command that replays the "batchFile" recorded by the command built by
+    // buildSingleRsyncCommand() onto another target directory. The sources are not read
+    // again, the data comes from the batch file. The options must be the same as when recording.
+    // ---
+
+    public static RsyncCmd buildReplayRsyncCmd(@NotNull String rsyncExeName, @NotNull Batch batch, @NotNull CmdLineDef cdf, @NotNull File targetDirName, PreScanResult preScan, @NotNull File batchFile) {
+        RsyncCmd res = buildRumpRsyncCommand(rsyncExeName, batch, cdf, preScan, false);
+        res.addParam("--read-batch=" + batchFile);
+        res.addParam(buildDumpDirParam(batch, targetDirName));
         return res;
     }
 
-    public static SortedMap<Batch, RsyncCmd> buildAllRsyncCmds(@NotNull String rsyncExeName, @NotNull CmdLineDef cdf, @NotNull File targetDirName) {
+    // ---
+    // Where the batch file for "batch" is recorded, or null if there is nothing to replay
+    // (only one destination, or a dry run, which does not transfer anything)
+    // ---
+
+    public static File buildBatchFile(@NotNull Batch batch, @NotNull CmdLineDef cdf, @NotNull File targetDirName) {
+        if (cdf.getDestDirs().size() < 2 || cdf.isDryrun()) {
+            return null;
+        }
+        File dir = (cdf.getBatchFileDir() == null) ? targetDirName : cdf.getBatchFileDir();
+        return new File(dir, DirNaming.buildAtomicRsyncBatchFileName(batch));
+    }
+
+    // ---
+    // The "preScans" map may be empty if no pre-scan was done.
+    // Only the batches stored as a plain tree are copied by rsync.
+    // ---
+
+    public static SortedMap<Batch, RsyncCmd> buildAllRsyncCmds(@NotNull String rsyncExeName, @NotNull CmdLineDef cdf, @NotNull File targetDirName, @NotNull Map<Batch, PreScanResult> preScans) {
         SortedMap<Batch, RsyncCmd> res = new TreeMap<>();
-        cdf.getBatchSet().forEach(batch -> {
-            FilterRuleSeq frSeq = batch.seq;
-            assert frSeq != null : "Batch " + batch + " has no entry in settings";
-            RsyncCmd cmd = buildSingleRsyncCommand(rsyncExeName, frSeq, batch, cdf, targetDirName);
+        cdf.getBatchSet().stream().filter(batch -> cdf.getTargetFormat(batch) == TargetFormat.PlainTree).forEach(batch -> {
+            assert batch.seq != null : "Batch " + batch + " has no entry in settings";
+            PreScanResult preScan = preScans.get(batch);
+            RsyncCmd cmd = buildSingleRsyncCommand(rsyncExeName, PreScanResult.seqOf(batch, preScan), batch, cdf, targetDirName, preScan, buildBatchFile(batch, cdf, targetDirName));
             res.put(batch, cmd);
         });
         return res;
@@ -0,0 +1,159 @@
+package backup.helpers;
+
+import backup.scan.BatchWalker;
+import backup.scan.ChunkWriter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// ---
+// Finds the files that rsync could not transfer in what it wrote to STDERR (the "<batch>.err" file),
+// so that they alone can be tried again with "--files-from". The messages look like:
+//
+// rsync: [sender] send_files failed to open "/home/aloy/x": Permission denied (13)
+// rsync: [sender] read errors mapping "/home/aloy/y": Input/output error (5)
+// rsync: [generator] failed to set times on "/media/usb/backup_(...)/copy_of_fast_changers/aloy/z": ... (1)
+// file has vanished: "/var/tmp/w"
+// ERROR: "/media/usb/backup_(...)/copy_of_fast_changers/aloy/v" failed verification -- update retained.
+//
+// The summary ("rsync error: ...") and warnings ("rsync warning: ...") name no file and are skipped.
+// An "rsync: " message without a file makes the failures "unattributed": retrying cannot fix them.
+// Neither can it fix most of the others (permissions, I/O errors): only the files that vanished or
+// changed while rsync copied them are "retryable", as they may well be copied on the next try.
+// ---
+
+public abstract class RsyncErrors {
+
+    private final static Pattern QUOTED_PATH = Pattern.compile("\"(/[^\"]*)\"");
+
+    // gone between the file list and the copy, or changed during the copy
+
+    private final static Pattern TRANSIENT = Pattern.compile("^file has vanished: |No such file or directory \\(2\\)|failed verification");
+
+    public static class Failures {
+
+        // the paths as printed by rsync, i.e. absolute source or destination paths
+
+        @NotNull
+        public final SortedSet<String> paths;
+
+        // those of "paths" that have only failed in a way a retry may fix
+
+        @NotNull
+        public final SortedSet<String> retryable;
+
+        public final int unattributed;
+
+        Failures(@NotNull SortedSet<String> paths, @NotNull SortedSet<String> retryable, int unattributed) {
+            this.paths = paths;
+            this.retryable = retryable;
+            this.unattributed = unattributed;
+        }
+
+        public @NotNull SortedSet<String> notRetryable() {
+            SortedSet<String> res = new TreeSet<>(paths);
+            res.removeAll(retryable);
+            return res;
+        }
+    }
+
+    // ---
+    // Parse "errFile" from "fromOffset" on, i.e. only what a later run of rsync appended
+    // ---
+
+    public static @NotNull Failures parse(@NotNull File errFile, long fromOffset) throws IOException {
+        SortedSet<String> paths = new TreeSet<>();
+        SortedSet<String> notRetryable = new TreeSet<>();
+        int unattributed = 0;
+        if (!errFile.isFile()) {
+            return new Failures(paths, new TreeSet<>(), 0);
+        }
+        byte[] bytes;
+        try (RandomAccessFile raf = new RandomAccessFile(errFile, "r")) {
+            long start = Math.min(fromOffset, raf.length());
+            bytes = new byte[(int) (raf.length() - start)];
+            raf.seek(start);
+            raf.readFully(bytes);
+        }
+        for (String line : new String(bytes, StandardCharsets.UTF_8).split("\n")) {
+            if (!line.startsWith("rsync: ") && !line.startsWith("file has vanished: ") && !line.startsWith("ERROR: ")) {
+                continue;
+            }
+            Matcher m = QUOTED_PATH.matcher(line);
+            if (m.find()) {
+                paths.add(m.group(1));
+                if (!TRANSIENT.matcher(line).find()) {
+                    notRetryable.add(m.group(1));
+                }
+            }
+            else {
+                unattributed++;
+            }
+        }
+        SortedSet<String> retryable = new TreeSet<>(paths);
+        retryable.removeAll(notRetryable);
+        return new Failures(paths, retryable, unattributed);
+    }
+
+    // ---
+    // Sort the "paths" printed by rsync by the transfer root of their source (see BatchWalker.transferRootOf()),
+    // relative to it. Paths into "dumpDir" are mapped back to the source they were copied from.
+    // Paths that belong to no source are left out.
+    // ---
+
+    public static @NotNull SortedMap<Path, SortedSet<String>> byTransferRoot(@NotNull Collection<String> paths, @NotNull Collection<File> sources, @NotNull File dumpDir) {
+        SortedMap<Path, SortedSet<String>> res = new TreeMap<>();
+        String dumpPrefix = dumpDir.getPath() + "/";
+        for (String path : paths) {
+            String transferPath = path.startsWith(dumpPrefix) ? "/" + path.substring(dumpPrefix.length()) : null;
+            for (File src : sources) {
+                Path source = src.toPath();
+                Path transferRoot = BatchWalker.transferRootOf(source);
+                Path absolute = (transferPath != null) ? Path.of(transferRoot + transferPath) : Path.of(path);
+                if (absolute.startsWith(source)) {
+                    res.computeIfAbsent(transferRoot, x -> new TreeSet<>()).add(transferRoot.relativize(absolute).toString());
+                    break;
+                }
+            }
+        }
+        return res;
+    }
+
+    // ---
+    // Write a NUL-separated "--files-from" list per transfer root into "dir", named after "prefix"
+    // ---
+
+    public static @NotNull List<ChunkWriter.Chunk> writeFilesFrom(@NotNull File dir, @NotNull String prefix, @NotNull SortedMap<Path, SortedSet<String>> byRoot) throws IOException {
+        Files.createDirectories(dir.toPath());
+        List<ChunkWriter.Chunk> res = new ArrayList<>();
+        int i = 0;
+        for (Map.Entry<Path, SortedSet<String>> e : byRoot.entrySet()) {
+            File listFile = new File(dir, prefix + "_" + (++i) + ".list");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(listFile.toPath()))) {
+                for (String rel : e.getValue()) {
+                    out.write(rel.getBytes(StandardCharsets.UTF_8));
+                    out.write(0);
+                }
+            }
+            res.add(new ChunkWriter.Chunk(listFile, e.getKey(), e.getValue().size(), 0));
+        }
+        return res;
+    }
+}
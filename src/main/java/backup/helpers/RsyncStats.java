@@ -0,0 +1,200 @@
+package backup.helpers;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.ToLongFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// ---
+// The transfer statistics printed by rsync at the end of its run with "--stats", which
+// end up at the end of the "${BATCH}.out" file. It looks like this (numbers may be
+// written with thousands separators, and there is a "(DRY RUN)" at the end for dry runs):
+//
+// Number of files: 1,234 (reg: 1,000, dir: 234)
+// Number of created files: 10 (reg: 10)
+// Number of deleted files: 0
+// Number of regular files transferred: 10
+// Total file size: 12,345,678 bytes
+// Total transferred file size: 1,234 bytes
+// Literal data: 1,234 bytes
+// Matched data: 0 bytes
+// File list size: 0
+// File list generation time: 0.001 seconds
+// File list transfer time: 0.000 seconds
+// Total bytes sent: 1,500
+// Total bytes received: 35
+//
+// sent 1,500 bytes  received 35 bytes  3,070.00 bytes/sec
+// total size is 12,345,678  speedup is 8,042.45
+//
+// Values that are not found are -1.
+// ---
+
+public class RsyncStats {
+
+    // The statistics are at the very end; with "--verbose" the output file can be huge
+
+    private final static int TAIL_BYTES = 16 * 1024;
+
+    public final long files;
+    public final long regularFiles;
+    public final long directories;
+    public final long createdFiles;
+    public final long deletedFiles;
+    public final long regularFilesTransferred;
+    public final long totalFileSize;
+    public final long totalTransferredFileSize;
+    public final long literalData;
+    public final long matchedData;
+    public final long fileListSize;
+    public final double fileListGenerationSecs;
+    public final double fileListTransferSecs;
+    public final long totalBytesSent;
+    public final long totalBytesReceived;
+    public final double speedup;
+    public final boolean dryRun;
+
+    private RsyncStats(@NotNull String text) {
+        files = findLong(text, "Number of files: ([\\d,.]+)");
+        regularFiles = findLong(text, "Number of files: .*?reg: ([\\d,.]+)");
+        directories = findLong(text, "Number of files: .*?dir: ([\\d,.]+)");
+        createdFiles = findLong(text, "Number of created files: ([\\d,.]+)");
+        deletedFiles = findLong(text, "Number of deleted files: ([\\d,.]+)");
+        regularFilesTransferred = findLong(text, "Number of regular files transferred: ([\\d,.]+)");
+        totalFileSize = findLong(text, "Total file size: ([\\d,.]+)");
+        totalTransferredFileSize = findLong(text, "Total transferred file size: ([\\d,.]+)");
+        literalData = findLong(text, "Literal data: ([\\d,.]+)");
+        matchedData = findLong(text, "Matched data: ([\\d,.]+)");
+        fileListSize = findLong(text, "File list size: ([\\d,.]+)");
+        fileListGenerationSecs = findDouble(text, "File list generation time: ([\\d,.]+)");
+        fileListTransferSecs = findDouble(text, "File list transfer time: ([\\d,.]+)");
+        totalBytesSent = findLong(text, "Total bytes sent: ([\\d,.]+)");
+        totalBytesReceived = findLong(text, "Total bytes received: ([\\d,.]+)");
+        speedup = findDouble(text, "speedup is ([\\d,.]+)");
+        dryRun = text.contains("(DRY RUN)");
+    }
+
+    private RsyncStats(long files, long regularFiles, long directories, long createdFiles, long deletedFiles, long regularFilesTransferred,
+                       long totalFileSize, long totalTransferredFileSize, long literalData, long matchedData, long fileListSize,
+                       double fileListGenerationSecs, double fileListTransferSecs, long totalBytesSent, long totalBytesReceived, double speedup, boolean dryRun) {
+        this.files = files;
+        this.regularFiles = regularFiles;
+        this.directories = directories;
+        this.createdFiles = createdFiles;
+        this.deletedFiles = deletedFiles;
+        this.regularFilesTransferred = regularFilesTransferred;
+        this.totalFileSize = totalFileSize;
+        this.totalTransferredFileSize = totalTransferredFileSize;
+        this.literalData = literalData;
+        this.matchedData = matchedData;
+        this.fileListSize = fileListSize;
+        this.fileListGenerationSecs = fileListGenerationSecs;
+        this.fileListTransferSecs = fileListTransferSecs;
+        this.totalBytesSent = totalBytesSent;
+        this.totalBytesReceived = totalBytesReceived;
+        this.speedup = speedup;
+        this.dryRun = dryRun;
+    }
+
+    // ---
+    // The statistics of several rsync runs over parts of the same batch (see ChunkWriter), added up.
+    // Values missing in any part are -1; the speedup is recomputed from the totals.
+    // Returns null if "parts" is empty.
+    // ---
+
+    public static RsyncStats sum(@NotNull List<RsyncStats> parts) {
+        if (parts.isEmpty()) {
+            return null;
+        }
+        long sent = sumOf(parts, x -> x.totalBytesSent);
+        long received = sumOf(parts, x -> x.totalBytesReceived);
+        long totalFileSize = sumOf(parts, x -> x.totalFileSize);
+        double speedup = (sent < 0 || received < 0 || totalFileSize < 0 || sent + received == 0) ? -1 : (double) totalFileSize / (sent + received);
+        double generation = parts.stream().anyMatch(x -> x.fileListGenerationSecs < 0) ? -1 : parts.stream().mapToDouble(x -> x.fileListGenerationSecs).sum();
+        double transfer = parts.stream().anyMatch(x -> x.fileListTransferSecs < 0) ? -1 : parts.stream().mapToDouble(x -> x.fileListTransferSecs).sum();
+        return new RsyncStats(sumOf(parts, x -> x.files), sumOf(parts, x -> x.regularFiles), sumOf(parts, x -> x.directories),
+                sumOf(parts, x -> x.createdFiles), sumOf(parts, x -> x.deletedFiles), sumOf(parts, x -> x.regularFilesTransferred),
+                totalFileSize, sumOf(parts, x -> x.totalTransferredFileSize), sumOf(parts, x -> x.literalData), sumOf(parts, x -> x.matchedData),
+                sumOf(parts, x -> x.fileListSize), generation, transfer, sent, received, speedup, parts.get(0).dryRun);
+    }
+
+    private static long sumOf(@NotNull List<RsyncStats> parts, @NotNull ToLongFunction<RsyncStats> getter) {
+        long res = 0;
+        for (RsyncStats part : parts) {
+            long value = getter.applyAsLong(part);
+            if (value < 0) {
+                return -1;
+            }
+            res += value;
+        }
+        return res;
+    }
+
+    // ---
+    // Returns null if there are no statistics in the text
+    // ---
+
+    public static RsyncStats parse(@NotNull String text) {
+        if (!text.contains("Number of files:")) {
+            return null;
+        }
+        return new RsyncStats(text);
+    }
+
+    // ---
+    // Returns null if there are no statistics at the end of the file
+    // ---
+
+    public static RsyncStats parseTailOf(@NotNull File outputFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(outputFile, "r")) {
+            long start = Math.max(0, raf.length() - TAIL_BYTES);
+            byte[] buf = new byte[(int) (raf.length() - start)];
+            raf.seek(start);
+            raf.readFully(buf);
+            String text = new String(buf, StandardCharsets.UTF_8);
+            // only keep the last set of statistics
+            int last = text.lastIndexOf("Number of files:");
+            return (last < 0) ? null : parse(text.substring(last));
+        }
+    }
+
+    private static String find(@NotNull String text, @NotNull String regex) {
+        Matcher m = Pattern.compile(regex, Pattern.MULTILINE).matcher(text);
+        return m.find() ? m.group(1) : null;
+    }
+
+    // Thousands separators are "," or "." depending on the locale; integers have no fraction
+
+    private static long findLong(@NotNull String text, @NotNull String regex) {
+        String str = find(text, regex);
+        return (str == null) ? -1 : Long.parseLong(str.replaceAll("[,.]", ""));
+    }
+
+    private static double findDouble(@NotNull String text, @NotNull String regex) {
+        String str = find(text, regex);
+        if (str == null) {
+            return -1;
+        }
+        // the last separator is the decimal one, the others separate thousands
+        int dec = Math.max(str.lastIndexOf('.'), str.lastIndexOf(','));
+        String clean = (dec < 0) ? str : str.substring(0, dec).replaceAll("[,.]", "") + "." + str.substring(dec + 1);
+        return Double.parseDouble(clean);
+    }
+
+    public String toMultilineString(int indent) {
+        String ind = " ".repeat(indent);
+        return ind + "Files              : " + files + " (" + regularFiles + " regular, " + directories + " directories)\n"
+                + ind + "Files transferred  : " + regularFilesTransferred + " (" + createdFiles + " created, " + deletedFiles + " deleted)\n"
+                + ind + "Bytes              : " + totalTransferredFileSize + " of " + totalFileSize + " transferred\n"
+                + ind + "Literal / matched  : " + literalData + " / " + matchedData + " bytes\n"
+                + ind + "File list          : " + fileListSize + " bytes, generated in " + fileListGenerationSecs + " s, transferred in " + fileListTransferSecs + " s\n"
+                + ind + "Sent / received    : " + totalBytesSent + " / " + totalBytesReceived + " bytes\n"
+                + ind + "Speedup            : " + speedup + (dryRun ? " (DRY RUN)" : "");
+    }
+}
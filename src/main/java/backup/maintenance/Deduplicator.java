@@ -0,0 +1,381 @@
+package backup.maintenance;
+
+import backup.restore.AclRestorer;
+import backup.scan.FileMeta;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+// ---
+// Replaces identical files in the trees of a snapshot (the "copy_of_<batch>" directories)
+// by hard links to a single one of them, so that e.g. an ISO image found in several batches
+// is stored once.
+//
+// Candidates are narrowed down in stages, each one cheaper than the next:
+//
+// 1) grouping by what the files' inodes hold besides the data: size, mtime, permissions,
+//    ownership, extended attributes and ACLs, as hard-linked files share these (this is also
+//    what "rsync --link-dest" demands)
+// 2) grouping by the hash of the first PARTIAL_HASH_BYTES, read in parallel
+// 3) grouping by the hash of the whole file, read in parallel
+//
+// The link is made under a temporary name and then renamed over the duplicate, so the
+// duplicate is never missing. The mtime of its directory is put back afterwards.
+// ---
+
+public class Deduplicator {
+
+    private final static String CLASS = Deduplicator.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    public final static int PARTIAL_HASH_BYTES = 64 * 1024;
+
+    // Smaller files save at most one block each, which is not worth the hashing
+
+    public final static long DEFAULT_MIN_SIZE = 4096;
+
+    private final static String TMP_SUFFIX = ".dedup_tmp";
+    private final static int MAX_TMP_ATTEMPTS = 10;
+
+    // Whether the files may carry ACLs, which are then read with getfacl(1) to keep apart the files differing in them
+
+    public enum Acls {Compare, None}
+
+    // ---
+    // All the paths of a single inode found in the trees
+    // ---
+
+    private static class Inode {
+
+        final FileMeta meta;
+        final List<Path> paths = new ArrayList<>();
+
+        Inode(@NotNull FileMeta meta) {
+            this.meta = meta;
+        }
+
+        // Unlinking all the paths frees the data only if there is no link outside of the trees
+
+        boolean isFreedWhenRelinked() {
+            return meta.nlink == paths.size();
+        }
+    }
+
+    private final int parallelism;
+    private final long minSize;
+    private final boolean dryrun;
+    private final Acls acls;
+
+    private long files;
+    private long bytesHashed;
+    private long linked;
+    private long savedBytes;
+    private long failures;
+
+    public Deduplicator(int parallelism, long minSize, boolean dryrun, @NotNull Acls acls) {
+        this.parallelism = Math.max(1, parallelism);
+        this.minSize = Math.max(1, minSize);
+        this.dryrun = dryrun;
+        this.acls = acls;
+    }
+
+    // ---
+    // Deduplicate across all the "trees" together
+    // ---
+
+    public void run(@NotNull List<Path> trees) throws IOException {
+        List<List<Inode>> groups = groupByMeta(trees);
+        logger.info("{} regular files of at least {} bytes, {} groups of equal size and metadata", files, minSize, groups.size());
+        groups = regroupByHash(groups, PARTIAL_HASH_BYTES);
+        logger.info("{} groups left after hashing the first {} bytes", groups.size(), PARTIAL_HASH_BYTES);
+        List<List<Inode>> toHashFully = new ArrayList<>();
+        List<List<Inode>> identical = new ArrayList<>();
+        for (List<Inode> group : groups) {
+            // if the partial hash covered the whole file, it is the full hash
+            (group.get(0).meta.size > PARTIAL_HASH_BYTES ? toHashFully : identical).add(group);
+        }
+        identical.addAll(regroupByHash(toHashFully, Long.MAX_VALUE));
+        logger.info("{} groups of identical files", identical.size());
+        for (List<Inode> group : identical) {
+            link(group);
+        }
+    }
+
+    private List<List<Inode>> groupByMeta(@NotNull List<Path> trees) throws IOException {
+        Map<List<Object>, Map<Long, Inode>> byMeta = new HashMap<>();
+        Map<Path, String> aclsByPath = readAcls(trees);
+        for (Path tree : trees) {
+            Files.walkFileTree(tree, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!attrs.isRegularFile() || attrs.size() < minSize || file.getFileName().toString().endsWith(TMP_SUFFIX)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        FileMeta meta = FileMeta.of(file);
+                        List<Object> key = List.of(meta.size, meta.mtimeMs, meta.mode, meta.uid, meta.gid, meta.dev,
+                                xattrsOf(file), aclsByPath.getOrDefault(file, ""));
+                        byMeta.computeIfAbsent(key, k -> new LinkedHashMap<>()).computeIfAbsent(meta.ino, ino -> new Inode(meta)).paths.add(file);
+                        files++;
+                    } catch (IOException ex) {
+                        logger.warn("Could not stat '{}': {}", file, ex.toString());
+                        failures++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    logger.warn("Could not read '{}': {}", file, ex.toString());
+                    failures++;
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        List<List<Inode>> res = new ArrayList<>();
+        for (Map<Long, Inode> inodes : byMeta.values()) {
+            if (inodes.size() > 1) {
+                res.add(new ArrayList<>(inodes.values()));
+            }
+        }
+        return res;
+    }
+
+    // ---
+    // The ACLs of the files that have more than the base ACL, in the text form of AclRestorer.read()
+    // ---
+
+    private @NotNull Map<Path, String> readAcls(@NotNull List<Path> trees) throws IOException {
+        Map<Path, String> res = new HashMap<>();
+        if (acls == Acls.None) {
+            return res;
+        }
+        if (!AclRestorer.isAvailable()) {
+            throw new IOException("'" + AclRestorer.GETFACL_EXE_NAME + "' is needed to keep files with different ACLs apart");
+        }
+        for (Path tree : trees) {
+            for (Map.Entry<String, String[]> e : AclRestorer.read(tree.toFile()).entrySet()) {
+                res.put(tree.resolve(e.getKey().substring(1)), e.getValue()[0] + "\t" + e.getValue()[1]);
+            }
+        }
+        return res;
+    }
+
+    // ---
+    // The "user." extended attributes of "file", names and values, as the hex of their hash ("" if none)
+    // ---
+
+    private static @NotNull String xattrsOf(@NotNull Path file) throws IOException {
+        UserDefinedFileAttributeView view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        List<String> names;
+        try {
+            names = (view == null) ? List.of() : new ArrayList<>(view.list());
+        } catch (UnsupportedOperationException ex) {
+            return "";
+        }
+        if (names.isEmpty()) {
+            return "";
+        }
+        Collections.sort(names);
+        MessageDigest md = newDigest();
+        for (String name : names) {
+            ByteBuffer buf = ByteBuffer.allocate(view.size(name));
+            view.read(name, buf);
+            md.update(name.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(ByteBuffer.allocate(4).putInt(buf.position()).array());
+            md.update(buf.array(), 0, buf.position());
+        }
+        return HexFormat.of().formatHex(md.digest());
+    }
+
+    // ---
+    // Split the groups by the hash of the first "limit" bytes of each inode, keeping the groups
+    // of at least two. Inodes that cannot be read drop out.
+    // ---
+
+    private List<List<Inode>> regroupByHash(@NotNull List<List<Inode>> groups, long limit) {
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        List<List<Inode>> res = new ArrayList<>();
+        try {
+            List<List<Future<String>>> futures = new ArrayList<>();
+            for (List<Inode> group : groups) {
+                List<Future<String>> groupFutures = new ArrayList<>();
+                for (Inode inode : group) {
+                    groupFutures.add(pool.submit(() -> hashOf(inode.paths.get(0), limit)));
+                }
+                futures.add(groupFutures);
+            }
+            for (int i = 0; i < groups.size(); i++) {
+                Map<String, List<Inode>> byHash = new TreeMap<>();
+                for (int j = 0; j < groups.get(i).size(); j++) {
+                    Inode inode = groups.get(i).get(j);
+                    String hash = await(futures.get(i).get(j), inode);
+                    if (hash != null) {
+                        byHash.computeIfAbsent(hash, h -> new ArrayList<>()).add(inode);
+                        bytesHashed += Math.min(limit, inode.meta.size);
+                    }
+                }
+                byHash.values().stream().filter(g -> g.size() > 1).forEach(res::add);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return res;
+    }
+
+    private static String hashOf(@NotNull Path file, long limit) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest md = newDigest();
+            byte[] buf = new byte[64 * 1024];
+            long remaining = limit;
+            int n;
+            while (remaining > 0 && (n = in.read(buf, 0, (int) Math.min(buf.length, remaining))) > 0) {
+                md.update(buf, 0, n);
+                remaining -= n;
+            }
+            return HexFormat.of().formatHex(md.digest());
+        }
+    }
+
+    private static @NotNull MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private String await(@NotNull Future<String> future, @NotNull Inode inode) {
+        while (true) {
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                // may have been woken up early!
+            } catch (ExecutionException ex) {
+                logger.warn("Could not hash '{}': {}", inode.paths.get(0), ex.getCause().toString());
+                failures++;
+                return null;
+            }
+        }
+    }
+
+    // ---
+    // The inode with the most paths is kept, so that the fewest renames are needed
+    // ---
+
+    private void link(@NotNull List<Inode> group) {
+        group.sort(Comparator.comparingInt((Inode inode) -> inode.paths.size()).reversed().thenComparing(inode -> inode.paths.get(0)));
+        Path keeper = group.get(0).paths.get(0);
+        for (Inode inode : group.subList(1, group.size())) {
+            int done = 0;
+            for (Path dup : inode.paths) {
+                if (linkOver(keeper, dup)) {
+                    done++;
+                }
+            }
+            linked += done;
+            if (done == inode.paths.size() && inode.isFreedWhenRelinked()) {
+                savedBytes += inode.meta.size;
+            }
+        }
+    }
+
+    private boolean linkOver(@NotNull Path keeper, @NotNull Path dup) {
+        if (dryrun) {
+            logger.debug("Would link '{}' to '{}'", dup, keeper);
+            return true;
+        }
+        Path dir = dup.getParent();
+        Path tmp = null;
+        try {
+            FileTime dirMtime = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS);
+            tmp = createTmpLink(dir, keeper);
+            Files.move(tmp, dup, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            tmp = null;
+            Files.setLastModifiedTime(dir, dirMtime);
+            return true;
+        } catch (IOException ex) {
+            // e.g. the maximum number of links of the keeper has been reached
+            logger.warn("Could not link '{}' to '{}': {}", dup, keeper, ex.toString());
+            failures++;
+            // only ever what createTmpLink() made, never a file of the snapshot
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ex2) {
+                    logger.warn("Could not remove '{}'", tmp, ex2);
+                }
+            }
+            return false;
+        }
+    }
+
+    // ---
+    // A new link to "keeper" in "dir", under a random name that no file of the snapshot has
+    // ---
+
+    private static @NotNull Path createTmpLink(@NotNull Path dir, @NotNull Path keeper) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Path tmp = dir.resolve("." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + TMP_SUFFIX);
+            try {
+                return Files.createLink(tmp, keeper);
+            } catch (FileAlreadyExistsException ex) {
+                if (attempt == MAX_TMP_ATTEMPTS) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    public long getBytesHashed() {
+        return bytesHashed;
+    }
+
+    public long getLinked() {
+        return linked;
+    }
+
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,140 @@
+package backup.maintenance;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// ---
+// The parity files (see ParityFile) of the large files of a batch in a TargetDir, kept in
+// "parity_of_<batch>". The files of the DumpDir and of the DeltaDir are covered; a parity file
+// sits at the same path relative to the ParityDir as its file relative to the TargetDir, plus ".par".
+// ---
+
+public abstract class ParityDir {
+
+    private final static String CLASS = ParityDir.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    private final static String SUFFIX = ".par";
+
+    public static class Result {
+
+        public long files;
+        public long bytes;
+        public long parityBytes;
+        public long repaired;
+        public long unrepairable;
+        public long failures;
+    }
+
+    // ---
+    // Write the parity files for "batch" in "targetDir", with "percent" redundancy
+    // ---
+
+    public static @NotNull Result write(@NotNull File targetDir, @NotNull Batch batch, int percent, int parallelism) throws IOException {
+        Result res = new Result();
+        Path target = targetDir.toPath();
+        Path parityDir = target.resolve(DirNaming.buildAtomicParityDirName(batch));
+        int parityShards = ParityFile.parityShardsFor(percent);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            for (Path file : largeFilesOf(targetDir, batch)) {
+                Path parFile = parityDir.resolve(target.relativize(file) + SUFFIX);
+                try {
+                    ParityFile.write(file, parFile, parityShards, pool, 2 * parallelism);
+                    res.files++;
+                    res.bytes += Files.size(file);
+                    res.parityBytes += Files.size(parFile);
+                } catch (IOException ex) {
+                    logger.warn("Could not write the parity of '{}': {}", file, ex.toString());
+                    res.failures++;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return res;
+    }
+
+    // ---
+    // Check the files of "batch" in "targetDir" that have parity and repair them if need be
+    // ---
+
+    public static @NotNull Result repair(@NotNull File targetDir, @NotNull Batch batch) throws IOException {
+        Result res = new Result();
+        Path target = targetDir.toPath();
+        Path parityDir = target.resolve(DirNaming.buildAtomicParityDirName(batch));
+        if (!Files.isDirectory(parityDir)) {
+            return res;
+        }
+        List<Path> parFiles = new ArrayList<>();
+        try (var stream = Files.walk(parityDir)) {
+            stream.filter(p -> p.getFileName().toString().endsWith(SUFFIX) && Files.isRegularFile(p)).sorted().forEach(parFiles::add);
+        }
+        for (Path parFile : parFiles) {
+            String rel = parityDir.relativize(parFile).toString();
+            Path file = target.resolve(rel.substring(0, rel.length() - SUFFIX.length()));
+            try {
+                res.files++;
+                res.bytes += Files.size(file);
+                switch (ParityFile.repair(file, parFile)) {
+                    case Repaired -> {
+                        logger.info("Repaired '{}'", file);
+                        res.repaired++;
+                    }
+                    case Unrepairable -> {
+                        logger.warn("'{}' is damaged beyond what its parity can repair", file);
+                        res.unrepairable++;
+                    }
+                    case Intact -> {
+                        // nothing to do
+                    }
+                }
+            } catch (IOException ex) {
+                logger.warn("Could not repair '{}': {}", file, ex.toString());
+                res.failures++;
+            }
+        }
+        return res;
+    }
+
+    private static @NotNull List<Path> largeFilesOf(@NotNull File targetDir, @NotNull Batch batch) throws IOException {
+        List<Path> res = new ArrayList<>();
+        for (String dirName : new String[]{DirNaming.buildAtomicDumpDirName(batch), DirNaming.buildAtomicDeltaDirName(batch)}) {
+            Path dir = new File(targetDir, dirName).toPath();
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && attrs.size() >= ParityFile.MIN_FILE_SIZE) {
+                        res.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    logger.warn("Could not read '{}': {}", file, ex.toString());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return res;
+    }
+}
@@ -0,0 +1,239 @@
+package backup.maintenance;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+// ---
+// Reed-Solomon recovery data for a single file (see ReedSolomon), as written to
+// "parity_of_<batch>/<transfer path>.par" next to the batch's DumpDir.
+//
+// The file is cut into blocks of BLOCK_SIZE (the last one padded with zeros), and every
+// DATA_SHARDS consecutive blocks form a stripe which gets "parityShards" parity blocks,
+// enough to rebuild that many damaged blocks of the stripe. The CRC-32C of each block tells
+// which ones are damaged.
+//
+// Layout (big-endian): MAGIC, VERSION, BLOCK_SIZE, DATA_SHARDS, parityShards, length of the
+// file, then per stripe: the CRCs of its data blocks, the CRCs of its parity blocks and the
+// parity blocks. The last stripe may have fewer data blocks.
+// ---
+
+public abstract class ParityFile {
+
+    private final static String MAGIC = "BTUPAR01";
+    private final static int VERSION = 1;
+
+    public final static int BLOCK_SIZE = 64 * 1024;
+    public final static int DATA_SHARDS = 32;
+
+    // Smaller files are not worth it, a scrub finds them and there are older backups
+
+    public final static long MIN_FILE_SIZE = 1024 * 1024;
+
+    public enum Outcome {Intact, Repaired, Unrepairable}
+
+    // ---
+    // Enough parity blocks per stripe for "percent" redundancy, at least one
+    // ---
+
+    public static int parityShardsFor(int percent) {
+        return Math.max(1, (DATA_SHARDS * percent + 99) / 100);
+    }
+
+    // ---
+    // Write the parity of "file" to "parFile", encoding the stripes on "pool"
+    // ---
+
+    public static void write(@NotNull Path file, @NotNull Path parFile, int parityShards, @NotNull ExecutorService pool, int window) throws IOException {
+        Files.createDirectories(parFile.getParent());
+        Path tmp = parFile.resolveSibling(parFile.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1024 * 1024))) {
+            long length = in.size();
+            long stripes = stripeCount(length);
+            out.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            out.writeInt(VERSION);
+            out.writeInt(BLOCK_SIZE);
+            out.writeInt(DATA_SHARDS);
+            out.writeInt(parityShards);
+            out.writeLong(length);
+            // the stripes are encoded in parallel, but written in order; "window" bounds the memory used
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            for (long s = 0; s < stripes; s++) {
+                long stripe = s;
+                pending.add(pool.submit(() -> encodeStripe(in, length, stripe, parityShards)));
+                if (pending.size() >= window) {
+                    out.write(await(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                out.write(await(pending.removeFirst()));
+            }
+        } catch (IOException ex) {
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        Files.move(tmp, parFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] encodeStripe(@NotNull FileChannel in, long length, long stripe, int parityShards) throws IOException {
+        int dataShards = dataShardsOf(length, stripe);
+        byte[][] data = new byte[dataShards][];
+        for (int j = 0; j < dataShards; j++) {
+            data[j] = readBlock(in, (stripe * DATA_SHARDS + j) * BLOCK_SIZE, length);
+        }
+        byte[][] parity = new byte[parityShards][BLOCK_SIZE];
+        new ReedSolomon(dataShards, parityShards).encode(data, parity, BLOCK_SIZE);
+        ByteBuffer res = ByteBuffer.allocate(4 * (dataShards + parityShards) + parityShards * BLOCK_SIZE);
+        for (byte[] block : data) {
+            res.putInt(crcOf(block));
+        }
+        for (byte[] block : parity) {
+            res.putInt(crcOf(block));
+        }
+        for (byte[] block : parity) {
+            res.put(block);
+        }
+        return res.array();
+    }
+
+    // ---
+    // Check "file" against "parFile" and rebuild its damaged blocks in place. A file that has
+    // become longer is cut back, the missing end of one that has become shorter is rebuilt like
+    // damaged blocks. The mtime is kept.
+    // ---
+
+    public static @NotNull Outcome repair(@NotNull Path file, @NotNull Path parFile) throws IOException {
+        FileTime mtime = Files.getLastModifiedTime(file, LinkOption.NOFOLLOW_LINKS);
+        Outcome res = Outcome.Intact;
+        try (DataInputStream par = new DataInputStream(new BufferedInputStream(Files.newInputStream(parFile), 1024 * 1024));
+             FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            byte[] magic = new byte[MAGIC.length()];
+            par.readFully(magic);
+            if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII)) || par.readInt() != VERSION
+                    || par.readInt() != BLOCK_SIZE || par.readInt() != DATA_SHARDS) {
+                throw new IOException("'" + parFile + "' is not a parity file");
+            }
+            int parityShards = par.readInt();
+            long length = par.readLong();
+            long actualLength = ch.size();
+            for (long s = 0; s < stripeCount(length); s++) {
+                int dataShards = dataShardsOf(length, s);
+                int total = dataShards + parityShards;
+                int[] crcs = new int[total];
+                for (int i = 0; i < total; i++) {
+                    crcs[i] = par.readInt();
+                }
+                byte[][] shards = new byte[total][];
+                boolean[] present = new boolean[total];
+                boolean damaged = false;
+                for (int j = 0; j < dataShards; j++) {
+                    long position = (s * DATA_SHARDS + j) * BLOCK_SIZE;
+                    shards[j] = readBlock(ch, position, Math.min(length, actualLength));
+                    // a block cut short by the file having become shorter is damaged, even if it matches
+                    present[j] = position + Math.min(BLOCK_SIZE, length - position) <= actualLength && crcOf(shards[j]) == crcs[j];
+                    damaged |= !present[j];
+                }
+                for (int i = 0; i < parityShards; i++) {
+                    shards[dataShards + i] = new byte[BLOCK_SIZE];
+                    par.readFully(shards[dataShards + i]);
+                    present[dataShards + i] = crcOf(shards[dataShards + i]) == crcs[dataShards + i];
+                }
+                if (!damaged) {
+                    continue;
+                }
+                if (!new ReedSolomon(dataShards, parityShards).reconstruct(shards, present, BLOCK_SIZE)) {
+                    res = Outcome.Unrepairable;
+                    continue;
+                }
+                for (int j = 0; j < dataShards; j++) {
+                    if (!present[j]) {
+                        long position = (s * DATA_SHARDS + j) * BLOCK_SIZE;
+                        int blockLength = (int) Math.min(BLOCK_SIZE, length - position);
+                        ch.write(ByteBuffer.wrap(shards[j], 0, blockLength), position);
+                    }
+                }
+                if (res == Outcome.Intact) {
+                    res = Outcome.Repaired;
+                }
+            }
+            if (ch.size() > length) {
+                ch.truncate(length);
+                if (res == Outcome.Intact) {
+                    res = Outcome.Repaired;
+                }
+            }
+            if (res == Outcome.Repaired) {
+                ch.force(true);
+            }
+        }
+        Files.setLastModifiedTime(file, mtime);
+        return res;
+    }
+
+    private static long stripeCount(long length) {
+        long blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        return (blocks + DATA_SHARDS - 1) / DATA_SHARDS;
+    }
+
+    private static int dataShardsOf(long length, long stripe) {
+        long blocks = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        return (int) Math.min(DATA_SHARDS, blocks - stripe * DATA_SHARDS);
+    }
+
+    // ---
+    // A block of the file, zero-padded beyond "length"
+    // ---
+
+    private static byte[] readBlock(@NotNull FileChannel ch, long position, long length) throws IOException {
+        byte[] res = new byte[BLOCK_SIZE];
+        int wanted = (int) Math.max(0, Math.min(BLOCK_SIZE, length - position));
+        ByteBuffer buf = ByteBuffer.wrap(res, 0, wanted);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) {
+                break;
+            }
+        }
+        return res;
+    }
+
+    private static int crcOf(@NotNull byte[] block) {
+        CRC32C crc = new CRC32C();
+        crc.update(block);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] await(@NotNull Future<byte[]> future) throws IOException {
+        while (true) {
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                // may have been woken up early!
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IllegalStateException("Encoding failed", ex.getCause());
+            }
+        }
+    }
+}
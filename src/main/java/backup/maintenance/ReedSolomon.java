@@ -0,0 +1,180 @@
+package backup.maintenance;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+// ---
+// A systematic Reed-Solomon erasure code over GF(256): "dataShards" blocks of equal length
+// are extended by "parityShards" blocks, and any "dataShards" of them are enough to get the
+// data back. The parity rows of the encoding matrix form a Cauchy matrix, every square submatrix
+// of which is invertible, so no choice of lost blocks is special.
+//
+// Multiplication is table-driven: MUL[a][b] is a * b in the field, and a row of it is all that
+// the inner loops need.
+// ---
+
+public class ReedSolomon {
+
+    // The primitive polynomial x^8 + x^4 + x^3 + x^2 + 1
+
+    private final static int POLYNOMIAL = 0x11d;
+
+    public final static int MAX_SHARDS = 256;
+
+    private final static byte[] EXP = new byte[2 * 255];
+    private final static int[] LOG = new int[256];
+    private final static byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    public final int dataShards;
+    public final int parityShards;
+
+    // "dataShards" + "parityShards" rows: the identity, then the Cauchy matrix
+
+    private final byte[][] matrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Cannot have " + dataShards + " data and " + parityShards + " parity shards");
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.matrix = new byte[dataShards + parityShards][dataShards];
+        for (int j = 0; j < dataShards; j++) {
+            matrix[j][j] = 1;
+        }
+        // 1 / (x_i + y_j) with x_i = dataShards + i and y_j = j, all distinct
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                matrix[dataShards + i][j] = inverse((dataShards + i) ^ j);
+            }
+        }
+    }
+
+    static byte inverse(int a) {
+        if ((a & 0xff) == 0) {
+            throw new ArithmeticException("0 has no inverse");
+        }
+        return EXP[255 - LOG[a & 0xff]];
+    }
+
+    // ---
+    // Compute the "parity" blocks from the "data" blocks, over "length" bytes of each
+    // ---
+
+    public void encode(@NotNull byte[][] data, @NotNull byte[][] parity, int length) {
+        for (int i = 0; i < parityShards; i++) {
+            multiplyRow(matrix[dataShards + i], data, parity[i], length);
+        }
+    }
+
+    // ---
+    // Rebuild the missing blocks in place. "shards" holds the data blocks, then the parity blocks;
+    // "present" tells which of them are intact. Returns false if too many are missing.
+    // ---
+
+    public boolean reconstruct(@NotNull byte[][] shards, @NotNull boolean[] present, int length) {
+        int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < dataShards + parityShards && found < dataShards; i++) {
+            if (present[i]) {
+                rows[found++] = i;
+            }
+        }
+        if (found < dataShards) {
+            return false;
+        }
+        byte[][] sub = new byte[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        for (int r = 0; r < dataShards; r++) {
+            sub[r] = matrix[rows[r]].clone();
+            inputs[r] = shards[rows[r]];
+        }
+        byte[][] decode = invert(sub);
+        for (int j = 0; j < dataShards; j++) {
+            if (!present[j]) {
+                multiplyRow(decode[j], inputs, shards[j], length);
+            }
+        }
+        for (int i = 0; i < parityShards; i++) {
+            if (!present[dataShards + i]) {
+                multiplyRow(matrix[dataShards + i], shards, shards[dataShards + i], length);
+            }
+        }
+        return true;
+    }
+
+    private static void multiplyRow(@NotNull byte[] coefficients, @NotNull byte[][] inputs, @NotNull byte[] out, int length) {
+        Arrays.fill(out, 0, length, (byte) 0);
+        for (int j = 0; j < coefficients.length; j++) {
+            int c = coefficients[j] & 0xff;
+            if (c == 0) {
+                continue;
+            }
+            byte[] row = MUL[c];
+            byte[] in = inputs[j];
+            for (int b = 0; b < length; b++) {
+                out[b] ^= row[in[b] & 0xff];
+            }
+        }
+    }
+
+    // ---
+    // Gauss-Jordan elimination; the rows of an encoding matrix are independent, so there always is a pivot
+    // ---
+
+    private static byte[][] invert(@NotNull byte[][] m) {
+        int n = m.length;
+        byte[][] res = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            res[i][i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (m[pivot][col] == 0) {
+                pivot++;
+            }
+            byte[] tmp = m[pivot];
+            m[pivot] = m[col];
+            m[col] = tmp;
+            tmp = res[pivot];
+            res[pivot] = res[col];
+            res[col] = tmp;
+            byte[] scale = MUL[inverse(m[col][col]) & 0xff];
+            for (int k = 0; k < n; k++) {
+                m[col][k] = scale[m[col][k] & 0xff];
+                res[col][k] = scale[res[col][k] & 0xff];
+            }
+            for (int r = 0; r < n; r++) {
+                int f = m[r][col] & 0xff;
+                if (r == col || f == 0) {
+                    continue;
+                }
+                byte[] row = MUL[f];
+                for (int k = 0; k < n; k++) {
+                    m[r][k] ^= row[m[col][k] & 0xff];
+                    res[r][k] ^= row[res[col][k] & 0xff];
+                }
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,77 @@
+package backup.maintenance;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import backup.store.TabSeparated;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// ---
+// Where a "--scrub" session stopped: the snapshot (a TargetDir name), the batch and the transfer
+// path of the last file checked. Kept in the MetaDir of the DestDir, so that the next session
+// continues from there. There is no cursor before the first session and after a full pass.
+// ---
+
+public class ScrubCursor {
+
+    @NotNull
+    public final String snapshot;
+
+    @NotNull
+    public final Batch batch;
+
+    @NotNull
+    public final String transferPath;
+
+    public ScrubCursor(@NotNull String snapshot, @NotNull Batch batch, @NotNull String transferPath) {
+        this.snapshot = snapshot;
+        this.batch = batch;
+        this.transferPath = transferPath;
+    }
+
+    static @NotNull File cursorFileOf(@NotNull File destDir) {
+        return new File(new File(destDir, DirNaming.buildAtomicMetaDirName()), DirNaming.buildAtomicScrubCursorFileName());
+    }
+
+    // ---
+    // Null if there is no cursor, or an unreadable one (then the scrub starts over)
+    // ---
+
+    public static ScrubCursor read(@NotNull File destDir) throws IOException {
+        File file = cursorFileOf(destDir);
+        if (!file.isFile()) {
+            return null;
+        }
+        String[] f = Files.readString(file.toPath(), StandardCharsets.UTF_8).stripTrailing().split("\t", -1);
+        if (f.length != 3) {
+            return null;
+        }
+        try {
+            return new ScrubCursor(TabSeparated.unescape(f[0]), Batch.valueOf(f[1]), TabSeparated.unescape(f[2]));
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    // ---
+    // Written to a temporary file first, so that a session killed while saving keeps the previous cursor
+    // ---
+
+    public void save(@NotNull File destDir) throws IOException {
+        Path file = cursorFileOf(destDir).toPath();
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmp, TabSeparated.escape(snapshot) + "\t" + batch.name() + "\t" + TabSeparated.escape(transferPath) + "\n", StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static void delete(@NotNull File destDir) throws IOException {
+        Files.deleteIfExists(cursorFileOf(destDir).toPath());
+    }
+}
@@ -0,0 +1,242 @@
+package backup.maintenance;
+
+import backup.config.Batch;
+import backup.config.TargetFormat;
+import backup.helpers.DirNaming;
+import backup.merkle.MerkleTree;
+import backup.restore.RestoreItem;
+import backup.restore.SnapshotReader;
+import backup.store.CryptoKeys;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// ---
+// Reads back the files of a batch in a snapshot and checks them against the Merkle tree
+// recorded at backup time (see MerkleTree). If the tree has content hashes, this finds data
+// that has changed on the disk; otherwise it still finds files that cannot be read, or whose
+// size or metadata has changed.
+//
+// Reading is limited to "bytesPerSec" so that a session can run in the background, and stops
+// once the "deadline" has passed, also in the middle of a file. The files are checked in the
+// order of the tree, so that a later session can continue after the last file checked.
+// ---
+
+public class Scrubber {
+
+    private final static String CLASS = Scrubber.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    // Have the caller save the position every that many files
+
+    private final static int CHECKPOINT_FILES = 1000;
+
+    public static class Corruption {
+
+        @NotNull
+        public final String transferPath;
+
+        @NotNull
+        public final String reason;
+
+        Corruption(@NotNull String transferPath, @NotNull String reason) {
+            this.transferPath = transferPath;
+            this.reason = reason;
+        }
+    }
+
+    public static class BatchReport {
+
+        public long files;
+        public long bytes;
+        public final List<Corruption> corruptions = new ArrayList<>();
+
+        // "finished" is false if the deadline has been reached; "lastChecked" is null if no file has been checked
+
+        public boolean finished = true;
+        public String lastChecked;
+    }
+
+    private final long bytesPerSec;
+
+    @NotNull
+    private final Instant deadline;
+
+    private final long startNanos = System.nanoTime();
+    private long bytesRead;
+
+    // ---
+    // A "bytesPerSec" of 0 means: as fast as possible
+    // ---
+
+    public Scrubber(long bytesPerSec, @NotNull Instant deadline) {
+        this.bytesPerSec = bytesPerSec;
+        this.deadline = deadline;
+    }
+
+    public boolean isDeadlineReached() {
+        return Instant.now().isAfter(deadline);
+    }
+
+    // ---
+    // Check the files of "batch" that come after "resumeAfter" in tree order (all of them if null).
+    // "checkpoint" is given the last file checked from time to time.
+    // ---
+
+    public @NotNull BatchReport scrub(@NotNull File snapshotDir, @NotNull Batch batch, char[] passphrase, String resumeAfter,
+                                      @NotNull Consumer<String> checkpoint) throws IOException, GeneralSecurityException {
+        BatchReport res = new BatchReport();
+        File treeFile = new File(snapshotDir, DirNaming.buildAtomicMerkleFileName(batch));
+        Map<String, RestoreItem> items = new HashMap<>();
+        for (RestoreItem item : SnapshotReader.listBatch(snapshotDir, batch, passphrase)) {
+            items.put(item.transferPath, item);
+        }
+        File plainTreeFile = treeFile;
+        if (SnapshotReader.formatOf(snapshotDir, batch) == TargetFormat.Encrypted) {
+            // listBatch() has already made sure there is a passphrase
+            plainTreeFile = File.createTempFile("merkle_of_" + batch.toString().toLowerCase(), ".tree");
+            try {
+                MerkleTree.decrypt(treeFile, plainTreeFile, CryptoKeys.load(new File(snapshotDir, DirNaming.buildAtomicKeyInfoFileName()), passphrase));
+            } catch (IOException | GeneralSecurityException ex) {
+                plainTreeFile.delete();
+                throw ex;
+            }
+        }
+        try (MerkleTree.Reader tree = new MerkleTree.Reader(plainTreeFile)) {
+            List<String> paths = new ArrayList<>();
+            List<MerkleTree.Entry> leaves = new ArrayList<>();
+            collectLeaves(tree, tree.getRootOffset(), "", paths, leaves);
+            int start = (resumeAfter == null) ? 0 : paths.indexOf(resumeAfter) + 1;
+            if (resumeAfter != null && start == 0) {
+                logger.info("'{}' is not in the Merkle tree of batch '{}', checking the batch from the start", resumeAfter, batch);
+            }
+            for (int i = start; i < paths.size(); i++) {
+                if (isDeadlineReached()) {
+                    res.finished = false;
+                    return res;
+                }
+                String transferPath = paths.get(i);
+                RestoreItem item = items.get(transferPath);
+                String problem;
+                try {
+                    problem = (item == null) ? "missing" : check(item, leaves.get(i), tree.isWithContent());
+                } catch (DeadlineReached ex) {
+                    res.finished = false;
+                    return res;
+                }
+                res.files++;
+                res.bytes += (item == null) ? 0 : item.size;
+                if (problem != null) {
+                    logger.warn("Batch '{}' in '{}': '{}' is {}", batch, snapshotDir.getName(), transferPath, problem);
+                    res.corruptions.add(new Corruption(transferPath, problem));
+                }
+                res.lastChecked = transferPath;
+                if (res.files % CHECKPOINT_FILES == 0) {
+                    checkpoint.accept(transferPath);
+                }
+            }
+        } finally {
+            if (plainTreeFile != treeFile && !plainTreeFile.delete()) {
+                logger.warn("Could not delete '{}'", plainTreeFile);
+            }
+        }
+        return res;
+    }
+
+    // ---
+    // Depth-first, entries of a directory sorted by name, as recorded
+    // ---
+
+    private static void collectLeaves(@NotNull MerkleTree.Reader tree, long offset, @NotNull String dirPath,
+                                      @NotNull List<String> paths, @NotNull List<MerkleTree.Entry> leaves) throws IOException {
+        for (MerkleTree.Entry e : tree.readDir(offset)) {
+            String path = dirPath + "/" + e.name;
+            if (e.offset >= 0) {
+                collectLeaves(tree, e.offset, path, paths, leaves);
+            }
+            else {
+                paths.add(path);
+                leaves.add(e);
+            }
+        }
+    }
+
+    // ---
+    // Null if all is well, otherwise what is wrong
+    // ---
+
+    private String check(@NotNull RestoreItem item, @NotNull MerkleTree.Entry entry, boolean withContent) throws DeadlineReached {
+        byte[] contentHash = new byte[0];
+        if (item.type == RestoreItem.Type.File) {
+            try {
+                byte[] readHash = readThrottled(item);
+                if (withContent) {
+                    contentHash = readHash;
+                }
+            } catch (IOException ex) {
+                return "unreadable (" + ex.getMessage() + ")";
+            }
+        }
+        if (!Arrays.equals(MerkleTree.leafHashOf(item, contentHash), entry.hash)) {
+            return (item.size != entry.size) ? "of another size (" + item.size + " instead of " + entry.size + " bytes)" : "changed";
+        }
+        return null;
+    }
+
+    private byte[] readThrottled(@NotNull RestoreItem item) throws IOException, DeadlineReached {
+        try (InputStream in = item.content.open()) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[256 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+                bytesRead += n;
+                throttle();
+                if (isDeadlineReached()) {
+                    throw new DeadlineReached();
+                }
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // ---
+    // Sleep until the average rate since the start is down to "bytesPerSec"
+    // ---
+
+    private void throttle() {
+        if (bytesPerSec <= 0) {
+            return;
+        }
+        long dueNanos = startNanos + (long) (bytesRead * 1e9 / bytesPerSec);
+        long aheadMs = (dueNanos - System.nanoTime()) / 1_000_000;
+        if (aheadMs > 0) {
+            try {
+                Thread.sleep(aheadMs);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class DeadlineReached extends Exception {
+
+        private final static long serialVersionUID = 1L;
+    }
+}
@@ -0,0 +1,94 @@
+package backup.maintenance;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// ---
+// Carries a subtree of an earlier snapshot over into a new one without copying any data: the
+// directories are made anew, with the owner, mode and mtime of the old ones, and everything else
+// is hard-linked, like "rsync --link-dest" would do. Sharing the inodes is safe as long as nothing
+// writes other content into a file of a snapshot once it is written, which holds for what does write
+// there later: Deduplicator does not touch an inode, it renames a link to an equal one over a path,
+// and ParityDir.repair() writes back the very bytes the parity was taken of (and the mtime), which are
+// right for every snapshot sharing the inode. File systems without hard links fail here, and the
+// subtree then has to be copied after all.
+// ---
+
+public abstract class TreeLinker {
+
+    // ---
+    // Link "from" to "to", which must not exist yet. Returns the number of entries linked.
+    // ---
+
+    public static long link(@NotNull Path from, @NotNull Path to) throws IOException {
+        if (Files.exists(to, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(to.toString());
+        }
+        Files.createDirectories(to.getParent());
+        long[] count = new long[1];
+        Files.walkFileTree(from, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectory(to.resolve(from.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                // link(2) does not follow symlinks, so they are linked as they are
+                Files.createLink(to.resolve(from.relativize(file)), file);
+                count[0]++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                copyDirectoryAttributes(dir, to.resolve(from.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count[0];
+    }
+
+    // ---
+    // Undo a link() that failed half-way; the earlier snapshot keeps its inodes
+    // ---
+
+    public static void unlink(@NotNull Path to) throws IOException {
+        if (!Files.exists(to, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.walk(to)) {
+            for (Path p : stream.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private static void copyDirectoryAttributes(@NotNull Path from, @NotNull Path to) throws IOException {
+        try {
+            Files.setAttribute(to, "unix:uid", Files.getAttribute(from, "unix:uid", LinkOption.NOFOLLOW_LINKS), LinkOption.NOFOLLOW_LINKS);
+            Files.setAttribute(to, "unix:gid", Files.getAttribute(from, "unix:gid", LinkOption.NOFOLLOW_LINKS), LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException | SecurityException ex) {
+            // only root can do that; the new directory stays ours
+        }
+        int mode = (Integer) Files.getAttribute(from, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+        Files.setAttribute(to, "unix:mode", mode & 07777, LinkOption.NOFOLLOW_LINKS);
+        Files.getFileAttributeView(to, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                .setTimes(Files.getLastModifiedTime(from, LinkOption.NOFOLLOW_LINKS), null, null);
+    }
+}
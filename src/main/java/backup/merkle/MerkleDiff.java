@@ -0,0 +1,111 @@
+package backup.merkle;
+
+import backup.restore.RestoreItem;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// ---
+// Compares the Merkle trees of a batch in two snapshots, descending only into the directories
+// whose hashes differ. Reports the files (and symlinks) added, removed and modified, and the
+// directories added or removed, the latter without their content.
+// ---
+
+public class MerkleDiff {
+
+    public enum Change {Added, Removed, Modified}
+
+    public interface Listener {
+
+        void changed(@NotNull Change change, @NotNull String transferPath, @NotNull RestoreItem.Type type);
+    }
+
+    private final MerkleTree.Reader older;
+    private final MerkleTree.Reader newer;
+    private final Listener listener;
+
+    private long added;
+    private long removed;
+    private long modified;
+
+    public MerkleDiff(@NotNull MerkleTree.Reader older, @NotNull MerkleTree.Reader newer, @NotNull Listener listener) {
+        this.older = older;
+        this.newer = newer;
+        this.listener = listener;
+    }
+
+    public void run() throws IOException {
+        if (!Arrays.equals(older.getRootHash(), newer.getRootHash())) {
+            diffDir("", older.getRootOffset(), newer.getRootOffset());
+        }
+    }
+
+    private void diffDir(@NotNull String path, long olderOffset, long newerOffset) throws IOException {
+        // both lists are sorted by name, so they are merged
+        Iterator<MerkleTree.Entry> oldIter = older.readDir(olderOffset).iterator();
+        Iterator<MerkleTree.Entry> newIter = newer.readDir(newerOffset).iterator();
+        MerkleTree.Entry o = next(oldIter);
+        MerkleTree.Entry n = next(newIter);
+        while (o != null || n != null) {
+            int cmp = (o == null) ? 1 : (n == null) ? -1 : o.name.compareTo(n.name);
+            if (cmp < 0) {
+                report(Change.Removed, path + "/" + o.name, o.type);
+                o = next(oldIter);
+            }
+            else if (cmp > 0) {
+                report(Change.Added, path + "/" + n.name, n.type);
+                n = next(newIter);
+            }
+            else {
+                if (!Arrays.equals(o.hash, n.hash)) {
+                    String childPath = path + "/" + o.name;
+                    if (o.type == RestoreItem.Type.Directory && n.type == RestoreItem.Type.Directory) {
+                        diffDir(childPath, o.offset, n.offset);
+                    }
+                    else if (o.type != n.type) {
+                        report(Change.Removed, childPath, o.type);
+                        report(Change.Added, childPath, n.type);
+                    }
+                    else {
+                        report(Change.Modified, childPath, n.type);
+                    }
+                }
+                o = next(oldIter);
+                n = next(newIter);
+            }
+        }
+    }
+
+    private static MerkleTree.Entry next(@NotNull Iterator<MerkleTree.Entry> iter) {
+        return iter.hasNext() ? iter.next() : null;
+    }
+
+    private void report(@NotNull Change change, @NotNull String transferPath, @NotNull RestoreItem.Type type) {
+        switch (change) {
+            case Added -> added++;
+            case Removed -> removed++;
+            case Modified -> modified++;
+        }
+        listener.changed(change, transferPath, type);
+    }
+
+    public long getAdded() {
+        return added;
+    }
+
+    public long getRemoved() {
+        return removed;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    // Number of directory records read from both trees
+
+    public long getDirectoriesRead() {
+        return older.getRecordsRead() + newer.getRecordsRead();
+    }
+}
@@ -0,0 +1,332 @@
+package backup.merkle;
+
+import backup.restore.RestoreItem;
+import backup.store.CryptoKeys;
+import backup.store.DecryptingInput;
+import backup.store.EncryptingOutput;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// ---
+// A Merkle tree over the content of a batch in a snapshot, recorded as "merkle_of_<batch>.tree"
+// in the TargetDir. Comparing the trees of two snapshots (see MerkleDiff) only needs to descend
+// into the directories whose hashes differ.
+//
+// The hash of a file or symlink covers its type, size, mtime, permissions, ownership, symlink
+// target and, if recorded with content hashes, the SHA-256 of its data. The hash of a directory
+// covers the same metadata plus the names and hashes of its entries, sorted by name.
+// Directories that are not in the batch themselves (like the transfer root) are synthesized
+// with empty metadata.
+//
+// Layout of the file (big-endian, as written by DataOutputStream):
+//
+// MAGIC, VERSION, content hashes flag (byte), then one record per directory, children before
+// parents, and a trailer: offset of the root record, hash of the root, MAGIC.
+//
+// A record is its length (int), then the number of entries (int) and for each entry: name
+// (modified UTF-8), type (byte), hash, size, mtime, offset of the entry's own record (-1
+// unless a directory).
+//
+// The tree of an encrypted batch would give away what the encryption hides (the names, sizes and
+// owners, and with content hashes the hashes of the plain data), so it is kept encrypted, too (see
+// encrypt()). It is decrypted into a temporary file to be read.
+// ---
+
+public class MerkleTree {
+
+    private final static String MAGIC = "BTUMRKL1";
+    private final static int VERSION = 1;
+
+    public final static int HASH_LENGTH = 32;
+
+    private final static int TRAILER_LENGTH = 8 + HASH_LENGTH + MAGIC.length();
+
+    // ---
+    // An entry of a directory record
+    // ---
+
+    public static class Entry {
+
+        @NotNull
+        public final String name;
+
+        @NotNull
+        public final RestoreItem.Type type;
+
+        @NotNull
+        public final byte[] hash;
+
+        public final long size;
+        public final long mtimeMs;
+
+        // where the record of a directory is; -1 otherwise
+
+        public final long offset;
+
+        Entry(@NotNull String name, @NotNull RestoreItem.Type type, @NotNull byte[] hash, long size, long mtimeMs, long offset) {
+            this.name = name;
+            this.type = type;
+            this.hash = hash;
+            this.size = size;
+            this.mtimeMs = mtimeMs;
+            this.offset = offset;
+        }
+    }
+
+    // ---
+    // Write the tree of "items" to "out"; "withContent" adds the hashes of the file data,
+    // which means reading all of it. Returns the root hash.
+    // ---
+
+    public static @NotNull byte[] write(@NotNull List<RestoreItem> items, @NotNull File out, boolean withContent) throws IOException {
+        Node root = new Node(null);
+        for (RestoreItem item : items) {
+            if (item.transferPath.equals("/")) {
+                root.item = item;
+            }
+            else {
+                root.nodeAt(item.transferPath).item = item;
+            }
+        }
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)))) {
+            dos.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            dos.writeInt(VERSION);
+            dos.writeBoolean(withContent);
+            long[] position = {MAGIC.length() + 4 + 1};
+            Entry rootEntry = writeDir(root, "", dos, position, withContent);
+            dos.writeLong(rootEntry.offset);
+            dos.write(rootEntry.hash);
+            dos.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            return rootEntry.hash;
+        }
+    }
+
+    // ---
+    // Encrypt the tree file "plainFile" into each of "treeFiles", which must have the same name: it is the
+    // object name the encryption is bound to, so that the trees of two batches cannot be swapped
+    // ---
+
+    public static void encrypt(@NotNull File plainFile, @NotNull List<File> treeFiles, @NotNull CryptoKeys keys) throws IOException {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        List<OutputStream> sinks = new ArrayList<>();
+        try {
+            for (File treeFile : treeFiles) {
+                sinks.add(new BufferedOutputStream(new FileOutputStream(treeFile)));
+            }
+            try (InputStream in = new FileInputStream(plainFile);
+                 EncryptingOutput out = new EncryptingOutput(sinks, pool, 2, keys, treeFiles.get(0).getName())) {
+                in.transferTo(out);
+            }
+        } finally {
+            for (OutputStream sink : sinks) {
+                sink.close();
+            }
+            pool.shutdown();
+        }
+    }
+
+    // ---
+    // Decrypt what encrypt() wrote to "treeFile" into "plainFile"
+    // ---
+
+    public static void decrypt(@NotNull File treeFile, @NotNull File plainFile, @NotNull CryptoKeys keys) throws IOException {
+        try (InputStream in = new DecryptingInput(new BufferedInputStream(new FileInputStream(treeFile)), keys, treeFile.getName());
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(plainFile))) {
+            in.transferTo(out);
+        }
+    }
+
+    private static class Node {
+
+        RestoreItem item;
+        final SortedMap<String, Node> children = new TreeMap<>();
+
+        Node(RestoreItem item) {
+            this.item = item;
+        }
+
+        Node nodeAt(@NotNull String transferPath) {
+            Node current = this;
+            for (String name : transferPath.substring(1).split("/")) {
+                current = current.children.computeIfAbsent(name, x -> new Node(null));
+            }
+            return current;
+        }
+    }
+
+    // ---
+    // Post-order: the records of the subdirectories are written before the record of "dir"
+    // ---
+
+    private static Entry writeDir(@NotNull Node dir, @NotNull String name, @NotNull DataOutputStream dos, @NotNull long[] position, boolean withContent) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, Node> child : dir.children.entrySet()) {
+            Node node = child.getValue();
+            if (!node.children.isEmpty() || node.item == null || node.item.type == RestoreItem.Type.Directory) {
+                entries.add(writeDir(node, child.getKey(), dos, position, withContent));
+            }
+            else {
+                RestoreItem item = node.item;
+                byte[] contentHash = (withContent && item.type == RestoreItem.Type.File) ? contentHashOf(item) : new byte[0];
+                entries.add(new Entry(child.getKey(), item.type, hashOf(item, contentHash, Collections.emptyList()), item.size, item.mtimeMs, -1));
+            }
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream rec = new DataOutputStream(buf);
+        rec.writeInt(entries.size());
+        for (Entry e : entries) {
+            rec.writeUTF(e.name);
+            rec.writeByte(e.type.ordinal());
+            rec.write(e.hash);
+            rec.writeLong(e.size);
+            rec.writeLong(e.mtimeMs);
+            rec.writeLong(e.offset);
+        }
+        long offset = position[0];
+        dos.writeInt(buf.size());
+        buf.writeTo(dos);
+        position[0] += 4 + buf.size();
+        long mtimeMs = (dir.item == null) ? 0 : dir.item.mtimeMs;
+        return new Entry(name, RestoreItem.Type.Directory, hashOf(dir.item, new byte[0], entries), 0, mtimeMs, offset);
+    }
+
+    // ---
+    // The hash of the entry of a file or symlink, as recorded in the tree; "contentHash" is the SHA-256
+    // of the file's data if the tree has content hashes, empty otherwise
+    // ---
+
+    public static @NotNull byte[] leafHashOf(@NotNull RestoreItem item, @NotNull byte[] contentHash) {
+        return hashOf(item, contentHash, Collections.emptyList());
+    }
+
+    private static byte[] hashOf(RestoreItem item, @NotNull byte[] contentHash, @NotNull List<Entry> entries) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(buf);
+            if (item != null) {
+                dos.writeByte(item.type.ordinal());
+                dos.writeLong(item.size);
+                dos.writeLong(item.mtimeMs);
+                dos.writeInt(item.permissions);
+                dos.writeInt(item.uid);
+                dos.writeInt(item.gid);
+                dos.writeUTF(item.symlinkTarget == null ? "" : item.symlinkTarget);
+            }
+            dos.write(contentHash);
+            for (Entry e : entries) {
+                dos.writeUTF(e.name);
+                dos.write(e.hash);
+            }
+            dos.flush();
+            return md.digest(buf.toByteArray());
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            // SHA-256 is always there and a ByteArrayOutputStream does not fail
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] contentHashOf(@NotNull RestoreItem item) throws IOException {
+        try (InputStream in = item.content.open()) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // ---
+    // Random access to the directory records of a tree file
+    // ---
+
+    public static class Reader implements Closeable {
+
+        private final RandomAccessFile raf;
+        private final boolean withContent;
+        private final long rootOffset;
+        private final byte[] rootHash = new byte[HASH_LENGTH];
+        private long recordsRead;
+
+        public Reader(@NotNull File file) throws IOException {
+            this.raf = new RandomAccessFile(file, "r");
+            try {
+                byte[] magic = new byte[MAGIC.length()];
+                raf.readFully(magic);
+                if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII)) || raf.readInt() != VERSION) {
+                    throw new IOException("'" + file + "' is not a Merkle tree file");
+                }
+                this.withContent = raf.readBoolean();
+                if (raf.length() < TRAILER_LENGTH) {
+                    throw new IOException("'" + file + "' is truncated");
+                }
+                raf.seek(raf.length() - TRAILER_LENGTH);
+                this.rootOffset = raf.readLong();
+                raf.readFully(rootHash);
+                raf.readFully(magic);
+                if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+                    throw new IOException("'" + file + "' is truncated");
+                }
+            } catch (IOException ex) {
+                raf.close();
+                throw ex;
+            }
+        }
+
+        public boolean isWithContent() {
+            return withContent;
+        }
+
+        public long getRootOffset() {
+            return rootOffset;
+        }
+
+        public @NotNull byte[] getRootHash() {
+            return rootHash.clone();
+        }
+
+        // ---
+        // The entries of the directory whose record is at "offset", sorted by name
+        // ---
+
+        public @NotNull List<Entry> readDir(long offset) throws IOException {
+            raf.seek(offset);
+            byte[] record = new byte[raf.readInt()];
+            raf.readFully(record);
+            recordsRead++;
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record));
+            int count = dis.readInt();
+            List<Entry> res = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = dis.readUTF();
+                RestoreItem.Type type = RestoreItem.Type.values()[dis.readByte()];
+                byte[] hash = new byte[HASH_LENGTH];
+                dis.readFully(hash);
+                res.add(new Entry(name, type, hash, dis.readLong(), dis.readLong(), dis.readLong()));
+            }
+            return res;
+        }
+
+        // Number of directory records read so far
+
+        public long getRecordsRead() {
+            return recordsRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package backup.probe;
+
+import backup.helpers.DirNaming;
+import backup.helpers.DurabilityBarrier;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// ---
+// A quick characterisation of the device holding a DestDir, done in a scratch directory under
+// its meta directory, which is removed afterwards. It measures:
+//
+// - sequential write: SEQUENTIAL_BYTES written in large blocks, then fsync'ed
+// - file creation rate: SMALL_FILES files of SMALL_FILE_SIZE bytes, then the file system is flushed
+// - fsync latency: the median of FSYNC_ROUNDS small writes, each followed by fsync
+//
+// All measurements include getting the data to the device, not just into the page cache.
+// It takes a few seconds on a USB 2 disk.
+// ---
+
+public abstract class DestinationProbe {
+
+    private final static long SEQUENTIAL_BYTES = 32L * 1024 * 1024;
+    private final static int SEQUENTIAL_BLOCK = 1024 * 1024;
+    private final static int SMALL_FILES = 400;
+    private final static int SMALL_FILE_SIZE = 4096;
+    private final static int FSYNC_ROUNDS = 15;
+
+    public static @NotNull DeviceProfile probe(@NotNull File destDir) throws IOException {
+        Path scratch = new File(new File(destDir, DirNaming.buildAtomicMetaDirName()), "probe_scratch_" + ProcessHandle.current().pid()).toPath();
+        Files.createDirectories(scratch);
+        try {
+            String fileStore = describeFileStore(scratch);
+            double seq = measureSequentialWrite(scratch.resolve("sequential"));
+            double creates = measureFileCreation(scratch.resolve("small"));
+            double fsync = measureFsyncLatency(scratch.resolve("fsync"));
+            return new DeviceProfile(Instant.now(), seq, creates, fsync, fileStore);
+        } finally {
+            deleteRecursively(scratch);
+        }
+    }
+
+    private static String describeFileStore(@NotNull Path dir) {
+        try {
+            FileStore store = Files.getFileStore(dir);
+            return store.name() + " (" + store.type() + ")";
+        } catch (IOException ex) {
+            return "unknown";
+        }
+    }
+
+    // MiB/s
+
+    private static double measureSequentialWrite(@NotNull Path file) throws IOException {
+        byte[] block = new byte[SEQUENTIAL_BLOCK];
+        // incompressible, in case the device compresses
+        new Random(1).nextBytes(block);
+        long start = System.nanoTime();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < SEQUENTIAL_BYTES; written += SEQUENTIAL_BLOCK) {
+                ByteBuffer buf = ByteBuffer.wrap(block);
+                while (buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+            }
+            ch.force(true);
+        }
+        double secs = Math.max(1e-6, (System.nanoTime() - start) / 1e9);
+        return SEQUENTIAL_BYTES / 1024.0 / 1024.0 / secs;
+    }
+
+    // Files per second
+
+    private static double measureFileCreation(@NotNull Path dir) throws IOException {
+        Files.createDirectories(dir);
+        byte[] data = new byte[SMALL_FILE_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < SMALL_FILES; i++) {
+            Files.write(dir.resolve("f" + i), data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+        DurabilityBarrier.syncFileSystemOf(dir.toFile());
+        double secs = Math.max(1e-6, (System.nanoTime() - start) / 1e9);
+        return SMALL_FILES / secs;
+    }
+
+    // Milliseconds, median
+
+    private static double measureFsyncLatency(@NotNull Path file) throws IOException {
+        double[] latencies = new double[FSYNC_ROUNDS];
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < FSYNC_ROUNDS; i++) {
+                long start = System.nanoTime();
+                ch.write(ByteBuffer.wrap(new byte[SMALL_FILE_SIZE]), (long) i * SMALL_FILE_SIZE);
+                ch.force(false);
+                latencies[i] = (System.nanoTime() - start) / 1e6;
+            }
+        }
+        Arrays.sort(latencies);
+        return latencies[FSYNC_ROUNDS / 2];
+    }
+
+    private static void deleteRecursively(@NotNull Path dir) throws IOException {
+        try (Stream<Path> stream = Files.walk(dir)) {
+            for (Path p : stream.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package backup.probe;
+
+import backup.helpers.DirNaming;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+
+// ---
+// What a DestinationProbe measured on a device. The profiles are kept in a history file on the
+// device itself (in the DestDir's meta directory, see DirNaming), so the history follows the
+// disk from machine to machine.
+// ---
+
+public class DeviceProfile {
+
+    // Below this sequential write speed (MiB/s), the device is at best USB 2 or a dying stick
+
+    public final static double SLOW_SEQUENTIAL_WRITE = 40;
+
+    // At or above this, the device is SSD-class
+
+    public final static double FAST_SEQUENTIAL_WRITE = 150;
+
+    // Below this many file creations per second, the archive format pays off for small files
+
+    public final static double SLOW_FILE_CREATION = 500;
+
+    // Warn if a measurement is below this fraction of the median of the history
+
+    public final static double DEGRADATION_WARNING_RATIO = 0.5;
+
+    private final static String HEADER = "# when\tseq_write_mib_s\tcreates_s\tfsync_ms\tfile_store";
+
+    public final Instant when;
+    public final double sequentialWriteMiBps;
+    public final double fileCreationsPerSec;
+    public final double fsyncLatencyMs;
+    public final String fileStore;
+
+    public DeviceProfile(@NotNull Instant when, double sequentialWriteMiBps, double fileCreationsPerSec, double fsyncLatencyMs, @NotNull String fileStore) {
+        this.when = when;
+        this.sequentialWriteMiBps = sequentialWriteMiBps;
+        this.fileCreationsPerSec = fileCreationsPerSec;
+        this.fsyncLatencyMs = fsyncLatencyMs;
+        this.fileStore = fileStore;
+    }
+
+    // ---
+    // What all of "profiles" (of several DestDirs written together) manage: each metric is the worst
+    // of them, which may come from different devices. Returns null if "profiles" is empty.
+    // ---
+
+    public static DeviceProfile worstOf(@NotNull List<DeviceProfile> profiles) {
+        if (profiles.isEmpty()) {
+            return null;
+        }
+        return new DeviceProfile(profiles.stream().map(x -> x.when).max(Instant::compareTo).orElseThrow(),
+                profiles.stream().mapToDouble(x -> x.sequentialWriteMiBps).min().orElseThrow(),
+                profiles.stream().mapToDouble(x -> x.fileCreationsPerSec).min().orElseThrow(),
+                profiles.stream().mapToDouble(x -> x.fsyncLatencyMs).max().orElseThrow(),
+                profiles.stream().map(x -> x.fileStore).distinct().collect(Collectors.joining(", ")));
+    }
+
+    // ---
+    // How many threads should work for this device: all cores if it is fast enough to
+    // keep them busy, fewer for slow devices, where more threads only compete for the bus.
+    // ---
+
+    public int recommendedParallelism(int cores) {
+        if (sequentialWriteMiBps >= FAST_SEQUENTIAL_WRITE) {
+            return cores;
+        }
+        else if (sequentialWriteMiBps >= SLOW_SEQUENTIAL_WRITE) {
+            return Math.max(1, cores / 2);
+        }
+        else {
+            return 1;
+        }
+    }
+
+    // ---
+    // Should a batch with that many files and bytes rather be stored in archive format?
+    // Only if the device is slow at creating files and the batch is made of many small files.
+    // ---
+
+    public final static long ARCHIVE_MIN_FILES = 10_000;
+    public final static long ARCHIVE_MAX_MEAN_FILE_SIZE = 64 * 1024;
+
+    public boolean prefersArchiveFor(long files, long bytes) {
+        return fileCreationsPerSec < SLOW_FILE_CREATION && files >= ARCHIVE_MIN_FILES && bytes / files <= ARCHIVE_MAX_MEAN_FILE_SIZE;
+    }
+
+    public String toString() {
+        return String.format("%.1f MiB/s sequential write, %.0f file creations/s, %.2f ms fsync latency on '%s'",
+                sequentialWriteMiBps, fileCreationsPerSec, fsyncLatencyMs, fileStore);
+    }
+
+    // ---
+    // Compare with the history (older profiles); returns human-readable warnings, empty if all is well
+    // ---
+
+    public @NotNull List<String> compareWithHistory(@NotNull List<DeviceProfile> history) {
+        List<String> res = new ArrayList<>();
+        if (history.isEmpty()) {
+            return res;
+        }
+        checkAgainstMedian(res, history, "sequential write", p -> p.sequentialWriteMiBps, sequentialWriteMiBps);
+        checkAgainstMedian(res, history, "file creation rate", p -> p.fileCreationsPerSec, fileCreationsPerSec);
+        // for latency, higher is worse
+        checkAgainstMedian(res, history, "fsync speed", p -> 1 / Math.max(p.fsyncLatencyMs, 0.001), 1 / Math.max(fsyncLatencyMs, 0.001));
+        return res;
+    }
+
+    private static void checkAgainstMedian(List<String> res, List<DeviceProfile> history, String what, ToDoubleFunction<DeviceProfile> f, double now) {
+        double[] values = history.stream().mapToDouble(f).sorted().toArray();
+        double median = values[values.length / 2];
+        if (now < median * DEGRADATION_WARNING_RATIO) {
+            res.add(String.format("The %s is at %.0f%% of the median of the %d previous probes", what, 100 * now / median, values.length));
+        }
+    }
+
+    // ---
+    // History file handling
+    // ---
+
+    static @NotNull File historyFileOf(@NotNull File destDir) {
+        return new File(new File(destDir, DirNaming.buildAtomicMetaDirName()), DirNaming.buildAtomicDeviceProfileFileName());
+    }
+
+    public static @NotNull List<DeviceProfile> readHistory(@NotNull File destDir) throws IOException {
+        File file = historyFileOf(destDir);
+        List<DeviceProfile> res = new ArrayList<>();
+        if (!file.isFile()) {
+            return res;
+        }
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.isBlank()) {
+                continue;
+            }
+            String[] f = line.split("\t", -1);
+            if (f.length != 5) {
+                continue; // written by a future version, maybe
+            }
+            try {
+                res.add(new DeviceProfile(Instant.parse(f[0]), Double.parseDouble(f[1]), Double.parseDouble(f[2]), Double.parseDouble(f[3]), f[4]));
+            } catch (RuntimeException ex) {
+                // skip damaged lines
+            }
+        }
+        return res;
+    }
+
+    public void appendToHistory(@NotNull File destDir) throws IOException {
+        File file = historyFileOf(destDir);
+        Files.createDirectories(file.getParentFile().toPath());
+        String line = when + "\t" + sequentialWriteMiBps + "\t" + fileCreationsPerSec + "\t" + fsyncLatencyMs + "\t" + fileStore.replace('\t', ' ') + "\n";
+        if (!file.exists()) {
+            line = HEADER + "\n" + line;
+        }
+        Files.writeString(file.toPath(), line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
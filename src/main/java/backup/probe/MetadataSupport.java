@@ -0,0 +1,128 @@
+package backup.probe;
+
+import backup.helpers.DirNaming;
+import backup.restore.AclRestorer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// ---
+// Which of the POSIX metadata the file system of a DestDir keeps, found out by trying on a scratch
+// file under its meta directory: permissions (chmod), extended attributes (a "user." attribute) and
+// ACLs (setfacl(1)). FAT, exFAT and NTFS (through FUSE) disks keep none of them, and rsync would
+// then fail on every single file. Without setfacl(1), ACLs are assumed to be kept on the file systems
+// that keep extended attributes, unless the file system is known not to.
+// ---
+
+public class MetadataSupport {
+
+    private final static Set<String> NO_ACL_FILE_SYSTEMS = Set.of("vfat", "msdos", "exfat", "ntfs", "ntfs3", "fuseblk", "iso9660", "udf");
+
+    public final static MetadataSupport FULL = new MetadataSupport(true, true, true);
+
+    public final boolean permissions;
+    public final boolean xattrs;
+    public final boolean acls;
+
+    public MetadataSupport(boolean permissions, boolean xattrs, boolean acls) {
+        this.permissions = permissions;
+        this.xattrs = xattrs;
+        this.acls = acls;
+    }
+
+    public boolean isFull() {
+        return permissions && xattrs && acls;
+    }
+
+    // ---
+    // What both keep, for several DestDirs written with the same rsync options
+    // ---
+
+    public @NotNull MetadataSupport and(@NotNull MetadataSupport other) {
+        return new MetadataSupport(permissions && other.permissions, xattrs && other.xattrs, acls && other.acls);
+    }
+
+    public static @NotNull MetadataSupport detect(@NotNull File destDir) throws IOException {
+        Path metaDir = new File(destDir, DirNaming.buildAtomicMetaDirName()).toPath();
+        Files.createDirectories(metaDir);
+        Path scratch = metaDir.resolve("metadata_probe_" + ProcessHandle.current().pid());
+        Files.deleteIfExists(scratch);
+        Files.createFile(scratch);
+        try {
+            // ACLs are stored as extended attributes, and neither makes sense without permissions
+            boolean permissions = keepsPermissions(scratch);
+            boolean xattrs = permissions && keepsXattrs(scratch);
+            return new MetadataSupport(permissions, xattrs, xattrs && keepsAcls(scratch));
+        } finally {
+            Files.deleteIfExists(scratch);
+        }
+    }
+
+    private static boolean keepsPermissions(@NotNull Path scratch) {
+        try {
+            for (String perms : new String[]{"rw-r-----", "rw-rw-r--"}) {
+                Files.setPosixFilePermissions(scratch, PosixFilePermissions.fromString(perms));
+                if (!PosixFilePermissions.toString(Files.getPosixFilePermissions(scratch, LinkOption.NOFOLLOW_LINKS)).equals(perms)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+
+    private static boolean keepsXattrs(@NotNull Path scratch) {
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(scratch, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+            if (view == null) {
+                return false;
+            }
+            view.write("backup_probe", ByteBuffer.wrap("1".getBytes(StandardCharsets.US_ASCII)));
+            return view.list().contains("backup_probe");
+        } catch (IOException | UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+
+    private static boolean keepsAcls(@NotNull Path scratch) {
+        if (new File(AclRestorer.SETFACL_EXE_NAME).canExecute()) {
+            try {
+                Process p = new ProcessBuilder(AclRestorer.SETFACL_EXE_NAME, "--modify", "user:" + Files.getAttribute(scratch, "unix:uid") + ":r--", scratch.toString())
+                        .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+                if (!p.waitFor(10, TimeUnit.SECONDS)) {
+                    p.destroy();
+                    return false;
+                }
+                return p.exitValue() == 0;
+            } catch (IOException ex) {
+                return false;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        try {
+            FileStore store = Files.getFileStore(scratch);
+            return !NO_ACL_FILE_SYSTEMS.contains(store.type());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "permissions " + (permissions ? "kept" : "lost") + ", extended attributes " + (xattrs ? "kept" : "lost") + ", ACLs " + (acls ? "kept" : "lost");
+    }
+}
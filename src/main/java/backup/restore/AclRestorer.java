@@ -0,0 +1,225 @@
+package backup.restore;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
+// ---
+// rsync ("--acls") keeps the POSIX ACLs on the copies of a plain tree, from where they are carried
+// over to the restored files with getfacl(1) and setfacl(1): the ACLs of the copy are dumped, the
+// file names in the dump are replaced by the restore paths and the dump is fed to "setfacl --restore".
+// Only entries with more than the base ACL (i.e. the permission bits) are dumped.
+// The same dump, parsed, carries the ACLs into an export (see TarExporter) and into the metadata
+// sidecar of a destination that has no ACLs (see MetadataSidecar), from where apply() restores them.
+//
+// The archive and encrypted formats do not keep ACLs.
+// ---
+
+public abstract class AclRestorer {
+
+    private final static String CLASS = AclRestorer.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    public final static String GETFACL_EXE_NAME = "/usr/bin/getfacl";
+    public final static String SETFACL_EXE_NAME = "/usr/bin/setfacl";
+
+    private final static String FILE_LINE_PREFIX = "# file: ";
+
+    public static boolean isAvailable() {
+        return new File(GETFACL_EXE_NAME).canExecute() && new File(SETFACL_EXE_NAME).canExecute();
+    }
+
+    // ---
+    // "copyDir" is the "copy_of_<batch>" directory, "restored" maps the transfer paths (relative to
+    // "copyDir") of the restored items to their restore paths. Returns the number of ACLs restored.
+    // ---
+
+    public static int restore(@NotNull File copyDir, @NotNull Map<String, Path> restored) throws IOException {
+        if (!isAvailable()) {
+            logger.warn("'{}' or '{}' are missing, the ACLs are not restored", GETFACL_EXE_NAME, SETFACL_EXE_NAME);
+            return 0;
+        }
+        String dump = run(copyDir, null, GETFACL_EXE_NAME, "--recursive", "--physical", "--numeric", "--skip-base", ".");
+        StringBuilder buf = new StringBuilder();
+        int count = 0;
+        boolean keep = false;
+        for (String line : dump.split("\n", -1)) {
+            if (line.startsWith(FILE_LINE_PREFIX)) {
+                // getfacl prints "./x" as "x", and escapes special characters in octal
+                String name = unescape(line.substring(FILE_LINE_PREFIX.length()));
+                String transferPath = name.equals(".") ? "/" : "/" + (name.startsWith("./") ? name.substring(2) : name);
+                Path target = restored.get(transferPath);
+                keep = (target != null);
+                if (keep) {
+                    buf.append(FILE_LINE_PREFIX).append(escape(target.toString())).append('\n');
+                    count++;
+                }
+            }
+            else if (keep) {
+                buf.append(line).append('\n');
+            }
+        }
+        if (count > 0) {
+            run(new File("/"), buf.toString(), SETFACL_EXE_NAME, "--restore=-");
+        }
+        return count;
+    }
+
+    // ---
+    // The same from ACLs in the form read() returns them, e.g. from a metadata sidecar (see MetadataSidecar)
+    // ---
+
+    public static int apply(@NotNull Map<String, String[]> acls, @NotNull Map<String, Path> restored) throws IOException {
+        if (!new File(SETFACL_EXE_NAME).canExecute()) {
+            logger.warn("'{}' is missing, the ACLs are not restored", SETFACL_EXE_NAME);
+            return 0;
+        }
+        StringBuilder buf = new StringBuilder();
+        int count = 0;
+        for (Map.Entry<String, String[]> e : acls.entrySet()) {
+            Path target = restored.get(e.getKey());
+            if (target == null) {
+                continue;
+            }
+            buf.append(FILE_LINE_PREFIX).append(escape(target.toString())).append('\n');
+            for (String entry : e.getValue()[0].split(",")) {
+                buf.append(entry).append('\n');
+            }
+            for (String entry : e.getValue()[1].split(",")) {
+                if (!entry.isEmpty()) {
+                    buf.append("default:").append(entry).append('\n');
+                }
+            }
+            buf.append('\n');
+            count++;
+        }
+        if (count > 0) {
+            run(new File("/"), buf.toString(), SETFACL_EXE_NAME, "--restore=-");
+        }
+        return count;
+    }
+
+    // ---
+    // The ACLs of the files below "copyDir" that have more than the base ACL, by transfer path, in the
+    // short text form of acl_to_text(3): element 0 is the access ACL, element 1 the default ACL (empty if none).
+    // ---
+
+    public static @NotNull Map<String, String[]> read(@NotNull File copyDir) throws IOException {
+        Map<String, String[]> res = new HashMap<>();
+        if (!isAvailable()) {
+            logger.warn("'{}' is missing, the ACLs are not read", GETFACL_EXE_NAME);
+            return res;
+        }
+        String dump = run(copyDir, null, GETFACL_EXE_NAME, "--recursive", "--physical", "--numeric", "--skip-base", ".");
+        String transferPath = null;
+        StringJoiner access = null;
+        StringJoiner dflt = null;
+        for (String line : dump.split("\n", -1)) {
+            if (line.startsWith(FILE_LINE_PREFIX)) {
+                String name = unescape(line.substring(FILE_LINE_PREFIX.length()));
+                transferPath = name.equals(".") ? "/" : "/" + (name.startsWith("./") ? name.substring(2) : name);
+                access = new StringJoiner(",");
+                dflt = new StringJoiner(",");
+                res.put(transferPath, new String[2]);
+            }
+            else if (transferPath != null && !line.isEmpty() && !line.startsWith("#")) {
+                // "user:1000:rwx\t#effective:r--" has the effective rights appended
+                String entry = line.split("\\s", 2)[0];
+                if (entry.startsWith("default:")) {
+                    dflt.add(entry.substring("default:".length()));
+                }
+                else {
+                    access.add(entry);
+                }
+                res.get(transferPath)[0] = access.toString();
+                res.get(transferPath)[1] = dflt.toString();
+            }
+        }
+        res.values().removeIf(acl -> acl[0] == null);
+        return res;
+    }
+
+    private static String run(@NotNull File dir, String stdin, @NotNull String... cmd) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.directory(dir);
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process p = pb.start();
+        try (OutputStream out = p.getOutputStream()) {
+            if (stdin != null) {
+                out.write(stdin.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        while (p.isAlive()) {
+            try {
+                p.waitFor();
+            } catch (InterruptedException ex) {
+                // may have been woken up early!
+            }
+        }
+        if (p.exitValue() != 0) {
+            throw new IOException("'" + cmd[0] + "' failed with exit value " + p.exitValue());
+        }
+        return output;
+    }
+
+    // getfacl writes "\ooo" for whitespace, backslash and non-printable characters
+
+    static @NotNull String unescape(@NotNull String name) {
+        if (name.indexOf('\\') < 0) {
+            return name;
+        }
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < name.length()) {
+            char ch = name.charAt(i);
+            if (ch == '\\' && isOctal(name, i + 1)) {
+                buf.write(Integer.parseInt(name.substring(i + 1, i + 4), 8));
+                i += 4;
+            }
+            else {
+                byte[] bytes = String.valueOf(ch).getBytes(StandardCharsets.UTF_8);
+                buf.write(bytes, 0, bytes.length);
+                i++;
+            }
+        }
+        return buf.toString(StandardCharsets.UTF_8);
+    }
+
+    static @NotNull String escape(@NotNull String name) {
+        StringBuilder buf = new StringBuilder();
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            int v = b & 0xff;
+            if (v <= ' ' || v == '\\' || v >= 0x7f) {
+                buf.append(String.format("\\%03o", v));
+            }
+            else {
+                buf.append((char) v);
+            }
+        }
+        return buf.toString();
+    }
+
+    private static boolean isOctal(@NotNull String s, int from) {
+        if (from + 3 > s.length()) {
+            return false;
+        }
+        for (int i = from; i < from + 3; i++) {
+            char ch = s.charAt(i);
+            if (ch < '0' || ch > '7') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
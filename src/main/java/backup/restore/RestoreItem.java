@@ -0,0 +1,129 @@
+package backup.restore;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+// ---
+// One thing to restore, whatever the format it was stored in. The "content" knows how to
+// produce the file's data; the metadata is applied by the Restorer afterwards.
+// ---
+
+public class RestoreItem {
+
+    public enum Type {File, Directory, Symlink}
+
+    public interface Content {
+
+        @NotNull
+        InputStream open() throws IOException;
+
+        // Write the data of the file to "target", which does not exist
+
+        default void writeTo(@NotNull Path target) throws IOException {
+            try (InputStream in = open()) {
+                Files.copy(in, target);
+            }
+        }
+
+        // Write at most "length" bytes of the data of the file to "target", returning how many there were.
+        // If reading or writing fails half-way, what has been written is in the PartialTransferException.
+
+        default long transferTo(@NotNull WritableByteChannel target, long length) throws IOException {
+            long done = 0;
+            try (ReadableByteChannel in = Channels.newChannel(open())) {
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.min(1024 * 1024, Math.max(1, length)));
+                while (done < length) {
+                    buf.clear().limit((int) Math.min(buf.capacity(), length - done));
+                    int n = in.read(buf);
+                    if (n < 0) {
+                        break;
+                    }
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        done += target.write(buf);
+                    }
+                }
+                return done;
+            } catch (IOException ex) {
+                throw new PartialTransferException(done, ex);
+            }
+        }
+    }
+
+    // ---
+    // Content.transferTo() failed after "done" bytes had gone to the target
+    // ---
+
+    public static class PartialTransferException extends IOException {
+
+        private final static long serialVersionUID = 1L;
+
+        public final long done;
+
+        public PartialTransferException(long done, @NotNull IOException cause) {
+            super(cause.toString(), cause);
+            this.done = done;
+        }
+    }
+
+    @NotNull
+    public final Type type;
+
+    @NotNull
+    public final String transferPath;
+
+    public final long size;
+    public final long mtimeMs;
+    public final int permissions;
+    public final int uid;
+    public final int gid;
+
+    public final String symlinkTarget; // null unless a Symlink
+    public final Content content; // null unless a File
+
+    // the file in a plain tree copy, from which the extended attributes are copied; null otherwise
+
+    public final Path xattrSource;
+
+    // the "user." extended attributes from a metadata sidecar (see MetadataSidecar), used instead of
+    // those of the "xattrSource"; null otherwise
+
+    public final Map<String, byte[]> xattrs;
+
+    public RestoreItem(@NotNull Type type, @NotNull String transferPath, long size, long mtimeMs, int permissions, int uid, int gid,
+                       String symlinkTarget, Content content, Path xattrSource) {
+        this(type, transferPath, size, mtimeMs, permissions, uid, gid, symlinkTarget, content, xattrSource, null);
+    }
+
+    public RestoreItem(@NotNull Type type, @NotNull String transferPath, long size, long mtimeMs, int permissions, int uid, int gid,
+                       String symlinkTarget, Content content, Path xattrSource, Map<String, byte[]> xattrs) {
+        this.type = type;
+        this.transferPath = transferPath;
+        this.size = size;
+        this.mtimeMs = mtimeMs;
+        this.permissions = permissions;
+        this.uid = uid;
+        this.gid = gid;
+        this.symlinkTarget = symlinkTarget;
+        this.content = content;
+        this.xattrSource = xattrSource;
+        this.xattrs = xattrs;
+    }
+
+    // ---
+    // The same item with the ownership, permissions and xattrs recorded in a metadata sidecar
+    // ---
+
+    public @NotNull RestoreItem withMetadata(int permissions, int uid, int gid, Map<String, byte[]> xattrs) {
+        return new RestoreItem(type, transferPath, size, mtimeMs, permissions, uid, gid, symlinkTarget, content, xattrSource, xattrs);
+    }
+}
@@ -0,0 +1,293 @@
+package backup.restore;
+
+import backup.config.Batch;
+import backup.helpers.FilterRuleSeq;
+import backup.scan.BatchWalker;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+// ---
+// Restores the items of a batch (see SnapshotReader) under a "restore root", at the place
+// where they were originally found: the file backed up as "/home/attic/x" is restored to
+// "<restore root>/home/attic/x". Use "/" as restore root to put things back where they were.
+//
+// The directories are created first, the files and symlinks are then written by a pool of
+// workers (the reading is the slow part: decryption, reassembly of deltas, small files on
+// a USB disk). The metadata of the directories is set last, deepest first, as writing into
+// a directory changes its modification time.
+//
+// Ownership can only be restored by root; failing to do so is counted, not logged per file.
+// ---
+
+public class Restorer {
+
+    private final static String CLASS = Restorer.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    @NotNull
+    private final File restoreRoot;
+
+    @NotNull
+    private final FilterRuleSeq filter;
+
+    private final int parallelism;
+
+    private final boolean dryrun;
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder directories = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder ownershipFailures = new LongAdder();
+    private final LongAdder xattrFailures = new LongAdder();
+
+    public Restorer(@NotNull File restoreRoot, @NotNull FilterRuleSeq filter, int parallelism, boolean dryrun) {
+        this.restoreRoot = restoreRoot;
+        this.filter = filter;
+        this.parallelism = Math.max(1, parallelism);
+        this.dryrun = dryrun;
+    }
+
+    // ---
+    // The path at which the item with "transferPath" was found when backing up "batch",
+    // null if no source of the batch can have yielded it. Several sources of a batch may
+    // share a transfer root (see BatchWalker.transferRootOf()), then any one will do.
+    // ---
+
+    public static Path originalPathOf(@NotNull Batch batch, @NotNull String transferPath) {
+        for (File src : batch.sources) {
+            Path source = src.toPath();
+            Path transferRoot = BatchWalker.transferRootOf(source);
+            String sourceTransferPath = BatchWalker.transferPathOf(transferRoot, source);
+            if (transferPath.equals(sourceTransferPath) || sourceTransferPath.equals("/") || transferPath.startsWith(sourceTransferPath + "/")) {
+                return transferRoot.resolve(transferPath.substring(1));
+            }
+        }
+        return null;
+    }
+
+    // ---
+    // Where the item with "transferPath" of "batch" is restored to, null if nowhere
+    // ---
+
+    public Path restorePathOf(@NotNull Batch batch, @NotNull String transferPath) {
+        Path original = originalPathOf(batch, transferPath);
+        if (original == null) {
+            return null;
+        }
+        return restoreRoot.toPath().resolve(original.toString().substring(1));
+    }
+
+    // ---
+    // The items selected by the filter; the filter applies to the transfer paths. As with rsync,
+    // nothing below an excluded directory is selected.
+    // ---
+
+    public @NotNull List<RestoreItem> select(@NotNull List<RestoreItem> items) {
+        Map<String, Boolean> excludedDirs = new HashMap<>();
+        List<RestoreItem> res = new ArrayList<>();
+        for (RestoreItem item : items) {
+            if (!filter.isExcluded(item.transferPath, item.type == RestoreItem.Type.Directory) && !isBelowExcludedDir(item.transferPath, excludedDirs)) {
+                res.add(item);
+            }
+        }
+        return res;
+    }
+
+    private boolean isBelowExcludedDir(@NotNull String transferPath, @NotNull Map<String, Boolean> excludedDirs) {
+        int slash = transferPath.lastIndexOf('/');
+        if (slash <= 0) {
+            return false;
+        }
+        String parent = transferPath.substring(0, slash);
+        Boolean excluded = excludedDirs.get(parent);
+        if (excluded == null) {
+            excluded = filter.isExcluded(parent, true) || isBelowExcludedDir(parent, excludedDirs);
+            excludedDirs.put(parent, excluded);
+        }
+        return excluded;
+    }
+
+    // ---
+    // Restore the "items" of "batch" that pass the filter. Returns the restored paths.
+    // ---
+
+    public @NotNull Map<RestoreItem, Path> restore(@NotNull Batch batch, @NotNull List<RestoreItem> items) throws IOException {
+        Map<RestoreItem, Path> targets = new LinkedHashMap<>();
+        for (RestoreItem item : select(items)) {
+            Path target = restorePathOf(batch, item.transferPath);
+            if (target == null) {
+                logger.warn("Cannot tell where '{}' of batch '{}' came from, not restoring it", item.transferPath, batch);
+                failures.increment();
+            }
+            else {
+                targets.put(item, target);
+            }
+        }
+        if (dryrun) {
+            for (RestoreItem item : targets.keySet()) {
+                (item.type == RestoreItem.Type.Directory ? directories : files).increment();
+            }
+            return targets;
+        }
+        // directories first, parents before children
+        List<Map.Entry<RestoreItem, Path>> dirs = new ArrayList<>();
+        List<Map.Entry<RestoreItem, Path>> others = new ArrayList<>();
+        for (Map.Entry<RestoreItem, Path> e : targets.entrySet()) {
+            (e.getKey().type == RestoreItem.Type.Directory ? dirs : others).add(e);
+        }
+        dirs.sort(Comparator.comparing(e -> e.getValue().getNameCount()));
+        for (Map.Entry<RestoreItem, Path> e : dirs) {
+            Files.createDirectories(e.getValue());
+            directories.increment();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<RestoreItem, Path> e : others) {
+                futures.add(pool.submit(() -> restoreOne(e.getKey(), e.getValue())));
+            }
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (Exception ex) {
+                    // restoreOne() handles its exceptions
+                    throw new IllegalStateException(ex);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        // deepest first
+        Collections.reverse(dirs);
+        for (Map.Entry<RestoreItem, Path> e : dirs) {
+            applyMetadata(e.getKey(), e.getValue());
+        }
+        return targets;
+    }
+
+    private void restoreOne(@NotNull RestoreItem item, @NotNull Path target) {
+        try {
+            Files.createDirectories(target.getParent());
+            if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException("A directory is in the way");
+            }
+            Files.deleteIfExists(target);
+            if (item.type == RestoreItem.Type.Symlink) {
+                Files.createSymbolicLink(target, Paths.get(item.symlinkTarget));
+            }
+            else {
+                item.content.writeTo(target);
+                bytes.add(Files.size(target));
+            }
+            applyMetadata(item, target);
+            files.increment();
+        } catch (IOException ex) {
+            logger.warn("Could not restore '{}' to '{}': {}", item.transferPath, target, ex.toString());
+            failures.increment();
+        }
+    }
+
+    private void applyMetadata(@NotNull RestoreItem item, @NotNull Path target) {
+        try {
+            if (!Files.getAttribute(target, "unix:uid", LinkOption.NOFOLLOW_LINKS).equals(item.uid)) {
+                Files.setAttribute(target, "unix:uid", item.uid, LinkOption.NOFOLLOW_LINKS);
+            }
+            if (!Files.getAttribute(target, "unix:gid", LinkOption.NOFOLLOW_LINKS).equals(item.gid)) {
+                Files.setAttribute(target, "unix:gid", item.gid, LinkOption.NOFOLLOW_LINKS);
+            }
+        } catch (IOException | SecurityException ex) {
+            ownershipFailures.increment();
+        }
+        try {
+            if (item.xattrs != null && item.type != RestoreItem.Type.Symlink) {
+                writeUserXattrs(item.xattrs, target);
+            }
+            else if (item.xattrSource != null && item.type != RestoreItem.Type.Symlink) {
+                copyUserXattrs(item.xattrSource, target);
+            }
+        } catch (IOException | UnsupportedOperationException ex) {
+            xattrFailures.increment();
+        }
+        try {
+            // after the ownership, as chown(2) clears the setuid and setgid bits
+            if (item.type != RestoreItem.Type.Symlink) {
+                Files.setAttribute(target, "unix:mode", item.permissions, LinkOption.NOFOLLOW_LINKS);
+            }
+            Files.getFileAttributeView(target, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                    .setTimes(FileTime.fromMillis(item.mtimeMs), null, null);
+        } catch (IOException ex) {
+            logger.warn("Could not set the metadata of '{}': {}", target, ex.toString());
+            failures.increment();
+        }
+    }
+
+    private static void copyUserXattrs(@NotNull Path from, @NotNull Path to) throws IOException {
+        UserDefinedFileAttributeView src = Files.getFileAttributeView(from, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        UserDefinedFileAttributeView dst = Files.getFileAttributeView(to, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if (src == null || dst == null) {
+            return;
+        }
+        for (String name : src.list()) {
+            ByteBuffer buf = ByteBuffer.allocate(src.size(name));
+            src.read(name, buf);
+            buf.flip();
+            dst.write(name, buf);
+        }
+    }
+
+    private static void writeUserXattrs(@NotNull Map<String, byte[]> xattrs, @NotNull Path to) throws IOException {
+        if (xattrs.isEmpty()) {
+            return;
+        }
+        UserDefinedFileAttributeView dst = Files.getFileAttributeView(to, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if (dst == null) {
+            throw new IOException("No extended attributes on '" + to + "'");
+        }
+        for (Map.Entry<String, byte[]> e : xattrs.entrySet()) {
+            dst.write(e.getKey(), ByteBuffer.wrap(e.getValue()));
+        }
+    }
+
+    // ---
+    // Counters
+    // ---
+
+    public long getFiles() {
+        return files.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getDirectories() {
+        return directories.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getOwnershipFailures() {
+        return ownershipFailures.sum();
+    }
+
+    public long getXattrFailures() {
+        return xattrFailures.sum();
+    }
+}
@@ -0,0 +1,241 @@
+package backup.restore;
+
+import backup.config.Batch;
+import backup.config.TargetFormat;
+import backup.helpers.DirNaming;
+import backup.scan.FileMeta;
+import backup.store.ArchiveStore;
+import backup.store.CryptoKeys;
+import backup.store.DeltaStore;
+import backup.store.EncryptedStore;
+import backup.store.MetadataSidecar;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+// ---
+// Lists what a snapshot (a TargetDir) holds for a batch, as RestoreItems, whatever the format
+// the batch was stored in (see TargetFormat). The files stored as block-level deltas are added
+// to those of the plain tree or the archive.
+// ---
+
+public abstract class SnapshotReader {
+
+    // ---
+    // The format of "batch" in "snapshotDir", null if the batch is not in the snapshot
+    // ---
+
+    public static TargetFormat formatOf(@NotNull File snapshotDir, @NotNull Batch batch) {
+        if (new File(snapshotDir, DirNaming.buildAtomicEncryptedDirName(batch)).isDirectory()) {
+            return TargetFormat.Encrypted;
+        }
+        else if (new File(snapshotDir, DirNaming.buildAtomicArchiveIndexFileName(batch)).isFile()) {
+            return TargetFormat.Archive;
+        }
+        else if (new File(snapshotDir, DirNaming.buildAtomicDumpDirName(batch)).isDirectory()) {
+            return TargetFormat.PlainTree;
+        }
+        else {
+            return null;
+        }
+    }
+
+    // ---
+    // The snapshot that actually holds "batch": a batch that did not change since an earlier snapshot
+    // is not copied again with "--fast-path", the snapshot names the earlier one instead (see FastPath)
+    // ---
+
+    public static @NotNull File holderOf(@NotNull File snapshotDir, @NotNull Batch batch) throws IOException {
+        File refFile = new File(snapshotDir, DirNaming.buildAtomicUnchangedFileName(batch));
+        if (!refFile.isFile()) {
+            return snapshotDir;
+        }
+        String name = Files.readString(refFile.toPath(), StandardCharsets.UTF_8).trim();
+        File holder = new File(snapshotDir.getParentFile(), name);
+        if (name.isEmpty() || name.contains("/") || !holder.isDirectory()) {
+            throw new IOException("Batch '" + batch + "' of '" + snapshotDir + "' is held by '" + name + "', which is missing");
+        }
+        return holder;
+    }
+
+    // ---
+    // The "passphrase" is only needed for the encrypted format; may be null otherwise
+    // ---
+
+    public static @NotNull List<RestoreItem> listBatch(@NotNull File snapshotDir, @NotNull Batch batch, char[] passphrase) throws IOException, GeneralSecurityException {
+        TargetFormat format = formatOf(snapshotDir, batch);
+        List<RestoreItem> res = new ArrayList<>();
+        if (format == null) {
+            return res;
+        }
+        switch (format) {
+            case Encrypted -> listEncrypted(snapshotDir, batch, passphrase, res);
+            case Archive -> listArchive(snapshotDir, batch, res);
+            case PlainTree -> {
+                listPlainTree(new File(snapshotDir, DirNaming.buildAtomicDumpDirName(batch)).toPath(), res);
+                applySidecar(MetadataSidecar.read(new File(snapshotDir, DirNaming.buildAtomicMetadataFileName(batch))), res);
+            }
+        }
+        listDeltas(snapshotDir, batch, res);
+        return res;
+    }
+
+    // ---
+    // On a destination that could not keep them, the ownership, permissions and xattrs of the copy are
+    // not those of the original: the sidecar has those (see MetadataSidecar). The ACLs are left to AclRestorer.
+    // ---
+
+    private static void applySidecar(MetadataSidecar.Content sidecar, @NotNull List<RestoreItem> res) {
+        if (sidecar == null) {
+            return;
+        }
+        Map<String, byte[]> none = Map.of();
+        for (ListIterator<RestoreItem> iter = res.listIterator(); iter.hasNext(); ) {
+            RestoreItem item = iter.next();
+            MetadataSidecar.Entry e = sidecar.entries.get(item.transferPath);
+            Map<String, byte[]> xattrs = sidecar.kept.xattrs ? null : (e == null ? none : e.xattrs);
+            if (e != null) {
+                iter.set(item.withMetadata(e.permissions, e.uid, e.gid, xattrs));
+            }
+            else if (xattrs != null) {
+                iter.set(item.withMetadata(item.permissions, item.uid, item.gid, xattrs));
+            }
+        }
+    }
+
+    private static void listPlainTree(@NotNull Path copyDir, @NotNull List<RestoreItem> res) throws IOException {
+        Files.walkFileTree(copyDir, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(copyDir)) {
+                    add(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            private void add(Path path) throws IOException {
+                FileMeta meta = FileMeta.of(path);
+                String transferPath = "/" + copyDir.relativize(path);
+                if (meta.isDirectory()) {
+                    res.add(new RestoreItem(RestoreItem.Type.Directory, transferPath, 0, meta.mtimeMs, meta.permissions(), meta.uid, meta.gid, null, null, path));
+                }
+                else if (meta.isSymlink()) {
+                    res.add(new RestoreItem(RestoreItem.Type.Symlink, transferPath, meta.size, meta.mtimeMs, meta.permissions(), meta.uid, meta.gid,
+                            Files.readSymbolicLink(path).toString(), null, null));
+                }
+                else if (meta.isRegularFile()) {
+                    res.add(new RestoreItem(RestoreItem.Type.File, transferPath, meta.size, meta.mtimeMs, meta.permissions(), meta.uid, meta.gid, null,
+                            new RestoreItem.Content() {
+                                @Override
+                                public @NotNull InputStream open() throws IOException {
+                                    return Files.newInputStream(path, LinkOption.NOFOLLOW_LINKS);
+                                }
+
+                                @Override
+                                public void writeTo(@NotNull Path target) throws IOException {
+                                    Files.copy(path, target, LinkOption.NOFOLLOW_LINKS);
+                                }
+
+                                // in the kernel, without going through the heap (see sendfile(2)); a call that
+                                // fails has not written anything, sendfile(2) returns what it did before an error
+
+                                @Override
+                                public long transferTo(@NotNull WritableByteChannel target, long length) throws IOException {
+                                    long done = 0;
+                                    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS)) {
+                                        while (done < length) {
+                                            long n = in.transferTo(done, length - done, target);
+                                            if (n <= 0) {
+                                                break;
+                                            }
+                                            done += n;
+                                        }
+                                        return done;
+                                    } catch (IOException ex) {
+                                        throw new RestoreItem.PartialTransferException(done, ex);
+                                    }
+                                }
+                            }, path));
+                }
+                // devices and fifos are not restored
+            }
+        });
+    }
+
+    private static void listArchive(@NotNull File snapshotDir, @NotNull Batch batch, @NotNull List<RestoreItem> res) throws IOException {
+        File archiveDir = new File(snapshotDir.getParentFile(), DirNaming.buildAtomicArchiveDirName(batch));
+        for (ArchiveStore.IndexEntry e : ArchiveStore.readIndex(new File(snapshotDir, DirNaming.buildAtomicArchiveIndexFileName(batch)))) {
+            switch (e.type) {
+                case Directory -> res.add(new RestoreItem(RestoreItem.Type.Directory, e.transferPath, 0, e.mtimeMs, e.permissions, e.uid, e.gid, null, null, null));
+                case Symlink -> res.add(new RestoreItem(RestoreItem.Type.Symlink, e.transferPath, e.symlinkTarget.getBytes(StandardCharsets.UTF_8).length, e.mtimeMs, e.permissions, e.uid, e.gid, e.symlinkTarget, null, null));
+                case File -> res.add(new RestoreItem(RestoreItem.Type.File, e.transferPath, e.length, e.mtimeMs, e.permissions, e.uid, e.gid, null,
+                        () -> ArchiveStore.open(archiveDir, e), null));
+            }
+        }
+    }
+
+    private static void listEncrypted(@NotNull File snapshotDir, @NotNull Batch batch, char[] passphrase, @NotNull List<RestoreItem> res) throws IOException, GeneralSecurityException {
+        if (passphrase == null) {
+            throw new IOException("Batch '" + batch + "' is encrypted in '" + snapshotDir + "', a passphrase file is needed");
+        }
+        CryptoKeys keys = CryptoKeys.load(new File(snapshotDir, DirNaming.buildAtomicKeyInfoFileName()), passphrase);
+        File encryptedDir = new File(snapshotDir, DirNaming.buildAtomicEncryptedDirName(batch));
+        for (EncryptedStore.ManifestEntry e : EncryptedStore.readManifest(encryptedDir, keys)) {
+            switch (e.type) {
+                case Directory -> res.add(new RestoreItem(RestoreItem.Type.Directory, e.transferPath, 0, e.mtimeMs, e.permissions, e.uid, e.gid, null, null, null));
+                case Symlink -> res.add(new RestoreItem(RestoreItem.Type.Symlink, e.transferPath, e.symlinkTarget.getBytes(StandardCharsets.UTF_8).length, e.mtimeMs, e.permissions, e.uid, e.gid, e.symlinkTarget, null, null));
+                case File -> res.add(new RestoreItem(RestoreItem.Type.File, e.transferPath, e.size, e.mtimeMs, e.permissions, e.uid, e.gid, null,
+                        () -> EncryptedStore.openObject(encryptedDir, keys, e.objectName), null));
+            }
+        }
+    }
+
+    private static void listDeltas(@NotNull File snapshotDir, @NotNull Batch batch, @NotNull List<RestoreItem> res) throws IOException {
+        Path deltaDir = new File(snapshotDir, DirNaming.buildAtomicDeltaDirName(batch)).toPath();
+        if (!Files.isDirectory(deltaDir)) {
+            return;
+        }
+        File destDir = snapshotDir.getParentFile();
+        try (var stream = Files.walk(deltaDir)) {
+            for (Path p : stream.filter(p -> p.getFileName().toString().endsWith(".delta")).toList()) {
+                DeltaStore.Header h = DeltaStore.readHeader(p.toFile());
+                String rel = deltaDir.relativize(p).toString();
+                String transferPath = "/" + rel.substring(0, rel.length() - ".delta".length());
+                res.add(new RestoreItem(RestoreItem.Type.File, transferPath, h.fileLength, h.mtimeMs, h.permissions, h.uid, h.gid, null,
+                        new RestoreItem.Content() {
+                            @Override
+                            public @NotNull InputStream open() throws IOException {
+                                // reassembling needs random access to the output
+                                Path tmp = Files.createTempFile("reassembled", ".tmp");
+                                DeltaStore.reassemble(destDir, p.toFile(), tmp.toFile());
+                                return Files.newInputStream(tmp, StandardOpenOption.DELETE_ON_CLOSE);
+                            }
+
+                            @Override
+                            public void writeTo(@NotNull Path target) throws IOException {
+                                DeltaStore.reassemble(destDir, p.toFile(), target.toFile());
+                            }
+                        }, null));
+            }
+        }
+    }
+}
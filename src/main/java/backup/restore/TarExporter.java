@@ -0,0 +1,336 @@
+package backup.restore;
+
+import backup.config.Batch;
+import backup.config.TargetFormat;
+import backup.helpers.DirNaming;
+import backup.store.MetadataSidecar;
+import backup.store.TabSeparated;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.GeneralSecurityException;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// ---
+// Writes the batches of a snapshot as a POSIX (PAX) tar stream, whatever the format they are stored in.
+// Each batch is a top-level directory of the stream, named like the batch (e.g. "fast_changers/aloy/x"
+// for the transfer path "/aloy/x" of FAST_CHANGERS), so that the batch structure survives.
+//
+// A PAX extended header ("x") precedes an entry only if the ustar header cannot hold everything:
+// long or non-ASCII names, large sizes or ids, extended attributes ("SCHILY.xattr.user.*") and the
+// ACLs of a plain tree ("SCHILY.acl.access", "SCHILY.acl.default"), as GNU tar and star read them.
+//
+// The data of a plain tree goes from the file to the output in the kernel (see RestoreItem.Content.transferTo()).
+// The optional index has a tab-separated line per entry: name, type, size, and the 512-byte record
+// at which the header and the data start, so that a single file can be read without scanning the stream.
+// ---
+
+public class TarExporter {
+
+    private final static String CLASS = TarExporter.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    public final static int RECORD_SIZE = 512;
+
+    // The largest values that fit the octal fields of the ustar header
+
+    private final static long MAX_OCTAL_SIZE = 077777777777L;
+    private final static long MAX_OCTAL_ID = 07777777L;
+
+    @NotNull
+    private final WritableByteChannel out;
+
+    private final Writer index; // null if no index is written
+
+    private long position;
+    private long entries;
+    private long bytes;
+    private long failures;
+
+    public TarExporter(@NotNull WritableByteChannel out, Writer index) {
+        this.out = out;
+        this.index = index;
+    }
+
+    // ---
+    // Append the items of "batch" in "snapshotDir"; parents come before their children
+    // ---
+
+    public void exportBatch(@NotNull File snapshotDir, @NotNull Batch batch, char[] passphrase) throws IOException, GeneralSecurityException {
+        String prefix = batch.toString().toLowerCase();
+        Map<String, String[]> acls = Map.of();
+        if (SnapshotReader.formatOf(snapshotDir, batch) == TargetFormat.PlainTree) {
+            MetadataSidecar.Content sidecar = MetadataSidecar.read(new File(snapshotDir, DirNaming.buildAtomicMetadataFileName(batch)));
+            acls = (sidecar != null && !sidecar.kept.acls) ? sidecar.acls() : AclRestorer.read(new File(snapshotDir, DirNaming.buildAtomicDumpDirName(batch)));
+        }
+        List<RestoreItem> items = SnapshotReader.listBatch(snapshotDir, batch, passphrase);
+        items.sort(Comparator.comparing(item -> item.transferPath));
+        writeEntry(prefix + "/", directoryOf(items), new LinkedHashMap<>());
+        for (RestoreItem item : items) {
+            Map<String, byte[]> extended = new LinkedHashMap<>();
+            addXattrs(item, extended);
+            String[] acl = acls.get(item.transferPath);
+            if (acl != null) {
+                extended.put("SCHILY.acl.access", acl[0].getBytes(StandardCharsets.UTF_8));
+                if (!acl[1].isEmpty()) {
+                    extended.put("SCHILY.acl.default", acl[1].getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            String name = prefix + item.transferPath + ((item.type == RestoreItem.Type.Directory) ? "/" : "");
+            writeEntry(name, item, extended);
+        }
+    }
+
+    // ---
+    // The batch directory itself has no item; it gets the metadata of the first one, if any
+    // ---
+
+    private static RestoreItem directoryOf(@NotNull List<RestoreItem> items) {
+        long mtimeMs = items.isEmpty() ? System.currentTimeMillis() : items.get(0).mtimeMs;
+        return new RestoreItem(RestoreItem.Type.Directory, "/", 0, mtimeMs, 0755, 0, 0, null, null, null);
+    }
+
+    // ---
+    // End the stream with two zero records; the output is not closed
+    // ---
+
+    public void finish() throws IOException {
+        writeFully(ByteBuffer.allocate(2 * RECORD_SIZE));
+        if (index != null) {
+            index.flush();
+        }
+    }
+
+    private void writeEntry(@NotNull String name, @NotNull RestoreItem item, @NotNull Map<String, byte[]> extended) throws IOException {
+        long size = (item.type == RestoreItem.Type.File) ? item.size : 0;
+        String linkName = (item.type == RestoreItem.Type.Symlink) ? item.symlinkTarget : "";
+        String[] split = splitName(name);
+        if (split == null) {
+            extended.put("path", name.getBytes(StandardCharsets.UTF_8));
+            split = new String[]{"", truncate(name, 100)};
+        }
+        if (!isPlainAscii(linkName) || linkName.length() > 100) {
+            extended.put("linkpath", linkName.getBytes(StandardCharsets.UTF_8));
+            linkName = truncate(linkName, 100);
+        }
+        if (size > MAX_OCTAL_SIZE) {
+            extended.put("size", Long.toString(size).getBytes(StandardCharsets.US_ASCII));
+        }
+        if (item.uid < 0 || item.uid > MAX_OCTAL_ID) {
+            extended.put("uid", Integer.toUnsignedString(item.uid).getBytes(StandardCharsets.US_ASCII));
+        }
+        if (item.gid < 0 || item.gid > MAX_OCTAL_ID) {
+            extended.put("gid", Integer.toUnsignedString(item.gid).getBytes(StandardCharsets.US_ASCII));
+        }
+        if (!extended.isEmpty()) {
+            // with the milliseconds, as there is an extended header anyway
+            extended.put("mtime", String.format("%d.%03d", Math.floorDiv(item.mtimeMs, 1000), Math.floorMod(item.mtimeMs, 1000)).getBytes(StandardCharsets.US_ASCII));
+            byte[] records = paxRecords(extended);
+            writeFully(header(new String[]{"", truncate("PaxHeaders/" + split[1], 100)}, 0644, 0, 0, records.length, item.mtimeMs, 'x', ""));
+            writeFully(ByteBuffer.wrap(records));
+            pad(records.length);
+        }
+        long headerRecord = position / RECORD_SIZE;
+        char typeFlag = switch (item.type) {
+            case File -> '0';
+            case Directory -> '5';
+            case Symlink -> '2';
+        };
+        writeFully(header(split, item.permissions, Math.min(item.uid & 0xffffffffL, MAX_OCTAL_ID), Math.min(item.gid & 0xffffffffL, MAX_OCTAL_ID),
+                Math.min(size, MAX_OCTAL_SIZE), item.mtimeMs, typeFlag, linkName));
+        long dataRecord = position / RECORD_SIZE;
+        if (size > 0) {
+            long done;
+            try {
+                done = item.content.transferTo(out, size);
+            } catch (RestoreItem.PartialTransferException ex) {
+                // what did get out stays, only the rest is padded; other failures leave the stream
+                // in an unknown state and end the export
+                logger.warn("Could not read '{}': {}", item.transferPath, ex.getMessage());
+                done = ex.done;
+            }
+            if (done < size) {
+                // the header is out already, so the stream stays readable with zeros instead
+                logger.warn("'{}' has only {} of its {} bytes, the rest is exported as zeros", item.transferPath, done, size);
+                failures++;
+                writeZeros(size - done);
+            }
+            position += size;
+            pad(size);
+            bytes += size;
+        }
+        entries++;
+        if (index != null) {
+            index.write(TabSeparated.escape(name) + "\t" + typeFlag + "\t" + size + "\t" + headerRecord + "\t" + dataRecord + "\n");
+        }
+    }
+
+    private static void addXattrs(@NotNull RestoreItem item, @NotNull Map<String, byte[]> extended) {
+        if (item.xattrs != null) {
+            item.xattrs.forEach((attr, value) -> extended.put("SCHILY.xattr.user." + attr, value));
+            return;
+        }
+        if (item.xattrSource == null || item.type == RestoreItem.Type.Symlink) {
+            return;
+        }
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(item.xattrSource, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+            if (view == null) {
+                return;
+            }
+            for (String attr : view.list()) {
+                ByteBuffer buf = ByteBuffer.allocate(view.size(attr));
+                view.read(attr, buf);
+                extended.put("SCHILY.xattr.user." + attr, buf.array());
+            }
+        } catch (IOException | UnsupportedOperationException ex) {
+            // the file system of the backup has no extended attributes
+        }
+    }
+
+    // ---
+    // Each record is "<length> <key>=<value>\n", the length counting itself
+    // ---
+
+    static byte[] paxRecords(@NotNull Map<String, byte[]> extended) {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        for (Map.Entry<String, byte[]> e : extended.entrySet()) {
+            byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+            int rest = 1 + key.length + 1 + e.getValue().length + 1;
+            int length = rest + Integer.toString(rest).length();
+            if (Integer.toString(length).length() != Integer.toString(rest).length()) {
+                length++;
+            }
+            res.writeBytes((length + " ").getBytes(StandardCharsets.US_ASCII));
+            res.writeBytes(key);
+            res.write('=');
+            res.writeBytes(e.getValue());
+            res.write('\n');
+        }
+        return res.toByteArray();
+    }
+
+    // ---
+    // The ustar "prefix" and "name" fields, or null if the name does not fit
+    // ---
+
+    static String[] splitName(@NotNull String name) {
+        if (!isPlainAscii(name)) {
+            return null;
+        }
+        if (name.length() <= 100) {
+            return new String[]{"", name};
+        }
+        // split at a slash, the prefix takes up to 155 characters
+        for (int i = Math.min(name.length() - 1, 155); i > 0; i--) {
+            if (name.charAt(i) == '/' && name.length() - i - 1 <= 100 && name.length() - i - 1 > 0) {
+                return new String[]{name.substring(0, i), name.substring(i + 1)};
+            }
+        }
+        return null;
+    }
+
+    private static ByteBuffer header(@NotNull String[] prefixAndName, int mode, long uid, long gid, long size, long mtimeMs, char typeFlag, @NotNull String linkName) {
+        byte[] h = new byte[RECORD_SIZE];
+        putString(h, 0, 100, prefixAndName[1]);
+        putOctal(h, 100, 8, mode & 07777);
+        putOctal(h, 108, 8, uid);
+        putOctal(h, 116, 8, gid);
+        putOctal(h, 124, 12, size);
+        putOctal(h, 136, 12, Math.max(0, Math.floorDiv(mtimeMs, 1000)));
+        h[156] = (byte) typeFlag;
+        putString(h, 157, 100, linkName);
+        putString(h, 257, 6, "ustar");
+        putString(h, 263, 2, "00");
+        putString(h, 345, 155, prefixAndName[0]);
+        // the checksum is computed with the checksum field set to spaces
+        for (int i = 148; i < 156; i++) {
+            h[i] = ' ';
+        }
+        long sum = 0;
+        for (byte b : h) {
+            sum += b & 0xff;
+        }
+        putString(h, 148, 7, String.format("%06o", sum));
+        return ByteBuffer.wrap(h);
+    }
+
+    private static void putString(@NotNull byte[] h, int offset, int length, @NotNull String value) {
+        byte[] b = value.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(b, 0, h, offset, Math.min(length, b.length));
+    }
+
+    private static void putOctal(@NotNull byte[] h, int offset, int length, long value) {
+        putString(h, offset, length - 1, String.format("%0" + (length - 1) + "o", value));
+    }
+
+    private static boolean isPlainAscii(@NotNull String s) {
+        return s.chars().allMatch(ch -> ch >= ' ' && ch < 0x7f);
+    }
+
+    private static String truncate(@NotNull String s, int length) {
+        StringBuilder buf = new StringBuilder();
+        s.chars().filter(ch -> ch >= ' ' && ch < 0x7f).limit(length).forEach(ch -> buf.append((char) ch));
+        return buf.toString();
+    }
+
+    private void pad(long length) throws IOException {
+        int rest = (int) (length % RECORD_SIZE);
+        if (rest > 0) {
+            writeFully(ByteBuffer.allocate(RECORD_SIZE - rest));
+        }
+    }
+
+    private void writeZeros(long length) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(length, 1024 * 1024));
+        long left = length;
+        while (left > 0) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), left));
+            left -= zeros.remaining();
+            while (zeros.hasRemaining()) {
+                out.write(zeros);
+            }
+        }
+    }
+
+    private void writeFully(@NotNull ByteBuffer buf) throws IOException {
+        position += buf.remaining();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    // ---
+    // Counters
+    // ---
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,184 @@
+package backup.scan;
+
+import backup.config.Batch;
+import backup.helpers.FilterRuleSeq;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+// ---
+// Walks the sources of a batch the way rsync would, i.e. applying the batch's
+// filter rules (see FilterRule.matches()) and not following symlinks.
+// An excluded directory is not descended into.
+//
+// Directories are processed in parallel on a ForkJoinPool, so the "Visitor"
+// passed to walk() must be thread-safe.
+// ---
+
+public class BatchWalker {
+
+    private final static String CLASS = BatchWalker.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    public interface Visitor {
+
+        // Called for every directory that is not excluded by the filter rules (including
+        // the source directories themselves). Return false to not descend into it.
+
+        default boolean enterDirectory(@NotNull Path dir, @NotNull String transferPath, @NotNull FileMeta meta) {
+            return true;
+        }
+
+        // Called for everything that is not a directory and not excluded by the filter rules.
+
+        void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta);
+    }
+
+    @NotNull
+    private final Batch batch;
+
+    @NotNull
+    private final SortedSet<File> sources;
+
+    @NotNull
+    private final FilterRuleSeq seq;
+
+    private final int parallelism;
+
+    private final LongAdder errorCount = new LongAdder();
+
+    public BatchWalker(@NotNull Batch batch, @NotNull FilterRuleSeq seq, int parallelism) {
+        this(batch, batch.sources, seq, parallelism);
+    }
+
+    // ---
+    // Walk "sources" instead of the batch's own (see Batch.sourcesUnder())
+    // ---
+
+    public BatchWalker(@NotNull Batch batch, @NotNull SortedSet<File> sources, @NotNull FilterRuleSeq seq, int parallelism) {
+        this.batch = batch;
+        this.sources = sources;
+        this.seq = seq;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    // ---
+    // The "transfer root" of a source is its parent, as the sources are passed to rsync
+    // without trailing slash (see RsyncCmdBuilder). The source "/" is its own transfer root.
+    // ---
+
+    public static @NotNull Path transferRootOf(@NotNull Path source) {
+        Path parent = source.getParent();
+        return (parent == null) ? source : parent;
+    }
+
+    public static @NotNull String transferPathOf(@NotNull Path transferRoot, @NotNull Path path) {
+        return "/" + transferRoot.relativize(path);
+    }
+
+    public void walk(@NotNull Visitor visitor) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (File src : sources) {
+                Path source = src.toPath();
+                pool.invoke(new WalkTask(visitor, transferRootOf(source), source, true));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // ---
+    // Number of files or directories that could not be read (they are skipped)
+    // ---
+
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    private class WalkTask extends RecursiveAction {
+
+        private final static long serialVersionUID = 1L;
+
+        private final Visitor visitor;
+        private final Path transferRoot;
+        private final Path dir;
+        private final boolean isSource;
+
+        WalkTask(Visitor visitor, Path transferRoot, Path dir, boolean isSource) {
+            this.visitor = visitor;
+            this.transferRoot = transferRoot;
+            this.dir = dir;
+            this.isSource = isSource;
+        }
+
+        @Override
+        protected void compute() {
+            if (isSource) {
+                // the source itself is subject to the filter rules, too
+                FileMeta meta = statOrNull(dir);
+                if (meta == null) {
+                    return;
+                }
+                String transferPath = transferPathOf(transferRoot, dir);
+                boolean isRoot = dir.equals(transferRoot);
+                if (!isRoot && seq.isExcluded(transferPath, meta.isDirectory())) {
+                    return;
+                }
+                if (!meta.isDirectory()) {
+                    visitor.visitFile(dir, transferPath, meta);
+                    return;
+                }
+                if (!visitor.enterDirectory(dir, transferPath, meta)) {
+                    return;
+                }
+            }
+            List<WalkTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    FileMeta meta = statOrNull(entry);
+                    if (meta == null) {
+                        continue;
+                    }
+                    String transferPath = transferPathOf(transferRoot, entry);
+                    if (seq.isExcluded(transferPath, meta.isDirectory())) {
+                        continue;
+                    }
+                    if (meta.isDirectory()) {
+                        if (visitor.enterDirectory(entry, transferPath, meta)) {
+                            subtasks.add(new WalkTask(visitor, transferRoot, entry, false));
+                        }
+                    } else {
+                        visitor.visitFile(entry, transferPath, meta);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.debug("Could not list directory '{}': {}", dir, ex);
+                errorCount.increment();
+            }
+            invokeAll(subtasks);
+        }
+
+        private FileMeta statOrNull(Path path) {
+            try {
+                return FileMeta.of(path);
+            } catch (IOException ex) {
+                // may have vanished in the meantime or may be unreadable
+                errorCount.increment();
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package backup.scan;
+
+import backup.helpers.FilterRuleSeq;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// ---
+// Finds the directories holding data that can be re-created or re-downloaded, so that they
+// can be left out of the backup: those tagged per the Cache Directory Tagging Specification
+// (https://bford.info/cachedir/) and those of a few well-known tools that do not tag theirs.
+// A cache directory is not descended into.
+// ---
+
+public class CacheDirDetector implements BatchWalker.Visitor {
+
+    private final static String CLASS = CacheDirDetector.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    public final static String TAG_FILE_NAME = "CACHEDIR.TAG";
+    public final static String TAG_SIGNATURE = "Signature: 8a477f597d28d172789f06886806bc55";
+
+    // ---
+    // Untagged caches, matched as rsync would match these (unanchored) rules
+    // ---
+
+    public final static FilterRuleSeq KNOWN_LAYOUTS = new FilterRuleSeq(
+            "-.npm/_cacache/", "-.npm/_npx/",
+            "-.cargo/registry/", "-.cargo/git/",
+            "-.cache/pip/",
+            "-.cache/JetBrains/",
+            "-.config/Code/Cache/", "-.config/Code/CachedData/",
+            "-.cache/mozilla/", "-.cache/google-chrome/", "-.cache/chromium/",
+            "-.m2/repository/", "-.gradle/caches/");
+
+    public static class CacheDir {
+
+        @NotNull
+        public final String transferPath;
+
+        // the tag file or the known layout that matched
+
+        @NotNull
+        public final String reason;
+
+        // bytes of the regular files below the directory, i.e. what leaving it out saves
+
+        public final long bytes;
+
+        CacheDir(@NotNull String transferPath, @NotNull String reason, long bytes) {
+            this.transferPath = transferPath;
+            this.reason = reason;
+            this.bytes = bytes;
+        }
+    }
+
+    private final List<CacheDir> cacheDirs = new ArrayList<>();
+
+    @Override
+    public boolean enterDirectory(@NotNull Path dir, @NotNull String transferPath, @NotNull FileMeta meta) {
+        String reason = null;
+        if (isTagged(dir)) {
+            reason = TAG_FILE_NAME;
+        } else if (KNOWN_LAYOUTS.isExcluded(transferPath, true)) {
+            reason = "known cache layout";
+        }
+        if (reason == null) {
+            return true;
+        }
+        CacheDir cd = new CacheDir(transferPath, reason, sizeOf(dir));
+        synchronized (this) {
+            cacheDirs.add(cd);
+        }
+        return false;
+    }
+
+    @Override
+    public void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+        // nothing to do
+    }
+
+    public synchronized List<CacheDir> getCacheDirs() {
+        List<CacheDir> res = new ArrayList<>(cacheDirs);
+        res.sort((a, b) -> a.transferPath.compareTo(b.transferPath));
+        return Collections.unmodifiableList(res);
+    }
+
+    // ---
+    // The specification demands that the tag file starts with the signature, anything may follow
+    // ---
+
+    static boolean isTagged(@NotNull Path dir) {
+        Path tag = dir.resolve(TAG_FILE_NAME);
+        if (!Files.isRegularFile(tag)) {
+            return false;
+        }
+        byte[] expected = TAG_SIGNATURE.getBytes(StandardCharsets.US_ASCII);
+        try (InputStream in = Files.newInputStream(tag)) {
+            byte[] actual = in.readNBytes(expected.length);
+            return Arrays.equals(expected, actual);
+        } catch (IOException ex) {
+            logger.debug("Could not read '{}': {}", tag, ex);
+            return false;
+        }
+    }
+
+    private static long sizeOf(@NotNull Path dir) {
+        long[] res = {0};
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        res[0] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            logger.debug("Could not size '{}': {}", dir, ex);
+        }
+        return res[0];
+    }
+}
@@ -0,0 +1,172 @@
+package backup.scan;
+
+import backup.helpers.DirNaming;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+// ---
+// Splits a batch into lists for rsync's "--files-from", so that no rsync run has to hold the
+// file list of the whole batch in memory. Used as the Visitor of a BatchWalker, it writes the
+// lists to disk as it goes, so its own memory use does not depend on the size of the batch either.
+//
+// A chunk holds at most "maxEntries" paths and, unless a single file is larger, at most "maxBytes"
+// bytes of regular files. The paths are relative to the transfer root and NUL-terminated (for
+// rsync's "--from0"); a chunk never mixes transfer roots.
+//
+// The directories go to chunks of their own, which are to be run after all the others: rsync does
+// not recurse with "--files-from", it creates the missing parent directories on the way and sets the
+// metadata of a directory when it is listed, which writing files into it afterwards would spoil.
+// ---
+
+public class ChunkWriter implements BatchWalker.Visitor, Closeable {
+
+    public static class Chunk {
+
+        @NotNull
+        public final File listFile;
+
+        @NotNull
+        public final Path transferRoot;
+
+        public final long entries;
+        public final long bytes;
+
+        public Chunk(@NotNull File listFile, @NotNull Path transferRoot, long entries, long bytes) {
+            this.listFile = listFile;
+            this.transferRoot = transferRoot;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+    }
+
+    private class Builder {
+
+        private final boolean forDirectories;
+        private OutputStream out;
+        private File listFile;
+        private Path transferRoot;
+        private long entries;
+        private long bytes;
+
+        Builder(boolean forDirectories) {
+            this.forDirectories = forDirectories;
+        }
+
+        void add(@NotNull Path transferRoot, @NotNull String transferPath, long size) throws IOException {
+            if (out != null && (!transferRoot.equals(this.transferRoot) || entries >= maxEntries || (maxBytes > 0 && bytes > 0 && bytes + size > maxBytes))) {
+                finish();
+            }
+            if (out == null) {
+                this.listFile = new File(chunkDir, DirNaming.buildAtomicChunkFileName(++chunkCount));
+                this.out = new BufferedOutputStream(new FileOutputStream(listFile));
+                this.transferRoot = transferRoot;
+                this.entries = 0;
+                this.bytes = 0;
+            }
+            out.write(transferPath.substring(1).getBytes(StandardCharsets.UTF_8));
+            out.write(0);
+            entries++;
+            bytes += size;
+        }
+
+        void finish() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+                (forDirectories ? dirChunks : fileChunks).add(new Chunk(listFile, transferRoot, entries, bytes));
+            }
+        }
+    }
+
+    @NotNull
+    private final File chunkDir;
+
+    private final long maxEntries;
+    private final long maxBytes;
+
+    @NotNull
+    private final Set<String> skippedPaths;
+
+    private final Builder files = new Builder(false);
+    private final Builder dirs = new Builder(true);
+    private final List<Chunk> fileChunks = new ArrayList<>();
+    private final List<Chunk> dirChunks = new ArrayList<>();
+    private int chunkCount;
+    private IOException failure;
+
+    // ---
+    // "maxBytes" may be 0 for "no limit"; the paths in "skippedPaths" (transfer paths) are left out
+    // ---
+
+    public ChunkWriter(@NotNull File chunkDir, long maxEntries, long maxBytes, @NotNull Set<String> skippedPaths) {
+        this.chunkDir = chunkDir;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = maxBytes;
+        this.skippedPaths = skippedPaths;
+    }
+
+    // ---
+    // The path at which the transfer path starts is the transfer root
+    // ---
+
+    private static @NotNull Path transferRootOf(@NotNull Path path, @NotNull String transferPath) {
+        Path res = path;
+        for (int i = Path.of(transferPath).getNameCount(); i > 0; i--) {
+            res = res.getParent();
+        }
+        return res;
+    }
+
+    @Override
+    public synchronized boolean enterDirectory(@NotNull Path dir, @NotNull String transferPath, @NotNull FileMeta meta) {
+        if (failure == null && !transferPath.equals("/")) {
+            try {
+                dirs.add(transferRootOf(dir, transferPath), transferPath, 0);
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        return failure == null;
+    }
+
+    @Override
+    public synchronized void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+        if (failure == null && !skippedPaths.contains(transferPath)) {
+            try {
+                files.add(transferRootOf(file, transferPath), transferPath, meta.isRegularFile() ? meta.size : 0);
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+    }
+
+    // ---
+    // Finish the last chunks; throws if any list could not be written
+    // ---
+
+    @Override
+    public synchronized void close() throws IOException {
+        files.finish();
+        dirs.finish();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // ---
+    // The chunks in the order they are to be run; valid after close()
+    // ---
+
+    public synchronized @NotNull List<Chunk> getChunks() {
+        List<Chunk> res = new ArrayList<>(fileChunks);
+        res.addAll(dirChunks);
+        return Collections.unmodifiableList(res);
+    }
+}
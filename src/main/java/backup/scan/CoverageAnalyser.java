@@ -0,0 +1,305 @@
+package backup.scan;
+
+import backup.config.Batch;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+// ---
+// Walks the sources of several batches together, applying the filter rules of each the way
+// BatchWalker does, to find out which batches copy what. The walk covers the transfer roots of
+// the sources (e.g. "/home" for "/home/aloy"), so that the siblings of the sources that no batch
+// copies show up, too.
+//
+// The result is a list of "regions": a region is a subtree (or a single file) that is copied by
+// the same batches throughout, apart from the regions nested in it. Regions copied by more than
+// one batch cost space and time twice; regions copied by none are not backed up at all. Below
+// a directory that leads to sources (such as "/home"), each subdirectory copied by none is a
+// region of its own, so that the report names "/home/stranger" rather than "/home". The files in a
+// directory that are copied by other batches than the directory itself (e.g. the "*.o" files that
+// a batch leaves out) are one region per set of batches, named after the directory, or after the
+// file if there is just one.
+//
+// Pseudo file systems such as "/proc" are not walked: they are regions of their own, without
+// files or bytes.
+// ---
+
+public class CoverageAnalyser {
+
+    private final static String CLASS = CoverageAnalyser.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    private final static Set<String> PSEUDO_FILE_SYSTEMS = Set.of("proc", "sysfs", "devtmpfs", "devpts", "tmpfs", "cgroup", "cgroup2",
+            "securityfs", "debugfs", "tracefs", "pstore", "bpf", "mqueue", "hugetlbfs", "fusectl", "configfs", "autofs", "binfmt_misc", "efivarfs");
+
+    public static class Region {
+
+        @NotNull
+        public final Path path;
+
+        // the batches that copy the region, none if it is not backed up
+
+        @NotNull
+        public final Set<Batch> batches;
+
+        public final boolean pseudo;
+
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        Region(@NotNull Path path, @NotNull Set<Batch> batches, boolean pseudo) {
+            this.path = path;
+            this.batches = Collections.unmodifiableSet(batches);
+            this.pseudo = pseudo;
+        }
+
+        public long getFiles() {
+            return files.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        // The bytes that are copied more than once
+
+        public long getDuplicatedBytes() {
+            return Math.max(0, batches.size() - 1) * getBytes();
+        }
+    }
+
+    @NotNull
+    private final SortedMap<Batch, SortedSet<File>> sourcesByBatch;
+
+    private final int parallelism;
+
+    private final ConcurrentLinkedQueue<Region> regions = new ConcurrentLinkedQueue<>();
+    private final LongAdder errorCount = new LongAdder();
+
+    // ---
+    // "sourcesByBatch" are the sources to use for each batch (see Batch.sourcesUnder())
+    // ---
+
+    public CoverageAnalyser(@NotNull SortedMap<Batch, SortedSet<File>> sourcesByBatch, int parallelism) {
+        this.sourcesByBatch = sourcesByBatch;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public void run() {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Path root : walkRoots()) {
+                FileMeta meta = statOrNull(root);
+                if (meta == null || !meta.isDirectory()) {
+                    continue;
+                }
+                Map<Batch, Path> covering = new EnumMap<>(Batch.class);
+                addBatchesWithSource(root, true, covering);
+                Region region = newRegion(root, covering, false);
+                pool.invoke(new WalkTask(root, meta, covering, region));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        logger.info("Found {} regions, {} files or directories could not be read", regions.size(), getErrorCount());
+    }
+
+    // ---
+    // The transfer roots that are not below another one
+    // ---
+
+    private @NotNull List<Path> walkRoots() {
+        SortedSet<Path> roots = new TreeSet<>();
+        sourcesByBatch.values().forEach(sources -> sources.forEach(src -> roots.add(BatchWalker.transferRootOf(src.toPath()))));
+        List<Path> res = new ArrayList<>();
+        for (Path root : roots) {
+            if (res.stream().noneMatch(root::startsWith)) {
+                res.add(root);
+            }
+        }
+        return res;
+    }
+
+    // ---
+    // A batch starts to cover "path" if it is one of its sources, unless the batch's own rules exclude it
+    // ---
+
+    private void addBatchesWithSource(@NotNull Path path, boolean isDir, @NotNull Map<Batch, Path> covering) {
+        for (Map.Entry<Batch, SortedSet<File>> e : sourcesByBatch.entrySet()) {
+            if (!e.getValue().contains(path.toFile())) {
+                continue;
+            }
+            Path transferRoot = BatchWalker.transferRootOf(path);
+            boolean isRoot = path.equals(transferRoot);
+            if (isRoot || !e.getKey().seq.isExcluded(BatchWalker.transferPathOf(transferRoot, path), isDir)) {
+                covering.put(e.getKey(), transferRoot);
+            }
+        }
+    }
+
+    private @NotNull Map<Batch, Path> coveringOf(@NotNull Path entry, boolean isDir, @NotNull Map<Batch, Path> parentCovering) {
+        Map<Batch, Path> res = new EnumMap<>(Batch.class);
+        for (Map.Entry<Batch, Path> e : parentCovering.entrySet()) {
+            if (!e.getKey().seq.isExcluded(BatchWalker.transferPathOf(e.getValue(), entry), isDir)) {
+                res.put(e.getKey(), e.getValue());
+            }
+        }
+        addBatchesWithSource(entry, isDir, res);
+        return res;
+    }
+
+    private @NotNull Region newRegion(@NotNull Path path, @NotNull Map<Batch, Path> covering, boolean pseudo) {
+        Set<Batch> batches = covering.isEmpty() ? Set.of() : Collections.unmodifiableSet(new TreeSet<>(covering.keySet()));
+        Region res = new Region(path, batches, pseudo);
+        regions.add(res);
+        return res;
+    }
+
+    // ---
+    // All regions, sorted by path
+    // ---
+
+    public @NotNull List<Region> getRegions() {
+        List<Region> res = new ArrayList<>(regions);
+        res.sort(Comparator.comparing(r -> r.path));
+        return res;
+    }
+
+    // ---
+    // The regions copied by more than one batch, the most duplicated bytes first
+    // ---
+
+    public @NotNull List<Region> getOverlaps() {
+        List<Region> res = new ArrayList<>();
+        regions.stream().filter(r -> r.batches.size() > 1 && (r.getFiles() > 0 || r.pseudo)).forEach(res::add);
+        res.sort(Comparator.comparingLong(Region::getDuplicatedBytes).reversed().thenComparing(r -> r.path));
+        return res;
+    }
+
+    // ---
+    // The regions holding files that no batch copies, the most bytes first
+    // ---
+
+    public @NotNull List<Region> getUncovered() {
+        List<Region> res = new ArrayList<>();
+        regions.stream().filter(r -> r.batches.isEmpty() && !r.pseudo && r.getFiles() > 0).forEach(res::add);
+        res.sort(Comparator.comparingLong(Region::getBytes).reversed().thenComparing(r -> r.path));
+        return res;
+    }
+
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    private class WalkTask extends RecursiveAction {
+
+        private final static long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final FileMeta dirMeta;
+        private final Map<Batch, Path> covering;
+        private final Region region;
+
+        private final boolean isAboveSource;
+
+        WalkTask(Path dir, FileMeta dirMeta, Map<Batch, Path> covering, Region region) {
+            this.dir = dir;
+            this.dirMeta = dirMeta;
+            this.covering = covering;
+            this.region = region;
+            this.isAboveSource = sourcesByBatch.values().stream().anyMatch(sources -> sources.stream()
+                    .anyMatch(src -> src.toPath().startsWith(dir) && !src.toPath().equals(dir)));
+        }
+
+        @Override
+        protected void compute() {
+            List<WalkTask> subtasks = new ArrayList<>();
+            Map<Set<Batch>, List<Path>> otherFiles = new HashMap<>();
+            Map<Set<Batch>, Map<Batch, Path>> otherCovering = new HashMap<>();
+            Map<Set<Batch>, Long> otherBytes = new HashMap<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) {
+                    FileMeta meta = statOrNull(entry);
+                    if (meta == null) {
+                        continue;
+                    }
+                    Map<Batch, Path> entryCovering = coveringOf(entry, meta.isDirectory(), covering);
+                    boolean sameBatches = entryCovering.keySet().equals(covering.keySet());
+                    if (meta.isDirectory()) {
+                        if (meta.dev != dirMeta.dev && isPseudoFileSystem(entry)) {
+                            newRegion(entry, entryCovering, true);
+                            continue;
+                        }
+                        // below a directory leading to sources, what is not copied is reported per subdirectory
+                        boolean sameRegion = sameBatches && !(entryCovering.isEmpty() && isAboveSource);
+                        Region entryRegion = sameRegion ? region : newRegion(entry, entryCovering, false);
+                        subtasks.add(new WalkTask(entry, meta, entryCovering, entryRegion));
+                    } else if (sameBatches) {
+                        region.files.increment();
+                        if (meta.isRegularFile()) {
+                            region.bytes.add(meta.size);
+                        }
+                    } else {
+                        Set<Batch> batches = entryCovering.keySet();
+                        otherFiles.computeIfAbsent(batches, x -> new ArrayList<>()).add(entry);
+                        otherCovering.putIfAbsent(batches, entryCovering);
+                        otherBytes.merge(batches, meta.isRegularFile() ? meta.size : 0, Long::sum);
+                    }
+                }
+            } catch (IOException ex) {
+                logger.debug("Could not list directory '{}': {}", dir, ex);
+                errorCount.increment();
+            }
+            otherFiles.forEach((batches, files) -> {
+                Region r = newRegion((files.size() == 1) ? files.get(0) : dir, otherCovering.get(batches), false);
+                r.files.add(files.size());
+                r.bytes.add(otherBytes.get(batches));
+            });
+            invokeAll(subtasks);
+        }
+    }
+
+    // ---
+    // Only asked at mount points, as finding the file store means reading the mount table
+    // ---
+
+    private boolean isPseudoFileSystem(@NotNull Path mountPoint) {
+        try {
+            return PSEUDO_FILE_SYSTEMS.contains(Files.getFileStore(mountPoint).type());
+        } catch (IOException ex) {
+            // unreadable, thus also not worth walking
+            return true;
+        }
+    }
+
+    private FileMeta statOrNull(@NotNull Path path) {
+        try {
+            return FileMeta.of(path);
+        } catch (IOException ex) {
+            // may have vanished in the meantime or may be unreadable
+            errorCount.increment();
+            return null;
+        }
+    }
+}
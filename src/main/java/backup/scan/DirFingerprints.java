@@ -0,0 +1,328 @@
+package backup.scan;
+
+import backup.config.Batch;
+import backup.helpers.FilterRule;
+import backup.helpers.FilterRuleSeq;
+import backup.store.TabSeparated;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+// ---
+// A fingerprint of every directory of a batch, covering its whole subtree: the mtime, the ctime and the
+// number of entries of each directory below it, hashed together bottom-up like a Merkle tree. Only the
+// directories are stat-ed: a directory with a link count of N has N-2 subdirectories, so the entries
+// of a directory are only stat-ed until that many have been found (none at all in a leaf directory).
+// File systems that do not count subdirectories (link count 1, e.g. btrfs) get all entries stat-ed.
+//
+// Creating, deleting or renaming an entry changes the mtime and ctime of its directory, so a subtree
+// whose fingerprint is the same as in the last good snapshot has not changed (see FastPath). A file
+// rewritten in place, rather than written anew and renamed, does not touch its directory: that is
+// only seen at the next full walk, which is why those are forced now and then.
+//
+// The fingerprints are kept in "fingerprints_of_${BATCH}.tsv", one line per directory:
+//
+// hash  directories in the subtree  transferPath
+//
+// The header holds when the batch was last walked in full and a hash of the sources and filter rules,
+// as fingerprints taken with other rules cannot be compared.
+// ---
+
+public class DirFingerprints {
+
+    private final static String CLASS = DirFingerprints.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    private final static String HEADER = "# BTUFINGERPRINTS 1";
+
+    // the hash of a subtree that could not be read completely; it never matches
+
+    private final static long UNREADABLE = 0;
+
+    public static class Fingerprint {
+
+        public final long hash;
+        public final long directories;
+
+        Fingerprint(long hash, long directories) {
+            this.hash = hash;
+            this.directories = directories;
+        }
+
+        boolean matches(Fingerprint other) {
+            return other != null && hash != UNREADABLE && hash == other.hash;
+        }
+    }
+
+    // by transfer path
+
+    @NotNull
+    private final SortedMap<String, Fingerprint> fingerprints;
+
+    // the transfer paths of the sources
+
+    @NotNull
+    private final SortedSet<String> roots;
+
+    @NotNull
+    private final String rulesHash;
+
+    @NotNull
+    private final Instant lastFullWalk;
+
+    private DirFingerprints(@NotNull SortedMap<String, Fingerprint> fingerprints, @NotNull SortedSet<String> roots, @NotNull String rulesHash, @NotNull Instant lastFullWalk) {
+        this.fingerprints = fingerprints;
+        this.roots = roots;
+        this.rulesHash = rulesHash;
+        this.lastFullWalk = lastFullWalk;
+    }
+
+    // ---
+    // Take the fingerprints of the directories of "sources", as filtered by "seq"
+    // ---
+
+    public static @NotNull DirFingerprints take(@NotNull Batch batch, @NotNull SortedSet<File> sources, @NotNull FilterRuleSeq seq, int parallelism) {
+        Instant start = Instant.now();
+        SortedMap<String, Fingerprint> fingerprints = new ConcurrentSkipListMap<>();
+        SortedSet<String> roots = new TreeSet<>();
+        LongAdder stats = new LongAdder();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            for (File src : sources) {
+                Path source = src.toPath();
+                Path transferRoot = BatchWalker.transferRootOf(source);
+                roots.add(BatchWalker.transferPathOf(transferRoot, source));
+                pool.invoke(new WalkTask(transferRoot, source, seq, fingerprints, stats));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        logger.info("Took the fingerprints of {} directories of batch '{}' in {} ms, with {} stat calls",
+                fingerprints.size(), batch, Duration.between(start, Instant.now()).toMillis(), stats.sum());
+        return new DirFingerprints(fingerprints, roots, rulesHashOf(sources, seq), Instant.EPOCH);
+    }
+
+    // ---
+    // The same fingerprints, recording when the batch was last walked in full
+    // ---
+
+    public @NotNull DirFingerprints withLastFullWalk(@NotNull Instant when) {
+        return new DirFingerprints(fingerprints, roots, rulesHash, when);
+    }
+
+    public @NotNull Instant getLastFullWalk() {
+        return lastFullWalk;
+    }
+
+    public int size() {
+        return fingerprints.size();
+    }
+
+    // ---
+    // Whether "previous" was taken of the same sources with the same rules
+    // ---
+
+    public boolean isComparableWith(@NotNull DirFingerprints previous) {
+        return rulesHash.equals(previous.rulesHash) && roots.equals(previous.roots);
+    }
+
+    // ---
+    // True if nothing changed since "previous"
+    // ---
+
+    public boolean isUnchangedSince(@NotNull DirFingerprints previous) {
+        return isComparableWith(previous) && roots.stream().allMatch(root -> fingerprints.containsKey(root)
+                && fingerprints.get(root).matches(previous.fingerprints.get(root)));
+    }
+
+    // ---
+    // The largest subtrees that did not change since "previous", by transfer path, at most "max" of
+    // them, the subtrees with the most directories first
+    // ---
+
+    public @NotNull List<String> unchangedSubtreesSince(@NotNull DirFingerprints previous, int max) {
+        List<String> res = new ArrayList<>();
+        if (!isComparableWith(previous)) {
+            return res;
+        }
+        Set<String> selected = new HashSet<>();
+        for (Map.Entry<String, Fingerprint> e : fingerprints.entrySet()) {
+            if (e.getValue().matches(previous.fingerprints.get(e.getKey())) && !hasAncestorIn(e.getKey(), selected)) {
+                selected.add(e.getKey());
+                res.add(e.getKey());
+            }
+        }
+        res.sort(Comparator.comparingLong((String path) -> fingerprints.get(path).directories).reversed().thenComparing(path -> path));
+        return res.subList(0, Math.min(max, res.size()));
+    }
+
+    private static boolean hasAncestorIn(@NotNull String transferPath, @NotNull Set<String> selected) {
+        int slash = transferPath.lastIndexOf('/');
+        while (slash > 0) {
+            if (selected.contains(transferPath.substring(0, slash))) {
+                return true;
+            }
+            slash = transferPath.lastIndexOf('/', slash - 1);
+        }
+        // the source "/" is its own transfer root
+        return !transferPath.equals("/") && selected.contains("/");
+    }
+
+    // ---
+    // Writing and reading back
+    // ---
+
+    public void write(@NotNull File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+            out.write(HEADER + "\t" + lastFullWalk.toEpochMilli() + "\t" + rulesHash + "\t" + TabSeparated.escape(String.join("\n", roots)) + "\n");
+            for (Map.Entry<String, Fingerprint> e : fingerprints.entrySet()) {
+                out.write(Long.toHexString(e.getValue().hash) + "\t" + e.getValue().directories + "\t" + TabSeparated.escape(e.getKey()) + "\n");
+            }
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static @NotNull DirFingerprints read(@NotNull File file) throws IOException {
+        SortedMap<String, Fingerprint> fingerprints = new TreeMap<>();
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            String[] header = (line == null) ? new String[0] : line.split("\t", -1);
+            if (header.length != 4 || !HEADER.equals(header[0])) {
+                throw new IOException("Not a fingerprint file: '" + file + "'");
+            }
+            try {
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+                    if (f.length != 3) {
+                        throw new IOException("Bad fingerprint line with " + f.length + " fields");
+                    }
+                    fingerprints.put(TabSeparated.unescape(f[2]), new Fingerprint(Long.parseUnsignedLong(f[0], 16), Long.parseLong(f[1])));
+                }
+                SortedSet<String> roots = new TreeSet<>(Arrays.asList(TabSeparated.unescape(header[3]).split("\n")));
+                return new DirFingerprints(fingerprints, roots, header[2], Instant.ofEpochMilli(Long.parseLong(header[1])));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Bad fingerprint file: '" + file + "'", ex);
+            }
+        }
+    }
+
+    private static @NotNull String rulesHashOf(@NotNull SortedSet<File> sources, @NotNull FilterRuleSeq seq) {
+        StringBuilder buf = new StringBuilder();
+        sources.forEach(src -> buf.append(src).append('\n'));
+        for (FilterRule fr : seq.seq) {
+            buf.append(fr.isInclude() ? '+' : '-').append(fr.getPath()).append('\n');
+        }
+        return HexFormat.of().formatHex(sha256().digest(buf.toString().getBytes(StandardCharsets.UTF_8)), 0, 8);
+    }
+
+    private static @NotNull MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is always there", ex);
+        }
+    }
+
+    // ---
+    // Computes the fingerprint of the subtree at "dir" once those of its subdirectories are known
+    // ---
+
+    private static class WalkTask extends RecursiveTask<Fingerprint> {
+
+        private final static long serialVersionUID = 1L;
+
+        private final Path transferRoot;
+        private final Path dir;
+        private final FilterRuleSeq seq;
+        private final SortedMap<String, Fingerprint> fingerprints;
+        private final LongAdder stats;
+
+        WalkTask(Path transferRoot, Path dir, FilterRuleSeq seq, SortedMap<String, Fingerprint> fingerprints, LongAdder stats) {
+            this.transferRoot = transferRoot;
+            this.dir = dir;
+            this.seq = seq;
+            this.fingerprints = fingerprints;
+            this.stats = stats;
+        }
+
+        @Override
+        protected Fingerprint compute() {
+            String transferPath = BatchWalker.transferPathOf(transferRoot, dir);
+            Fingerprint res = fingerprintOf(transferPath);
+            fingerprints.put(transferPath, res);
+            return res;
+        }
+
+        private Fingerprint fingerprintOf(String transferPath) {
+            FileMeta meta;
+            List<String> names = new ArrayList<>();
+            try {
+                meta = FileMeta.of(dir);
+                stats.increment();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    stream.forEach(entry -> names.add(entry.getFileName().toString()));
+                }
+            } catch (IOException ex) {
+                logger.debug("Could not list directory '{}': {}", dir, ex.toString());
+                return new Fingerprint(UNREADABLE, 1);
+            }
+            Collections.sort(names);
+            // a link count below 2 says nothing about the subdirectories
+            int subdirsLeft = (meta.nlink >= 2) ? meta.nlink - 2 : Integer.MAX_VALUE;
+            SortedMap<String, WalkTask> subtasks = new TreeMap<>();
+            boolean unreadable = false;
+            for (String name : names) {
+                if (subdirsLeft == 0) {
+                    break;
+                }
+                Path entry = dir.resolve(name);
+                FileMeta entryMeta;
+                try {
+                    entryMeta = FileMeta.of(entry);
+                    stats.increment();
+                } catch (IOException ex) {
+                    // vanished in the meantime or unreadable; better walked with rsync next time
+                    unreadable = true;
+                    continue;
+                }
+                if (entryMeta.isDirectory()) {
+                    subdirsLeft--;
+                    if (!seq.isExcluded(BatchWalker.transferPathOf(transferRoot, entry), true)) {
+                        subtasks.put(name, new WalkTask(transferRoot, entry, seq, fingerprints, stats));
+                    }
+                }
+            }
+            invokeAll(subtasks.values());
+            MessageDigest md = sha256();
+            md.update(transferPath.getBytes(StandardCharsets.UTF_8));
+            md.update(ByteBuffer.allocate(3 * Long.BYTES).putLong(meta.mtimeMs).putLong(meta.ctimeMs).putLong(names.size()).array());
+            long directories = 1;
+            for (WalkTask task : subtasks.values()) {
+                Fingerprint sub = task.join();
+                unreadable |= (sub.hash == UNREADABLE);
+                directories += sub.directories;
+                md.update(ByteBuffer.allocate(Long.BYTES).putLong(sub.hash).array());
+            }
+            long hash = ByteBuffer.wrap(md.digest()).getLong();
+            return new Fingerprint(unreadable || hash == UNREADABLE ? UNREADABLE : hash, directories);
+        }
+    }
+}
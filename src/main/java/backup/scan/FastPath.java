@@ -0,0 +1,218 @@
+package backup.scan;
+
+import backup.config.Batch;
+import backup.config.TargetFormat;
+import backup.helpers.DirNaming;
+import backup.helpers.FilterRule;
+import backup.helpers.FilterRuleSeq;
+import backup.maintenance.TreeLinker;
+import backup.restore.SnapshotReader;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+
+// ---
+// With "--fast-path", the directory fingerprints of a batch (see DirFingerprints) are compared with
+// those recorded in the last snapshot where the batch fully succeeded, before anything else is done:
+//
+// - If nothing changed, the batch is not copied at all: the new TargetDir gets an "unchanged_${BATCH}.ref"
+//   naming the TargetDir that holds the batch (see SnapshotReader.holderOf()).
+// - Otherwise the unchanged subtrees are hard-linked from the holder (see TreeLinker) and excluded from
+//   the pre-scan and from rsync, which then only stat the rest.
+// - Every "fullWalkInterval", and whenever the fingerprints cannot be compared, the batch is walked in full.
+//
+// All TargetDirs get the same: the holder must be in every DestDir.
+// ---
+
+public class FastPath {
+
+    private final static String CLASS = FastPath.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    // every subtree costs an exclude rule, which rsync checks against every file
+
+    public final static int MAX_SKIPPED_SUBTREES = 1000;
+
+    public enum Decision {FullWalk, SkipSubtrees, SkipBatch}
+
+    @NotNull
+    public final Batch batch;
+
+    @NotNull
+    public final Decision decision;
+
+    @NotNull
+    public final String reason;
+
+    // to be recorded once the batch has succeeded
+
+    @NotNull
+    public final DirFingerprints fingerprints;
+
+    // the TargetDir the unchanged parts come from; null for a FullWalk
+
+    public final File holder;
+
+    // the transfer paths of the subtrees linked from the holder
+
+    @NotNull
+    public final List<String> skipped;
+
+    public final long linked;
+
+    private FastPath(@NotNull Batch batch, @NotNull Decision decision, @NotNull String reason, @NotNull DirFingerprints fingerprints, File holder,
+                     @NotNull List<String> skipped, long linked) {
+        this.batch = batch;
+        this.decision = decision;
+        this.reason = reason;
+        this.fingerprints = fingerprints;
+        this.holder = holder;
+        this.skipped = Collections.unmodifiableList(skipped);
+        this.linked = linked;
+    }
+
+    private static @NotNull FastPath fullWalk(@NotNull Batch batch, @NotNull DirFingerprints fingerprints, @NotNull Instant now, @NotNull String reason) {
+        return new FastPath(batch, Decision.FullWalk, reason, fingerprints.withLastFullWalk(now), null, new ArrayList<>(), 0);
+    }
+
+    // ---
+    // The filter rules to walk and copy the batch with: the skipped subtrees come first, so that no
+    // include rule of the batch brings them back
+    // ---
+
+    public @NotNull FilterRuleSeq seqOf(@NotNull FilterRuleSeq seq) {
+        return seq.prepend(skipped.stream().map(tp -> "-" + FilterRule.quote(tp) + "/").toArray(String[]::new));
+    }
+
+    // ---
+    // "targetDirs" are the new TargetDirs, the first one in the DestDir where the last good snapshot is looked for.
+    // "maxSubtrees" may be 0 to only ever skip whole batches.
+    // ---
+
+    public static @NotNull FastPath plan(@NotNull Batch batch, @NotNull SortedSet<File> sources, @NotNull FilterRuleSeq seq, @NotNull List<File> targetDirs,
+                                         @NotNull Instant now, @NotNull Duration fullWalkInterval, int maxSubtrees, int parallelism) {
+        DirFingerprints fingerprints = DirFingerprints.take(batch, sources, seq, parallelism);
+        File previous = lastGoodSnapshot(targetDirs.get(0), batch);
+        if (previous == null) {
+            return fullWalk(batch, fingerprints, now, "there is no earlier snapshot with fingerprints");
+        }
+        DirFingerprints previousFingerprints;
+        File holder;
+        try {
+            previousFingerprints = DirFingerprints.read(new File(previous, DirNaming.buildAtomicFingerprintFileName(batch)));
+            holder = SnapshotReader.holderOf(previous, batch);
+        } catch (IOException ex) {
+            logger.warn("Could not read what '{}' holds of batch '{}'", previous, batch, ex);
+            return fullWalk(batch, fingerprints, now, "what '" + previous.getName() + "' holds cannot be read");
+        }
+        if (!Duration.between(previousFingerprints.getLastFullWalk(), now).minus(fullWalkInterval).isNegative()) {
+            return fullWalk(batch, fingerprints, now, "the last full walk was at " + previousFingerprints.getLastFullWalk());
+        }
+        if (!fingerprints.isComparableWith(previousFingerprints)) {
+            return fullWalk(batch, fingerprints, now, "the sources or the filter rules changed");
+        }
+        if (SnapshotReader.formatOf(holder, batch) != TargetFormat.PlainTree) {
+            return fullWalk(batch, fingerprints, now, "'" + holder.getName() + "' does not hold the batch as a plain tree");
+        }
+        for (File targetDir : targetDirs) {
+            if (!new File(siblingOf(targetDir, holder), DirNaming.buildAtomicDumpDirName(batch)).isDirectory()) {
+                return fullWalk(batch, fingerprints, now, "'" + holder.getName() + "' is missing from '" + targetDir.getParent() + "'");
+            }
+        }
+        DirFingerprints carried = fingerprints.withLastFullWalk(previousFingerprints.getLastFullWalk());
+        if (fingerprints.isUnchangedSince(previousFingerprints)) {
+            try {
+                for (File targetDir : targetDirs) {
+                    Files.writeString(new File(targetDir, DirNaming.buildAtomicUnchangedFileName(batch)).toPath(), holder.getName() + "\n", StandardCharsets.UTF_8);
+                }
+                return new FastPath(batch, Decision.SkipBatch, "nothing changed since '" + previous.getName() + "'", carried, holder, new ArrayList<>(), 0);
+            } catch (IOException ex) {
+                logger.warn("Could not refer to '{}' for batch '{}'", holder, batch, ex);
+                for (File targetDir : targetDirs) {
+                    new File(targetDir, DirNaming.buildAtomicUnchangedFileName(batch)).delete();
+                }
+                return fullWalk(batch, fingerprints, now, "the reference to '" + holder.getName() + "' cannot be written");
+            }
+        }
+        List<String> skipped = new ArrayList<>();
+        long linked = 0;
+        for (String transferPath : fingerprints.unchangedSubtreesSince(previousFingerprints, maxSubtrees)) {
+            try {
+                linked += linkSubtree(batch, transferPath, holder, targetDirs);
+                skipped.add(transferPath);
+            } catch (IOException ex) {
+                // e.g. no hard links on this file system; rsync copies the subtree
+                logger.warn("Could not link '{}' of batch '{}' from '{}', it is copied", transferPath, batch, holder, ex);
+                break;
+            }
+        }
+        if (skipped.isEmpty()) {
+            return fullWalk(batch, fingerprints, now, "no subtree is unchanged since '" + previous.getName() + "'");
+        }
+        return new FastPath(batch, Decision.SkipSubtrees, skipped.size() + " subtrees are unchanged since '" + previous.getName() + "'",
+                carried, holder, skipped, linked);
+    }
+
+    // ---
+    // The copy and the stored deltas of the subtree, into all TargetDirs or none
+    // ---
+
+    private static long linkSubtree(@NotNull Batch batch, @NotNull String transferPath, @NotNull File holder, @NotNull List<File> targetDirs) throws IOException {
+        List<Path> done = new ArrayList<>();
+        long res = 0;
+        try {
+            for (File targetDir : targetDirs) {
+                File from = siblingOf(targetDir, holder);
+                for (String dirName : new String[]{DirNaming.buildAtomicDumpDirName(batch), DirNaming.buildAtomicDeltaDirName(batch)}) {
+                    Path source = new File(new File(from, dirName), transferPath.substring(1)).toPath();
+                    Path target = new File(new File(targetDir, dirName), transferPath.substring(1)).toPath();
+                    if (Files.isDirectory(source)) {
+                        done.add(target);
+                        res += TreeLinker.link(source, target);
+                    }
+                }
+            }
+            return res;
+        } catch (IOException ex) {
+            for (Path target : done) {
+                TreeLinker.unlink(target);
+            }
+            throw ex;
+        }
+    }
+
+    // ---
+    // The TargetDirs of a run have the same name in every DestDir
+    // ---
+
+    private static @NotNull File siblingOf(@NotNull File targetDir, @NotNull File holder) {
+        return new File(targetDir.getParentFile(), holder.getName());
+    }
+
+    // ---
+    // The most recent TargetDir before "targetDir" where the batch fully succeeded (only those have fingerprints)
+    // ---
+
+    private static File lastGoodSnapshot(@NotNull File targetDir, @NotNull Batch batch) {
+        List<File> earlier = DirNaming.listTargetDirsOfThisHost(targetDir.getParentFile());
+        Collections.reverse(earlier);
+        for (File dir : earlier) {
+            if (dir.getName().compareTo(targetDir.getName()) < 0 && new File(dir, DirNaming.buildAtomicFingerprintFileName(batch)).isFile()) {
+                return dir;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,76 @@
+package backup.scan;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+// ---
+// The result of a single lstat(2) of a file, obtained through the "unix" attribute
+// view of the JDK. Reading all the attributes in one call means that the walkers
+// stat every file exactly once.
+// ---
+
+public class FileMeta {
+
+    // File type bits of "st_mode", see inode(7)
+
+    private final static int S_IFMT = 0170000;
+    private final static int S_IFDIR = 0040000;
+    private final static int S_IFREG = 0100000;
+    private final static int S_IFLNK = 0120000;
+
+    private final static String ATTRIBUTES = "unix:mode,ino,dev,nlink,uid,gid,size,lastModifiedTime,ctime";
+
+    public final int mode;
+    public final long ino;
+    public final long dev;
+    public final int nlink;
+    public final int uid;
+    public final int gid;
+    public final long size;
+    public final long mtimeMs;
+    public final long ctimeMs;
+
+    private FileMeta(@NotNull Map<String, Object> attrs) {
+        this.mode = (Integer) attrs.get("mode");
+        this.ino = (Long) attrs.get("ino");
+        this.dev = (Long) attrs.get("dev");
+        this.nlink = (Integer) attrs.get("nlink");
+        this.uid = (Integer) attrs.get("uid");
+        this.gid = (Integer) attrs.get("gid");
+        this.size = (Long) attrs.get("size");
+        this.mtimeMs = ((FileTime) attrs.get("lastModifiedTime")).toMillis();
+        this.ctimeMs = ((FileTime) attrs.get("ctime")).toMillis();
+    }
+
+    // ---
+    // Does not follow symlinks, like rsync with "--archive"
+    // ---
+
+    public static FileMeta of(@NotNull Path path) throws IOException {
+        return new FileMeta(Files.readAttributes(path, ATTRIBUTES, LinkOption.NOFOLLOW_LINKS));
+    }
+
+    public boolean isDirectory() {
+        return (mode & S_IFMT) == S_IFDIR;
+    }
+
+    public boolean isRegularFile() {
+        return (mode & S_IFMT) == S_IFREG;
+    }
+
+    public boolean isSymlink() {
+        return (mode & S_IFMT) == S_IFLNK;
+    }
+
+    // The permission bits only, as in "chmod"
+
+    public int permissions() {
+        return mode & 07777;
+    }
+}
@@ -0,0 +1,113 @@
+package backup.scan;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+// ---
+// Counts the regular files that have more than one hard link and determines how many
+// bytes would be stored twice on the backup disk if rsync were run without "--hard-links".
+//
+// Only hard links inside the same batch count, as hard links between different
+// batches end up in different "copy_of_${BATCH}" trees anyway.
+//
+// rsync needs additional memory for every file with a link count > 1 when "--hard-links"
+// is given, so the option is only switched on if the bytes saved justify that.
+// ---
+
+public class HardLinkCensus implements BatchWalker.Visitor {
+
+    // Rough additional memory in bytes that rsync 3.x needs per multiply-linked file
+    // when "--hard-links" is on (dev/inode pair, hash table entry, link group bookkeeping)
+
+    public final static long RSYNC_BYTES_PER_LINKED_FILE = 128;
+
+    // A byte of rsync memory must save at least this many bytes on disk
+
+    public final static long MIN_DISK_BYTES_PER_MEMORY_BYTE = 64;
+
+    // Don't bother for less than this
+
+    public final static long MIN_SAVED_BYTES = 1024 * 1024;
+
+    // Never let "--hard-links" cost rsync more than this
+
+    public final static long MAX_RSYNC_EXTRA_MEMORY = 1024L * 1024 * 1024;
+
+    // One compact inode set per device
+
+    private final Map<Long, LongHashSet> inodesByDev = new HashMap<>();
+
+    private long linkedFiles;   // files seen with nlink > 1
+    private long distinctInodes; // distinct inodes among those
+    private long savedBytes;    // bytes not copied twice thanks to "--hard-links"
+
+    @Override
+    public void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+        if (!meta.isRegularFile() || meta.nlink < 2) {
+            return;
+        }
+        synchronized (this) {
+            linkedFiles++;
+            LongHashSet inodes = inodesByDev.computeIfAbsent(meta.dev, dev -> new LongHashSet());
+            if (inodes.add(meta.ino)) {
+                distinctInodes++;
+            } else {
+                savedBytes += meta.size;
+            }
+        }
+    }
+
+    public synchronized long getLinkedFiles() {
+        return linkedFiles;
+    }
+
+    public synchronized long getDistinctInodes() {
+        return distinctInodes;
+    }
+
+    public synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+
+    public synchronized long getInodeSetFootprint() {
+        return inodesByDev.values().stream().mapToLong(LongHashSet::footprintBytes).sum();
+    }
+
+    public synchronized long getEstimatedRsyncExtraMemory() {
+        return linkedFiles * RSYNC_BYTES_PER_LINKED_FILE;
+    }
+
+    // ---
+    // The decision and the reason for it, for logging
+    // ---
+
+    public static class Decision {
+
+        public final boolean useHardLinks;
+
+        @NotNull
+        public final String reason;
+
+        Decision(boolean useHardLinks, @NotNull String reason) {
+            this.useHardLinks = useHardLinks;
+            this.reason = reason;
+        }
+    }
+
+    public synchronized Decision decide() {
+        long memory = getEstimatedRsyncExtraMemory();
+        if (savedBytes < MIN_SAVED_BYTES) {
+            return new Decision(false, "only " + savedBytes + " bytes would be saved (minimum is " + MIN_SAVED_BYTES + ")");
+        }
+        if (memory > MAX_RSYNC_EXTRA_MEMORY) {
+            return new Decision(false, "rsync would need about " + memory + " bytes of additional memory (maximum is " + MAX_RSYNC_EXTRA_MEMORY + ")");
+        }
+        if (savedBytes < memory * MIN_DISK_BYTES_PER_MEMORY_BYTE) {
+            return new Decision(false, savedBytes + " bytes saved do not justify about " + memory + " bytes of additional rsync memory");
+        }
+        return new Decision(true, savedBytes + " bytes saved for about " + memory + " bytes of additional rsync memory");
+    }
+}
@@ -0,0 +1,61 @@
+package backup.scan;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// ---
+// Collects the regular files at or above a size threshold. These are stored as block-level
+// deltas (see DeltaStore) instead of being copied by rsync.
+// ---
+
+public class LargeFileCollector implements BatchWalker.Visitor {
+
+    public static class LargeFile {
+
+        @NotNull
+        public final Path path;
+
+        @NotNull
+        public final String transferPath;
+
+        @NotNull
+        public final FileMeta meta;
+
+        LargeFile(@NotNull Path path, @NotNull String transferPath, @NotNull FileMeta meta) {
+            this.path = path;
+            this.transferPath = transferPath;
+            this.meta = meta;
+        }
+    }
+
+    private final long threshold;
+
+    private final List<LargeFile> largeFiles = new ArrayList<>();
+
+    // ---
+    // A threshold of 0 means: collect nothing
+    // ---
+
+    public LargeFileCollector(long threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+        if (threshold > 0 && meta.isRegularFile() && meta.size >= threshold) {
+            synchronized (this) {
+                largeFiles.add(new LargeFile(file, transferPath, meta));
+            }
+        }
+    }
+
+    public synchronized List<LargeFile> getLargeFiles() {
+        List<LargeFile> res = new ArrayList<>(largeFiles);
+        res.sort((a, b) -> a.transferPath.compareTo(b.transferPath));
+        return Collections.unmodifiableList(res);
+    }
+}
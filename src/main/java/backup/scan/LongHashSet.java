@@ -0,0 +1,111 @@
+package backup.scan;
+
+import java.util.Arrays;
+
+// ---
+// A compact set of "long" (inode numbers, for example) using open addressing
+// with linear probing. It costs 8 bytes per slot instead of the ~50 bytes per entry
+// of a HashSet<Long>, which matters when there are millions of entries.
+// Not thread-safe.
+// ---
+
+public class LongHashSet {
+
+    private final static long EMPTY = 0L;
+    private final static float MAX_LOAD = 0.6f;
+
+    private long[] slots;
+    private int size;
+    private boolean containsEmptyMarker; // the value 0 cannot be stored in a slot
+
+    public LongHashSet() {
+        this(1024);
+    }
+
+    public LongHashSet(int initialCapacity) {
+        int cap = Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1;
+        slots = new long[cap];
+    }
+
+    // ---
+    // Returns true if the value was not yet in the set
+    // ---
+
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsEmptyMarker) {
+                return false;
+            }
+            containsEmptyMarker = true;
+            size++;
+            return true;
+        }
+        if (size + 1 > slots.length * MAX_LOAD) {
+            rehash(slots.length << 1);
+        }
+        if (insert(slots, value)) {
+            size++;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return containsEmptyMarker;
+        }
+        int mask = slots.length - 1;
+        int i = mix(value) & mask;
+        while (slots[i] != EMPTY) {
+            if (slots[i] == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // ---
+    // Approximate heap usage, for logging
+    // ---
+
+    public long footprintBytes() {
+        return 16L + 8L * slots.length;
+    }
+
+    private static boolean insert(long[] table, long value) {
+        int mask = table.length - 1;
+        int i = mix(value) & mask;
+        while (table[i] != EMPTY) {
+            if (table[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        return true;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] newSlots = new long[newCapacity];
+        Arrays.stream(slots).filter(v -> v != EMPTY).forEach(v -> insert(newSlots, v));
+        slots = newSlots;
+    }
+
+    // The finalizer of MurmurHash3, spreads consecutive inode numbers over the table
+
+    private static int mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -0,0 +1,164 @@
+package backup.scan;
+
+import backup.config.Batch;
+import backup.helpers.DurationPrinter;
+import backup.helpers.FilterRuleSeq;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// ---
+// Walk the sources of each batch in Java before rsync is started, collecting
+// information that rsync cannot give us in advance (see PreScanResult).
+// As a side effect, the dentry and inode caches are warm when rsync builds its file list.
+// ---
+
+public abstract class PreScan {
+
+    private final static String CLASS = PreScan.class.getName();
+
+    public final static int DEFAULT_PARALLELISM = 4;
+
+    public enum Caches {Exclude, Keep}
+
+    // ---
+    // Counts what is being walked over
+    // ---
+
+    private static class Counter implements BatchWalker.Visitor {
+
+        final LongAdder files = new LongAdder();
+        final LongAdder directories = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        @Override
+        public boolean enterDirectory(@NotNull Path dir, @NotNull String transferPath, @NotNull FileMeta meta) {
+            directories.increment();
+            return true;
+        }
+
+        @Override
+        public void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+            files.increment();
+            if (meta.isRegularFile()) {
+                bytes.add(meta.size);
+            }
+        }
+    }
+
+    // ---
+    // Fan out to several visitors on a single walk. Once a visitor declines a directory,
+    // the ones after it do not see it, so put those that exclude directories first.
+    // ---
+
+    private static class Fanout implements BatchWalker.Visitor {
+
+        private final BatchWalker.Visitor[] visitors;
+
+        Fanout(BatchWalker.Visitor... visitors) {
+            this.visitors = visitors;
+        }
+
+        @Override
+        public boolean enterDirectory(@NotNull Path dir, @NotNull String transferPath, @NotNull FileMeta meta) {
+            for (BatchWalker.Visitor v : visitors) {
+                if (!v.enterDirectory(dir, transferPath, meta)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+            for (BatchWalker.Visitor v : visitors) {
+                v.visitFile(file, transferPath, meta);
+            }
+        }
+    }
+
+    // ---
+    // Files of at least "deltaThreshold" bytes are collected for block-level delta storage.
+    // A "deltaThreshold" of 0 switches that off.
+    // Cache directories are left out unless "caches" is Keep (see CacheDirDetector).
+    // ---
+
+    public static @NotNull PreScanResult preScan(@NotNull Batch batch, File sourceRoot, int parallelism, long deltaThreshold, @NotNull Caches caches) {
+        return preScan(batch, batch.seq, sourceRoot, parallelism, deltaThreshold, caches);
+    }
+
+    // ---
+    // Walk "batch" with "seq" instead of its own rules, e.g. with unchanged subtrees left out (see FastPath)
+    // ---
+
+    public static @NotNull PreScanResult preScan(@NotNull Batch batch, @NotNull FilterRuleSeq seq, File sourceRoot, int parallelism, long deltaThreshold, @NotNull Caches caches) {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".preScan");
+        Instant start = Instant.now();
+        Counter counter = new Counter();
+        HardLinkCensus census = new HardLinkCensus();
+        SparseFileCensus sparse = new SparseFileCensus();
+        LargeFileCollector large = new LargeFileCollector(deltaThreshold);
+        CacheDirDetector cacheDetector = new CacheDirDetector();
+        BatchWalker walker = new BatchWalker(batch, batch.sourcesUnder(sourceRoot), seq, parallelism);
+        if (caches == Caches.Exclude) {
+            walker.walk(new Fanout(cacheDetector, counter, census, sparse, large));
+        }
+        else {
+            walker.walk(new Fanout(counter, census, sparse, large));
+        }
+        sparse.probeAllocation();
+        Duration duration = Duration.between(start, Instant.now());
+        PreScanResult res = new PreScanResult(batch, seq, counter.files.sum(), counter.directories.sum(), counter.bytes.sum(), walker.getErrorCount(), duration, census, sparse, large.getLargeFiles(), cacheDetector.getCacheDirs());
+        logger.info("Pre-scan of batch '{}' took {}: {} files, {} directories, {} bytes, {} unreadable",
+                batch, DurationPrinter.formatDuration(duration), res.files, res.directories, res.bytes, res.errors);
+        logger.info("Batch '{}' has {} multiply-linked files over {} inodes (inode set uses {} bytes)",
+                batch, census.getLinkedFiles(), census.getDistinctInodes(), census.getInodeSetFootprint());
+        logger.info("Batch '{}': {} '--hard-links' because {}", batch, (res.useHardLinks() ? "using" : "not using"), res.hardLinkDecision.reason);
+        logger.info("Batch '{}' has {} sparse files, {} bytes long but only {} bytes allocated: {}{}",
+                batch, sparse.getSparseFiles(), sparse.getApparentBytes(), sparse.getAllocatedBytes(),
+                (sparse.useSparse() ? "using '--sparse', saving " + sparse.getSavedBytes() + " bytes" : "not using '--sparse'"),
+                (sparse.getProbeFailures() > 0 ? " (" + sparse.getProbeFailures() + " files could not be probed)" : ""));
+        if (deltaThreshold > 0) {
+            logger.info("Batch '{}' has {} files of at least {} bytes, to be stored as block-level deltas",
+                    batch, res.deltaFiles.size(), deltaThreshold);
+        }
+        for (CacheDirDetector.CacheDir cd : res.cacheDirs) {
+            logger.info("Batch '{}': leaving out the cache directory '{}' ({}), saving {} bytes", batch, cd.transferPath, cd.reason, cd.bytes);
+        }
+        if (!res.cacheDirs.isEmpty()) {
+            logger.info("Batch '{}': {} cache directories left out, saving {} bytes in total", batch, res.cacheDirs.size(), res.getCacheBytes());
+        }
+        return res;
+    }
+
+    // ---
+    // The "sourceRoot" is null unless the batches are to be found elsewhere (see Batch.sourcesUnder())
+    // ---
+
+    public static @NotNull SortedMap<Batch, PreScanResult> preScanAll(@NotNull Collection<Batch> batches, File sourceRoot, int parallelism, long deltaThreshold,
+                                                                    @NotNull Caches caches) {
+        SortedMap<Batch, FilterRuleSeq> seqs = new TreeMap<>();
+        batches.forEach(batch -> seqs.put(batch, batch.seq));
+        return preScanAll(seqs, sourceRoot, parallelism, deltaThreshold, caches);
+    }
+
+    // ---
+    // Each batch with its own "seq"
+    // ---
+
+    public static @NotNull SortedMap<Batch, PreScanResult> preScanAll(@NotNull SortedMap<Batch, FilterRuleSeq> seqs, File sourceRoot, int parallelism, long deltaThreshold,
+                                                                    @NotNull Caches caches) {
+        SortedMap<Batch, PreScanResult> res = new TreeMap<>();
+        seqs.forEach((batch, seq) -> res.put(batch, preScan(batch, seq, sourceRoot, parallelism, deltaThreshold, caches)));
+        return res;
+    }
+}
@@ -0,0 +1,90 @@
+package backup.scan;
+
+import backup.config.Batch;
+import backup.helpers.FilterRule;
+import backup.helpers.FilterRuleSeq;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.List;
+
+// ---
+// What the Java-side pre-scan of a batch found out.
+// Used to adapt the rsync command of the batch.
+// ---
+
+public class PreScanResult {
+
+    @NotNull
+    public final Batch batch;
+
+    public final long files;
+    public final long directories;
+    public final long bytes;
+    public final long errors;
+
+    @NotNull
+    public final Duration duration;
+
+    @NotNull
+    public final HardLinkCensus hardLinkCensus;
+
+    @NotNull
+    public final HardLinkCensus.Decision hardLinkDecision;
+
+    @NotNull
+    public final SparseFileCensus sparseFileCensus;
+
+    // Files to be stored as block-level deltas instead of being copied by rsync, sorted by transfer path
+
+    @NotNull
+    public final List<LargeFileCollector.LargeFile> deltaFiles;
+
+    // Cache directories left out of the backup, sorted by transfer path (empty if not looked for)
+
+    @NotNull
+    public final List<CacheDirDetector.CacheDir> cacheDirs;
+
+    // The filter rules the batch was walked with (its own, unless see FastPath) with the cache directories excluded
+
+    @NotNull
+    public final FilterRuleSeq seq;
+
+    public PreScanResult(@NotNull Batch batch, @NotNull FilterRuleSeq baseSeq, long files, long directories, long bytes, long errors, @NotNull Duration duration,
+                         @NotNull HardLinkCensus hardLinkCensus, @NotNull SparseFileCensus sparseFileCensus, @NotNull List<LargeFileCollector.LargeFile> deltaFiles,
+                         @NotNull List<CacheDirDetector.CacheDir> cacheDirs) {
+        this.batch = batch;
+        this.files = files;
+        this.directories = directories;
+        this.bytes = bytes;
+        this.errors = errors;
+        this.duration = duration;
+        this.hardLinkCensus = hardLinkCensus;
+        this.hardLinkDecision = hardLinkCensus.decide();
+        this.sparseFileCensus = sparseFileCensus;
+        this.deltaFiles = deltaFiles;
+        this.cacheDirs = cacheDirs;
+        // appended, so that the user's own rules win, e.g. an include of a cache that is wanted after all
+        this.seq = baseSeq.append(cacheDirs.stream().map(cd -> "-" + FilterRule.quote(cd.transferPath) + "/").toArray(String[]::new));
+    }
+
+    // ---
+    // The filter rules to apply to "batch", which depend on whether there has been a pre-scan
+    // ---
+
+    public static @NotNull FilterRuleSeq seqOf(@NotNull Batch batch, PreScanResult preScan) {
+        return (preScan == null) ? batch.seq : preScan.seq;
+    }
+
+    public long getCacheBytes() {
+        return cacheDirs.stream().mapToLong(cd -> cd.bytes).sum();
+    }
+
+    public boolean useHardLinks() {
+        return hardLinkDecision.useHardLinks;
+    }
+
+    public boolean useSparse() {
+        return sparseFileCensus.useSparse();
+    }
+}
@@ -0,0 +1,197 @@
+package backup.scan;
+
+import backup.config.Batch;
+import backup.helpers.FilterRuleSeq;
+import backup.helpers.MemInfo;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+// ---
+// Warms the dentry and inode caches of the kernel for the sources of a batch while rsync still
+// copies the batch before it, so that rsync finds them in memory when it builds the file list of
+// that batch instead of waiting on a seek per directory. It is a BatchWalker walk (same filter
+// rules, so nothing rsync would leave out is read) that does nothing but lstat(2).
+//
+// The walk is kept in the background:
+//
+// - a few threads only, and at most "maxEntriesPerSec" entries per second, so that it does not
+//   take the disk away from the copy that is running;
+// - it stops by itself once "MemAvailable" (see MemInfo) drops below a floor: dentries and inodes
+//   are reclaimable, but evicting the working set of the machine for them would be no gain;
+// - cancel() stops it; it is cancelled at the latest when its batch starts, as rsync then walks
+//   the same tree anyway.
+// ---
+
+public class Prefetcher {
+
+    private final static String CLASS = Prefetcher.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    public final static int DEFAULT_PARALLELISM = 2;
+    public final static long DEFAULT_MAX_ENTRIES_PER_SEC = 20_000;
+
+    // never go below this much available memory, nor below a tenth of the total
+
+    public final static long MIN_AVAILABLE_BYTES = 256L * 1024 * 1024;
+
+    // the throttle and the memory are looked at every so many entries
+
+    private final static int CHECK_EVERY = 1024;
+
+    private final static long PAUSE_SLICE_MS = 50;
+
+    public enum Outcome {Running, Done, Cancelled, MemoryPressure}
+
+    @NotNull
+    public final Batch batch;
+
+    @NotNull
+    private final BatchWalker walker;
+
+    private final long maxEntriesPerSec;
+
+    private final long availableFloor;
+
+    private final AtomicLong entries = new AtomicLong();
+
+    private volatile Outcome outcome = Outcome.Running;
+
+    private volatile boolean stopping;
+
+    private volatile Thread thread;
+
+    private Instant start;
+
+    private Duration duration;
+
+    public Prefetcher(@NotNull Batch batch, @NotNull SortedSet<File> sources, @NotNull FilterRuleSeq seq, int parallelism, long maxEntriesPerSec) {
+        this.batch = batch;
+        this.walker = new BatchWalker(batch, sources, seq, parallelism);
+        this.maxEntriesPerSec = maxEntriesPerSec;
+        MemInfo memInfo = MemInfo.read();
+        this.availableFloor = (memInfo == null) ? MIN_AVAILABLE_BYTES : Math.max(MIN_AVAILABLE_BYTES, memInfo.memTotal / 10);
+    }
+
+    // ---
+    // Start the walk on a thread of its own
+    // ---
+
+    public synchronized @NotNull Prefetcher start() {
+        start = Instant.now();
+        thread = new Thread(this::run, "prefetch-" + batch);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    private void run() {
+        try {
+            walker.walk(new BatchWalker.Visitor() {
+                @Override
+                public boolean enterDirectory(@NotNull Path dir, @NotNull String transferPath, @NotNull FileMeta meta) {
+                    // the directories already being listed are finished, nothing more is entered
+                    return count();
+                }
+
+                @Override
+                public void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+                    count();
+                }
+            });
+        } catch (RuntimeException ex) {
+            logger.warn("Prefetching batch '{}' failed", batch, ex);
+        }
+        synchronized (this) {
+            duration = Duration.between(start, Instant.now());
+            if (outcome == Outcome.Running) {
+                outcome = stopping ? Outcome.Cancelled : Outcome.Done;
+            }
+        }
+        logger.debug("Prefetched {} entries of batch '{}' in {} ms: {}", entries.get(), batch, duration.toMillis(), outcome);
+    }
+
+    // ---
+    // Returns false once the walk should stop
+    // ---
+
+    private boolean count() {
+        if (stopping) {
+            return false;
+        }
+        long n = entries.incrementAndGet();
+        if (n % CHECK_EVERY == 0) {
+            checkpoint(n);
+        }
+        return !stopping;
+    }
+
+    private synchronized void checkpoint(long n) {
+        MemInfo memInfo = MemInfo.read();
+        if (memInfo != null && memInfo.memAvailable >= 0 && memInfo.memAvailable < availableFloor) {
+            outcome = Outcome.MemoryPressure;
+            stopping = true;
+            return;
+        }
+        if (maxEntriesPerSec <= 0) {
+            return;
+        }
+        // holding the lock while sleeping holds back all walker threads; short naps keep cancel() quick
+        long aheadMs;
+        while (!stopping && (aheadMs = n * 1000 / maxEntriesPerSec - Duration.between(start, Instant.now()).toMillis()) > 0) {
+            try {
+                Thread.sleep(Math.min(aheadMs, PAUSE_SLICE_MS));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // ---
+    // Stop the walk and wait for it to end; does nothing if it has ended already
+    // ---
+
+    public @NotNull Prefetcher cancel() {
+        // the walker threads see it at the next entry or during their pause
+        stopping = true;
+        Thread t = thread;
+        if (t != null) {
+            boolean interrupted = false;
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return this;
+    }
+
+    public long getEntries() {
+        return entries.get();
+    }
+
+    public @NotNull Outcome getOutcome() {
+        return outcome;
+    }
+
+    // ---
+    // null while the walk is running
+    // ---
+
+    public synchronized Duration getDuration() {
+        return duration;
+    }
+}
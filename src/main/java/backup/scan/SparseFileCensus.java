@@ -0,0 +1,145 @@
+package backup.scan;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// ---
+// Finds the sparse files among the large files of a batch (mostly-empty VM disk images
+// for example). Without "--sparse", rsync writes out every hole as zeros on the backup disk.
+//
+// The JDK does not give access to "st_blocks", so the large files collected during the walk
+// are probed afterwards with stat(1), a few hundred files per call. A file is sparse if it
+// has noticeably fewer blocks allocated than its length needs.
+// ---
+
+public class SparseFileCensus implements BatchWalker.Visitor {
+
+    private final static String CLASS = SparseFileCensus.class.getName();
+
+    public final static String STAT_EXE_NAME = "/usr/bin/stat";
+
+    // Only files at least this large are probed (there are few of them)
+
+    public final static long MIN_CANDIDATE_SIZE = 16L * 1024 * 1024;
+
+    // A file is considered sparse if at least this many bytes are holes
+
+    public final static long MIN_HOLE_BYTES = 1024 * 1024;
+
+    private final static int FILES_PER_STAT_CALL = 256;
+
+    private final static long STAT_EXIT_TIMEOUT_SEC = 10;
+
+    private final List<Path> candidates = new ArrayList<>();
+
+    private long sparseFiles;
+    private long apparentBytes;  // length of the sparse files
+    private long allocatedBytes; // disk space actually allocated by the sparse files
+    private long probeFailures;
+
+    @Override
+    public void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+        if (meta.isRegularFile() && meta.size >= MIN_CANDIDATE_SIZE) {
+            synchronized (this) {
+                candidates.add(file);
+            }
+        }
+    }
+
+    // ---
+    // Call this after the walk
+    // ---
+
+    public synchronized void probeAllocation() {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".probeAllocation");
+        for (int i = 0; i < candidates.size(); i += FILES_PER_STAT_CALL) {
+            List<Path> chunk = candidates.subList(i, Math.min(candidates.size(), i + FILES_PER_STAT_CALL));
+            try {
+                probeChunk(chunk);
+            } catch (IOException ex) {
+                logger.warn("Could not probe block allocation of {} files: {}", chunk.size(), ex);
+                probeFailures += chunk.size();
+            }
+        }
+        candidates.clear();
+    }
+
+    private void probeChunk(@NotNull List<Path> chunk) throws IOException {
+        Logger logger = LoggerFactory.getLogger(CLASS + ".probeChunk");
+        List<String> cmd = new ArrayList<>();
+        cmd.add(STAT_EXE_NAME);
+        // NUL-terminated records, as file names may contain anything
+        cmd.add("--printf=%b %B %s %n\\0");
+        cmd.add("--");
+        chunk.forEach(p -> cmd.add(p.toString()));
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD); // vanished files and the like
+        Process p = pb.start();
+        String out;
+        try {
+            out = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            // it has closed its output, so it is about to exit
+            if (!p.waitFor(STAT_EXIT_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                logger.debug("'{}' did not exit in time", STAT_EXE_NAME);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for '" + STAT_EXE_NAME + "'", ex);
+        } finally {
+            if (p.isAlive()) {
+                p.destroyForcibly();
+            }
+        }
+        int found = 0;
+        for (String record : out.split("\0")) {
+            String[] fields = record.split(" ", 4);
+            if (fields.length < 4) {
+                continue;
+            }
+            found++;
+            long allocated = Long.parseLong(fields[0]) * Long.parseLong(fields[1]);
+            long size = Long.parseLong(fields[2]);
+            if (size - allocated >= MIN_HOLE_BYTES) {
+                sparseFiles++;
+                apparentBytes += size;
+                allocatedBytes += allocated;
+            }
+        }
+        probeFailures += chunk.size() - found;
+    }
+
+    public synchronized long getSparseFiles() {
+        return sparseFiles;
+    }
+
+    public synchronized long getApparentBytes() {
+        return apparentBytes;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    // ---
+    // The bytes that are not written to the backup disk thanks to "--sparse"
+    // ---
+
+    public synchronized long getSavedBytes() {
+        return apparentBytes - allocatedBytes;
+    }
+
+    public synchronized long getProbeFailures() {
+        return probeFailures;
+    }
+
+    public boolean useSparse() {
+        return getSparseFiles() > 0;
+    }
+}
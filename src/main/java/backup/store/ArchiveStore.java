@@ -0,0 +1,415 @@
+package backup.store;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import backup.scan.BatchWalker;
+import backup.scan.FileMeta;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+// ---
+// The archive target format, for batches made of very many small files. Creating a file on a
+// USB disk costs several metadata writes, which is what limits the copying of small files.
+// Here the contents of the files are instead appended to large "segments", so the disk only
+// sees large sequential writes.
+//
+// The segments live in "archive_of_${BATCH}" directly in the DestDir and are shared by all
+// the TargetDirs: a segment is written once and never modified. Each TargetDir gets an "index"
+// listing every file of the batch with the segment, offset and length of its contents. On an
+// incremental run, the index of the previous TargetDir is read and a file whose size and mtime
+// did not change just gets its previous index entry again; only new or changed files are
+// appended, into new segments.
+//
+// Any file can be read back directly through its index entry (see open()).
+//
+// Deleting the segments of an old TargetDir is not possible (they may still be referenced);
+// the whole "archive_of_${BATCH}" has to go at once.
+// ---
+
+public class ArchiveStore implements BatchWalker.Visitor, Closeable {
+
+    private final static String CLASS = ArchiveStore.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    private final static String INDEX_HEADER = "# BTUARCHIVE 1";
+
+    public final static long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+    private final static int WRITE_BUFFER_SIZE = 8 * 1024 * 1024;
+    private final static int READ_BUFFER_SIZE = 1024 * 1024;
+
+    public enum EntryType {File, Directory, Symlink}
+
+    // ---
+    // One line of the index
+    // ---
+
+    public static class IndexEntry {
+
+        public final EntryType type;
+        public final String transferPath;
+        public final int segment; // 0 unless a File
+        public final long offset;
+        public final long length;
+        public final int crc32c;
+        public final long mtimeMs;
+        public final int permissions;
+        public final int uid;
+        public final int gid;
+        public final String symlinkTarget; // null unless a Symlink
+
+        IndexEntry(EntryType type, String transferPath, int segment, long offset, long length, int crc32c, long mtimeMs, int permissions, int uid, int gid, String symlinkTarget) {
+            this.type = type;
+            this.transferPath = transferPath;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.crc32c = crc32c;
+            this.mtimeMs = mtimeMs;
+            this.permissions = permissions;
+            this.uid = uid;
+            this.gid = gid;
+            this.symlinkTarget = symlinkTarget;
+        }
+
+        String toLine() {
+            return type + "\t" + TabSeparated.escape(transferPath) + "\t" + segment + "\t" + offset + "\t" + length + "\t" + Integer.toHexString(crc32c)
+                    + "\t" + mtimeMs + "\t" + Integer.toOctalString(permissions) + "\t" + uid + "\t" + gid + "\t" + TabSeparated.escape(symlinkTarget == null ? "" : symlinkTarget) + "\n";
+        }
+
+        static IndexEntry fromLine(@NotNull String line) throws IOException {
+            String[] f = line.split("\t", -1);
+            if (f.length != 11) {
+                throw new IOException("Bad index line with " + f.length + " fields");
+            }
+            EntryType type = EntryType.valueOf(f[0]);
+            return new IndexEntry(type, TabSeparated.unescape(f[1]), Integer.parseInt(f[2]), Long.parseLong(f[3]), Long.parseLong(f[4]), Integer.parseUnsignedInt(f[5], 16),
+                    Long.parseLong(f[6]), Integer.parseInt(f[7], 8), Integer.parseInt(f[8]), Integer.parseInt(f[9]), type == EntryType.Symlink ? TabSeparated.unescape(f[10]) : null);
+        }
+    }
+
+    // ---
+    // The state of the archive in one DestDir. With several DestDirs, the archives may
+    // differ (e.g. one disk skipped a run), so each one is appended to on its own.
+    // ---
+
+    private class Target {
+
+        final File targetDir;
+        final File archiveDir;
+        final Map<String, IndexEntry> previous;
+        final List<IndexEntry> entries = new ArrayList<>();
+        int segment;
+        long segmentLength;
+        OutputStream out;
+        long appendedBytes;
+        long reusedEntries;
+
+        Target(File targetDir) throws IOException {
+            this.targetDir = targetDir;
+            this.archiveDir = new File(targetDir.getParentFile(), DirNaming.buildAtomicArchiveDirName(batch));
+            Files.createDirectories(archiveDir.toPath());
+            this.previous = readPreviousIndex(targetDir);
+            this.segment = highestSegmentIn(archiveDir);
+        }
+
+        // Start a new segment if the file does not fit into the current one (a file larger
+        // than a segment gets a segment of its own)
+
+        void prepareAppend(long length) throws IOException {
+            if (out != null && segmentLength > 0 && segmentLength + length > segmentSize) {
+                out.close();
+                out = null;
+            }
+            if (out == null) {
+                segment++;
+                segmentLength = 0;
+                File segmentFile = new File(archiveDir, DirNaming.buildAtomicSegmentFileName(segment));
+                // CREATE_NEW: segments are never overwritten
+                out = new BufferedOutputStream(Files.newOutputStream(segmentFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), WRITE_BUFFER_SIZE);
+            }
+        }
+    }
+
+    @NotNull
+    private final Batch batch;
+
+    private final long segmentSize;
+
+    @NotNull
+    private final Set<String> skippedPaths;
+
+    @NotNull
+    private final List<Target> targets;
+
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private boolean closed;
+
+    // ---
+    // The files whose transfer paths are in "skippedPaths" are left out (they are stored as
+    // block-level deltas). The TargetDirs must exist.
+    // ---
+
+    public ArchiveStore(@NotNull Batch batch, @NotNull List<File> targetDirs, long segmentSize, @NotNull Set<String> skippedPaths) throws IOException {
+        this.batch = batch;
+        this.segmentSize = segmentSize;
+        this.skippedPaths = skippedPaths;
+        List<Target> tmpTargets = new ArrayList<>();
+        for (File targetDir : targetDirs) {
+            tmpTargets.add(new Target(targetDir));
+        }
+        this.targets = tmpTargets;
+    }
+
+    private Map<String, IndexEntry> readPreviousIndex(@NotNull File targetDir) throws IOException {
+        List<File> targetDirs = DirNaming.listTargetDirsOfThisHost(targetDir.getParentFile());
+        Collections.reverse(targetDirs);
+        for (File previousDir : targetDirs) {
+            File indexFile = new File(previousDir, DirNaming.buildAtomicArchiveIndexFileName(batch));
+            if (previousDir.equals(targetDir) || !indexFile.isFile()) {
+                continue;
+            }
+            Map<String, IndexEntry> res = new HashMap<>();
+            for (IndexEntry e : readIndex(indexFile)) {
+                if (e.type == EntryType.File) {
+                    res.put(e.transferPath, e);
+                }
+            }
+            logger.info("Archive of batch '{}': {} files in the index of '{}' may be reused", batch, res.size(), previousDir);
+            return res;
+        }
+        return Collections.emptyMap();
+    }
+
+    private static int highestSegmentIn(@NotNull File archiveDir) {
+        int highest = 0;
+        String[] names = archiveDir.list();
+        if (names != null) {
+            for (String name : names) {
+                highest = Math.max(highest, DirNaming.parseSegmentNumber(name));
+            }
+        }
+        return highest;
+    }
+
+    @Override
+    public synchronized boolean enterDirectory(@NotNull Path dir, @NotNull String transferPath, @NotNull FileMeta meta) {
+        addToAllIndexes(new IndexEntry(EntryType.Directory, transferPath, 0, 0, 0, 0, meta.mtimeMs, meta.permissions(), meta.uid, meta.gid, null));
+        return true;
+    }
+
+    @Override
+    public synchronized void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+        if (skippedPaths.contains(transferPath)) {
+            return;
+        }
+        if (meta.isSymlink()) {
+            try {
+                String target = Files.readSymbolicLink(file).toString();
+                addToAllIndexes(new IndexEntry(EntryType.Symlink, transferPath, 0, 0, 0, 0, meta.mtimeMs, meta.permissions(), meta.uid, meta.gid, target));
+            } catch (IOException ex) {
+                logger.warn("Could not read symlink '{}': {}", file, ex);
+                failures.increment();
+            }
+            return;
+        }
+        if (!meta.isRegularFile()) {
+            skipped.increment();
+            return;
+        }
+        List<Target> appendTo = new ArrayList<>();
+        for (Target t : targets) {
+            IndexEntry prev = t.previous.get(transferPath);
+            if (prev != null && prev.length == meta.size && prev.mtimeMs == meta.mtimeMs) {
+                // unchanged: same contents, but the metadata may have changed
+                t.entries.add(new IndexEntry(EntryType.File, transferPath, prev.segment, prev.offset, prev.length, prev.crc32c,
+                        meta.mtimeMs, meta.permissions(), meta.uid, meta.gid, null));
+                t.reusedEntries++;
+            } else {
+                appendTo.add(t);
+            }
+        }
+        files.increment();
+        bytes.add(meta.size);
+        if (appendTo.isEmpty()) {
+            return;
+        }
+        try {
+            append(file, transferPath, meta, appendTo);
+        } catch (IOException ex) {
+            logger.warn("Could not archive '{}': {}", file, ex);
+            failures.increment();
+        }
+    }
+
+    // ---
+    // The file is read once and appended to the current segment of every target that needs it.
+    // The length written is the one actually read, the file may have changed since the stat.
+    // ---
+
+    private void append(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta, @NotNull List<Target> appendTo) throws IOException {
+        long[] offsets = new long[appendTo.size()];
+        for (int i = 0; i < appendTo.size(); i++) {
+            Target t = appendTo.get(i);
+            t.prepareAppend(meta.size);
+            offsets[i] = t.segmentLength;
+        }
+        CRC32C crc = new CRC32C();
+        long length = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(readBuffer)) >= 0) {
+                crc.update(readBuffer, 0, n);
+                for (Target t : appendTo) {
+                    t.out.write(readBuffer, 0, n);
+                }
+                length += n;
+            }
+        } finally {
+            // even a partially appended file takes up space in the segment
+            for (Target t : appendTo) {
+                t.segmentLength += length;
+                t.appendedBytes += length;
+            }
+        }
+        for (int i = 0; i < appendTo.size(); i++) {
+            Target t = appendTo.get(i);
+            t.entries.add(new IndexEntry(EntryType.File, transferPath, t.segment, offsets[i], length, (int) crc.getValue(),
+                    meta.mtimeMs, meta.permissions(), meta.uid, meta.gid, null));
+        }
+    }
+
+    private void addToAllIndexes(@NotNull IndexEntry entry) {
+        for (Target t : targets) {
+            t.entries.add(entry);
+        }
+    }
+
+    public long getFiles() {
+        return files.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    // ---
+    // Closes the segments and writes the indexes. Only then is the archived batch complete.
+    // ---
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOException failure = null;
+        for (Target t : targets) {
+            try {
+                if (t.out != null) {
+                    t.out.close();
+                    t.out = null;
+                }
+                writeIndex(new File(t.targetDir, DirNaming.buildAtomicArchiveIndexFileName(batch)), t.entries);
+                logger.info("Archive of batch '{}' in '{}': {} bytes appended, {} unchanged files taken from the previous index, last segment is {}",
+                        batch, t.archiveDir, t.appendedBytes, t.reusedEntries, t.segment);
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void writeIndex(@NotNull File indexFile, @NotNull List<IndexEntry> entries) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+            out.write(INDEX_HEADER + "\n");
+            for (IndexEntry e : entries) {
+                out.write(e.toLine());
+            }
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // ---
+    // Reading back
+    // ---
+
+    public static @NotNull List<IndexEntry> readIndex(@NotNull File indexFile) throws IOException {
+        List<IndexEntry> res = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            if (!INDEX_HEADER.equals(line)) {
+                throw new IOException("Not an archive index: '" + indexFile + "'");
+            }
+            while ((line = in.readLine()) != null) {
+                res.add(IndexEntry.fromLine(line));
+            }
+        }
+        return res;
+    }
+
+    // ---
+    // Random access to the contents of a file (the caller closes the stream)
+    // ---
+
+    public static @NotNull InputStream open(@NotNull File archiveDir, @NotNull IndexEntry entry) throws IOException {
+        FileChannel channel = FileChannel.open(new File(archiveDir, DirNaming.buildAtomicSegmentFileName(entry.segment)).toPath(), StandardOpenOption.READ);
+        channel.position(entry.offset);
+        return new InputStream() {
+
+            private long remaining = entry.length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return (n < 0) ? -1 : (one[0] & 0xff);
+            }
+
+            @Override
+            public int read(@NotNull byte[] b, int off, int len) throws IOException {
+                if (remaining == 0) {
+                    return -1;
+                }
+                int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)));
+                if (n < 0) {
+                    throw new EOFException("Segment " + entry.segment + " ends before the contents of '" + entry.transferPath + "'");
+                }
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
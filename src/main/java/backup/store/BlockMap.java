@@ -0,0 +1,94 @@
+package backup.store;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.Arrays;
+
+// ---
+// The SHA-256 hashes of all the fixed-size blocks of a file, stored next to
+// the ".delta" file of the file (see DeltaStore).
+// ---
+
+public class BlockMap {
+
+    private final static String MAGIC = "BTUBLKMP";
+    private final static int VERSION = 1;
+
+    public final static int HASH_LENGTH = 32;
+
+    public final long fileLength;
+    public final int blockSize;
+
+    // "blockCount" hashes of HASH_LENGTH bytes one after the other
+
+    private final byte[] hashes;
+
+    public BlockMap(long fileLength, int blockSize) {
+        this.fileLength = fileLength;
+        this.blockSize = blockSize;
+        this.hashes = new byte[Math.toIntExact(blockCount(fileLength, blockSize) * HASH_LENGTH)];
+    }
+
+    // A copy that can be changed on its own
+
+    public @NotNull BlockMap copy() {
+        BlockMap res = new BlockMap(fileLength, blockSize);
+        System.arraycopy(hashes, 0, res.hashes, 0, hashes.length);
+        return res;
+    }
+
+    public static long blockCount(long fileLength, int blockSize) {
+        return (fileLength + blockSize - 1) / blockSize;
+    }
+
+    public long blockCount() {
+        return blockCount(fileLength, blockSize);
+    }
+
+    // The length of block "index", only the last block may be shorter than "blockSize"
+
+    public int blockLength(long index) {
+        return (int) Math.min(blockSize, fileLength - index * blockSize);
+    }
+
+    public void setHash(long index, @NotNull byte[] hash) {
+        assert hash.length == HASH_LENGTH;
+        System.arraycopy(hash, 0, hashes, (int) (index * HASH_LENGTH), HASH_LENGTH);
+    }
+
+    // ---
+    // Does block "index" have the same hash in this map and in "other"?
+    // ---
+
+    public boolean sameBlock(long index, @NotNull BlockMap other) {
+        if (other.blockSize != blockSize || index >= other.blockCount() || other.blockLength(index) != blockLength(index)) {
+            return false;
+        }
+        int from = (int) (index * HASH_LENGTH);
+        return Arrays.equals(hashes, from, from + HASH_LENGTH, other.hashes, from, from + HASH_LENGTH);
+    }
+
+    public void write(@NotNull File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeBytes(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileLength);
+            out.writeInt(blockSize);
+            out.write(hashes);
+        }
+    }
+
+    public static @NotNull BlockMap read(@NotNull File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] magic = new byte[MAGIC.length()];
+            in.readFully(magic);
+            if (!MAGIC.equals(new String(magic, "ASCII")) || in.readInt() != VERSION) {
+                throw new IOException("The file '" + file + "' is not a block map");
+            }
+            BlockMap res = new BlockMap(in.readLong(), in.readInt());
+            in.readFully(res.hashes);
+            return res;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package backup.store;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Properties;
+
+// ---
+// The keys of the encrypted target mode, derived from a passphrase with PBKDF2.
+//
+// - The "content key" is never used directly: every encrypted file gets its own AES-256 key,
+//   computed as HMAC(content key, random salt of the file). That way the GCM nonces, which
+//   are just chunk counters, are never reused under the same key.
+// - The "name key" turns paths into object names: HMAC(name key, path). The same path
+//   always gets the same object name in a TargetDir, so a file can be found without the manifest.
+//
+// The salt and the iteration count are stored in a "key info" file next to the encrypted
+// data, along with a check value to recognize a wrong passphrase.
+// ---
+
+public class CryptoKeys {
+
+    private final static String KDF = "PBKDF2WithHmacSHA256";
+    private final static String MAC = "HmacSHA256";
+    private final static int ITERATIONS = 310_000;
+    private final static int SALT_LENGTH = 16;
+    private final static int OBJECT_NAME_HEX_LENGTH = 32;
+
+    @NotNull
+    private final byte[] contentKey;
+
+    @NotNull
+    private final byte[] nameKey;
+
+    @NotNull
+    private final byte[] salt;
+
+    private final int iterations;
+
+    private CryptoKeys(@NotNull char[] passphrase, @NotNull byte[] salt, int iterations) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase, salt, iterations, 512);
+        byte[] derived = SecretKeyFactory.getInstance(KDF).generateSecret(spec).getEncoded();
+        spec.clearPassword();
+        this.contentKey = Arrays.copyOfRange(derived, 0, 32);
+        this.nameKey = Arrays.copyOfRange(derived, 32, 64);
+        this.salt = salt;
+        this.iterations = iterations;
+    }
+
+    // ---
+    // The passphrase is the first line of the file
+    // ---
+
+    public static @NotNull char[] readPassphrase(@NotNull File file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            if (line == null || line.isEmpty()) {
+                throw new IOException("The passphrase file '" + file + "' is empty");
+            }
+            return line.toCharArray();
+        }
+    }
+
+    // ---
+    // Create new keys with a random salt and write the key info file
+    // ---
+
+    public static @NotNull CryptoKeys create(@NotNull char[] passphrase) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        return new CryptoKeys(passphrase, salt, ITERATIONS);
+    }
+
+    public void writeKeyInfo(@NotNull File keyInfoFile) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("kdf", KDF);
+        props.setProperty("iterations", Integer.toString(iterations));
+        props.setProperty("salt", HexFormat.of().formatHex(salt));
+        props.setProperty("check", checkValue());
+        try (Writer out = Files.newBufferedWriter(keyInfoFile.toPath(), StandardCharsets.UTF_8)) {
+            props.store(out, "backup_to_usb encryption key info; the passphrase is not in here");
+        }
+    }
+
+    // ---
+    // Derive the keys again from the key info file; fails if the passphrase is wrong
+    // ---
+
+    public static @NotNull CryptoKeys load(@NotNull File keyInfoFile, @NotNull char[] passphrase) throws IOException, GeneralSecurityException {
+        Properties props = new Properties();
+        try (Reader in = Files.newBufferedReader(keyInfoFile.toPath(), StandardCharsets.UTF_8)) {
+            props.load(in);
+        }
+        byte[] salt = HexFormat.of().parseHex(props.getProperty("salt", ""));
+        int iterations = Integer.parseInt(props.getProperty("iterations", "0"));
+        CryptoKeys res = new CryptoKeys(passphrase, salt, iterations);
+        if (!MessageDigest.isEqual(res.checkValue().getBytes(StandardCharsets.US_ASCII), props.getProperty("check", "").getBytes(StandardCharsets.US_ASCII))) {
+            throw new IOException("Wrong passphrase for '" + keyInfoFile + "'");
+        }
+        return res;
+    }
+
+    private String checkValue() {
+        return HexFormat.of().formatHex(hmac(nameKey, "backup_to_usb key check".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // ---
+    // The name under which the file with the given transfer path is stored
+    // ---
+
+    public @NotNull String objectNameOf(@NotNull String transferPath) {
+        String hex = HexFormat.of().formatHex(hmac(nameKey, transferPath.getBytes(StandardCharsets.UTF_8)));
+        return hex.substring(0, OBJECT_NAME_HEX_LENGTH);
+    }
+
+    // ---
+    // The AES key of a single encrypted file
+    // ---
+
+    public @NotNull SecretKeySpec fileKey(@NotNull byte[] fileSalt) {
+        return new SecretKeySpec(hmac(contentKey, fileSalt), "AES");
+    }
+
+    private static byte[] hmac(@NotNull byte[] key, @NotNull byte[] data) {
+        try {
+            Mac mac = Mac.getInstance(MAC);
+            mac.init(new SecretKeySpec(key, MAC));
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(MAC + " is missing from the JDK", ex);
+        }
+    }
+}
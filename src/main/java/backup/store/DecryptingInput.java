@@ -0,0 +1,96 @@
+package backup.store;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+// ---
+// Reads what EncryptingOutput wrote, verifying every chunk. Throws an IOException if the
+// data has been tampered with, truncated or belongs to another object name.
+// ---
+
+public class DecryptingInput extends InputStream {
+
+    @NotNull
+    private final InputStream in;
+
+    @NotNull
+    private final SecretKeySpec key;
+
+    @NotNull
+    private final byte[] aad;
+
+    private final int chunkSize;
+    private final Cipher cipher = EncryptingOutput.newCipher();
+
+    private byte[] plain = new byte[0];
+    private int pos;
+    private int chunkIndex;
+    private boolean lastSeen;
+
+    public DecryptingInput(@NotNull InputStream in, @NotNull CryptoKeys keys, @NotNull String objectName) throws IOException {
+        this.in = in;
+        byte[] magic = in.readNBytes(EncryptingOutput.MAGIC.length());
+        if (!EncryptingOutput.MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+            throw new IOException("Not an encrypted object: '" + objectName + "'");
+        }
+        byte[] fileSalt = in.readNBytes(EncryptingOutput.FILE_SALT_LENGTH);
+        byte[] size = in.readNBytes(4);
+        if (fileSalt.length != EncryptingOutput.FILE_SALT_LENGTH || size.length != 4) {
+            throw new IOException("Truncated header in encrypted object '" + objectName + "'");
+        }
+        this.chunkSize = ((size[0] & 0xff) << 24) | ((size[1] & 0xff) << 16) | ((size[2] & 0xff) << 8) | (size[3] & 0xff);
+        this.key = keys.fileKey(fileSalt);
+        this.aad = EncryptingOutput.buildAad(EncryptingOutput.buildHeader(fileSalt, chunkSize), objectName);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return (n < 0) ? -1 : (one[0] & 0xff);
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+        while (pos == plain.length) {
+            if (lastSeen) {
+                return -1;
+            }
+            nextChunk();
+        }
+        int n = Math.min(len, plain.length - pos);
+        System.arraycopy(plain, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    private void nextChunk() throws IOException {
+        byte[] encrypted = in.readNBytes(chunkSize + EncryptingOutput.TAG_LENGTH);
+        // a full chunk is never the last one, see EncryptingOutput
+        boolean last = encrypted.length < chunkSize + EncryptingOutput.TAG_LENGTH;
+        if (encrypted.length < EncryptingOutput.TAG_LENGTH) {
+            throw new IOException("Chunk " + chunkIndex + " is truncated");
+        }
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(EncryptingOutput.TAG_LENGTH * 8, EncryptingOutput.buildNonce(chunkIndex++, last)));
+            cipher.updateAAD(aad);
+            plain = cipher.doFinal(encrypted);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Chunk " + (chunkIndex - 1) + " failed verification (corrupted or truncated)", ex);
+        }
+        pos = 0;
+        lastSeen = last;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,463 @@
+package backup.store;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import backup.scan.FileMeta;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+// ---
+// Stores very large files (VM images, for example) as block-level deltas instead of full copies.
+//
+// The file is cut into fixed-size blocks, which are hashed in parallel using memory-mapped
+// reads. The hashes are compared with the ".blkmap" of the same file in the previous TargetDir
+// and only the blocks that changed are written into a ".delta" file, which references the
+// ".delta" of the previous TargetDir. The first ".delta" of a chain (the "base") contains all
+// the blocks. Once a chain reaches MAX_CHAIN_DEPTH, a new base is written, which bounds the
+// number of files needed to reassemble.
+//
+// Note that deleting an old TargetDir breaks the chains running through it.
+//
+// With several DestDirs, every one has chains of its own, but the file is read only once for all of them (see storeAll()).
+//
+// Layout of a ".delta" file (big-endian, as written by DataOutputStream):
+//
+// MAGIC, VERSION, length of the rest of the header, fileLength, blockSize, chainDepth,
+// previous ".delta" relative to DestDir (empty for a base), mtime, uid, gid, permissions,
+// number of blocks stored, the indexes of the stored blocks in ascending order, then the
+// data of the stored blocks in the same order.
+// ---
+
+public class DeltaStore {
+
+    private final static String MAGIC = "BTUDELTA";
+    private final static int VERSION = 1;
+
+    public final static int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    public final static int MAX_CHAIN_DEPTH = 14;
+
+    // Files are mapped in regions of this size, each region is hashed by one thread
+
+    private final static long MAP_REGION_SIZE = 256L * 1024 * 1024;
+
+    @NotNull
+    private final File destDir;
+
+    private final int blockSize;
+    private final int parallelism;
+
+    public DeltaStore(@NotNull File destDir, int blockSize, int parallelism) {
+        this.destDir = destDir;
+        this.blockSize = blockSize;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    // ---
+    // What was stored
+    // ---
+
+    public static class Result {
+
+        public final long fileLength;
+        public final long blockCount;
+        public final long storedBlocks;
+        public final long storedBytes;
+        public final int chainDepth;
+
+        Result(long fileLength, long blockCount, long storedBlocks, long storedBytes, int chainDepth) {
+            this.fileLength = fileLength;
+            this.blockCount = blockCount;
+            this.storedBlocks = storedBlocks;
+            this.storedBytes = storedBytes;
+            this.chainDepth = chainDepth;
+        }
+    }
+
+    // ---
+    // The header of a ".delta" file
+    // ---
+
+    public static class Header {
+
+        public final long fileLength;
+        public final int blockSize;
+        public final int chainDepth;
+        public final String previousRef; // null for a base
+        public final long mtimeMs;
+        public final int uid;
+        public final int gid;
+        public final int permissions;
+        final long[] indexes;
+        final long dataOffset;
+
+        Header(long fileLength, int blockSize, int chainDepth, String previousRef, long mtimeMs, int uid, int gid, int permissions, long[] indexes, long dataOffset) {
+            this.fileLength = fileLength;
+            this.blockSize = blockSize;
+            this.chainDepth = chainDepth;
+            this.previousRef = previousRef;
+            this.mtimeMs = mtimeMs;
+            this.uid = uid;
+            this.gid = gid;
+            this.permissions = permissions;
+            this.indexes = indexes;
+            this.dataOffset = dataOffset;
+        }
+
+        public long blockCount() {
+            return BlockMap.blockCount(fileLength, blockSize);
+        }
+    }
+
+    public static @NotNull File buildDeltaFile(@NotNull File targetDir, @NotNull Batch batch, @NotNull String transferPath) {
+        return new File(new File(targetDir, DirNaming.buildAtomicDeltaDirName(batch)), transferPath.substring(1) + ".delta");
+    }
+
+    public static @NotNull File blockMapFileOf(@NotNull File deltaFile) {
+        String name = deltaFile.getPath();
+        return new File(name.substring(0, name.length() - ".delta".length()) + ".blkmap");
+    }
+
+    // ---
+    // Store "source" of "batch" into "targetDir", as a delta against the most recent
+    // earlier TargetDir in "destDir" which holds the same file.
+    // ---
+
+    public @NotNull Result store(@NotNull Path source, @NotNull FileMeta meta, @NotNull File targetDir, @NotNull Batch batch, @NotNull String transferPath) throws IOException {
+        return storeAll(List.of(this), List.of(targetDir), source, meta, batch, transferPath).get(0);
+    }
+
+    // ---
+    // Store "source" of "batch" into each of "targetDirs", the i-th of which is in the DestDir of the i-th of "stores"
+    // (all with the same block size), as for store(). Each gets a delta against its own DestDir's history, but the
+    // source is hashed and read only once for all of them. Returns the results in the order of "targetDirs".
+    // ---
+
+    public static @NotNull List<Result> storeAll(@NotNull List<DeltaStore> stores, @NotNull List<File> targetDirs, @NotNull Path source, @NotNull FileMeta meta,
+                                                 @NotNull Batch batch, @NotNull String transferPath) throws IOException {
+        List<File> deltaFiles = new ArrayList<>();
+        List<String> previousRefs = new ArrayList<>();
+        for (int i = 0; i < targetDirs.size(); i++) {
+            File deltaFile = buildDeltaFile(targetDirs.get(i), batch, transferPath);
+            File parent = deltaFile.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create directory '" + parent + "'");
+            }
+            deltaFiles.add(deltaFile);
+            previousRefs.add(stores.get(i).previousRefOf(targetDirs.get(i), batch, transferPath));
+        }
+        return storeFiles(stores, source, meta, deltaFiles, previousRefs);
+    }
+
+    // ---
+    // The most recent ".delta" of the file before "targetDir", relative to "destDir"; null if there is none
+    // ---
+
+    private String previousRefOf(@NotNull File targetDir, @NotNull Batch batch, @NotNull String transferPath) {
+        List<File> earlier = DirNaming.listTargetDirsOfThisHost(destDir);
+        Collections.reverse(earlier);
+        for (File dir : earlier) {
+            if (dir.getName().compareTo(targetDir.getName()) >= 0) {
+                continue;
+            }
+            File candidate = buildDeltaFile(dir, batch, transferPath);
+            if (candidate.isFile() && blockMapFileOf(candidate).isFile()) {
+                return destDir.toPath().relativize(candidate.toPath()).toString();
+            }
+        }
+        return null;
+    }
+
+    // ---
+    // Store "source" into "deltaFile" (and its ".blkmap"), as a delta against the ".delta" file
+    // "previousRef" (relative to "destDir"), or as a base if "previousRef" is null.
+    // ---
+
+    public @NotNull Result storeFile(@NotNull Path source, @NotNull FileMeta meta, @NotNull File deltaFile, String previousRef) throws IOException {
+        return storeFiles(List.of(this), source, meta, List.of(deltaFile), Collections.singletonList(previousRef)).get(0);
+    }
+
+    private static @NotNull List<Result> storeFiles(@NotNull List<DeltaStore> stores, @NotNull Path source, @NotNull FileMeta meta, @NotNull List<File> deltaFiles,
+                                                    @NotNull List<String> previousRefs) throws IOException {
+        int blockSize = stores.get(0).blockSize;
+        if (stores.stream().anyMatch(x -> x.blockSize != blockSize)) {
+            throw new IllegalArgumentException("The delta stores do not all have the same block size");
+        }
+        int n = stores.size();
+        List<BlockMap> previousMaps = new ArrayList<>();
+        List<String> refs = new ArrayList<>();
+        int[] chainDepths = new int[n];
+        for (int i = 0; i < n; i++) {
+            BlockMap previousMap = null;
+            String previousRef = previousRefs.get(i);
+            if (previousRef != null) {
+                File previousDelta = new File(stores.get(i).destDir, previousRef);
+                Header previousHeader = readHeader(previousDelta);
+                if (previousHeader.blockSize == blockSize && previousHeader.chainDepth < MAX_CHAIN_DEPTH) {
+                    previousMap = BlockMap.read(blockMapFileOf(previousDelta));
+                    chainDepths[i] = previousHeader.chainDepth + 1;
+                }
+            }
+            previousMaps.add(previousMap);
+            refs.add((previousMap == null) ? null : previousRef);
+        }
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long length = in.size();
+            BlockMap map = stores.get(0).hashAll(in, length);
+            List<List<Long>> changed = new ArrayList<>();
+            for (BlockMap previousMap : previousMaps) {
+                List<Long> changedHere = new ArrayList<>();
+                for (long i = 0; i < map.blockCount(); i++) {
+                    if (previousMap == null || !map.sameBlock(i, previousMap)) {
+                        changedHere.add(i);
+                    }
+                }
+                changed.add(changedHere);
+            }
+            // each ".blkmap" describes what its own chain holds, see writeDeltas()
+            List<BlockMap> maps = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                maps.add((i == 0) ? map : map.copy());
+            }
+            long[] storedBytes = writeDeltas(in, maps, blockSize, changed, deltaFiles, refs, chainDepths, meta);
+            List<Result> res = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                maps.get(i).write(blockMapFileOf(deltaFiles.get(i)));
+                res.add(new Result(length, map.blockCount(), changed.get(i).size(), storedBytes[i], chainDepths[i]));
+            }
+            return res;
+        }
+    }
+
+    private @NotNull BlockMap hashAll(@NotNull FileChannel in, long length) throws IOException {
+        BlockMap map = new BlockMap(length, blockSize);
+        long blockCount = map.blockCount();
+        long blocksPerRegion = Math.max(1, MAP_REGION_SIZE / blockSize);
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (long first = 0; first < blockCount; first += blocksPerRegion) {
+                long firstBlock = first;
+                long endBlock = Math.min(blockCount, first + blocksPerRegion);
+                futures.add(pool.submit(() -> {
+                    MessageDigest md = newDigest();
+                    long position = firstBlock * blockSize;
+                    long regionLength = Math.min(length - position, (endBlock - firstBlock) * blockSize);
+                    MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, position, regionLength);
+                    for (long i = firstBlock; i < endBlock; i++) {
+                        int offset = (int) ((i - firstBlock) * blockSize);
+                        md.update(region.slice(offset, map.blockLength(i)));
+                        map.setHash(i, md.digest());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> f : futures) {
+                await(f);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return map;
+    }
+
+    // ---
+    // Write the i-th of "deltaFiles" with the blocks "changed[i]"; a block changed for several of them is read once.
+    // The hash of each block actually written replaces the hash computed earlier in "maps[i]", in case
+    // the file changed in the meantime: the ".blkmap" must describe the stored data. The maps of the
+    // destinations that did not store the block keep the earlier hash, which is that of their chain.
+    // ---
+
+    private static long[] writeDeltas(@NotNull FileChannel in, @NotNull List<BlockMap> maps, int blockSize, @NotNull List<List<Long>> changed,
+                                      @NotNull List<File> deltaFiles, @NotNull List<String> previousRefs, int[] chainDepths, @NotNull FileMeta meta) throws IOException {
+        int n = deltaFiles.size();
+        long[] storedBytes = new long[n];
+        int[] next = new int[n];
+        SortedSet<Long> anyChanged = new TreeSet<>();
+        changed.forEach(anyChanged::addAll);
+        MessageDigest md = newDigest();
+        ByteBuffer buf = ByteBuffer.allocateDirect(blockSize);
+        BlockMap map = maps.get(0);
+        List<FileChannel> outs = new ArrayList<>();
+        try {
+            for (int i = 0; i < n; i++) {
+                outs.add(FileChannel.open(deltaFiles.get(i).toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+                writeFully(outs.get(i), ByteBuffer.wrap(headerOf(map, blockSize, chainDepths[i], previousRefs.get(i), meta, changed.get(i))));
+            }
+            for (long index : anyChanged) {
+                int blockLength = map.blockLength(index);
+                buf.clear().limit(blockLength);
+                long position = index * blockSize;
+                while (buf.hasRemaining()) {
+                    if (in.read(buf, position + buf.position()) < 0) {
+                        throw new IOException("The file shrank while being stored");
+                    }
+                }
+                buf.flip();
+                md.update(buf.duplicate());
+                byte[] hash = md.digest();
+                for (int i = 0; i < n; i++) {
+                    List<Long> changedHere = changed.get(i);
+                    if (next[i] < changedHere.size() && changedHere.get(next[i]) == index) {
+                        maps.get(i).setHash(index, hash);
+                        writeFully(outs.get(i), buf.duplicate());
+                        next[i]++;
+                        storedBytes[i] += blockLength;
+                    }
+                }
+            }
+        } finally {
+            for (FileChannel out : outs) {
+                out.close();
+            }
+        }
+        return storedBytes;
+    }
+
+    private static byte[] headerOf(@NotNull BlockMap map, int blockSize, int chainDepth, String previousRef, @NotNull FileMeta meta,
+                                   @NotNull List<Long> changed) throws IOException {
+        ByteArrayOutputStream innerBytes = new ByteArrayOutputStream();
+        try (DataOutputStream header = new DataOutputStream(innerBytes)) {
+            header.writeLong(map.fileLength);
+            header.writeInt(blockSize);
+            header.writeInt(chainDepth);
+            header.writeUTF(previousRef == null ? "" : previousRef);
+            header.writeLong(meta.mtimeMs);
+            header.writeInt(meta.uid);
+            header.writeInt(meta.gid);
+            header.writeInt(meta.permissions());
+            header.writeLong(changed.size());
+            for (long index : changed) {
+                header.writeLong(index);
+            }
+        }
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        try (DataOutputStream header = new DataOutputStream(headerBytes)) {
+            header.writeBytes(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(innerBytes.size());
+            innerBytes.writeTo(header);
+        }
+        return headerBytes.toByteArray();
+    }
+
+    public static @NotNull Header readHeader(@NotNull File deltaFile) throws IOException {
+        try (FileInputStream fis = new FileInputStream(deltaFile);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fis))) {
+            byte[] magic = new byte[MAGIC.length()];
+            in.readFully(magic);
+            if (!MAGIC.equals(new String(magic, "ASCII")) || in.readInt() != VERSION) {
+                throw new IOException("The file '" + deltaFile + "' is not a delta file");
+            }
+            int innerLength = in.readInt();
+            long fileLength = in.readLong();
+            int blockSize = in.readInt();
+            int chainDepth = in.readInt();
+            String previousRef = in.readUTF();
+            long mtimeMs = in.readLong();
+            int uid = in.readInt();
+            int gid = in.readInt();
+            int permissions = in.readInt();
+            long[] indexes = new long[Math.toIntExact(in.readLong())];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = in.readLong();
+            }
+            long dataOffset = MAGIC.length() + 4 + 4 + innerLength;
+            return new Header(fileLength, blockSize, chainDepth, previousRef.isEmpty() ? null : previousRef,
+                    mtimeMs, uid, gid, permissions, indexes, dataOffset);
+        }
+    }
+
+    // ---
+    // Rebuild the original file from "deltaFile" and the chain of earlier ".delta" files
+    // it references (relative to "destDir"). Each block is taken from the most recent
+    // ".delta" containing it. Returns the header of "deltaFile", which has the file's metadata.
+    // ---
+
+    public static @NotNull Header reassemble(@NotNull File destDir, @NotNull File deltaFile, @NotNull File out) throws IOException {
+        List<Header> headers = new ArrayList<>();
+        List<FileChannel> channels = new ArrayList<>();
+        try {
+            File current = deltaFile;
+            while (current != null) {
+                Header header = readHeader(current);
+                headers.add(header);
+                channels.add(FileChannel.open(current.toPath(), StandardOpenOption.READ));
+                current = (header.previousRef == null) ? null : new File(destDir, header.previousRef);
+            }
+            Header newest = headers.get(0);
+            try (FileChannel outCh = FileChannel.open(out.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long i = 0; i < newest.blockCount(); i++) {
+                    int blockLength = (int) Math.min(newest.blockSize, newest.fileLength - i * newest.blockSize);
+                    boolean found = false;
+                    for (int d = 0; d < headers.size() && !found; d++) {
+                        int pos = Arrays.binarySearch(headers.get(d).indexes, i);
+                        if (pos >= 0) {
+                            long from = headers.get(d).dataOffset + (long) pos * newest.blockSize;
+                            transferFully(channels.get(d), from, blockLength, outCh);
+                            found = true;
+                        }
+                    }
+                    if (!found) {
+                        throw new IOException("Block " + i + " of '" + deltaFile + "' is in none of the " + headers.size() + " delta files of its chain");
+                    }
+                }
+            }
+            return newest;
+        } finally {
+            for (FileChannel ch : channels) {
+                ch.close();
+            }
+        }
+    }
+
+    private static void transferFully(@NotNull FileChannel from, long position, long count, @NotNull FileChannel to) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long n = from.transferTo(position + done, count - done, to);
+            if (n <= 0) {
+                throw new IOException("Delta file is truncated");
+            }
+            done += n;
+        }
+    }
+
+    private static void writeFully(@NotNull FileChannel out, @NotNull ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is missing from the JDK", ex);
+        }
+    }
+
+    private static void await(@NotNull Future<Void> future) throws IOException {
+        while (true) {
+            try {
+                future.get();
+                return;
+            } catch (InterruptedException ex) {
+                // may have been woken up early!
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IllegalStateException("Hashing failed", ex.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package backup.store;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import backup.scan.BatchWalker;
+import backup.scan.FileMeta;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+// ---
+// The encrypted target mode: instead of rsync copying the batch into "copy_of_${BATCH}",
+// the batch is walked in Java and every regular file is written through an EncryptingOutput
+// into "encrypted_${BATCH}/objects", under a name derived from its path by CryptoKeys.
+// The paths and metadata of everything copied (files, directories, symlinks) go into an
+// encrypted "manifest", which is the only way to list the contents.
+//
+// The batch is read once and the ciphertext is written to all the TargetDirs at the same time.
+// Files are read one after the other (which suits a spinning source disk), while their chunks
+// are encrypted in parallel on all cores.
+//
+// Anything that is neither a regular file, a directory nor a symlink is skipped.
+// ---
+
+public class EncryptedStore implements BatchWalker.Visitor, Closeable {
+
+    private final static String CLASS = EncryptedStore.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    // Name of the manifest object (it is encrypted like any other object)
+
+    public final static String MANIFEST_NAME = "manifest";
+    private final static String OBJECTS_DIR_NAME = "objects";
+    private final static int READ_BUFFER_SIZE = EncryptingOutput.CHUNK_SIZE;
+
+    // ---
+    // One line of the manifest
+    // ---
+
+    public enum EntryType {File, Directory, Symlink}
+
+    public static class ManifestEntry {
+
+        public final EntryType type;
+        public final String transferPath;
+        public final String objectName; // null unless a File
+        public final String symlinkTarget; // null unless a Symlink
+        public final long size;
+        public final long mtimeMs;
+        public final int permissions;
+        public final int uid;
+        public final int gid;
+
+        ManifestEntry(EntryType type, String transferPath, String objectName, String symlinkTarget, long size, long mtimeMs, int permissions, int uid, int gid) {
+            this.type = type;
+            this.transferPath = transferPath;
+            this.objectName = objectName;
+            this.symlinkTarget = symlinkTarget;
+            this.size = size;
+            this.mtimeMs = mtimeMs;
+            this.permissions = permissions;
+            this.uid = uid;
+            this.gid = gid;
+        }
+
+        String toLine() {
+            return type + "\t" + TabSeparated.escape(transferPath) + "\t" + (objectName == null ? "" : objectName) + "\t" + TabSeparated.escape(symlinkTarget == null ? "" : symlinkTarget)
+                    + "\t" + size + "\t" + mtimeMs + "\t" + Integer.toOctalString(permissions) + "\t" + uid + "\t" + gid + "\n";
+        }
+
+        static ManifestEntry fromLine(@NotNull String line) throws IOException {
+            String[] f = line.split("\t", -1);
+            if (f.length != 9) {
+                throw new IOException("Bad manifest line with " + f.length + " fields");
+            }
+            EntryType type = EntryType.valueOf(f[0]);
+            return new ManifestEntry(type, TabSeparated.unescape(f[1]), f[2].isEmpty() ? null : f[2], type == EntryType.Symlink ? TabSeparated.unescape(f[3]) : null,
+                    Long.parseLong(f[4]), Long.parseLong(f[5]), Integer.parseInt(f[6], 8), Integer.parseInt(f[7]), Integer.parseInt(f[8]));
+        }
+    }
+
+    @NotNull
+    private final Batch batch;
+
+    @NotNull
+    private final List<File> encryptedDirs;
+
+    @NotNull
+    private final CryptoKeys keys;
+
+    private final int parallelism;
+    private final ExecutorService pool;
+    private final EncryptingOutput manifest;
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    // ---
+    // Creates "encrypted_${BATCH}" in every one of the "targetDirs" and starts the manifest
+    // ---
+
+    public EncryptedStore(@NotNull Batch batch, @NotNull List<File> targetDirs, @NotNull CryptoKeys keys, int parallelism) throws IOException {
+        this.batch = batch;
+        this.keys = keys;
+        this.parallelism = Math.max(1, parallelism);
+        List<File> tmpDirs = new ArrayList<>();
+        for (File targetDir : targetDirs) {
+            File encryptedDir = new File(targetDir, DirNaming.buildAtomicEncryptedDirName(batch));
+            Files.createDirectories(new File(encryptedDir, OBJECTS_DIR_NAME).toPath());
+            tmpDirs.add(encryptedDir);
+        }
+        this.encryptedDirs = tmpDirs;
+        this.pool = Executors.newFixedThreadPool(this.parallelism);
+        List<OutputStream> sinks = new ArrayList<>();
+        for (File encryptedDir : encryptedDirs) {
+            sinks.add(new BufferedOutputStream(new FileOutputStream(new File(encryptedDir, MANIFEST_NAME))));
+        }
+        this.manifest = new EncryptingOutput(sinks, pool, 2 * this.parallelism, keys, MANIFEST_NAME);
+    }
+
+    // ---
+    // Where the object of a file is found in "encrypted_${BATCH}" (sharded by the first two characters)
+    // ---
+
+    public static @NotNull File objectFileOf(@NotNull File encryptedDir, @NotNull String objectName) {
+        return new File(new File(new File(encryptedDir, OBJECTS_DIR_NAME), objectName.substring(0, 2)), objectName.substring(2));
+    }
+
+    @Override
+    public synchronized boolean enterDirectory(@NotNull Path dir, @NotNull String transferPath, @NotNull FileMeta meta) {
+        addToManifest(new ManifestEntry(EntryType.Directory, transferPath, null, null, 0, meta.mtimeMs, meta.permissions(), meta.uid, meta.gid));
+        return true;
+    }
+
+    @Override
+    public synchronized void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+        if (meta.isSymlink()) {
+            try {
+                String target = Files.readSymbolicLink(file).toString();
+                addToManifest(new ManifestEntry(EntryType.Symlink, transferPath, null, target, 0, meta.mtimeMs, meta.permissions(), meta.uid, meta.gid));
+            } catch (IOException ex) {
+                logger.warn("Could not read symlink '{}': {}", file, ex);
+                failures.increment();
+            }
+            return;
+        }
+        if (!meta.isRegularFile()) {
+            skipped.increment();
+            return;
+        }
+        String objectName = keys.objectNameOf(transferPath);
+        try {
+            long length = encryptFile(file, objectName);
+            addToManifest(new ManifestEntry(EntryType.File, transferPath, objectName, null, length, meta.mtimeMs, meta.permissions(), meta.uid, meta.gid));
+            files.increment();
+            bytes.add(length);
+        } catch (IOException ex) {
+            logger.warn("Could not encrypt '{}': {}", file, ex);
+            failures.increment();
+        }
+    }
+
+    private long encryptFile(@NotNull Path file, @NotNull String objectName) throws IOException {
+        List<OutputStream> sinks = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(file)) {
+            for (File encryptedDir : encryptedDirs) {
+                File objectFile = objectFileOf(encryptedDir, objectName);
+                File shardDir = objectFile.getParentFile();
+                if (!shardDir.isDirectory() && !shardDir.mkdir() && !shardDir.isDirectory()) {
+                    throw new IOException("Could not create directory '" + shardDir + "'");
+                }
+                sinks.add(new FileOutputStream(objectFile));
+            }
+            // the EncryptingOutput closes the sinks
+            EncryptingOutput out = new EncryptingOutput(sinks, pool, 2 * parallelism, keys, objectName);
+            try (out) {
+                int n;
+                while ((n = in.read(readBuffer)) >= 0) {
+                    out.write(readBuffer, 0, n);
+                }
+            }
+            return out.getPlainBytes();
+        } catch (IOException ex) {
+            for (OutputStream sink : sinks) {
+                try {
+                    sink.close();
+                } catch (IOException ex2) {
+                    // already failing
+                }
+            }
+            throw ex;
+        }
+    }
+
+    private void addToManifest(@NotNull ManifestEntry entry) {
+        try {
+            manifest.write(entry.toLine().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            // without a manifest the files cannot be found again
+            throw new UncheckedIOException("Could not write the manifest of batch '" + batch + "'", ex);
+        }
+    }
+
+    public long getFiles() {
+        return files.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    // ---
+    // Finishes the manifest. Only then is the encrypted batch complete.
+    // ---
+
+    @Override
+    public void close() throws IOException {
+        try {
+            manifest.close();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // ---
+    // Reading back, for restores
+    // ---
+
+    public static @NotNull List<ManifestEntry> readManifest(@NotNull File encryptedDir, @NotNull CryptoKeys keys) throws IOException {
+        List<ManifestEntry> res = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new DecryptingInput(new BufferedInputStream(new FileInputStream(new File(encryptedDir, MANIFEST_NAME))), keys, MANIFEST_NAME), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                res.add(ManifestEntry.fromLine(line));
+            }
+        }
+        return res;
+    }
+
+    public static @NotNull InputStream openObject(@NotNull File encryptedDir, @NotNull CryptoKeys keys, @NotNull String objectName) throws IOException {
+        File objectFile = objectFileOf(encryptedDir, objectName);
+        return new DecryptingInput(new BufferedInputStream(new FileInputStream(objectFile)), keys, objectName);
+    }
+}
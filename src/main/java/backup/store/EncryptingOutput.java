@@ -0,0 +1,199 @@
+package backup.store;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// ---
+// Encrypts a stream with AES-256-GCM in chunks, writing the result to one or more sinks
+// (one per destination, so that the data is read and encrypted only once).
+//
+// The chunks are encrypted in parallel on the given ExecutorService; up to "maxInFlight"
+// chunks are being encrypted while the next ones are read. They are written in order.
+//
+// Layout: MAGIC, 32 bytes of random file salt, chunk size (int), then the chunks, each being
+// ciphertext + 16 bytes of GCM tag. The nonce of chunk i is 7 zero bytes, i as int, and a
+// "last chunk" flag byte, which makes truncation detectable. The file salt selects the
+// per-file key (see CryptoKeys.fileKey()). The header and the object name are authenticated
+// with every chunk, so objects cannot be swapped. The last chunk is always shorter than a
+// full chunk (it may be empty).
+// ---
+
+public class EncryptingOutput extends OutputStream {
+
+    public final static String MAGIC = "BTUENC01";
+    public final static int CHUNK_SIZE = 1024 * 1024;
+    public final static int TAG_LENGTH = 16;
+    public final static int FILE_SALT_LENGTH = 32;
+
+    private final static ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(EncryptingOutput::newCipher);
+
+    @NotNull
+    private final List<OutputStream> sinks;
+
+    @NotNull
+    private final ExecutorService pool;
+
+    private final int maxInFlight;
+
+    @NotNull
+    private final SecretKeySpec key;
+
+    @NotNull
+    private final byte[] aad;
+
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private final byte[] buf = new byte[CHUNK_SIZE];
+    private int fill;
+    private int chunkIndex;
+    private long plainBytes;
+    private boolean closed;
+
+    public EncryptingOutput(@NotNull List<OutputStream> sinks, @NotNull ExecutorService pool, int maxInFlight, @NotNull CryptoKeys keys, @NotNull String objectName) throws IOException {
+        this.sinks = sinks;
+        this.pool = pool;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        byte[] fileSalt = new byte[FILE_SALT_LENGTH];
+        new SecureRandom().nextBytes(fileSalt);
+        byte[] header = buildHeader(fileSalt, CHUNK_SIZE);
+        this.key = keys.fileKey(fileSalt);
+        this.aad = buildAad(header, objectName);
+        for (OutputStream sink : sinks) {
+            sink.write(header);
+        }
+    }
+
+    static byte[] buildHeader(@NotNull byte[] fileSalt, int chunkSize) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.writeBytes(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        header.writeBytes(fileSalt);
+        header.write(chunkSize >>> 24);
+        header.write(chunkSize >>> 16);
+        header.write(chunkSize >>> 8);
+        header.write(chunkSize);
+        return header.toByteArray();
+    }
+
+    static byte[] buildAad(@NotNull byte[] header, @NotNull String objectName) {
+        byte[] name = objectName.getBytes(StandardCharsets.UTF_8);
+        byte[] res = Arrays.copyOf(header, header.length + name.length);
+        System.arraycopy(name, 0, res, header.length, name.length);
+        return res;
+    }
+
+    static byte[] buildNonce(int chunkIndex, boolean last) {
+        byte[] nonce = new byte[12];
+        nonce[7] = (byte) (chunkIndex >>> 24);
+        nonce[8] = (byte) (chunkIndex >>> 16);
+        nonce[9] = (byte) (chunkIndex >>> 8);
+        nonce[10] = (byte) chunkIndex;
+        nonce[11] = (byte) (last ? 1 : 0);
+        return nonce;
+    }
+
+    static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("AES/GCM is missing from the JDK", ex);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, CHUNK_SIZE - fill);
+            System.arraycopy(b, off, buf, fill, n);
+            fill += n;
+            off += n;
+            len -= n;
+            plainBytes += n;
+            if (fill == CHUNK_SIZE) {
+                submitChunk(false);
+            }
+        }
+    }
+
+    public long getPlainBytes() {
+        return plainBytes;
+    }
+
+    // ---
+    // Writes the last chunk, waits for all chunks to be written and closes the sinks
+    // ---
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submitChunk(true);
+            while (!inFlight.isEmpty()) {
+                writeOldestChunk();
+            }
+        } finally {
+            for (OutputStream sink : sinks) {
+                sink.close();
+            }
+        }
+    }
+
+    private void submitChunk(boolean last) throws IOException {
+        if (chunkIndex == Integer.MAX_VALUE) {
+            throw new IOException("File too large for encryption");
+        }
+        byte[] plain = Arrays.copyOf(buf, fill);
+        byte[] nonce = buildNonce(chunkIndex++, last);
+        fill = 0;
+        inFlight.add(pool.submit(() -> {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(aad);
+            return cipher.doFinal(plain);
+        }));
+        while (inFlight.size() > maxInFlight) {
+            writeOldestChunk();
+        }
+    }
+
+    private void writeOldestChunk() throws IOException {
+        Future<byte[]> future = inFlight.poll();
+        assert future != null;
+        byte[] encrypted;
+        while (true) {
+            try {
+                encrypted = future.get();
+                break;
+            } catch (InterruptedException ex) {
+                // may have been woken up early!
+            } catch (ExecutionException ex) {
+                throw new IOException("Encryption failed", ex.getCause());
+            }
+        }
+        for (OutputStream sink : sinks) {
+            sink.write(encrypted);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package backup.store;
+
+import backup.config.Batch;
+import backup.helpers.FilterRuleSeq;
+import backup.probe.MetadataSupport;
+import backup.restore.AclRestorer;
+import backup.scan.BatchWalker;
+import backup.scan.FileMeta;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// ---
+// The POSIX metadata that the file system of the destination cannot keep (see MetadataSupport),
+// taken from the sources instead and kept next to the plain tree copy in "metadata_of_${BATCH}.tsv.gz",
+// so that a restore can apply it. One gzipped tab-separated line per file:
+//
+// transferPath  uid  gid  mode(octal)  ACL  default ACL  xattrs
+//
+// The ACLs are in the short text form of acl_to_text(3) (see AclRestorer.read()), the "user." xattrs
+// are "name=value" pairs separated by commas, both in base64. What the destination keeps is not
+// captured: if it keeps the permissions, only the files with ACLs or xattrs get a line at all.
+// The header says what has been captured.
+// ---
+
+public abstract class MetadataSidecar {
+
+    private final static String CLASS = MetadataSidecar.class.getName();
+    private final static Logger logger = LoggerFactory.getLogger(CLASS);
+
+    private final static String HEADER = "# BTUMETADATA 1";
+
+    public static class Entry {
+
+        @NotNull
+        public final String transferPath;
+
+        public final int uid;
+        public final int gid;
+        public final int permissions;
+
+        // empty if none (or not captured)
+
+        @NotNull
+        public final String acl;
+
+        @NotNull
+        public final String defaultAcl;
+
+        // the "user." extended attributes, without the "user." prefix; empty if none (or not captured)
+
+        @NotNull
+        public final SortedMap<String, byte[]> xattrs;
+
+        public Entry(@NotNull String transferPath, int uid, int gid, int permissions, @NotNull String acl, @NotNull String defaultAcl, @NotNull SortedMap<String, byte[]> xattrs) {
+            this.transferPath = transferPath;
+            this.uid = uid;
+            this.gid = gid;
+            this.permissions = permissions;
+            this.acl = acl;
+            this.defaultAcl = defaultAcl;
+            this.xattrs = xattrs;
+        }
+
+        String toLine() {
+            StringJoiner xattrList = new StringJoiner(",");
+            xattrs.forEach((name, value) -> xattrList.add(base64(name.getBytes(StandardCharsets.UTF_8)) + "=" + base64(value)));
+            return TabSeparated.escape(transferPath) + "\t" + uid + "\t" + gid + "\t" + Integer.toOctalString(permissions)
+                    + "\t" + acl + "\t" + defaultAcl + "\t" + xattrList + "\n";
+        }
+
+        static Entry fromLine(@NotNull String line) throws IOException {
+            String[] f = line.split("\t", -1);
+            if (f.length != 7) {
+                throw new IOException("Bad metadata line with " + f.length + " fields");
+            }
+            try {
+                SortedMap<String, byte[]> xattrs = new TreeMap<>();
+                if (!f[6].isEmpty()) {
+                    for (String pair : f[6].split(",")) {
+                        String[] nameAndValue = pair.split("=", 2);
+                        xattrs.put(new String(Base64.getDecoder().decode(nameAndValue[0]), StandardCharsets.UTF_8), Base64.getDecoder().decode(nameAndValue[1]));
+                    }
+                }
+                return new Entry(TabSeparated.unescape(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]), Integer.parseInt(f[3], 8), f[4], f[5], xattrs);
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+                throw new IOException("Bad metadata line: '" + line + "'", ex);
+            }
+        }
+    }
+
+    // ---
+    // What a sidecar holds: the entries by transfer path, and what has been captured
+    // ---
+
+    public static class Content {
+
+        @NotNull
+        public final MetadataSupport kept;
+
+        @NotNull
+        public final Map<String, Entry> entries;
+
+        Content(@NotNull MetadataSupport kept, @NotNull Map<String, Entry> entries) {
+            this.kept = kept;
+            this.entries = entries;
+        }
+
+        // The ACLs as AclRestorer.read() would have found them in the copy, empty if not captured
+
+        public @NotNull Map<String, String[]> acls() {
+            Map<String, String[]> res = new HashMap<>();
+            entries.values().stream().filter(e -> !e.acl.isEmpty()).forEach(e -> res.put(e.transferPath, new String[]{e.acl, e.defaultAcl}));
+            return res;
+        }
+    }
+
+    // ---
+    // Capture what "kept" lacks of the files of "batch" (walking "sources" with "seq", as rsync saw them)
+    // into "sidecarFile". Returns the number of entries.
+    // ---
+
+    public static long write(@NotNull File sidecarFile, @NotNull Batch batch, @NotNull SortedSet<File> sources, @NotNull FilterRuleSeq seq,
+                             @NotNull MetadataSupport kept, int parallelism) throws IOException {
+        return write(sidecarFile, batch, sources, seq, kept, parallelism, List.of());
+    }
+
+    // ---
+    // The same, adding "carried": the entries of the subtrees that "seq" leaves out as they have been
+    // linked from an earlier snapshot (see FastPath and entriesUnder())
+    // ---
+
+    public static long write(@NotNull File sidecarFile, @NotNull Batch batch, @NotNull SortedSet<File> sources, @NotNull FilterRuleSeq seq,
+                             @NotNull MetadataSupport kept, int parallelism, @NotNull Collection<Entry> carried) throws IOException {
+        Map<String, String[]> acls = kept.acls ? Map.of() : readAcls(sources);
+        SortedMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+        carried.forEach(e -> entries.put(e.transferPath, e));
+        BatchWalker walker = new BatchWalker(batch, sources, seq, parallelism);
+        walker.walk(new BatchWalker.Visitor() {
+            @Override
+            public boolean enterDirectory(@NotNull Path dir, @NotNull String transferPath, @NotNull FileMeta meta) {
+                add(dir, transferPath, meta);
+                return true;
+            }
+
+            @Override
+            public void visitFile(@NotNull Path file, @NotNull String transferPath, @NotNull FileMeta meta) {
+                add(file, transferPath, meta);
+            }
+
+            private void add(Path path, String transferPath, FileMeta meta) {
+                String[] acl = acls.getOrDefault(transferPath, new String[]{"", ""});
+                SortedMap<String, byte[]> xattrs = (kept.xattrs || meta.isSymlink()) ? new TreeMap<>() : readXattrs(path);
+                if (!kept.permissions || !acl[0].isEmpty() || !xattrs.isEmpty()) {
+                    entries.put(transferPath, new Entry(transferPath, meta.uid, meta.gid, meta.permissions(), acl[0], acl[1], xattrs));
+                }
+            }
+        });
+        File tmpFile = new File(sidecarFile.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmpFile)), StandardCharsets.UTF_8))) {
+            out.write(HEADER + "\t" + capturedOf(kept) + "\n");
+            for (Entry e : entries.values()) {
+                out.write(e.toLine());
+            }
+        }
+        Files.move(tmpFile.toPath(), sidecarFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        if (walker.getErrorCount() > 0) {
+            logger.warn("The metadata of {} files or directories of batch '{}' could not be read", walker.getErrorCount(), batch);
+        }
+        return entries.size();
+    }
+
+    // ---
+    // Reading back; null if there is no sidecar
+    // ---
+
+    public static Content read(@NotNull File sidecarFile) throws IOException {
+        if (!sidecarFile.isFile()) {
+            return null;
+        }
+        Map<String, Entry> entries = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(sidecarFile)), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            if (line == null || !line.startsWith(HEADER + "\t")) {
+                throw new IOException("Not a metadata sidecar: '" + sidecarFile + "'");
+            }
+            List<String> captured = Arrays.asList(line.substring(HEADER.length() + 1).split(","));
+            MetadataSupport kept = new MetadataSupport(!captured.contains("permissions"), !captured.contains("xattrs"), !captured.contains("acls"));
+            while ((line = in.readLine()) != null) {
+                Entry e = Entry.fromLine(line);
+                entries.put(e.transferPath, e);
+            }
+            return new Content(kept, entries);
+        }
+    }
+
+    // ---
+    // The entries of "sidecarFile" for the subtrees at "transferPaths" (each one included); empty if
+    // there is no sidecar. Throws if it captured less than "kept" asks for, as the entries would lack it.
+    // ---
+
+    public static @NotNull List<Entry> entriesUnder(@NotNull File sidecarFile, @NotNull Collection<String> transferPaths, @NotNull MetadataSupport kept) throws IOException {
+        List<Entry> res = new ArrayList<>();
+        Content content = read(sidecarFile);
+        if (content == null || transferPaths.isEmpty()) {
+            return res;
+        }
+        if ((content.kept.permissions && !kept.permissions) || (content.kept.xattrs && !kept.xattrs) || (content.kept.acls && !kept.acls)) {
+            throw new IOException("The metadata sidecar '" + sidecarFile + "' captured only " + capturedOf(content.kept));
+        }
+        for (Entry e : content.entries.values()) {
+            for (String tp : transferPaths) {
+                if (e.transferPath.equals(tp) || e.transferPath.startsWith(tp + "/")) {
+                    res.add(e);
+                    break;
+                }
+            }
+        }
+        return res;
+    }
+
+    private static @NotNull String capturedOf(@NotNull MetadataSupport kept) {
+        StringJoiner res = new StringJoiner(",");
+        if (!kept.permissions) {
+            res.add("permissions");
+        }
+        if (!kept.xattrs) {
+            res.add("xattrs");
+        }
+        if (!kept.acls) {
+            res.add("acls");
+        }
+        return res.toString();
+    }
+
+    // ---
+    // getfacl(1) lists relative to each source; the transfer paths start with the source's name
+    // ---
+
+    private static @NotNull Map<String, String[]> readAcls(@NotNull SortedSet<File> sources) throws IOException {
+        Map<String, String[]> res = new HashMap<>();
+        for (File src : sources) {
+            Path source = src.toPath();
+            String prefix = BatchWalker.transferPathOf(BatchWalker.transferRootOf(source), source);
+            for (Map.Entry<String, String[]> e : AclRestorer.read(src).entrySet()) {
+                String rel = e.getKey();
+                String transferPath = rel.equals("/") ? prefix : (prefix.equals("/") ? rel : prefix + rel);
+                res.put(transferPath, e.getValue());
+            }
+        }
+        return res;
+    }
+
+    private static @NotNull SortedMap<String, byte[]> readXattrs(@NotNull Path path) {
+        SortedMap<String, byte[]> res = new TreeMap<>();
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+            if (view == null) {
+                return res;
+            }
+            for (String name : view.list()) {
+                ByteBuffer buf = ByteBuffer.allocate(view.size(name));
+                view.read(name, buf);
+                res.put(name, buf.array());
+            }
+        } catch (IOException | UnsupportedOperationException ex) {
+            logger.debug("Could not read the extended attributes of '{}': {}", path, ex.toString());
+        }
+        return res;
+    }
+
+    private static @NotNull String base64(byte @NotNull [] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,40 @@
+package backup.store;
+
+import org.jetbrains.annotations.NotNull;
+
+// ---
+// The manifests and indexes of the stores are text files with one tab-separated line per entry.
+// Tabs, line feeds, carriage returns (the line readers end a line at a lone one, too) and backslashes
+// are the only characters that cannot appear as-is in a field.
+// ---
+
+public abstract class TabSeparated {
+
+    public static @NotNull String escape(@NotNull String str) {
+        StringBuilder buf = new StringBuilder(str.length());
+        for (char ch : str.toCharArray()) {
+            switch (ch) {
+                case '\\' -> buf.append("\\\\");
+                case '\t' -> buf.append("\\t");
+                case '\n' -> buf.append("\\n");
+                case '\r' -> buf.append("\\r");
+                default -> buf.append(ch);
+            }
+        }
+        return buf.toString();
+    }
+
+    public static @NotNull String unescape(@NotNull String str) {
+        StringBuilder buf = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            if (ch == '\\' && i + 1 < str.length()) {
+                char next = str.charAt(++i);
+                buf.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                buf.append(ch);
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,194 @@
+package backup;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// ---
+// Generates a reproducible file tree for tests and benchmarks: the same settings and seed always
+// yield the same names, sizes, contents and mtimes.
+//
+// The files are spread over a tree of "fanout" subdirectories per directory, "depth" levels deep.
+// Their sizes follow a distribution given as buckets (a weight and a range of sizes). Some files
+// may be hard links to others, and some may be sparse (a hole followed by a little data).
+// Some files can be marked as "vanishing": the caller deletes them while a backup runs, by
+// calling vanish().
+// ---
+
+public class SyntheticTree {
+
+    public static class SizeBucket {
+
+        final int weight;
+        final long minBytes;
+        final long maxBytes;
+
+        public SizeBucket(int weight, long minBytes, long maxBytes) {
+            this.weight = weight;
+            this.minBytes = minBytes;
+            this.maxBytes = maxBytes;
+        }
+    }
+
+    // Mostly small files, like a home directory: 80% below 16 KiB, 18% below 1 MiB, 2% up to 16 MiB
+
+    public final static List<SizeBucket> HOME_LIKE = List.of(
+            new SizeBucket(80, 0, 16 * 1024),
+            new SizeBucket(18, 16 * 1024, 1024 * 1024),
+            new SizeBucket(2, 1024 * 1024, 16 * 1024 * 1024));
+
+    private final static long MTIME_BASE = 1_600_000_000_000L;
+
+    private long seed = 1;
+    private int files = 1000;
+    private int depth = 3;
+    private int fanout = 4;
+    private List<SizeBucket> sizes = HOME_LIKE;
+    private double hardLinkFraction;
+    private int sparseFiles;
+    private long sparseHoleBytes = 64 * 1024 * 1024;
+    private int vanishingFiles;
+
+    // What has been generated
+
+    private long generatedFiles;
+    private long generatedBytes;
+    private final List<Path> vanishing = new ArrayList<>();
+
+    public SyntheticTree seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public SyntheticTree files(int files) {
+        this.files = files;
+        return this;
+    }
+
+    public SyntheticTree depth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    public SyntheticTree fanout(int fanout) {
+        this.fanout = fanout;
+        return this;
+    }
+
+    public SyntheticTree sizes(@NotNull List<SizeBucket> sizes) {
+        this.sizes = sizes;
+        return this;
+    }
+
+    public SyntheticTree hardLinkFraction(double hardLinkFraction) {
+        this.hardLinkFraction = hardLinkFraction;
+        return this;
+    }
+
+    public SyntheticTree sparseFiles(int sparseFiles, long holeBytes) {
+        this.sparseFiles = sparseFiles;
+        this.sparseHoleBytes = holeBytes;
+        return this;
+    }
+
+    public SyntheticTree vanishingFiles(int vanishingFiles) {
+        this.vanishingFiles = vanishingFiles;
+        return this;
+    }
+
+    // ---
+    // Fill "root" (created if needed)
+    // ---
+
+    public SyntheticTree generate(@NotNull Path root) throws IOException {
+        Random random = new Random(seed);
+        List<Path> dirs = new ArrayList<>();
+        createDirs(root, depth, dirs);
+        List<Path> regular = new ArrayList<>();
+        byte[] buf = new byte[64 * 1024];
+        for (int i = 0; i < files; i++) {
+            Path dir = dirs.get(random.nextInt(dirs.size()));
+            Path file = dir.resolve(String.format("file_%07d", i));
+            if (!regular.isEmpty() && random.nextDouble() < hardLinkFraction) {
+                Files.createLink(file, regular.get(random.nextInt(regular.size())));
+                generatedFiles++;
+                continue;
+            }
+            long size = sizeOf(random);
+            try (var out = Files.newOutputStream(file)) {
+                long left = size;
+                while (left > 0) {
+                    random.nextBytes(buf);
+                    int n = (int) Math.min(buf.length, left);
+                    out.write(buf, 0, n);
+                    left -= n;
+                }
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(MTIME_BASE + i * 1000L));
+            regular.add(file);
+            generatedFiles++;
+            generatedBytes += size;
+        }
+        for (int i = 0; i < sparseFiles; i++) {
+            Path file = dirs.get(random.nextInt(dirs.size())).resolve(String.format("sparse_%04d", i));
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.seek(sparseHoleBytes);
+                raf.write(buf, 0, 4096);
+            }
+            generatedFiles++;
+            generatedBytes += sparseHoleBytes + 4096;
+        }
+        List<Path> candidates = new ArrayList<>(regular);
+        Collections.shuffle(candidates, random);
+        vanishing.addAll(candidates.subList(0, Math.min(vanishingFiles, candidates.size())));
+        return this;
+    }
+
+    private void createDirs(@NotNull Path dir, int levels, @NotNull List<Path> dirs) throws IOException {
+        Files.createDirectories(dir);
+        dirs.add(dir);
+        if (levels > 0) {
+            for (int i = 0; i < fanout; i++) {
+                createDirs(dir.resolve(String.format("dir_%02d", i)), levels - 1, dirs);
+            }
+        }
+    }
+
+    private long sizeOf(@NotNull Random random) {
+        int total = sizes.stream().mapToInt(b -> b.weight).sum();
+        int pick = random.nextInt(total);
+        for (SizeBucket b : sizes) {
+            if (pick < b.weight) {
+                return b.minBytes + (long) (random.nextDouble() * (b.maxBytes - b.minBytes));
+            }
+            pick -= b.weight;
+        }
+        throw new IllegalStateException("No size bucket picked");
+    }
+
+    // ---
+    // Delete the files marked as vanishing, as if something removed them during the backup
+    // ---
+
+    public void vanish() throws IOException {
+        for (Path p : vanishing) {
+            Files.deleteIfExists(p);
+        }
+    }
+
+    public long getGeneratedFiles() {
+        return generatedFiles;
+    }
+
+    public long getGeneratedBytes() {
+        return generatedBytes;
+    }
+}
@@ -0,0 +1,90 @@
+package backup;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import backup.scan.FileMeta;
+import backup.store.ArchiveStore;
+import backup.store.TabSeparated;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestArchiveStore {
+
+    private final static long SEGMENT_SIZE = 10_000;
+
+    @Test
+    void incrementalRunsOnlyAppendChangedFiles(@TempDir Path tmp) throws Exception {
+        Path src = Files.createDirectories(tmp.resolve("src"));
+        File destDir = Files.createDirectories(tmp.resolve("dest")).toFile();
+        Random random = new Random(11);
+        for (int i = 0; i < 20; i++) {
+            byte[] data = new byte[random.nextInt(3000)];
+            random.nextBytes(data);
+            Files.write(src.resolve("f" + i), data);
+        }
+        File first = archive(src, destDir, Instant.parse("2024-01-01T10:00:00Z"));
+        File archiveDir = new File(destDir, DirNaming.buildAtomicArchiveDirName(Batch.FAST_CHANGERS));
+        int segmentsAfterFirst = Objects.requireNonNull(archiveDir.list()).length;
+        assertThat(segmentsAfterFirst).isGreaterThan(1); // ~30000 bytes in segments of 10000
+        verifyAll(src, archiveDir, first);
+        // change one file
+        Files.write(src.resolve("f3"), "changed".getBytes());
+        Files.setLastModifiedTime(src.resolve("f3"), FileTime.fromMillis(1234567890000L));
+        File second = archive(src, destDir, Instant.parse("2024-01-02T10:00:00Z"));
+        assertThat(Objects.requireNonNull(archiveDir.list()).length).isEqualTo(segmentsAfterFirst + 1);
+        File newSegment = new File(archiveDir, DirNaming.buildAtomicSegmentFileName(segmentsAfterFirst + 1));
+        assertThat(newSegment.length()).isEqualTo("changed".length());
+        verifyAll(src, archiveDir, second);
+    }
+
+    @Test
+    void namesWithControlCharactersSurviveTheIndex(@TempDir Path tmp) throws Exception {
+        Path src = Files.createDirectories(tmp.resolve("src"));
+        File destDir = Files.createDirectories(tmp.resolve("dest")).toFile();
+        String name = "carriage\rreturn\ttab\nfeed\\slash";
+        Files.writeString(src.resolve(name), "odd");
+        Files.writeString(src.resolve("plain"), "even");
+        File targetDir = archive(src, destDir, Instant.parse("2024-01-01T10:00:00Z"));
+        List<ArchiveStore.IndexEntry> entries = ArchiveStore.readIndex(new File(targetDir, DirNaming.buildAtomicArchiveIndexFileName(Batch.FAST_CHANGERS)));
+        assertThat(entries).extracting(e -> e.transferPath).containsExactlyInAnyOrder("/src", "/src/" + name, "/src/plain");
+        assertThat(TabSeparated.unescape(TabSeparated.escape(name))).isEqualTo(name);
+        assertThat(TabSeparated.escape(name)).doesNotContain("\r", "\n", "\t");
+    }
+
+    private static File archive(Path src, File destDir, Instant when) throws Exception {
+        File targetDir = new File(destDir, DirNaming.buildAtomicTargetDirRawName(when));
+        assertThat(targetDir.mkdir()).isTrue();
+        try (ArchiveStore store = new ArchiveStore(Batch.FAST_CHANGERS, List.of(targetDir), SEGMENT_SIZE, Collections.emptySet())) {
+            store.enterDirectory(src, "/src", FileMeta.of(src));
+            try (var stream = Files.list(src)) {
+                for (Path p : stream.sorted().toList()) {
+                    store.visitFile(p, "/src/" + p.getFileName(), FileMeta.of(p));
+                }
+            }
+            assertThat(store.getFailures()).isZero();
+        }
+        return targetDir;
+    }
+
+    private static void verifyAll(Path src, File archiveDir, File targetDir) throws Exception {
+        List<ArchiveStore.IndexEntry> entries = ArchiveStore.readIndex(new File(targetDir, DirNaming.buildAtomicArchiveIndexFileName(Batch.FAST_CHANGERS)));
+        assertThat(entries).hasSize(21);
+        for (ArchiveStore.IndexEntry e : entries) {
+            if (e.type == ArchiveStore.EntryType.File) {
+                try (InputStream in = ArchiveStore.open(archiveDir, e)) {
+                    assertThat(in.readAllBytes()).isEqualTo(Files.readAllBytes(src.resolve(e.transferPath.substring(5))));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package backup;
+
+import backup.config.Batch;
+import backup.helpers.BatchResult;
+import backup.helpers.PeakRss;
+import backup.helpers.ProcessingResult;
+import backup.helpers.RsyncCmd;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// ---
+// End-to-end throughput of the whole pipeline (Mainer) on a generated tree (see SyntheticTree),
+// backed up into a local destination. Each scenario appends a line per batch to "bench_output.txt"
+// in the working directory, tagged with the commit, so that runs on different commits can be compared.
+//
+// Not run by default; run with "mvn test -P benchmark". The size of the tree is set with
+// "-Dbench.files=N" (default 20000). The scenarios that need rsync are skipped if it is missing.
+// ---
+
+@Tag("benchmark")
+public class TestBenchmark {
+
+    private final static File RESULTS = new File("bench_output.txt");
+    private final static int FILES = Integer.getInteger("bench.files", 20_000);
+
+    private static String commit;
+
+    @BeforeAll
+    static void findCommit() {
+        try {
+            Process p = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+            String out = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+            commit = (p.waitFor() == 0) ? out : "unknown";
+        } catch (IOException | InterruptedException ex) {
+            commit = "unknown";
+        }
+    }
+
+    @Test
+    void plainTree(@TempDir Path tmp) throws Exception {
+        assumeRsync();
+        run("plain", tmp);
+    }
+
+    @Test
+    void chunked(@TempDir Path tmp) throws Exception {
+        assumeRsync();
+        run("chunked", tmp, CmdLineDef.CHUNK_FILES, String.valueOf(Math.max(1, FILES / 10)));
+    }
+
+    @Test
+    void archive(@TempDir Path tmp) throws Exception {
+        run("archive", tmp, CmdLineDef.ARCHIVE, "fast_changers");
+    }
+
+    private static void assumeRsync() {
+        Assumptions.assumeTrue(new File(RsyncCmd.RSYNC_EXE_NAME).canExecute(), "rsync is not installed");
+    }
+
+    private static void run(String scenario, Path tmp, String... extraArgs) throws Exception {
+        Path sourceRoot = tmp.resolve("src");
+        SyntheticTree aloy = new SyntheticTree().seed(1).files(FILES).depth(4).fanout(4)
+                .hardLinkFraction(0.02).sparseFiles(2, 64L * 1024 * 1024).vanishingFiles(10)
+                .generate(sourceRoot.resolve("home/aloy"));
+        SyntheticTree rost = new SyntheticTree().seed(2).files(FILES / 10).generate(sourceRoot.resolve("home/rost"));
+        SyntheticTree wikis = new SyntheticTree().seed(3).files(FILES / 10).generate(sourceRoot.resolve("home/wikis"));
+        File destDir = Files.createDirectories(tmp.resolve("dest")).toFile();
+        List<String> args = new ArrayList<>(List.of(CmdLineDef.WITH, "fast_changers", CmdLineDef.SOURCE_ROOT, sourceRoot.toString(), CmdLineDef.SKIP_PROBE));
+        args.addAll(List.of(extraArgs));
+        args.add(destDir.toString());
+        // some files go away while the backup runs
+        Thread vanisher = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+                aloy.vanish();
+            } catch (InterruptedException | IOException ex) {
+                // then they don't vanish
+            }
+        });
+        vanisher.start();
+        ProcessingResult res = Mainer.doCmdLineAndBizProcessing(args.toArray(new String[0]), Mainer.SkipBizLogic.False);
+        vanisher.join();
+        assertThat(res.batchResults).containsKey(Batch.FAST_CHANGERS);
+        long files = aloy.getGeneratedFiles() + rost.getGeneratedFiles() + wikis.getGeneratedFiles();
+        long bytes = aloy.getGeneratedBytes() + rost.getGeneratedBytes() + wikis.getGeneratedBytes();
+        for (BatchResult br : res.batchResults.values()) {
+            record(scenario, br, files, bytes);
+        }
+    }
+
+    private static void record(String scenario, BatchResult br, long files, long bytes) throws IOException {
+        long millis = Math.max(1, br.getWallclock() == null ? 0 : br.getWallclock().toMillis());
+        // the Java-side stores run in this JVM
+        long peakRssKiB = br.getPeakRssKiB();
+        String rssOf = "rsync";
+        if (peakRssKiB < 0) {
+            PeakRss jvm = new PeakRss();
+            jvm.sample(ProcessHandle.current());
+            peakRssKiB = jvm.getPeakKiB();
+            rssOf = "jvm";
+        }
+        boolean fresh = !RESULTS.exists();
+        StringBuilder buf = new StringBuilder();
+        if (fresh) {
+            buf.append("when\tcommit\tscenario\tbatch\texitValue\tfiles\tbytes\twallclockMs\tfilesPerSec\tMiBPerSec\tpeakRssKiB\trssOf\n");
+        }
+        buf.append(String.join("\t", Instant.now().toString(), commit, scenario, br.getBatch().toString(), String.valueOf(br.getExitValue()),
+                String.valueOf(files), String.valueOf(bytes), String.valueOf(millis), String.valueOf(files * 1000 / millis),
+                String.format("%.1f", bytes / 1024.0 / 1024.0 * 1000.0 / millis), String.valueOf(peakRssKiB), rssOf));
+        buf.append('\n');
+        Files.writeString(RESULTS.toPath(), buf, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
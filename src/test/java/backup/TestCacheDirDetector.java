@@ -0,0 +1,44 @@
+package backup;
+
+import backup.config.Batch;
+import backup.scan.CacheDirDetector;
+import backup.scan.PreScan;
+import backup.scan.PreScanResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestCacheDirDetector {
+
+    @Test
+    void taggedAndKnownCachesAreLeftOut(@TempDir Path tmp) throws Exception {
+        Path attic = Files.createDirectories(tmp.resolve("home/attic"));
+        Path build = Files.createDirectories(attic.resolve("proj/build"));
+        String tag = CacheDirDetector.TAG_SIGNATURE + "\n# made by a build tool\n";
+        Files.writeString(build.resolve(CacheDirDetector.TAG_FILE_NAME), tag);
+        Files.write(build.resolve("out.o"), new byte[1000]);
+        Path npm = Files.createDirectories(attic.resolve("x/.npm/_cacache/content"));
+        Files.write(npm.resolve("blob"), new byte[500]);
+        // a wrong signature does not count
+        Path notCache = Files.createDirectories(attic.resolve("docs"));
+        Files.writeString(notCache.resolve(CacheDirDetector.TAG_FILE_NAME), "Signature: nope\n");
+        Files.write(notCache.resolve("letter.txt"), new byte[10]);
+
+        PreScanResult res = PreScan.preScan(Batch.REST_OF_ATTIC, tmp.toFile(), 1, 0, PreScan.Caches.Exclude);
+        assertThat(res.cacheDirs).extracting(cd -> cd.transferPath).containsExactly("/attic/proj/build", "/attic/x/.npm/_cacache");
+        assertThat(res.getCacheBytes()).isEqualTo(tag.length() + 1000 + 500);
+        // only what is in "docs"
+        assertThat(res.files).isEqualTo(2);
+        assertThat(res.seq.isExcluded("/attic/proj/build", true)).isTrue();
+        assertThat(res.seq.isExcluded("/attic/proj", true)).isFalse();
+        assertThat(res.seq.isExcluded("/attic/nsfw", true)).isTrue();
+
+        PreScanResult kept = PreScan.preScan(Batch.REST_OF_ATTIC, tmp.toFile(), 1, 0, PreScan.Caches.Keep);
+        assertThat(kept.cacheDirs).isEmpty();
+        assertThat(kept.files).isEqualTo(5);
+    }
+}
@@ -0,0 +1,50 @@
+package backup;
+
+import backup.helpers.PeakRss;
+import backup.scan.ChunkWriter;
+import backup.scan.FileMeta;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestChunkWriter {
+
+    @Test
+    void chunksAreBoundedAndDirectoriesComeLast(@TempDir Path tmp) throws Exception {
+        Path root = tmp.resolve("src");
+        Path dir = Files.createDirectories(root.resolve("top/sub"));
+        for (int i = 0; i < 10; i++) {
+            Files.write(dir.resolve("f" + i), new byte[100]);
+        }
+        File chunkDir = Files.createDirectories(tmp.resolve("chunks")).toFile();
+        ChunkWriter writer = new ChunkWriter(chunkDir, 4, 250, Set.of("/top/sub/f9"));
+        try (writer) {
+            writer.enterDirectory(root.resolve("top"), "/top", FileMeta.of(root.resolve("top")));
+            writer.enterDirectory(dir, "/top/sub", FileMeta.of(dir));
+            for (int i = 0; i < 10; i++) {
+                writer.visitFile(dir.resolve("f" + i), "/top/sub/f" + i, FileMeta.of(dir.resolve("f" + i)));
+            }
+        }
+        List<ChunkWriter.Chunk> chunks = writer.getChunks();
+        // 9 files of 100 bytes, at most 250 bytes per chunk, then the directories
+        assertThat(chunks).extracting(c -> c.entries).containsExactly(2L, 2L, 2L, 2L, 1L, 2L);
+        assertThat(chunks).allSatisfy(c -> assertThat(c.transferRoot).isEqualTo(root));
+        assertThat(Files.readString(chunks.get(0).listFile.toPath(), StandardCharsets.UTF_8)).isEqualTo("top/sub/f0\0top/sub/f1\0");
+        assertThat(Files.readString(chunks.get(5).listFile.toPath(), StandardCharsets.UTF_8)).isEqualTo("top\0top/sub\0");
+    }
+
+    @Test
+    void peakRssOfRunningProcess() {
+        PeakRss peakRss = new PeakRss();
+        peakRss.sample(ProcessHandle.current());
+        assertThat(peakRss.getPeakKiB()).isGreaterThan(0);
+    }
+}
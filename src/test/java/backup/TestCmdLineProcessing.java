@@ -9,6 +9,7 @@ import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.Set;
@@ -90,6 +91,16 @@ public class TestCmdLineProcessing {
         assertThat(res.exitValue).isEqualTo(ProcessingResult.ExitValue.SKIPPED_BUSINESS_LOGIC);
     }
 
+    @Test
+    void planImpliesDryrun() {
+        String[] args = {"--with", "fast_changers", PLAN, "/tmp"};
+        ProcessingResult res = Mainer.doCmdLineAndBizProcessing(args, Mainer.SkipBizLogic.True);
+        assertThat(res.cmdLineDef.isPlan()).isTrue();
+        assertThat(res.cmdLineDef.isDryrun()).isTrue();
+        assertThat(res.batchResults).isEmpty();
+        assertThat(res.exitValue).isEqualTo(ProcessingResult.ExitValue.SKIPPED_BUSINESS_LOGIC);
+    }
+
     @Test
     void noBatchGiven() {
         String[] args = {"/tmp"};
@@ -178,5 +189,21 @@ public class TestCmdLineProcessing {
         assertThat(res.exitValue).isEqualTo(ProcessingResult.ExitValue.SKIPPED_BUSINESS_LOGIC);
     }
 
-}
+    @Test
+    void multipleDestinationsGiven() {
+        String[] args = {"--with", "fast_changers", "/tmp", "/"};
+        ProcessingResult res = Mainer.doCmdLineAndBizProcessing(args, Mainer.SkipBizLogic.True);
+        assertThat(res.cmdLineDef.getDestDirs()).containsExactly(new File("/tmp"), new File("/"));
+        assertThat(res.cmdLineDef.getDestDir()).isEqualTo(new File("/tmp"));
+    }
+
+    @Test
+    void sameDestinationGivenTwice() {
+        String[] args = {"--with", "fast_changers", "/tmp", "/tmp"};
+        Capturer c = new Capturer();
+        ProcessingResult res = Mainer.doCmdLineAndBizProcessing(args, Mainer.SkipBizLogic.True, c.getPrintWriter());
+        assertThat(res.exitValue).isEqualTo(ProcessingResult.ExitValue.ARG_POSTPROCESSING_PROBLEM);
+        assertThat(c.closeAndGet()).contains("more than once");
+    }
 
+}
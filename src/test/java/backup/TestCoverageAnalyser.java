@@ -0,0 +1,83 @@
+package backup;
+
+import backup.config.Batch;
+import backup.scan.CoverageAnalyser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestCoverageAnalyser {
+
+    private static void write(Path file, int size) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[size]);
+    }
+
+    @Test
+    void overlapsAndGapsAreFound(@TempDir Path tmp) throws Exception {
+        Path home = tmp.resolve("home");
+        write(home.resolve("aloy/notes.txt"), 100);
+        write(home.resolve("aloy/.m2/repository/lib.jar"), 300);
+        write(home.resolve("attic/docs/letter.txt"), 50);
+        write(home.resolve("attic/nsfw/video.mp4"), 1000);
+        write(home.resolve("backups/disk.img"), 2000);
+        write(home.resolve("stranger/secret.txt"), 70);
+
+        SortedMap<Batch, SortedSet<File>> sourcesByBatch = new TreeMap<>();
+        sourcesByBatch.put(Batch.LARGE_BUT_STABLE, Batch.LARGE_BUT_STABLE.sourcesUnder(tmp.toFile()));
+        sourcesByBatch.put(Batch.REST_OF_ATTIC, Batch.REST_OF_ATTIC.sourcesUnder(tmp.toFile()));
+        // a mistake: the backups are also given to FAST_CHANGERS
+        sourcesByBatch.put(Batch.FAST_CHANGERS, new TreeSet<>(Set.of(home.resolve("aloy").toFile(), home.resolve("backups").toFile())));
+
+        CoverageAnalyser analyser = new CoverageAnalyser(sourcesByBatch, 2);
+        analyser.run();
+
+        assertThat(analyser.getOverlaps()).hasSize(1);
+        CoverageAnalyser.Region overlap = analyser.getOverlaps().get(0);
+        assertThat(overlap.path).isEqualTo(home.resolve("backups"));
+        assertThat(overlap.batches).containsExactlyInAnyOrder(Batch.FAST_CHANGERS, Batch.LARGE_BUT_STABLE);
+        assertThat(overlap.getDuplicatedBytes()).isEqualTo(2000);
+
+        // the Maven repository is excluded by the rules of FAST_CHANGERS, "stranger" is in no batch
+        assertThat(analyser.getUncovered()).extracting(r -> r.path).containsExactly(home.resolve("aloy/.m2"), home.resolve("stranger"));
+        assertThat(analyser.getUncovered()).extracting(CoverageAnalyser.Region::getBytes).containsExactly(300L, 70L);
+
+        // "nsfw" is left out by REST_OF_ATTIC and copied by LARGE_BUT_STABLE only
+        assertThat(analyser.getRegions()).filteredOn(r -> r.path.equals(home.resolve("attic/nsfw")))
+                .singleElement().satisfies(r -> assertThat(r.batches).containsExactly(Batch.LARGE_BUT_STABLE));
+    }
+
+    @Test
+    void filesOfADirectoryCopiedByOtherBatchesAreOneRegion(@TempDir Path tmp) throws Exception {
+        Path aloy = tmp.resolve("home/aloy");
+        write(aloy.resolve("main.c"), 10);
+        write(aloy.resolve("main.o"), 100);
+        write(aloy.resolve("util.o"), 200);
+        write(aloy.resolve("notes.txt"), 5);
+
+        SortedMap<Batch, SortedSet<File>> sourcesByBatch = new TreeMap<>();
+        sourcesByBatch.put(Batch.FAST_CHANGERS, new TreeSet<>(Set.of(aloy.toFile())));
+        sourcesByBatch.put(Batch.REST_OF_ATTIC, new TreeSet<>(Set.of(aloy.resolve("main.o").toFile(), aloy.resolve("util.o").toFile())));
+        sourcesByBatch.put(Batch.LARGE_BUT_STABLE, new TreeSet<>(Set.of(aloy.resolve("notes.txt").toFile())));
+
+        CoverageAnalyser analyser = new CoverageAnalyser(sourcesByBatch, 2);
+        analyser.run();
+
+        // one region for both object files, named after their directory; a lone file keeps its own name
+        assertThat(analyser.getOverlaps()).extracting(r -> r.path).containsExactly(aloy, aloy.resolve("notes.txt"));
+        CoverageAnalyser.Region objects = analyser.getOverlaps().get(0);
+        assertThat(objects.batches).containsExactlyInAnyOrder(Batch.FAST_CHANGERS, Batch.REST_OF_ATTIC);
+        assertThat(objects.getFiles()).isEqualTo(2);
+        assertThat(objects.getBytes()).isEqualTo(300);
+    }
+}
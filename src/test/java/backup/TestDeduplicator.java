@@ -0,0 +1,107 @@
+package backup;
+
+import backup.maintenance.Deduplicator;
+import backup.scan.FileMeta;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class TestDeduplicator {
+
+    @Test
+    void identicalFilesAcrossTreesAreLinked(@TempDir Path tmp) throws Exception {
+        byte[] data = new byte[Deduplicator.PARTIAL_HASH_BYTES + 1000];
+        new Random(42).nextBytes(data);
+        FileTime mtime = FileTime.fromMillis(1_600_000_000_000L);
+        Path a = write(tmp.resolve("copy_of_a/iso/image.iso"), data, mtime);
+        Path b = write(tmp.resolve("copy_of_b/backups/image.iso"), data, mtime);
+        // same start, different end: only the full hash tells them apart
+        byte[] other = data.clone();
+        other[other.length - 1]++;
+        Path c = write(tmp.resolve("copy_of_b/backups/other.iso"), other, mtime);
+        // same data, but another mtime: linking would change its metadata
+        Path d = write(tmp.resolve("copy_of_b/old/image.iso"), data, FileTime.fromMillis(1_500_000_000_000L));
+        FileTime dirMtime = Files.getLastModifiedTime(b.getParent());
+
+        Deduplicator dedup = new Deduplicator(2, Deduplicator.DEFAULT_MIN_SIZE, false, Deduplicator.Acls.None);
+        dedup.run(List.of(tmp.resolve("copy_of_a"), tmp.resolve("copy_of_b")));
+
+        assertThat(FileMeta.of(b).ino).isEqualTo(FileMeta.of(a).ino);
+        assertThat(FileMeta.of(a).nlink).isEqualTo(2);
+        assertThat(FileMeta.of(c).ino).isNotEqualTo(FileMeta.of(a).ino);
+        assertThat(FileMeta.of(d).ino).isNotEqualTo(FileMeta.of(a).ino);
+        assertThat(Files.readAllBytes(b)).isEqualTo(data);
+        assertThat(Files.getLastModifiedTime(b.getParent())).isEqualTo(dirMtime);
+        assertThat(dedup.getLinked()).isEqualTo(1);
+        assertThat(dedup.getSavedBytes()).isEqualTo(data.length);
+        assertThat(dedup.getFailures()).isZero();
+        try (var entries = Files.list(b.getParent())) {
+            assertThat(entries.map(p -> p.getFileName().toString())).containsExactlyInAnyOrder("image.iso", "other.iso");
+        }
+    }
+
+    @Test
+    void aBackedUpFileNamedLikeATemporaryLinkIsLeftAlone(@TempDir Path tmp) throws Exception {
+        byte[] data = new byte[2 * (int) Deduplicator.DEFAULT_MIN_SIZE];
+        new Random(44).nextBytes(data);
+        FileTime mtime = FileTime.fromMillis(1_600_000_000_000L);
+        Path a = write(tmp.resolve("copy_of_a/image.iso"), data, mtime);
+        Path b = write(tmp.resolve("copy_of_b/image.iso"), data, mtime);
+        Path namesake = write(tmp.resolve("copy_of_b/image.iso.dedup_tmp"), "backed up".getBytes(StandardCharsets.UTF_8), mtime);
+
+        Deduplicator dedup = new Deduplicator(2, Deduplicator.DEFAULT_MIN_SIZE, false, Deduplicator.Acls.None);
+        dedup.run(List.of(tmp.resolve("copy_of_a"), tmp.resolve("copy_of_b")));
+
+        assertThat(FileMeta.of(b).ino).isEqualTo(FileMeta.of(a).ino);
+        assertThat(Files.readString(namesake)).isEqualTo("backed up");
+        try (var entries = Files.list(b.getParent())) {
+            assertThat(entries.map(p -> p.getFileName().toString())).containsExactlyInAnyOrder("image.iso", "image.iso.dedup_tmp");
+        }
+    }
+
+    @Test
+    void filesDifferingInAnExtendedAttributeAreNotLinked(@TempDir Path tmp) throws Exception {
+        byte[] data = new byte[2 * (int) Deduplicator.DEFAULT_MIN_SIZE];
+        new Random(43).nextBytes(data);
+        FileTime mtime = FileTime.fromMillis(1_600_000_000_000L);
+        Path a = write(tmp.resolve("copy_of_a/tagged.bin"), data, mtime);
+        Path b = write(tmp.resolve("copy_of_a/other.bin"), data, mtime);
+        Path c = write(tmp.resolve("copy_of_a/same.bin"), data, mtime);
+        UserDefinedFileAttributeView viewA = Files.getFileAttributeView(a, UserDefinedFileAttributeView.class);
+        UserDefinedFileAttributeView viewB = Files.getFileAttributeView(b, UserDefinedFileAttributeView.class);
+        UserDefinedFileAttributeView viewC = Files.getFileAttributeView(c, UserDefinedFileAttributeView.class);
+        try {
+            viewA.write("origin", ByteBuffer.wrap("camera".getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException ex) {
+            assumeTrue(false, "The file system of the temporary directory has no extended attributes");
+        }
+        viewB.write("origin", ByteBuffer.wrap("scanner".getBytes(StandardCharsets.UTF_8)));
+        viewC.write("origin", ByteBuffer.wrap("camera".getBytes(StandardCharsets.UTF_8)));
+        // the xattrs changed the ctime only, the mtime is still the same
+        Deduplicator dedup = new Deduplicator(2, Deduplicator.DEFAULT_MIN_SIZE, false, Deduplicator.Acls.None);
+        dedup.run(List.of(tmp.resolve("copy_of_a")));
+        assertThat(FileMeta.of(b).ino).isNotEqualTo(FileMeta.of(a).ino);
+        assertThat(FileMeta.of(c).ino).isEqualTo(FileMeta.of(a).ino);
+        assertThat(dedup.getLinked()).isEqualTo(1);
+        assertThat(dedup.getFailures()).isZero();
+    }
+
+    private static Path write(Path file, byte[] data, FileTime mtime) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+        Files.setLastModifiedTime(file, mtime);
+        return file;
+    }
+}
@@ -0,0 +1,97 @@
+package backup;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import backup.scan.FileMeta;
+import backup.store.DeltaStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestDeltaStore {
+
+    private final static int BLOCK_SIZE = 64 * 1024;
+
+    @Test
+    void onlyChangedBlocksAreStoredAndReassemblyWorks(@TempDir Path destDir) throws Exception {
+        byte[] original = new byte[5 * BLOCK_SIZE + 1234];
+        new Random(42).nextBytes(original);
+        Path source = destDir.resolve("image.img");
+        Files.write(source, original);
+        DeltaStore store = new DeltaStore(destDir.toFile(), BLOCK_SIZE, 3);
+        File first = mkdirs(destDir, "first/x.delta");
+        File second = mkdirs(destDir, "second/x.delta");
+        File third = mkdirs(destDir, "third/x.delta");
+        // base
+        DeltaStore.Result r1 = store.storeFile(source, FileMeta.of(source), first, null);
+        assertThat(r1.storedBlocks).isEqualTo(6);
+        assertThat(r1.chainDepth).isEqualTo(0);
+        // change one byte in the second block
+        byte[] modified = original.clone();
+        modified[BLOCK_SIZE + 100] ^= 0x55;
+        Files.write(source, modified);
+        DeltaStore.Result r2 = store.storeFile(source, FileMeta.of(source), second, "first/x.delta");
+        assertThat(r2.storedBlocks).isEqualTo(1);
+        assertThat(r2.storedBytes).isEqualTo(BLOCK_SIZE);
+        assertThat(r2.chainDepth).isEqualTo(1);
+        // grow the file
+        byte[] grown = new byte[modified.length + BLOCK_SIZE];
+        System.arraycopy(modified, 0, grown, 0, modified.length);
+        Files.write(source, grown);
+        DeltaStore.Result r3 = store.storeFile(source, FileMeta.of(source), third, "second/x.delta");
+        assertThat(r3.storedBlocks).isEqualTo(2); // the formerly partial last block and the new one
+        // reassemble all versions
+        assertThat(reassemble(destDir, first)).isEqualTo(original);
+        assertThat(reassemble(destDir, second)).isEqualTo(modified);
+        assertThat(reassemble(destDir, third)).isEqualTo(grown);
+    }
+
+    @Test
+    void eachDestinationGetsADeltaAgainstItsOwnHistory(@TempDir Path tmp) throws Exception {
+        byte[] original = new byte[5 * BLOCK_SIZE + 1234];
+        new Random(7).nextBytes(original);
+        Path source = tmp.resolve("image.img");
+        Files.write(source, original);
+        DeltaStore storeA = new DeltaStore(Files.createDirectories(tmp.resolve("destA")).toFile(), BLOCK_SIZE, 2);
+        DeltaStore storeB = new DeltaStore(Files.createDirectories(tmp.resolve("destB")).toFile(), BLOCK_SIZE, 2);
+        // only A has an earlier backup
+        File earlierA = targetDir(tmp.resolve("destA"), "2024-01-01T10:00:00Z");
+        storeA.store(source, FileMeta.of(source), earlierA, Batch.LARGE_BUT_STABLE, "/vm/image.img");
+        byte[] modified = original.clone();
+        modified[3 * BLOCK_SIZE] ^= 0x55;
+        Files.write(source, modified);
+        List<File> targetDirs = List.of(targetDir(tmp.resolve("destA"), "2024-01-02T10:00:00Z"), targetDir(tmp.resolve("destB"), "2024-01-02T10:00:00Z"));
+        List<DeltaStore.Result> results = DeltaStore.storeAll(List.of(storeA, storeB), targetDirs, source, FileMeta.of(source), Batch.LARGE_BUT_STABLE, "/vm/image.img");
+        assertThat(results.get(0).storedBlocks).isEqualTo(1);
+        assertThat(results.get(0).chainDepth).isEqualTo(1);
+        assertThat(results.get(1).storedBlocks).isEqualTo(6);
+        assertThat(results.get(1).chainDepth).isEqualTo(0);
+        for (File targetDir : targetDirs) {
+            assertThat(reassemble(targetDir.getParentFile().toPath(), DeltaStore.buildDeltaFile(targetDir, Batch.LARGE_BUT_STABLE, "/vm/image.img"))).isEqualTo(modified);
+        }
+    }
+
+    private static File targetDir(Path destDir, String when) throws Exception {
+        return Files.createDirectories(destDir.resolve(DirNaming.buildAtomicTargetDirRawName(Instant.parse(when)))).toFile();
+    }
+
+    private static File mkdirs(Path destDir, String rel) {
+        File f = destDir.resolve(rel).toFile();
+        assertThat(f.getParentFile().mkdirs()).isTrue();
+        return f;
+    }
+
+    private static byte[] reassemble(Path destDir, File deltaFile) throws Exception {
+        File out = new File(deltaFile.getPath() + ".out");
+        DeltaStore.reassemble(destDir.toFile(), deltaFile, out);
+        return Files.readAllBytes(out.toPath());
+    }
+}
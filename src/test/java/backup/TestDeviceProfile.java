@@ -0,0 +1,62 @@
+package backup;
+
+import backup.probe.DestinationProbe;
+import backup.probe.DeviceProfile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestDeviceProfile {
+
+    private static DeviceProfile profile(double seq, double creates, double fsyncMs) {
+        return new DeviceProfile(Instant.parse("2024-01-01T00:00:00Z"), seq, creates, fsyncMs, "sdb1 (exfat)");
+    }
+
+    @Test
+    void degradationAgainstHistoryIsReported() {
+        List<DeviceProfile> history = List.of(profile(100, 800, 5), profile(110, 900, 4), profile(90, 700, 6));
+        assertThat(profile(95, 850, 5).compareWithHistory(history)).isEmpty();
+        assertThat(profile(30, 850, 5).compareWithHistory(history)).hasSize(1).allMatch(w -> w.contains("sequential write"));
+        assertThat(profile(95, 850, 50).compareWithHistory(history)).hasSize(1).allMatch(w -> w.contains("fsync"));
+        assertThat(profile(95, 850, 5).compareWithHistory(List.of())).isEmpty();
+    }
+
+    @Test
+    void severalDestinationsAreAsSlowAsTheWorstAtEachMetric() {
+        DeviceProfile worst = DeviceProfile.worstOf(List.of(profile(400, 100, 0.5), profile(30, 5000, 8)));
+        assertThat(worst.sequentialWriteMiBps).isEqualTo(30);
+        assertThat(worst.fileCreationsPerSec).isEqualTo(100);
+        assertThat(worst.fsyncLatencyMs).isEqualTo(8);
+        assertThat(DeviceProfile.worstOf(List.of())).isNull();
+    }
+
+    @Test
+    void parallelismAndFormatFollowTheDevice() {
+        assertThat(profile(400, 5000, 0.5).recommendedParallelism(8)).isEqualTo(8);
+        assertThat(profile(60, 300, 10).recommendedParallelism(8)).isEqualTo(4);
+        assertThat(profile(20, 100, 30).recommendedParallelism(8)).isEqualTo(1);
+        assertThat(profile(20, 100, 30).prefersArchiveFor(1_000_000, 4_000_000_000L)).isTrue();
+        assertThat(profile(20, 100, 30).prefersArchiveFor(1_000_000, 400_000_000_000L)).isFalse(); // large files
+        assertThat(profile(400, 5000, 0.5).prefersArchiveFor(1_000_000, 4_000_000_000L)).isFalse();
+    }
+
+    @Test
+    void probeRunsAndHistoryIsKept(@TempDir Path destDir) throws Exception {
+        File dest = destDir.toFile();
+        DeviceProfile p = DestinationProbe.probe(dest);
+        assertThat(p.sequentialWriteMiBps).isPositive();
+        assertThat(p.fileCreationsPerSec).isPositive();
+        p.appendToHistory(dest);
+        p.appendToHistory(dest);
+        List<DeviceProfile> history = DeviceProfile.readHistory(dest);
+        assertThat(history).hasSize(2);
+        assertThat(history.get(0).fileStore).isEqualTo(p.fileStore);
+        assertThat(history.get(0).sequentialWriteMiBps).isEqualTo(p.sequentialWriteMiBps);
+    }
+}
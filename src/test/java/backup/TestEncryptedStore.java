@@ -0,0 +1,132 @@
+package backup;
+
+import backup.config.Batch;
+import backup.scan.FileMeta;
+import backup.store.CryptoKeys;
+import backup.store.EncryptedStore;
+import backup.store.EncryptingOutput;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestEncryptedStore {
+
+    private final static char[] PASSPHRASE = "correct horse battery staple".toCharArray();
+
+    @Test
+    void filesAndManifestRoundtripToAllTargets(@TempDir Path tmp) throws Exception {
+        Path src = Files.createDirectories(tmp.resolve("src"));
+        byte[] big = new byte[3 * EncryptingOutput.CHUNK_SIZE + 17];
+        new Random(7).nextBytes(big);
+        Files.write(src.resolve("big.bin"), big);
+        Files.write(src.resolve("empty"), new byte[0]);
+        Files.write(src.resolve("exactly one chunk"), new byte[EncryptingOutput.CHUNK_SIZE]);
+        Files.createSymbolicLink(src.resolve("link"), src.resolve("big.bin"));
+        File target1 = Files.createDirectories(tmp.resolve("t1")).toFile();
+        File target2 = Files.createDirectories(tmp.resolve("t2")).toFile();
+        CryptoKeys keys = CryptoKeys.create(PASSPHRASE);
+        keys.writeKeyInfo(new File(target1, "keyinfo"));
+        try (EncryptedStore store = new EncryptedStore(Batch.FAST_CHANGERS, List.of(target1, target2), keys, 4)) {
+            store.enterDirectory(src, "/src", FileMeta.of(src));
+            for (String name : List.of("big.bin", "empty", "exactly one chunk", "link")) {
+                Path p = src.resolve(name);
+                store.visitFile(p, "/src/" + name, FileMeta.of(p));
+            }
+            assertThat(store.getFiles()).isEqualTo(3);
+            assertThat(store.getFailures()).isZero();
+        }
+        // a fresh derivation from the key info is needed to read back
+        CryptoKeys reloaded = CryptoKeys.load(new File(target1, "keyinfo"), PASSPHRASE);
+        for (File target : List.of(target1, target2)) {
+            File encryptedDir = new File(target, "encrypted_of_fast_changers");
+            List<EncryptedStore.ManifestEntry> entries = EncryptedStore.readManifest(encryptedDir, reloaded);
+            assertThat(entries).extracting(e -> e.transferPath).containsExactly("/src", "/src/big.bin", "/src/empty", "/src/exactly one chunk", "/src/link");
+            assertThat(entries.get(4).symlinkTarget).isEqualTo(src.resolve("big.bin").toString());
+            for (EncryptedStore.ManifestEntry e : entries) {
+                if (e.type == EncryptedStore.EntryType.File) {
+                    assertThat(e.objectName).isEqualTo(reloaded.objectNameOf(e.transferPath));
+                    try (InputStream in = EncryptedStore.openObject(encryptedDir, reloaded, e.objectName)) {
+                        assertThat(in.readAllBytes()).isEqualTo(Files.readAllBytes(Path.of(src.toString(), e.transferPath.substring(5))));
+                    }
+                }
+            }
+            // the file names are not visible on disk
+            try (var stream = Files.walk(encryptedDir.toPath())) {
+                assertThat(stream.map(p -> p.getFileName().toString())).noneMatch(n -> n.contains("big") || n.contains("chunk"));
+            }
+        }
+        assertThatThrownBy(() -> CryptoKeys.load(new File(target1, "keyinfo"), "wrong".toCharArray())).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void tamperingAndTruncationAreDetected(@TempDir Path tmp) throws Exception {
+        CryptoKeys keys = CryptoKeys.create(PASSPHRASE);
+        byte[] plain = new byte[2 * EncryptingOutput.CHUNK_SIZE + 5];
+        new Random(3).nextBytes(plain);
+        byte[] encrypted = encrypt(keys, plain, "obj", 2);
+        byte[] flipped = encrypted.clone();
+        flipped[flipped.length / 2] ^= 1;
+        byte[] truncated = java.util.Arrays.copyOf(encrypted, encrypted.length - 21); // the whole last chunk
+        assertThat(decrypt(keys, encrypted, "obj")).isEqualTo(plain);
+        assertThatThrownBy(() -> decrypt(keys, flipped, "obj")).isInstanceOf(IOException.class);
+        assertThatThrownBy(() -> decrypt(keys, truncated, "obj")).isInstanceOf(IOException.class);
+        // the object name is authenticated, too
+        assertThatThrownBy(() -> decrypt(keys, encrypted, "other")).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    @Tag("benchmark")
+    void encryptionThroughput() throws Exception {
+        // not a test but a benchmark (run with "-P benchmark"): compare with ~400 MiB/s of a USB 3 disk
+        CryptoKeys keys = CryptoKeys.create(PASSPHRASE);
+        byte[] block = new byte[8 * 1024 * 1024];
+        new Random(1).nextBytes(block);
+        int rounds = 32; // 256 MiB
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[]{1, cores}) {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                long start = System.nanoTime();
+                try (EncryptingOutput out = new EncryptingOutput(List.of(OutputStream.nullOutputStream()), pool, 2 * threads, keys, "bench")) {
+                    for (int i = 0; i < rounds; i++) {
+                        out.write(block);
+                    }
+                }
+                double secs = (System.nanoTime() - start) / 1e9;
+                System.out.printf("Encryption with %d thread(s): %.0f MiB/s%n", threads, rounds * 8 / secs);
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static byte[] encrypt(CryptoKeys keys, byte[] plain, String objectName, int threads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            try (EncryptingOutput out = new EncryptingOutput(List.of(sink), pool, threads, keys, objectName)) {
+                out.write(plain);
+            }
+            return sink.toByteArray();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static byte[] decrypt(CryptoKeys keys, byte[] encrypted, String objectName) throws IOException {
+        try (InputStream in = new backup.store.DecryptingInput(new ByteArrayInputStream(encrypted), keys, objectName)) {
+            return in.readAllBytes();
+        }
+    }
+}
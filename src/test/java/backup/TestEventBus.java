@@ -0,0 +1,66 @@
+package backup;
+
+import backup.config.Batch;
+import backup.events.Event;
+import backup.events.EventBus;
+import backup.events.EventSink;
+import backup.events.JsonLinesSink;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestEventBus {
+
+    @Test
+    void eventsAreWrittenAsJsonLines(@TempDir Path tmp) throws Exception {
+        File file = tmp.resolve("events.jsonl").toFile();
+        try (EventBus bus = new EventBus(16)) {
+            bus.addSink(new JsonLinesSink(file));
+            bus.publish(Event.of(Event.Type.BatchStarted, Batch.SYSTEM).with("format", "PlainTree").build());
+            bus.publish(Event.of(Event.Type.Metric, null).with("path", "a \"quoted\"\tpath").with("bytes", 42L).with("ok", true).build());
+        }
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(0)).contains("\"type\":\"BatchStarted\"", "\"batch\":\"SYSTEM\"", "\"format\":\"PlainTree\"");
+        assertThat(lines.get(1)).endsWith("\"path\":\"a \\\"quoted\\\"\\tpath\",\"bytes\":42,\"ok\":true}").doesNotContain("\"batch\"");
+    }
+
+    @Test
+    void nonFiniteNumbersAreWrittenAsNull() {
+        Event event = Event.of(Event.Type.Metric, null).with("rate", Double.NaN).with("speed", Double.POSITIVE_INFINITY).with("ratio", 0.5).build();
+        assertThat(event.toJson()).endsWith("\"rate\":null,\"speed\":null,\"ratio\":0.5}");
+    }
+
+    @Test
+    void publishingNeverBlocksOnAStuckSink() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        EventBus bus = new EventBus(4);
+        bus.addSink(new EventSink() {
+            @Override
+            public void accept(@NotNull Event event) throws java.io.IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new java.io.IOException(ex);
+                }
+            }
+        });
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            bus.publish(Event.of(Event.Type.BatchProgress, Batch.SYSTEM).with("i", i).build());
+        }
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(1000);
+        // at most the queue and what the dispatcher took out of it before getting stuck got through
+        assertThat(bus.getDroppedCount()).isGreaterThanOrEqualTo(1000 - 2 * 4 - 1);
+        release.countDown();
+        bus.close();
+    }
+}
@@ -0,0 +1,100 @@
+package backup;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import backup.restore.SnapshotReader;
+import backup.scan.DirFingerprints;
+import backup.scan.FastPath;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestFastPath {
+
+    private final static Batch BATCH = Batch.FAST_CHANGERS;
+    private final static Duration WEEK = Duration.ofDays(7);
+
+    @Test
+    void unchangedBatchesAndSubtreesAreTakenFromTheLastGoodSnapshot(@TempDir Path tmp) throws Exception {
+        Path aloy = Files.createDirectories(tmp.resolve("src/home/aloy"));
+        Files.createDirectories(aloy.resolve("music/album"));
+        Files.writeString(aloy.resolve("music/album/track.flac"), "la la la");
+        Files.createDirectories(aloy.resolve("docs"));
+        Files.writeString(aloy.resolve("docs/letter.txt"), "dear");
+        SortedSet<File> sources = new TreeSet<>(Set.of(aloy.toFile()));
+        Path dest = Files.createDirectories(tmp.resolve("dest"));
+        Instant t0 = Instant.parse("2026-10-01T10:00:00Z");
+
+        // the first run has nothing to compare with; rsync's copy is imitated
+        File first = snapshot(dest, t0, aloy);
+        FastPath plan = FastPath.plan(BATCH, sources, BATCH.seq, List.of(first), t0, WEEK, FastPath.MAX_SKIPPED_SUBTREES, 2);
+        assertThat(plan.decision).isEqualTo(FastPath.Decision.FullWalk);
+        plan.fingerprints.write(new File(first, DirNaming.buildAtomicFingerprintFileName(BATCH)));
+
+        // nothing changed: the second snapshot refers to the first
+        File second = Files.createDirectories(dest.resolve(DirNaming.buildAtomicTargetDirRawName(t0.plus(Duration.ofDays(1))))).toFile();
+        plan = FastPath.plan(BATCH, sources, BATCH.seq, List.of(second), t0.plus(Duration.ofDays(1)), WEEK, FastPath.MAX_SKIPPED_SUBTREES, 2);
+        assertThat(plan.decision).isEqualTo(FastPath.Decision.SkipBatch);
+        assertThat(SnapshotReader.holderOf(second, BATCH)).isEqualTo(first);
+        plan.fingerprints.write(new File(second, DirNaming.buildAtomicFingerprintFileName(BATCH)));
+
+        // a new letter: the music is linked from the first snapshot and left out of rsync
+        Files.writeString(aloy.resolve("docs/reply.txt"), "sincerely");
+        File third = Files.createDirectories(dest.resolve(DirNaming.buildAtomicTargetDirRawName(t0.plus(Duration.ofDays(2))))).toFile();
+        plan = FastPath.plan(BATCH, sources, BATCH.seq, List.of(third), t0.plus(Duration.ofDays(2)), WEEK, FastPath.MAX_SKIPPED_SUBTREES, 2);
+        assertThat(plan.decision).isEqualTo(FastPath.Decision.SkipSubtrees);
+        assertThat(plan.skipped).containsExactly("/aloy/music");
+        assertThat(plan.holder).isEqualTo(first);
+        Path linked = third.toPath().resolve("copy_of_fast_changers/aloy/music/album/track.flac");
+        assertThat(Files.getAttribute(linked, "unix:ino")).isEqualTo(Files.getAttribute(first.toPath().resolve("copy_of_fast_changers/aloy/music/album/track.flac"), "unix:ino"));
+        assertThat(plan.seqOf(BATCH.seq).isExcluded("/aloy/music", true)).isTrue();
+        assertThat(plan.seqOf(BATCH.seq).isExcluded("/aloy/docs", true)).isFalse();
+        assertThat(plan.fingerprints.getLastFullWalk()).isEqualTo(t0);
+
+        // a week after the last full walk, the batch is walked in full again
+        File fourth = Files.createDirectories(dest.resolve(DirNaming.buildAtomicTargetDirRawName(t0.plus(Duration.ofDays(7))))).toFile();
+        plan = FastPath.plan(BATCH, sources, BATCH.seq, List.of(fourth), t0.plus(Duration.ofDays(7)), WEEK, FastPath.MAX_SKIPPED_SUBTREES, 2);
+        assertThat(plan.decision).isEqualTo(FastPath.Decision.FullWalk);
+    }
+
+    @Test
+    void fingerprintsSurviveWritingAndReading(@TempDir Path tmp) throws Exception {
+        Path aloy = Files.createDirectories(tmp.resolve("home/aloy/a\tb/c"));
+        SortedSet<File> sources = new TreeSet<>(Set.of(aloy.getParent().getParent().toFile()));
+        DirFingerprints fingerprints = DirFingerprints.take(BATCH, sources, BATCH.seq, 1).withLastFullWalk(Instant.ofEpochMilli(1234));
+        File file = tmp.resolve("fingerprints.tsv").toFile();
+        fingerprints.write(file);
+        DirFingerprints read = DirFingerprints.read(file);
+        assertThat(read.size()).isEqualTo(3);
+        assertThat(read.getLastFullWalk()).isEqualTo(Instant.ofEpochMilli(1234));
+        assertThat(fingerprints.isUnchangedSince(read)).isTrue();
+    }
+
+    private static File snapshot(Path dest, Instant when, Path source) throws Exception {
+        Path targetDir = Files.createDirectories(dest.resolve(DirNaming.buildAtomicTargetDirRawName(when)));
+        Path copy = targetDir.resolve("copy_of_fast_changers").resolve(source.getFileName());
+        try (var stream = Files.walk(source)) {
+            for (Path p : stream.toList()) {
+                Path target = copy.resolve(source.relativize(p).toString());
+                if (Files.isDirectory(p)) {
+                    Files.createDirectories(target);
+                }
+                else {
+                    Files.copy(p, target);
+                }
+            }
+        }
+        return targetDir.toFile();
+    }
+}
@@ -0,0 +1,59 @@
+package backup;
+
+import backup.helpers.FilterRule;
+import backup.helpers.FilterRuleSeq;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestFilterRule {
+
+    @Test
+    void anchoredDirectoryRule() {
+        FilterRule fr = new FilterRule("/attic/nsfw/", false);
+        assertThat(fr.matches("/attic/nsfw", true)).isTrue();
+        assertThat(fr.matches("/attic/nsfw", false)).isFalse(); // trailing slash: directories only
+        assertThat(fr.matches("/attic/nsfw/x", true)).isFalse();
+        assertThat(fr.matches("/other/attic/nsfw", true)).isFalse();
+    }
+
+    @Test
+    void basenameRule() {
+        FilterRule fr = new FilterRule(".m2", false);
+        assertThat(fr.matches("/aloy/.m2", true)).isTrue();
+        assertThat(fr.matches("/aloy/deep/down/.m2", false)).isTrue();
+        assertThat(fr.matches("/aloy/.m2x", true)).isFalse();
+    }
+
+    @Test
+    void unanchoredRuleWithSlash() {
+        FilterRule fr = new FilterRule("aloy/.cache/", false);
+        assertThat(fr.matches("/aloy/.cache", true)).isTrue();
+        assertThat(fr.matches("/home/aloy/.cache", true)).isTrue();
+        assertThat(fr.matches("/xaloy/.cache", true)).isFalse();
+    }
+
+    @Test
+    void wildcards() {
+        FilterRule star = new FilterRule("/home/*", false);
+        assertThat(star.matches("/home/aloy", true)).isTrue();
+        assertThat(star.matches("/home", true)).isFalse();
+        assertThat(star.matches("/home/aloy/x", false)).isFalse();
+        FilterRule doubleStar = new FilterRule("/var/**.log", false);
+        assertThat(doubleStar.matches("/var/log/x/y.log", false)).isTrue();
+        FilterRule question = new FilterRule("file?.txt", false);
+        assertThat(question.matches("/a/file1.txt", false)).isTrue();
+        assertThat(question.matches("/a/file12.txt", false)).isFalse();
+        FilterRule tripleStar = new FilterRule("/tmp/***", false);
+        assertThat(tripleStar.matches("/tmp", true)).isTrue();
+        assertThat(tripleStar.matches("/tmp/a/b", false)).isTrue();
+    }
+
+    @Test
+    void firstMatchWins() {
+        FilterRuleSeq seq = new FilterRuleSeq("+/home/keep/", "-/home/*");
+        assertThat(seq.isExcluded("/home/keep", true)).isFalse();
+        assertThat(seq.isExcluded("/home/drop", true)).isTrue();
+        assertThat(seq.isExcluded("/etc", true)).isFalse();
+    }
+}
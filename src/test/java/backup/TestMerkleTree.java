@@ -0,0 +1,142 @@
+package backup;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import backup.maintenance.Scrubber;
+import backup.merkle.MerkleDiff;
+import backup.merkle.MerkleTree;
+import backup.restore.RestoreItem;
+import backup.restore.SnapshotReader;
+import backup.scan.FileMeta;
+import backup.store.CryptoKeys;
+import backup.store.EncryptedStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TestMerkleTree {
+
+    @Test
+    void diffOnlyDescendsIntoChangedDirectories(@TempDir Path tmp) throws Exception {
+        List<RestoreItem> olderItems = tree(i -> 1000L);
+        List<RestoreItem> newerItems = tree(i -> (i == 57) ? 2000L : 1000L); // modifies /top/d5/f7
+        newerItems.removeIf(item -> item.transferPath.startsWith("/top/d9/"));
+        newerItems.add(file("/top/d3/new", 1000L));
+        File olderFile = tmp.resolve("older.tree").toFile();
+        File newerFile = tmp.resolve("newer.tree").toFile();
+        MerkleTree.write(olderItems, olderFile, false);
+        MerkleTree.write(newerItems, newerFile, false);
+        List<String> changes = new ArrayList<>();
+        try (MerkleTree.Reader older = new MerkleTree.Reader(olderFile); MerkleTree.Reader newer = new MerkleTree.Reader(newerFile)) {
+            MerkleDiff diff = new MerkleDiff(older, newer, (change, transferPath, type) -> changes.add(change + " " + transferPath));
+            diff.run();
+            // root, "/top", "/top/d3", "/top/d5", "/top/d9" in both trees
+            assertThat(diff.getDirectoriesRead()).isEqualTo(2 * 5);
+        }
+        assertThat(changes).containsExactlyInAnyOrder("Added /top/d3/new", "Modified /top/d5/f7",
+                "Removed /top/d9/f0", "Removed /top/d9/f1", "Removed /top/d9/f2", "Removed /top/d9/f3", "Removed /top/d9/f4",
+                "Removed /top/d9/f5", "Removed /top/d9/f6", "Removed /top/d9/f7", "Removed /top/d9/f8", "Removed /top/d9/f9");
+    }
+
+    @Test
+    void identicalTreesAreNotWalked(@TempDir Path tmp) throws Exception {
+        File a = tmp.resolve("a.tree").toFile();
+        File b = tmp.resolve("b.tree").toFile();
+        MerkleTree.write(tree(i -> 1000L), a, false);
+        MerkleTree.write(tree(i -> 1000L), b, false);
+        try (MerkleTree.Reader older = new MerkleTree.Reader(a); MerkleTree.Reader newer = new MerkleTree.Reader(b)) {
+            MerkleDiff diff = new MerkleDiff(older, newer, (change, transferPath, type) -> {});
+            diff.run();
+            assertThat(diff.getDirectoriesRead()).isZero();
+            assertThat(older.getRootHash()).isEqualTo(newer.getRootHash());
+        }
+    }
+
+    @Test
+    void scrubFindsChangedDataAndResumes(@TempDir Path tmp) throws Exception {
+        Path aloy = Files.createDirectories(tmp.resolve(DirNaming.buildAtomicDumpDirName(Batch.FAST_CHANGERS)).resolve("aloy"));
+        for (String name : new String[]{"a.txt", "b.txt", "c.txt"}) {
+            Files.writeString(aloy.resolve(name), "contents of " + name);
+        }
+        File snapshotDir = tmp.toFile();
+        MerkleTree.write(SnapshotReader.listBatch(snapshotDir, Batch.FAST_CHANGERS, null),
+                new File(snapshotDir, DirNaming.buildAtomicMerkleFileName(Batch.FAST_CHANGERS)), true);
+        // bit rot: same size, same mtime
+        FileTime mtime = Files.getLastModifiedTime(aloy.resolve("b.txt"));
+        Files.writeString(aloy.resolve("b.txt"), "contents of b.txT");
+        Files.setLastModifiedTime(aloy.resolve("b.txt"), mtime);
+
+        Scrubber scrubber = new Scrubber(0, Instant.now().plusSeconds(3600));
+        Scrubber.BatchReport report = scrubber.scrub(snapshotDir, Batch.FAST_CHANGERS, null, null, transferPath -> {});
+        assertThat(report.finished).isTrue();
+        assertThat(report.files).isEqualTo(3);
+        assertThat(report.corruptions).extracting(c -> c.transferPath + " " + c.reason).containsExactly("/aloy/b.txt changed");
+        Scrubber.BatchReport resumed = scrubber.scrub(snapshotDir, Batch.FAST_CHANGERS, null, "/aloy/b.txt", transferPath -> {});
+        assertThat(resumed.files).isEqualTo(1);
+        assertThat(resumed.lastChecked).isEqualTo("/aloy/c.txt");
+        assertThat(resumed.corruptions).isEmpty();
+    }
+
+    @Test
+    void theTreeOfAnEncryptedBatchIsEncryptedAndScrubbed(@TempDir Path tmp) throws Exception {
+        char[] passphrase = "correct horse battery staple".toCharArray();
+        Path src = Files.createDirectories(tmp.resolve("src/aloy"));
+        Files.writeString(src.resolve("secret-plans.txt"), "world domination");
+        File snapshotDir = Files.createDirectories(tmp.resolve("snapshot")).toFile();
+        CryptoKeys keys = CryptoKeys.create(passphrase);
+        keys.writeKeyInfo(new File(snapshotDir, DirNaming.buildAtomicKeyInfoFileName()));
+        try (EncryptedStore store = new EncryptedStore(Batch.FAST_CHANGERS, List.of(snapshotDir), keys, 1)) {
+            store.enterDirectory(src, "/aloy", FileMeta.of(src));
+            store.visitFile(src.resolve("secret-plans.txt"), "/aloy/secret-plans.txt", FileMeta.of(src.resolve("secret-plans.txt")));
+        }
+        File plainFile = tmp.resolve("plain.tree").toFile();
+        File treeFile = new File(snapshotDir, DirNaming.buildAtomicMerkleFileName(Batch.FAST_CHANGERS));
+        MerkleTree.write(SnapshotReader.listBatch(snapshotDir, Batch.FAST_CHANGERS, passphrase), plainFile, true);
+        MerkleTree.encrypt(plainFile, List.of(treeFile), keys);
+        assertThat(new String(Files.readAllBytes(treeFile.toPath()), StandardCharsets.ISO_8859_1)).doesNotContain("secret-plans");
+
+        Scrubber scrubber = new Scrubber(0, Instant.now().plusSeconds(3600));
+        Scrubber.BatchReport report = scrubber.scrub(snapshotDir, Batch.FAST_CHANGERS, passphrase, null, transferPath -> {});
+        assertThat(report.files).isEqualTo(1);
+        assertThat(report.corruptions).isEmpty();
+        // bound to its name, so it cannot pass for the tree of another batch
+        File renamed = new File(snapshotDir, DirNaming.buildAtomicMerkleFileName(Batch.LARGE_BUT_STABLE));
+        Files.copy(treeFile.toPath(), renamed.toPath());
+        assertThatThrownBy(() -> MerkleTree.decrypt(renamed, tmp.resolve("other.tree").toFile(), keys)).isInstanceOf(IOException.class);
+    }
+
+    private interface Mtime {
+        long of(int fileNumber);
+    }
+
+    // "/top/d0" to "/top/d9" holding "f0" to "f9" each; the "d9" directory is listed
+    // but its files are removed by some tests, so it stays empty
+
+    private static List<RestoreItem> tree(Mtime mtime) {
+        List<RestoreItem> res = new ArrayList<>();
+        res.add(new RestoreItem(RestoreItem.Type.Directory, "/top", 0, 500L, 0755, 0, 0, null, null, null));
+        for (int d = 0; d < 10; d++) {
+            res.add(new RestoreItem(RestoreItem.Type.Directory, "/top/d" + d, 0, 500L, 0755, 0, 0, null, null, null));
+            for (int f = 0; f < 10; f++) {
+                res.add(file("/top/d" + d + "/f" + f, mtime.of(d * 10 + f)));
+            }
+        }
+        return res;
+    }
+
+    private static RestoreItem file(String transferPath, long mtimeMs) {
+        return new RestoreItem(RestoreItem.Type.File, transferPath, 42, mtimeMs, 0644, 0, 0, null, null, null);
+    }
+}
@@ -0,0 +1,99 @@
+package backup;
+
+import backup.config.Batch;
+import backup.probe.MetadataSupport;
+import backup.restore.RestoreItem;
+import backup.restore.SnapshotReader;
+import backup.store.MetadataSidecar;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestMetadataSidecar {
+
+    @Test
+    void lostMetadataIsTakenFromTheSourcesAndAppliedWhenListing(@TempDir Path tmp) throws Exception {
+        Path aloy = Files.createDirectories(tmp.resolve("src/home/aloy"));
+        Path secret = Files.writeString(aloy.resolve("secret.txt"), "hush");
+        Files.setPosixFilePermissions(secret, PosixFilePermissions.fromString("rw-------"));
+        boolean withXattrs = writeXattr(secret, "tag", "red");
+
+        // the copy on a FAT disk has lost the permissions
+        Path snapshot = tmp.resolve("backup_x");
+        Path copy = Files.createDirectories(snapshot.resolve("copy_of_fast_changers/aloy"));
+        Files.writeString(copy.resolve("secret.txt"), "hush");
+        Files.setPosixFilePermissions(copy.resolve("secret.txt"), PosixFilePermissions.fromString("rwxrwxrwx"));
+
+        File sidecarFile = snapshot.resolve("metadata_of_fast_changers.tsv.gz").toFile();
+        long entries = MetadataSidecar.write(sidecarFile, Batch.FAST_CHANGERS, new TreeSet<>(Set.of(aloy.toFile())), Batch.FAST_CHANGERS.seq,
+                new MetadataSupport(false, false, false), 2);
+        assertThat(entries).isEqualTo(2);
+
+        MetadataSidecar.Content content = MetadataSidecar.read(sidecarFile);
+        assertThat(content.kept.isFull()).isFalse();
+        assertThat(content.entries).containsKeys("/aloy", "/aloy/secret.txt");
+        assertThat(content.entries.get("/aloy/secret.txt").permissions).isEqualTo(0600);
+
+        List<RestoreItem> items = SnapshotReader.listBatch(snapshot.toFile(), Batch.FAST_CHANGERS, null);
+        RestoreItem item = items.stream().filter(i -> i.transferPath.equals("/aloy/secret.txt")).findFirst().orElseThrow();
+        assertThat(item.permissions).isEqualTo(0600);
+        assertThat(item.xattrs).isNotNull();
+        if (withXattrs) {
+            assertThat(new String(item.xattrs.get("tag"), StandardCharsets.UTF_8)).isEqualTo("red");
+        }
+    }
+
+    @Test
+    void onlyFilesWithLostMetadataGetALineIfThePermissionsAreKept(@TempDir Path tmp) throws Exception {
+        Path aloy = Files.createDirectories(tmp.resolve("home/aloy"));
+        Files.writeString(aloy.resolve("plain.txt"), "x");
+        File sidecarFile = tmp.resolve("metadata.tsv.gz").toFile();
+        long entries = MetadataSidecar.write(sidecarFile, Batch.FAST_CHANGERS, new TreeSet<>(Set.of(aloy.toFile())), Batch.FAST_CHANGERS.seq,
+                new MetadataSupport(true, false, false), 1);
+        assertThat(entries).isZero();
+        assertThat(MetadataSidecar.read(sidecarFile).kept.permissions).isTrue();
+    }
+
+    @Test
+    void theEntriesOfLinkedSubtreesAreCarriedOver(@TempDir Path tmp) throws Exception {
+        Path aloy = Files.createDirectories(tmp.resolve("home/aloy"));
+        Files.createDirectories(aloy.resolve("docs"));
+        Files.writeString(aloy.resolve("docs/letter.txt"), "dear");
+        Files.writeString(aloy.resolve("docs.txt"), "not under docs/");
+        MetadataSupport kept = new MetadataSupport(false, false, false);
+        File previous = tmp.resolve("previous.tsv.gz").toFile();
+        MetadataSidecar.write(previous, Batch.FAST_CHANGERS, new TreeSet<>(Set.of(aloy.toFile())), Batch.FAST_CHANGERS.seq, kept, 1);
+
+        // the fast path linked "docs" from the earlier snapshot, so it is not walked
+        List<MetadataSidecar.Entry> carried = MetadataSidecar.entriesUnder(previous, List.of("/aloy/docs"), kept);
+        assertThat(carried).extracting(e -> e.transferPath).containsExactlyInAnyOrder("/aloy/docs", "/aloy/docs/letter.txt");
+        File sidecarFile = tmp.resolve("metadata.tsv.gz").toFile();
+        long entries = MetadataSidecar.write(sidecarFile, Batch.FAST_CHANGERS, new TreeSet<>(Set.of(aloy.toFile())),
+                Batch.FAST_CHANGERS.seq.prepend("-/aloy/docs/"), kept, 1, carried);
+        assertThat(entries).isEqualTo(4);
+        assertThat(MetadataSidecar.read(sidecarFile).entries).containsKeys("/aloy", "/aloy/docs", "/aloy/docs/letter.txt", "/aloy/docs.txt");
+    }
+
+    // not all file systems of the test machines have user xattrs
+
+    private static boolean writeXattr(Path file, String name, String value) {
+        try {
+            Files.getFileAttributeView(file, UserDefinedFileAttributeView.class).write(name, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package backup;
+
+import backup.maintenance.ParityFile;
+import backup.maintenance.ReedSolomon;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestParity {
+
+    @Test
+    void anyDataShardsOutOfAllRebuildTheRest() {
+        Random random = new Random(7);
+        int dataShards = 10;
+        int parityShards = 4;
+        ReedSolomon rs = new ReedSolomon(dataShards, parityShards);
+        byte[][] shards = new byte[dataShards + parityShards][1000];
+        for (int j = 0; j < dataShards; j++) {
+            random.nextBytes(shards[j]);
+        }
+        byte[][] parity = new byte[parityShards][];
+        System.arraycopy(shards, dataShards, parity, 0, parityShards);
+        rs.encode(shards, parity, 1000);
+        byte[][] original = new byte[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            original[i] = shards[i].clone();
+        }
+        for (int round = 0; round < 50; round++) {
+            boolean[] present = new boolean[shards.length];
+            Arrays.fill(present, true);
+            for (int lost = 0; lost < parityShards; lost++) {
+                int i = random.nextInt(shards.length);
+                present[i] = false;
+                Arrays.fill(shards[i], (byte) 0x55);
+            }
+            assertThat(rs.reconstruct(shards, present, 1000)).isTrue();
+            for (int i = 0; i < shards.length; i++) {
+                assertThat(shards[i]).isEqualTo(original[i]);
+            }
+        }
+        boolean[] tooFew = new boolean[shards.length];
+        Arrays.fill(tooFew, 0, dataShards - 1, true);
+        assertThat(rs.reconstruct(shards, tooFew, 1000)).isFalse();
+    }
+
+    @Test
+    void damagedAndTruncatedFileIsRepaired(@TempDir Path tmp) throws Exception {
+        byte[] data = new byte[3 * ParityFile.DATA_SHARDS * ParityFile.BLOCK_SIZE + 12345];
+        new Random(11).nextBytes(data);
+        Path file = tmp.resolve("copy_of_x/vm.img");
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+        Path parFile = tmp.resolve("parity_of_x/copy_of_x/vm.img.par");
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            ParityFile.write(file, parFile, ParityFile.parityShardsFor(10), pool, 4);
+        } finally {
+            pool.shutdown();
+        }
+        assertThat(ParityFile.repair(file, parFile)).isEqualTo(ParityFile.Outcome.Intact);
+
+        byte[] damaged = data.clone();
+        // two blocks in the first stripe, one in the second, and the end of the file cut off
+        damaged[100] ^= 1;
+        damaged[5 * ParityFile.BLOCK_SIZE + 7] ^= 1;
+        damaged[(ParityFile.DATA_SHARDS + 3) * ParityFile.BLOCK_SIZE] ^= 1;
+        Files.write(file, Arrays.copyOf(damaged, data.length - 1000));
+        assertThat(ParityFile.repair(file, parFile)).isEqualTo(ParityFile.Outcome.Repaired);
+        assertThat(Files.readAllBytes(file)).isEqualTo(data);
+
+        // more damaged blocks in a stripe than there are parity blocks
+        for (int j = 0; j <= ParityFile.parityShardsFor(10); j++) {
+            damaged[j * ParityFile.BLOCK_SIZE] ^= 1;
+        }
+        Files.write(file, damaged);
+        assertThat(ParityFile.repair(file, parFile)).isEqualTo(ParityFile.Outcome.Unrepairable);
+    }
+}
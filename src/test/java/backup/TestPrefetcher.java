@@ -0,0 +1,53 @@
+package backup;
+
+import backup.config.Batch;
+import backup.scan.Prefetcher;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestPrefetcher {
+
+    private final static Batch BATCH = Batch.FAST_CHANGERS;
+
+    @Test
+    void walksWhatRsyncWouldCopy(@TempDir Path tmp) throws Exception {
+        Path aloy = Files.createDirectories(tmp.resolve("home/aloy"));
+        Files.createDirectories(aloy.resolve("docs"));
+        Files.writeString(aloy.resolve("docs/letter.txt"), "dear");
+        Files.writeString(aloy.resolve("docs/reply.txt"), "sincerely");
+        SortedSet<File> sources = new TreeSet<>(Set.of(aloy.toFile()));
+        Prefetcher prefetcher = new Prefetcher(BATCH, sources, BATCH.seq.prepend("-/aloy/docs/reply.txt"), 2, Prefetcher.DEFAULT_MAX_ENTRIES_PER_SEC).start();
+        // cancelling a walk that has ended changes nothing, so this just waits for it
+        Thread.sleep(500);
+        prefetcher.cancel();
+        assertThat(prefetcher.getOutcome()).isEqualTo(Prefetcher.Outcome.Done);
+        assertThat(prefetcher.getEntries()).isEqualTo(3);
+        assertThat(prefetcher.getDuration()).isNotNull();
+    }
+
+    @Test
+    void aThrottledWalkCanBeCancelled(@TempDir Path tmp) throws Exception {
+        Path aloy = Files.createDirectories(tmp.resolve("home/aloy"));
+        for (int i = 0; i < 3000; i++) {
+            Files.createFile(aloy.resolve("file" + i));
+        }
+        SortedSet<File> sources = new TreeSet<>(Set.of(aloy.toFile()));
+        // pauses for about 10 s after the first 1024 entries
+        Prefetcher prefetcher = new Prefetcher(BATCH, sources, BATCH.seq, 1, 100).start();
+        Thread.sleep(200);
+        long start = System.nanoTime();
+        prefetcher.cancel();
+        assertThat(prefetcher.getOutcome()).isEqualTo(Prefetcher.Outcome.Cancelled);
+        assertThat(prefetcher.getEntries()).isEqualTo(1024);
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(2000);
+    }
+}
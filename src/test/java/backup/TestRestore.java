@@ -0,0 +1,92 @@
+package backup;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import backup.helpers.FilterRuleSeq;
+import backup.restore.RestoreItem;
+import backup.restore.Restorer;
+import backup.restore.SnapshotReader;
+import backup.scan.FileMeta;
+import backup.store.ArchiveStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestRestore {
+
+    private final static long MTIME = 1_600_000_000_000L;
+
+    @Test
+    void restoresSelectedPartOfPlainTree(@TempDir Path tmp) throws Exception {
+        File targetDir = Files.createDirectories(tmp.resolve("dest").resolve(DirNaming.buildAtomicTargetDirRawName(Instant.now()))).toFile();
+        Path copy = targetDir.toPath().resolve(DirNaming.buildAtomicDumpDirName(Batch.FAST_CHANGERS));
+        fillTree(copy);
+        Path restoreRoot = Files.createDirectories(tmp.resolve("restore"));
+        List<RestoreItem> items = SnapshotReader.listBatch(targetDir, Batch.FAST_CHANGERS, null);
+        Restorer restorer = new Restorer(restoreRoot.toFile(), new FilterRuleSeq("+/aloy/***", "-*"), 4, false);
+        restorer.restore(Batch.FAST_CHANGERS, items);
+        assertThat(restorer.getFailures()).isZero();
+        assertRestored(copy, restoreRoot.resolve("home"));
+        assertThat(restoreRoot.resolve("home/rost")).doesNotExist();
+    }
+
+    @Test
+    void restoresArchive(@TempDir Path tmp) throws Exception {
+        Path src = tmp.resolve("src");
+        fillTree(src);
+        File targetDir = Files.createDirectories(tmp.resolve("dest").resolve(DirNaming.buildAtomicTargetDirRawName(Instant.now()))).toFile();
+        try (ArchiveStore store = new ArchiveStore(Batch.FAST_CHANGERS, List.of(targetDir), ArchiveStore.DEFAULT_SEGMENT_SIZE, Collections.emptySet())) {
+            try (var stream = Files.walk(src)) {
+                for (Path p : stream.filter(p -> !p.equals(src)).toList()) {
+                    FileMeta meta = FileMeta.of(p);
+                    String transferPath = "/" + src.relativize(p);
+                    if (meta.isDirectory()) {
+                        store.enterDirectory(p, transferPath, meta);
+                    }
+                    else {
+                        store.visitFile(p, transferPath, meta);
+                    }
+                }
+            }
+        }
+        Path restoreRoot = Files.createDirectories(tmp.resolve("restore"));
+        Restorer restorer = new Restorer(restoreRoot.toFile(), new FilterRuleSeq("-/rost/"), 4, false);
+        restorer.restore(Batch.FAST_CHANGERS, SnapshotReader.listBatch(targetDir, Batch.FAST_CHANGERS, null));
+        assertThat(restorer.getFailures()).isZero();
+        assertRestored(src, restoreRoot.resolve("home"));
+        assertThat(restoreRoot.resolve("home/rost")).doesNotExist();
+    }
+
+    private static void fillTree(Path root) throws Exception {
+        Path docs = Files.createDirectories(root.resolve("aloy/docs"));
+        Files.writeString(docs.resolve("a.txt"), "alpha");
+        Files.writeString(docs.resolve("b.txt"), "beta");
+        Files.setPosixFilePermissions(docs.resolve("b.txt"), PosixFilePermissions.fromString("rw-------"));
+        Files.createSymbolicLink(root.resolve("aloy/link"), Path.of("docs/a.txt"));
+        Files.createDirectories(root.resolve("rost"));
+        Files.writeString(root.resolve("rost/y"), "not wanted");
+        for (Path p : List.of(docs.resolve("a.txt"), docs.resolve("b.txt"), docs)) {
+            Files.setLastModifiedTime(p, FileTime.fromMillis(MTIME));
+        }
+    }
+
+    private static void assertRestored(Path from, Path to) throws Exception {
+        Path docs = to.resolve("aloy/docs");
+        assertThat(Files.readString(docs.resolve("a.txt"))).isEqualTo("alpha");
+        assertThat(Files.readString(docs.resolve("b.txt"))).isEqualTo("beta");
+        assertThat(FileMeta.of(docs.resolve("b.txt")).permissions()).isEqualTo(0600);
+        assertThat(FileMeta.of(docs.resolve("b.txt")).mtimeMs).isEqualTo(MTIME);
+        assertThat(FileMeta.of(docs).mtimeMs).isEqualTo(MTIME);
+        assertThat(Files.readSymbolicLink(to.resolve("aloy/link"))).isEqualTo(Files.readSymbolicLink(from.resolve("aloy/link")));
+    }
+}
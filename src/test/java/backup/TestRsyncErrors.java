@@ -0,0 +1,80 @@
+package backup;
+
+import backup.helpers.RsyncErrors;
+import backup.scan.ChunkWriter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TestRsyncErrors {
+
+    @Test
+    void failedFilesAreFoundAndMappedToTheirSources(@TempDir Path tmp) throws Exception {
+        File errFile = tmp.resolve("logfile_system.err").toFile();
+        String first = String.join("\n",
+                "rsync: [sender] send_files failed to open \"/home/aloy/secret\": Permission denied (13)",
+                "file has vanished: \"/var/tmp/x\"",
+                "IO error encountered -- skipping file deletion",
+                "rsync error: some files/attrs were not transferred (see previous errors) (code 23) at main.c(1333) [sender=3.2.7]",
+                "");
+        Files.writeString(errFile.toPath(), first);
+        String second = String.join("\n",
+                "rsync: [sender] read errors mapping \"/var/log/big.log\": Input/output error (5)",
+                "rsync: [generator] failed to set times on \"/media/usb/backup_x/copy_of_system/var/lib/db\": Operation not permitted (1)",
+                "rsync: connection unexpectedly closed (0 bytes received so far) [sender]",
+                "");
+        Files.writeString(errFile.toPath(), first + second);
+
+        RsyncErrors.Failures all = RsyncErrors.parse(errFile, 0);
+        assertThat(all.paths).containsExactly("/home/aloy/secret", "/media/usb/backup_x/copy_of_system/var/lib/db", "/var/log/big.log", "/var/tmp/x");
+        assertThat(all.unattributed).isEqualTo(1);
+        // only the vanished file may be copied by a retry
+        assertThat(all.retryable).containsExactly("/var/tmp/x");
+        assertThat(all.notRetryable()).containsExactly("/home/aloy/secret", "/media/usb/backup_x/copy_of_system/var/lib/db", "/var/log/big.log");
+        // only what a later run appended
+        RsyncErrors.Failures later = RsyncErrors.parse(errFile, first.length());
+        assertThat(later.paths).containsExactly("/media/usb/backup_x/copy_of_system/var/lib/db", "/var/log/big.log");
+
+        SortedMap<Path, SortedSet<String>> byRoot = RsyncErrors.byTransferRoot(all.paths, List.of(new File("/var"), new File("/home/aloy")),
+                new File("/media/usb/backup_x/copy_of_system"));
+        assertThat(byRoot).containsOnlyKeys(Path.of("/"), Path.of("/home"));
+        assertThat(byRoot.get(Path.of("/"))).containsExactly("var/lib/db", "var/log/big.log", "var/tmp/x");
+        assertThat(byRoot.get(Path.of("/home"))).containsExactly("aloy/secret");
+
+        List<ChunkWriter.Chunk> lists = RsyncErrors.writeFilesFrom(tmp.resolve("retries").toFile(), "attempt_1", byRoot);
+        assertThat(lists).hasSize(2);
+        assertThat(Files.readString(lists.get(0).listFile.toPath())).isEqualTo("var/lib/db\0var/log/big.log\0var/tmp/x\0");
+        assertThat(lists.get(0).entries).isEqualTo(3);
+    }
+
+    @Test
+    void filesThatChangedOrVanishedWhileCopiedAreRetryable(@TempDir Path tmp) throws Exception {
+        File errFile = tmp.resolve("logfile_system.err").toFile();
+        Files.writeString(errFile.toPath(), String.join("\n",
+                "rsync: [sender] send_files failed to open \"/var/tmp/gone\": No such file or directory (2)",
+                "ERROR: \"/media/usb/backup_x/copy_of_system/var/log/busy.log\" failed verification -- update retained.",
+                "rsync: [sender] send_files failed to open \"/var/tmp/both\": No such file or directory (2)",
+                "rsync: [generator] failed to set times on \"/var/tmp/both\": Operation not permitted (1)",
+                ""));
+        RsyncErrors.Failures failures = RsyncErrors.parse(errFile, 0);
+        assertThat(failures.retryable).containsExactly("/media/usb/backup_x/copy_of_system/var/log/busy.log", "/var/tmp/gone");
+        assertThat(failures.notRetryable()).containsExactly("/var/tmp/both");
+    }
+
+    @Test
+    void missingErrFileMeansNoFailures(@TempDir Path tmp) throws Exception {
+        RsyncErrors.Failures none = RsyncErrors.parse(tmp.resolve("absent.err").toFile(), 0);
+        assertThat(none.paths).isEmpty();
+        assertThat(none.unattributed).isZero();
+        assertThat(RsyncErrors.byTransferRoot(none.paths, List.of(new File("/var")), new File("/x"))).isEqualTo(Map.of());
+    }
+}
@@ -0,0 +1,72 @@
+package backup;
+
+import backup.helpers.RsyncStats;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+public class TestRsyncStats {
+
+    private final static String OUTPUT = String.join("\n",
+            "sending incremental file list",
+            "aloy/notes.txt",
+            "",
+            "Number of files: 1,234 (reg: 1,000, dir: 230, link: 4)",
+            "Number of created files: 10 (reg: 10)",
+            "Number of deleted files: 0",
+            "Number of regular files transferred: 12",
+            "Total file size: 12,345,678 bytes",
+            "Total transferred file size: 1,234,567 bytes",
+            "Literal data: 1,200,000 bytes",
+            "Matched data: 34,567 bytes",
+            "File list size: 45,678",
+            "File list generation time: 1.250 seconds",
+            "File list transfer time: 0.000 seconds",
+            "Total bytes sent: 1,300,000",
+            "Total bytes received: 350",
+            "",
+            "sent 1,300,000 bytes  received 350 bytes  2,600,700.00 bytes/sec",
+            "total size is 12,345,678  speedup is 9.49 (DRY RUN)",
+            "");
+
+    @Test
+    void parseStatistics() {
+        RsyncStats stats = RsyncStats.parse(OUTPUT);
+        assertThat(stats).isNotNull();
+        assertThat(stats.files).isEqualTo(1234);
+        assertThat(stats.regularFiles).isEqualTo(1000);
+        assertThat(stats.directories).isEqualTo(230);
+        assertThat(stats.createdFiles).isEqualTo(10);
+        assertThat(stats.deletedFiles).isEqualTo(0);
+        assertThat(stats.regularFilesTransferred).isEqualTo(12);
+        assertThat(stats.totalFileSize).isEqualTo(12345678);
+        assertThat(stats.totalTransferredFileSize).isEqualTo(1234567);
+        assertThat(stats.literalData).isEqualTo(1200000);
+        assertThat(stats.matchedData).isEqualTo(34567);
+        assertThat(stats.fileListSize).isEqualTo(45678);
+        assertThat(stats.fileListGenerationSecs).isEqualTo(1.25);
+        assertThat(stats.totalBytesSent).isEqualTo(1300000);
+        assertThat(stats.totalBytesReceived).isEqualTo(350);
+        assertThat(stats.speedup).isEqualTo(9.49);
+        assertThat(stats.dryRun).isTrue();
+    }
+
+    @Test
+    void noStatistics() {
+        assertThat(RsyncStats.parse("rsync error: some files could not be transferred")).isNull();
+    }
+
+    @Test
+    void sumOfChunks() {
+        RsyncStats one = RsyncStats.parse(OUTPUT);
+        RsyncStats sum = RsyncStats.sum(List.of(one, one));
+        assertThat(sum.files).isEqualTo(2 * 1234);
+        assertThat(sum.totalTransferredFileSize).isEqualTo(2 * 1_234_567);
+        assertThat(sum.fileListGenerationSecs).isEqualTo(2.5);
+        assertThat(sum.speedup).isCloseTo(9.49, within(0.01));
+        assertThat(RsyncStats.sum(List.of())).isNull();
+    }
+}
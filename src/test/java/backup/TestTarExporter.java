@@ -0,0 +1,171 @@
+package backup;
+
+import backup.config.Batch;
+import backup.helpers.DirNaming;
+import backup.restore.TarExporter;
+import backup.scan.FileMeta;
+import backup.store.CryptoKeys;
+import backup.store.EncryptedStore;
+import backup.store.EncryptingOutput;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class TestTarExporter {
+
+    @Test
+    void plainTreeIsExportedAsPaxTarWithIndex(@TempDir Path tmp) throws Exception {
+        Path snapshot = tmp.resolve("backup_x");
+        Path copy = Files.createDirectories(snapshot.resolve("copy_of_fast_changers/aloy"));
+        Files.writeString(copy.resolve("notes.txt"), "hello");
+        byte[] big = new byte[70_000];
+        Arrays.fill(big, (byte) 'b');
+        String longName = "d".repeat(120) + "/long.bin";
+        Files.createDirectories(copy.resolve(longName).getParent());
+        Files.write(copy.resolve(longName), big);
+        Files.createSymbolicLink(copy.resolve("link"), Path.of("notes.txt"));
+
+        Path tar = tmp.resolve("out.tar");
+        Path index = tmp.resolve("out.idx");
+        try (FileChannel out = FileChannel.open(tar, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             Writer indexWriter = Files.newBufferedWriter(index)) {
+            TarExporter exporter = new TarExporter(out, indexWriter);
+            exporter.exportBatch(snapshot.toFile(), Batch.FAST_CHANGERS, null);
+            exporter.finish();
+            assertThat(exporter.getFailures()).isZero();
+            assertThat(exporter.getBytes()).isEqualTo(5 + big.length);
+        }
+        byte[] bytes = Files.readAllBytes(tar);
+        assertThat(bytes.length % TarExporter.RECORD_SIZE).isZero();
+
+        Map<String, byte[]> entries = readTar(bytes);
+        assertThat(entries).containsKeys("fast_changers/", "fast_changers/aloy/", "fast_changers/aloy/link", "fast_changers/aloy/" + longName);
+        assertThat(new String(entries.get("fast_changers/aloy/notes.txt"), StandardCharsets.UTF_8)).isEqualTo("hello");
+        assertThat(entries.get("fast_changers/aloy/" + longName)).isEqualTo(big);
+
+        // the index tells where the data is
+        List<String> lines = Files.readAllLines(index);
+        String line = lines.stream().filter(l -> l.startsWith("fast_changers/aloy/notes.txt\t")).findFirst().orElseThrow();
+        String[] fields = line.split("\t");
+        assertThat(fields[1]).isEqualTo("0");
+        assertThat(fields[2]).isEqualTo("5");
+        int dataOffset = Integer.parseInt(fields[4]) * TarExporter.RECORD_SIZE;
+        assertThat(new String(bytes, dataOffset, 5, StandardCharsets.UTF_8)).isEqualTo("hello");
+    }
+
+    @Test
+    void nonAsciiNamesAreExportedAsUtf8(@TempDir Path tmp) throws Exception {
+        // such names cannot even be created under a POSIX locale
+        assumeTrue("UTF-8".equals(System.getProperty("sun.jnu.encoding")), "The file names of the JVM are not UTF-8");
+        Path snapshot = tmp.resolve("backup_x");
+        Path copy = Files.createDirectories(snapshot.resolve("copy_of_fast_changers/aloy"));
+        Files.writeString(copy.resolve("ünïcödé.txt"), "hello");
+        Path tar = tmp.resolve("out.tar");
+        try (FileChannel out = FileChannel.open(tar, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            TarExporter exporter = new TarExporter(out, null);
+            exporter.exportBatch(snapshot.toFile(), Batch.FAST_CHANGERS, null);
+            exporter.finish();
+            assertThat(exporter.getFailures()).isZero();
+        }
+        Map<String, byte[]> entries = readTar(Files.readAllBytes(tar));
+        assertThat(new String(entries.get("fast_changers/aloy/ünïcödé.txt"), StandardCharsets.UTF_8)).isEqualTo("hello");
+    }
+
+    @Test
+    void aFileThatCannotBeReadToTheEndKeepsTheStreamAligned(@TempDir Path tmp) throws Exception {
+        char[] passphrase = "correct horse battery staple".toCharArray();
+        Path src = Files.createDirectories(tmp.resolve("src/aloy"));
+        byte[] data = new byte[2 * EncryptingOutput.CHUNK_SIZE + 100];
+        new Random(5).nextBytes(data);
+        Files.write(src.resolve("a-damaged.bin"), data);
+        Files.writeString(src.resolve("b-after.txt"), "still readable");
+        File snapshot = Files.createDirectories(tmp.resolve("backup_x")).toFile();
+        CryptoKeys keys = CryptoKeys.create(passphrase);
+        keys.writeKeyInfo(new File(snapshot, DirNaming.buildAtomicKeyInfoFileName()));
+        try (EncryptedStore store = new EncryptedStore(Batch.FAST_CHANGERS, List.of(snapshot), keys, 1)) {
+            store.enterDirectory(src, "/aloy", FileMeta.of(src));
+            for (String name : List.of("a-damaged.bin", "b-after.txt")) {
+                store.visitFile(src.resolve(name), "/aloy/" + name, FileMeta.of(src.resolve(name)));
+            }
+        }
+        // a bad sector in the second chunk: the first one is out before the GCM check fails
+        File object = EncryptedStore.objectFileOf(new File(snapshot, DirNaming.buildAtomicEncryptedDirName(Batch.FAST_CHANGERS)),
+                keys.objectNameOf("/aloy/a-damaged.bin"));
+        try (RandomAccessFile raf = new RandomAccessFile(object, "rw")) {
+            long position = EncryptingOutput.MAGIC.length() + EncryptingOutput.FILE_SALT_LENGTH + 4 + EncryptingOutput.CHUNK_SIZE + EncryptingOutput.TAG_LENGTH + 10;
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xff);
+        }
+
+        Path tar = tmp.resolve("out.tar");
+        try (FileChannel out = FileChannel.open(tar, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            TarExporter exporter = new TarExporter(out, null);
+            exporter.exportBatch(snapshot, Batch.FAST_CHANGERS, passphrase);
+            exporter.finish();
+            assertThat(exporter.getFailures()).isEqualTo(1);
+        }
+        Map<String, byte[]> entries = readTar(Files.readAllBytes(tar));
+        byte[] damaged = entries.get("fast_changers/aloy/a-damaged.bin");
+        assertThat(damaged).hasSize(data.length);
+        assertThat(Arrays.copyOf(damaged, EncryptingOutput.CHUNK_SIZE)).isEqualTo(Arrays.copyOf(data, EncryptingOutput.CHUNK_SIZE));
+        assertThat(Arrays.copyOfRange(damaged, EncryptingOutput.CHUNK_SIZE, data.length)).containsOnly(0);
+        assertThat(new String(entries.get("fast_changers/aloy/b-after.txt"), StandardCharsets.UTF_8)).isEqualTo("still readable");
+    }
+
+    // ---
+    // Just enough of a tar reader: the name of each entry (from a PAX header if there is one) and the data of files
+    // ---
+
+    private static Map<String, byte[]> readTar(byte[] bytes) {
+        Map<String, byte[]> res = new LinkedHashMap<>();
+        int pos = 0;
+        String paxPath = null;
+        while (pos + 512 <= bytes.length && bytes[pos] != 0) {
+            String name = field(bytes, pos, 100);
+            String prefix = field(bytes, pos + 345, 155);
+            long size = Long.parseLong(field(bytes, pos + 124, 12).trim(), 8);
+            char type = (char) bytes[pos + 156];
+            byte[] data = Arrays.copyOfRange(bytes, pos + 512, pos + 512 + (int) size);
+            pos += 512 + (int) ((size + 511) / 512 * 512);
+            if (type == 'x') {
+                for (String record : new String(data, StandardCharsets.UTF_8).split("\n")) {
+                    String kv = record.substring(record.indexOf(' ') + 1);
+                    if (kv.startsWith("path=")) {
+                        paxPath = kv.substring("path=".length());
+                    }
+                }
+                continue;
+            }
+            String fullName = (paxPath != null) ? paxPath : prefix.isEmpty() ? name : prefix + "/" + name;
+            paxPath = null;
+            res.put(fullName, data);
+        }
+        return res;
+    }
+
+    private static String field(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+}